@@ -91,7 +91,7 @@ public class ArithCodeOutputStream extends OutputStream {
      * @throws IOException If there is an exception in writing to the underlying encoder.
      */
     public void write(byte[] bs, int off, int len)  throws IOException {
-      while (off < len) write(bs[off++]);
+      for (int end = off + len; off < end; ) write(bs[off++]);
     }
     
     /** Writes the eight low-order bits of argument to the output stream
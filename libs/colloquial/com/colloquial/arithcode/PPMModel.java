@@ -71,6 +71,19 @@ public final class PPMModel implements ArithCodeModel {
 	_excludedBytes.add(bytesToExclude);
     }
 
+    /** Returns the number of trie nodes this model has created.
+     * Rescaling drops some, so this is an upper bound on the number
+     * alive, and a measure of the memory the model holds.
+     * @return Number of nodes created.
+     */
+    public int nodeCount() {
+	return _nodeCount;
+    }
+
+    /** Number of nodes created, for nodeCount().
+     */
+    private int _nodeCount; // implied = 0;
+
     /** Count of bytes coded to use in pruning.
      */
     // private int _byteCount; // implied = 0; uncomment for pruning
@@ -141,10 +154,12 @@ public final class PPMModel implements ArithCodeModel {
     private void increment(byte b) {
 	_buffer.buffer(b);
 	byte firstByte = _buffer.bytes()[_buffer.offset()];
-	if (_contexts[Converter.byteToInteger(firstByte)] == null) 
+	if (_contexts[Converter.byteToInteger(firstByte)] == null) {
 	    _contexts[Converter.byteToInteger(firstByte)] = new PPMNode(firstByte); 
+	    ++_nodeCount;
+	}
 	if (_buffer.length() > 1) 
-	    _contexts[Converter.byteToInteger(firstByte)].increment(_buffer.bytes(),
+	    _nodeCount += _contexts[Converter.byteToInteger(firstByte)].increment(_buffer.bytes(),
 								    _buffer.offset()+1,
 								    _buffer.length()-1);
 	// _backoffModel.increment(Converter.byteToInteger(b));  //  updates backoff model; best to exclude it by .1 b/B!
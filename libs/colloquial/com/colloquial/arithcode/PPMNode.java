@@ -175,15 +175,18 @@ final class PPMNode {
      * @param bytes Byte array providing bytes to extend.
      * @param offset Index of first byte in array.
      * @param length Number of bytes to extend.
+     * @return Number of nodes created, which is the length.
      */
-    void complete(byte[] bytes, int offset, int length) {
+    int complete(byte[] bytes, int offset, int length) {
 	PPMNode node = this;
+	int created = length;
 	while (length > 0) {
 	    ++node._numberOfOutcomes;
 	    node = node._firstChild = new PPMNode(bytes[offset]);
 	    ++offset;
 	    --length;
 	}
+	return created;
     }
 
     /** Increment the count of all of the nodes along the sequence of
@@ -192,31 +195,33 @@ final class PPMNode {
      * @param bytes Array from which to read bytes.
      * @param offset Index of first byte to read from array.
      * @param length Total number of bytes to read from array.
+     * @return Number of nodes created.
      */
-    void increment(byte[] bytes, int offset, int length) {
+    int increment(byte[] bytes, int offset, int length) {
 	if (_firstChild == null) {
 	    ++_numberOfOutcomes;
 	    _firstChild = new PPMNode(bytes[offset]);
-	    if (length > 1) _firstChild.complete(bytes,offset+1,length-1); 
-	    return;
+	    if (length > 1) return 1 + _firstChild.complete(bytes,offset+1,length-1); 
+	    return 1;
 	}
 	PPMNode previousChild = null;             // move to front                    
 	for (PPMNode child = _firstChild; true; child = child._nextSibling) {
 	    if (child._byte == bytes[offset]) {
-		if (length > 1) child.increment(bytes,offset+1,length-1);
+		int created = 0;
+		if (length > 1) created = child.increment(bytes,offset+1,length-1);
 		if (previousChild != null) {   // move to front 
 		    previousChild._nextSibling = child._nextSibling; 
 		    child._nextSibling = _firstChild;                
 		    _firstChild = child;                             
 		}
 		if (++child._count > MAX_INDIVIDUAL_COUNT) rescale(); 
-		return; 
+		return created; 
 	    } 
 	    if (child._nextSibling == null) {
 		++_numberOfOutcomes;
 		_firstChild = new PPMNode(bytes[offset],_firstChild); // start in front
-		if (length > 1) _firstChild.complete(bytes,offset+1,length-1); // start in front     
-		return;
+		if (length > 1) return 1 + _firstChild.complete(bytes,offset+1,length-1); // start in front     
+		return 1;
 	    } 
 	    previousChild = child;                                // move to front  
 	}
@@ -180,6 +180,30 @@ public class CBZip2InputStream
         }
     }
 
+    /**
+     * Reads up to ‘len’ bytes into ‘b’, starting at ‘off’.  The
+     * decoder still produces one byte at a time, but this saves a
+     * call through InputStream for each of them.
+     */
+    public int read( final byte[] b, final int off, final int len )
+    {
+        if( off < 0 || len < 0 || len > b.length - off )
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = 0;
+        while( n < len )
+        {
+            int c = read();
+            if( c < 0 )
+            {
+                break;
+            }
+            b[ off + n++ ] = (byte)c;
+        }
+        return n == 0 && len > 0 ? -1 : n;
+    }
+
     private void setDecompressStructureSizes( int newSize100k )
     {
         if( !( 0 <= newSize100k && newSize100k <= 9 && 0 <= m_blockSize100k
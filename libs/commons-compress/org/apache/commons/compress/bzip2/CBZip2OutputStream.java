@@ -46,6 +46,14 @@ public class CBZip2OutputStream
     private static final int SMALL_THRESH = 20;
     private static final int DEPTH_THRESH = 10;
 
+    /*
+     * Blocks whose pairs of bytes have less than log2 of this many
+     * bits of (collision) entropy are sorted by SuffixSort instead:
+     * most of the block then falls into a few of the small buckets,
+     * and the quicksort spends far too long in each.
+     */
+    private static final int LOW_ENTROPY_PAIRS = 16;
+
     /*
      * If you are ever unlucky/improbable enough
      * to get a stack overflow whilst sorting,
@@ -392,7 +400,13 @@ public class CBZip2OutputStream
             writeRun();
         }
         m_currentChar = -1;
-        endBlock();
+        /*
+         * An empty stream has no blocks, just the end marker.
+         */
+        if( m_last >= 0 )
+        {
+            endBlock();
+        }
         endCompression();
         m_closed = true;
         super.close();
@@ -448,6 +462,53 @@ public class CBZip2OutputStream
         }
     }
 
+    /**
+     * Writes ‘len’ bytes of ‘buf’, starting at ‘off’.  This does the
+     * same as calling write(int) on each byte, but keeps the current
+     * run in locals.
+     */
+    public void write( byte[] buf, int off, int len )
+        throws IOException
+    {
+        if( off < 0 || len < 0 || len > buf.length - off )
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        int cur = m_currentChar;
+        int run = m_runLength;
+        for( int i = off, end = off + len; i < end; i++ )
+        {
+            int b = buf[ i ] & 0xff;
+            if( cur == b )
+            {
+                run++;
+                if( run > 254 )
+                {
+                    m_currentChar = cur;
+                    m_runLength = run;
+                    writeRun();
+                    cur = -1;
+                    run = 0;
+                }
+            }
+            else if( cur != -1 )
+            {
+                m_currentChar = cur;
+                m_runLength = run;
+                writeRun();
+                run = 1;
+                cur = b;
+            }
+            else
+            {
+                cur = b;
+                run++;
+            }
+        }
+        m_currentChar = cur;
+        m_runLength = run;
+    }
+
     private void allocateCompressStructures()
     {
         int n = BASE_BLOCK_SIZE * m_blockSize100k;
@@ -559,12 +620,14 @@ public class CBZip2OutputStream
 
         if( m_workDone > m_workLimit && m_firstAttempt )
         {
-            randomiseBlock();
-            m_workLimit = 0;
-            m_workDone = 0;
-            m_blockRandomised = true;
-            m_firstAttempt = false;
-            mainSort();
+            /*
+             * The block is so repetitive that the quicksort has
+             * given up, though lowEntropy() did not foresee it.
+             * Rather than randomise it and sort again, which can
+             * take as long once more, sort the rotations in linear
+             * time.
+             */
+            SuffixSort.sortRotations( m_block, m_last + 1, m_zptr );
         }
 
         m_origPtr = -1;
@@ -1042,6 +1105,12 @@ public class CBZip2OutputStream
                 c1 = c2;
             }
 
+            if( lowEntropy() )
+            {
+                SuffixSort.sortRotations( m_block, m_last + 1, m_zptr );
+                return;
+            }
+
             for( i = 1; i <= 65536; i++ )
             {
                 m_ftab[ i ] += m_ftab[ i - 1 ];
@@ -1203,6 +1272,21 @@ public class CBZip2OutputStream
         }
     }
 
+    /*
+     * True if the pair counts in ftab say the block is too
+     * repetitive for the quicksort.
+     */
+    private boolean lowEntropy()
+    {
+        long n = m_last + 1;
+        long sumSquares = 0;
+        for( int i = 0; i < 65536; i++ )
+        {
+            sumSquares += (long)m_ftab[ i ] * m_ftab[ i ];
+        }
+        return sumSquares * LOW_ENTROPY_PAIRS > n * n;
+    }
+
     private void makeMaps()
     {
         int i;
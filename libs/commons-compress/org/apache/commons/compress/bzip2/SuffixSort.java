@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.commons.compress.bzip2;
+
+import java.util.Arrays;
+
+/**
+ * Sorts the rotations of a block in linear time, by building the
+ * suffix array of the block written out twice, with the SA-IS
+ * algorithm of Nong, Zhang and Chan ("Linear Suffix Array
+ * Construction by Almost Pure Induced-Sorting", 2009).  Among the
+ * suffixes that start in the first copy, the first n characters are
+ * exactly the rotations, so their order is the order of the
+ * rotations.  Unlike the quicksort in CBZip2OutputStream, this takes
+ * the same time however repetitive the block is.
+ */
+final class SuffixSort
+{
+    private SuffixSort()
+    {
+    }
+
+    /**
+     * Sorts the rotations of block[ 1 .. n ], leaving in zptr[ i ]
+     * the (zero-based) start of the i-th smallest.
+     */
+    static void sortRotations( final char[] block, final int n,
+                               final int[] zptr )
+    {
+        final int len = 2 * n + 1;
+        final int[] s = new int[ len ];
+        for( int i = 0; i < n; i++ )
+        {
+            s[ i ] = s[ i + n ] = block[ i + 1 ] + 1;
+        }
+        s[ 2 * n ] = 0;
+        final int[] sa = new int[ len ];
+        sais( s, sa, len, 257 );
+        int j = 0;
+        for( int i = 0; i < len; i++ )
+        {
+            if( sa[ i ] < n )
+            {
+                zptr[ j++ ] = sa[ i ];
+            }
+        }
+    }
+
+    /*
+     * Builds in sa the suffix array of s[ 0 .. n-1 ], whose symbols
+     * are in 0 .. k-1, and whose last symbol is a 0 that occurs
+     * nowhere else.
+     */
+    private static void sais( final int[] s, final int[] sa,
+                              final int n, final int k )
+    {
+        /* stype[ i ] if suffix i is smaller than suffix i+1 */
+        final boolean[] stype = new boolean[ n ];
+        stype[ n - 1 ] = true;
+        for( int i = n - 2; i >= 0; i-- )
+        {
+            stype[ i ] = s[ i ] < s[ i + 1 ]
+                || ( s[ i ] == s[ i + 1 ] && stype[ i + 1 ] );
+        }
+        final int[] bkt = new int[ k ];
+
+        /*
+         * Sort the LMS substrings by induction from their first
+         * characters.
+         */
+        buckets( s, bkt, n, k, true );
+        Arrays.fill( sa, 0, n, -1 );
+        for( int i = 1; i < n; i++ )
+        {
+            if( isLMS( stype, i ) )
+            {
+                sa[ --bkt[ s[ i ] ] ] = i;
+            }
+        }
+        induceL( stype, sa, s, bkt, n, k );
+        induceS( stype, sa, s, bkt, n, k );
+
+        /*
+         * Compact the sorted LMS substrings into sa[ 0 .. n1-1 ],
+         * and name them, equal substrings alike.
+         */
+        int n1 = 0;
+        for( int i = 0; i < n; i++ )
+        {
+            if( isLMS( stype, sa[ i ] ) )
+            {
+                sa[ n1++ ] = sa[ i ];
+            }
+        }
+        Arrays.fill( sa, n1, n, -1 );
+        int name = 0;
+        int prev = -1;
+        for( int i = 0; i < n1; i++ )
+        {
+            final int pos = sa[ i ];
+            boolean diff = false;
+            for( int d = 0; d < n; d++ )
+            {
+                if( prev == -1 || s[ pos + d ] != s[ prev + d ]
+                    || stype[ pos + d ] != stype[ prev + d ] )
+                {
+                    diff = true;
+                    break;
+                }
+                else if( d > 0 && ( isLMS( stype, pos + d )
+                                    || isLMS( stype, prev + d ) ) )
+                {
+                    break;
+                }
+            }
+            if( diff )
+            {
+                name++;
+                prev = pos;
+            }
+            /* LMS positions are at least two apart */
+            sa[ n1 + pos / 2 ] = name - 1;
+        }
+        final int[] s1 = new int[ n1 ];
+        for( int i = n - 1, j = n1 - 1; i >= n1; i-- )
+        {
+            if( sa[ i ] >= 0 )
+            {
+                s1[ j-- ] = sa[ i ];
+            }
+        }
+
+        /*
+         * Sort the LMS suffixes, by recursion if any of the names
+         * are alike.
+         */
+        final int[] sa1 = new int[ n1 ];
+        if( name < n1 )
+        {
+            sais( s1, sa1, n1, name );
+        }
+        else
+        {
+            for( int i = 0; i < n1; i++ )
+            {
+                sa1[ s1[ i ] ] = i;
+            }
+        }
+
+        /*
+         * Induce the order of all the suffixes from that of the LMS
+         * suffixes.
+         */
+        for( int i = 1, j = 0; i < n; i++ )
+        {
+            if( isLMS( stype, i ) )
+            {
+                s1[ j++ ] = i;
+            }
+        }
+        buckets( s, bkt, n, k, true );
+        Arrays.fill( sa, 0, n, -1 );
+        for( int i = n1 - 1; i >= 0; i-- )
+        {
+            final int j = s1[ sa1[ i ] ];
+            sa[ --bkt[ s[ j ] ] ] = j;
+        }
+        induceL( stype, sa, s, bkt, n, k );
+        induceS( stype, sa, s, bkt, n, k );
+    }
+
+    private static boolean isLMS( final boolean[] stype, final int i )
+    {
+        return i > 0 && stype[ i ] && !stype[ i - 1 ];
+    }
+
+    /*
+     * Sets bkt[ c ] to the start (or the end, if end is true) of
+     * the bucket for symbol c.
+     */
+    private static void buckets( final int[] s, final int[] bkt,
+                                 final int n, final int k,
+                                 final boolean end )
+    {
+        Arrays.fill( bkt, 0, k, 0 );
+        for( int i = 0; i < n; i++ )
+        {
+            bkt[ s[ i ] ]++;
+        }
+        int sum = 0;
+        for( int i = 0; i < k; i++ )
+        {
+            sum += bkt[ i ];
+            bkt[ i ] = end ? sum : sum - bkt[ i ];
+        }
+    }
+
+    private static void induceL( final boolean[] stype, final int[] sa,
+                                 final int[] s, final int[] bkt,
+                                 final int n, final int k )
+    {
+        buckets( s, bkt, n, k, false );
+        for( int i = 0; i < n; i++ )
+        {
+            final int j = sa[ i ] - 1;
+            if( j >= 0 && !stype[ j ] )
+            {
+                sa[ bkt[ s[ j ] ]++ ] = j;
+            }
+        }
+    }
+
+    private static void induceS( final boolean[] stype, final int[] sa,
+                                 final int[] s, final int[] bkt,
+                                 final int n, final int k )
+    {
+        buckets( s, bkt, n, k, true );
+        for( int i = n - 1; i >= 0; i-- )
+        {
+            final int j = sa[ i ] - 1;
+            if( j >= 0 && stype[ j ] )
+            {
+                sa[ --bkt[ s[ j ] ] ] = j;
+            }
+        }
+    }
+}
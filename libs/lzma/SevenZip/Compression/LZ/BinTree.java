@@ -30,6 +30,7 @@ public class BinTree extends InWindow
 	int kNumHashDirectBytes = 0;
 	int kMinMatchCheck = 4;
 	int kFixHashSize = kHash2Size + kHash3Size;
+	int kNumSonLinks = 2;
 
 	public void SetType(int numHashBytes)
 	{
@@ -92,7 +93,7 @@ public class BinTree extends InWindow
 
 		int cyclicBufferSize = historySize + 1;
 		if (_cyclicBufferSize != cyclicBufferSize)
-			_son = new int[(_cyclicBufferSize = cyclicBufferSize) * 2];
+			_son = new int[(_cyclicBufferSize = cyclicBufferSize) * kNumSonLinks];
 
 		int hs = kBT2HashSize;
 
@@ -357,14 +358,14 @@ public class BinTree extends InWindow
 	void Normalize()
 	{
 		int subValue = _pos - _cyclicBufferSize;
-		NormalizeLinks(_son, _cyclicBufferSize * 2, subValue);
+		NormalizeLinks(_son, _cyclicBufferSize * kNumSonLinks, subValue);
 		NormalizeLinks(_hash, _hashSizeSum, subValue);
 		ReduceOffsets(subValue);
 	}
 	
 	public void SetCutValue(int cutValue) { _cutValue = cutValue; }
 
-	private static final int[] CrcTable = new int[256];
+	static final int[] CrcTable = new int[256];
 
 	static
 	{
@@ -0,0 +1,138 @@
+// LZ.HC4
+
+package SevenZip.Compression.LZ;
+import java.io.IOException;
+
+// A hash-chain match finder: the same hashes of 2, 3 and 4 bytes as
+// BinTree with 4 hash bytes, but each position keeps only a link to
+// the previous one with the same 4-byte hash, instead of two links
+// into a sorted tree.  It uses half the memory and is faster to
+// update, at the price of looking at fewer candidates per position.
+
+public class HC4 extends BinTree
+{
+	public HC4()
+	{
+		SetType(4);
+		kNumSonLinks = 1;
+	}
+
+	public boolean Create(int historySize, int keepAddBufferBefore,
+			int matchMaxLen, int keepAddBufferAfter)
+	{
+		if (!super.Create(historySize, keepAddBufferBefore, matchMaxLen, keepAddBufferAfter))
+			return false;
+		_cutValue >>= 1;
+		return true;
+	}
+
+	public int GetMatches(int[] distances) throws IOException
+	{
+		int lenLimit;
+		if (_pos + _matchMaxLen <= _streamPos)
+			lenLimit = _matchMaxLen;
+		else
+		{
+			lenLimit = _streamPos - _pos;
+			if (lenLimit < kMinMatchCheck)
+			{
+				MovePos();
+				return 0;
+			}
+		}
+
+		int offset = 0;
+		int matchMinPos = (_pos > _cyclicBufferSize) ? (_pos - _cyclicBufferSize) : 0;
+		int cur = _bufferOffset + _pos;
+		int maxLen = kStartMaxLen;
+
+		int temp = CrcTable[_bufferBase[cur] & 0xFF] ^ (_bufferBase[cur + 1] & 0xFF);
+		int hash2Value = temp & (kHash2Size - 1);
+		temp ^= ((int)(_bufferBase[cur + 2] & 0xFF) << 8);
+		int hash3Value = temp & (kHash3Size - 1);
+		int hashValue = (temp ^ (CrcTable[_bufferBase[cur + 3] & 0xFF] << 5)) & _hashMask;
+
+		int curMatch = _hash[kFixHashSize + hashValue];
+		int curMatch2 = _hash[hash2Value];
+		int curMatch3 = _hash[kHash3Offset + hash3Value];
+		_hash[hash2Value] = _pos;
+		_hash[kHash3Offset + hash3Value] = _pos;
+		if (curMatch2 > matchMinPos)
+			if (_bufferBase[_bufferOffset + curMatch2] == _bufferBase[cur])
+			{
+				distances[offset++] = maxLen = 2;
+				distances[offset++] = _pos - curMatch2 - 1;
+			}
+		if (curMatch3 > matchMinPos)
+			if (_bufferBase[_bufferOffset + curMatch3] == _bufferBase[cur])
+			{
+				if (curMatch3 == curMatch2)
+					offset -= 2;
+				distances[offset++] = maxLen = 3;
+				distances[offset++] = _pos - curMatch3 - 1;
+				curMatch2 = curMatch3;
+			}
+		if (offset != 0 && curMatch2 == curMatch)
+		{
+			offset -= 2;
+			maxLen = kStartMaxLen;
+		}
+
+		_hash[kFixHashSize + hashValue] = _pos;
+		_son[_cyclicBufferPos] = curMatch;
+
+		int count = _cutValue;
+		while (curMatch > matchMinPos && count-- != 0)
+		{
+			int delta = _pos - curMatch;
+			int cyclicPos = (delta <= _cyclicBufferPos) ?
+				(_cyclicBufferPos - delta) :
+				(_cyclicBufferPos - delta + _cyclicBufferSize);
+
+			int pby1 = _bufferOffset + curMatch;
+			// a candidate can only be longer if it agrees at maxLen
+			if (_bufferBase[pby1 + maxLen] == _bufferBase[cur + maxLen])
+			{
+				int len = 0;
+				while (len != lenLimit && _bufferBase[pby1 + len] == _bufferBase[cur + len])
+					len++;
+				if (maxLen < len)
+				{
+					distances[offset++] = maxLen = len;
+					distances[offset++] = delta - 1;
+					if (len == lenLimit)
+						break;
+				}
+			}
+			curMatch = _son[cyclicPos];
+		}
+		MovePos();
+		return offset;
+	}
+
+	public void Skip(int num) throws IOException
+	{
+		do
+		{
+			if (_streamPos - _pos < kMinMatchCheck)
+			{
+				MovePos();
+				continue;
+			}
+
+			int cur = _bufferOffset + _pos;
+			int temp = CrcTable[_bufferBase[cur] & 0xFF] ^ (_bufferBase[cur + 1] & 0xFF);
+			int hash2Value = temp & (kHash2Size - 1);
+			_hash[hash2Value] = _pos;
+			temp ^= ((int)(_bufferBase[cur + 2] & 0xFF) << 8);
+			int hash3Value = temp & (kHash3Size - 1);
+			_hash[kHash3Offset + hash3Value] = _pos;
+			int hashValue = (temp ^ (CrcTable[_bufferBase[cur + 3] & 0xFF] << 5)) & _hashMask;
+
+			_son[_cyclicBufferPos] = _hash[kFixHashSize + hashValue];
+			_hash[kFixHashSize + hashValue] = _pos;
+			MovePos();
+		}
+		while (--num != 0);
+	}
+}
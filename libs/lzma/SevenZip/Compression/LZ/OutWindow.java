@@ -45,7 +45,7 @@ public class OutWindow
 	public void Flush() throws IOException
 	{
 		int size = _pos - _streamPos;
-		if (size == 0)
+		if (size == 0 || _stream == null)
 			return;
 		_stream.write(_buffer, _streamPos, size);
 		if (_pos >= _windowSize)
@@ -75,6 +75,29 @@ public class OutWindow
 			Flush();
 	}
 	
+	// Without a stream, the bytes are pulled out with Take instead.
+	// The caller must take them all before the window wraps, so it
+	// may put at most Room() bytes at a time.
+	public int Available()
+	{
+		return _pos - _streamPos;
+	}
+	
+	public int Room()
+	{
+		return _windowSize - _pos;
+	}
+	
+	public int Take(byte[] b, int off, int len)
+	{
+		int n = Math.min(len, _pos - _streamPos);
+		System.arraycopy(_buffer, _streamPos, b, off, n);
+		_streamPos += n;
+		if (_streamPos == _windowSize)
+			_pos = _streamPos = 0;
+		return n;
+	}
+	
 	public byte GetByte(int distance)
 	{
 		int pos = _pos - distance - 1;
@@ -198,111 +198,152 @@ public class Decoder
 		m_RangeDecoder.Init();
 	}
 	
-	public boolean Code(java.io.InputStream inStream, java.io.OutputStream outStream,
-			long outSize) throws IOException
+	// The state between steps, so that decoding can stop and resume
+	// (see Start and Read).  m_PendingLen is the rest of a match that
+	// did not fit before the window wrapped.
+	int m_State;
+	int m_Rep0, m_Rep1, m_Rep2, m_Rep3;
+	long m_NowPos64;
+	byte m_PrevByte;
+	int m_PendingLen;
+	boolean m_Finished;
+	
+	static final int kStepOk = 0;
+	static final int kStepEnd = 1;
+	static final int kStepError = -1;
+	
+	void InitState() throws IOException
 	{
-		m_RangeDecoder.SetStream(inStream);
-		m_OutWindow.SetStream(outStream);
 		Init();
-		
-		int state = Base.StateInit();
-		int rep0 = 0, rep1 = 0, rep2 = 0, rep3 = 0;
-		
-		long nowPos64 = 0;
-		byte prevByte = 0;
-		while (outSize < 0 || nowPos64 < outSize)
+		m_State = Base.StateInit();
+		m_Rep0 = m_Rep1 = m_Rep2 = m_Rep3 = 0;
+		m_NowPos64 = 0;
+		m_PrevByte = 0;
+		m_PendingLen = 0;
+		m_Finished = false;
+	}
+	
+	// Decodes one literal or match, copying at most ‘room’ bytes of a
+	// match; the rest is left in m_PendingLen.
+	int Step(int room) throws IOException
+	{
+		if (m_PendingLen > 0)
 		{
-			int posState = (int)nowPos64 & m_PosStateMask;
-			if (m_RangeDecoder.DecodeBit(m_IsMatchDecoders, (state << Base.kNumPosStatesBitsMax) + posState) == 0)
+			int n = Math.min(m_PendingLen, room);
+			m_OutWindow.CopyBlock(m_Rep0, n);
+			m_PendingLen -= n;
+			m_NowPos64 += n;
+			m_PrevByte = m_OutWindow.GetByte(0);
+			return kStepOk;
+		}
+		int state = m_State;
+		int rep0 = m_Rep0;
+		int posState = (int)m_NowPos64 & m_PosStateMask;
+		if (m_RangeDecoder.DecodeBit(m_IsMatchDecoders, (state << Base.kNumPosStatesBitsMax) + posState) == 0)
+		{
+			LiteralDecoder.Decoder2 decoder2 = m_LiteralDecoder.GetDecoder((int)m_NowPos64, m_PrevByte);
+			if (!Base.StateIsCharState(state))
+				m_PrevByte = decoder2.DecodeWithMatchByte(m_RangeDecoder, m_OutWindow.GetByte(rep0));
+			else
+				m_PrevByte = decoder2.DecodeNormal(m_RangeDecoder);
+			m_OutWindow.PutByte(m_PrevByte);
+			m_State = Base.StateUpdateChar(state);
+			m_NowPos64++;
+			return kStepOk;
+		}
+		int len;
+		if (m_RangeDecoder.DecodeBit(m_IsRepDecoders, state) == 1)
+		{
+			len = 0;
+			if (m_RangeDecoder.DecodeBit(m_IsRepG0Decoders, state) == 0)
 			{
-				LiteralDecoder.Decoder2 decoder2 = m_LiteralDecoder.GetDecoder((int)nowPos64, prevByte);
-				if (!Base.StateIsCharState(state))
-					prevByte = decoder2.DecodeWithMatchByte(m_RangeDecoder, m_OutWindow.GetByte(rep0));
-				else
-					prevByte = decoder2.DecodeNormal(m_RangeDecoder);
-				m_OutWindow.PutByte(prevByte);
-				state = Base.StateUpdateChar(state);
-				nowPos64++;
+				if (m_RangeDecoder.DecodeBit(m_IsRep0LongDecoders, (state << Base.kNumPosStatesBitsMax) + posState) == 0)
+				{
+					state = Base.StateUpdateShortRep(state);
+					len = 1;
+				}
 			}
 			else
 			{
-				int len;
-				if (m_RangeDecoder.DecodeBit(m_IsRepDecoders, state) == 1)
+				int distance;
+				if (m_RangeDecoder.DecodeBit(m_IsRepG1Decoders, state) == 0)
+					distance = m_Rep1;
+				else
 				{
-					len = 0;
-					if (m_RangeDecoder.DecodeBit(m_IsRepG0Decoders, state) == 0)
-					{
-						if (m_RangeDecoder.DecodeBit(m_IsRep0LongDecoders, (state << Base.kNumPosStatesBitsMax) + posState) == 0)
-						{
-							state = Base.StateUpdateShortRep(state);
-							len = 1;
-						}
-					}
+					if (m_RangeDecoder.DecodeBit(m_IsRepG2Decoders, state) == 0)
+						distance = m_Rep2;
 					else
 					{
-						int distance;
-						if (m_RangeDecoder.DecodeBit(m_IsRepG1Decoders, state) == 0)
-							distance = rep1;
-						else
-						{
-							if (m_RangeDecoder.DecodeBit(m_IsRepG2Decoders, state) == 0)
-								distance = rep2;
-							else
-							{
-								distance = rep3;
-								rep3 = rep2;
-							}
-							rep2 = rep1;
-						}
-						rep1 = rep0;
-						rep0 = distance;
-					}
-					if (len == 0)
-					{
-						len = m_RepLenDecoder.Decode(m_RangeDecoder, posState) + Base.kMatchMinLen;
-						state = Base.StateUpdateRep(state);
+						distance = m_Rep3;
+						m_Rep3 = m_Rep2;
 					}
+					m_Rep2 = m_Rep1;
 				}
+				m_Rep1 = rep0;
+				rep0 = distance;
+			}
+			if (len == 0)
+			{
+				len = m_RepLenDecoder.Decode(m_RangeDecoder, posState) + Base.kMatchMinLen;
+				state = Base.StateUpdateRep(state);
+			}
+		}
+		else
+		{
+			m_Rep3 = m_Rep2;
+			m_Rep2 = m_Rep1;
+			m_Rep1 = rep0;
+			len = Base.kMatchMinLen + m_LenDecoder.Decode(m_RangeDecoder, posState);
+			state = Base.StateUpdateMatch(state);
+			int posSlot = m_PosSlotDecoder[Base.GetLenToPosState(len)].Decode(m_RangeDecoder);
+			if (posSlot >= Base.kStartPosModelIndex)
+			{
+				int numDirectBits = (posSlot >> 1) - 1;
+				rep0 = ((2 | (posSlot & 1)) << numDirectBits);
+				if (posSlot < Base.kEndPosModelIndex)
+					rep0 += BitTreeDecoder.ReverseDecode(m_PosDecoders,
+							rep0 - posSlot - 1, m_RangeDecoder, numDirectBits);
 				else
 				{
-					rep3 = rep2;
-					rep2 = rep1;
-					rep1 = rep0;
-					len = Base.kMatchMinLen + m_LenDecoder.Decode(m_RangeDecoder, posState);
-					state = Base.StateUpdateMatch(state);
-					int posSlot = m_PosSlotDecoder[Base.GetLenToPosState(len)].Decode(m_RangeDecoder);
-					if (posSlot >= Base.kStartPosModelIndex)
+					rep0 += (m_RangeDecoder.DecodeDirectBits(
+							numDirectBits - Base.kNumAlignBits) << Base.kNumAlignBits);
+					rep0 += m_PosAlignDecoder.ReverseDecode(m_RangeDecoder);
+					if (rep0 < 0)
 					{
-						int numDirectBits = (posSlot >> 1) - 1;
-						rep0 = ((2 | (posSlot & 1)) << numDirectBits);
-						if (posSlot < Base.kEndPosModelIndex)
-							rep0 += BitTreeDecoder.ReverseDecode(m_PosDecoders,
-									rep0 - posSlot - 1, m_RangeDecoder, numDirectBits);
-						else
-						{
-							rep0 += (m_RangeDecoder.DecodeDirectBits(
-									numDirectBits - Base.kNumAlignBits) << Base.kNumAlignBits);
-							rep0 += m_PosAlignDecoder.ReverseDecode(m_RangeDecoder);
-							if (rep0 < 0)
-							{
-								if (rep0 == -1)
-									break;
-								return false;
-							}
-						}
+						if (rep0 == -1)
+							return kStepEnd;
+						return kStepError;
 					}
-					else
-						rep0 = posSlot;
-				}
-				if (rep0 >= nowPos64 || rep0 >= m_DictionarySizeCheck)
-				{
-					// m_OutWindow.Flush();
-					return false;
 				}
-				m_OutWindow.CopyBlock(rep0, len);
-				nowPos64 += len;
-				prevByte = m_OutWindow.GetByte(0);
 			}
+			else
+				rep0 = posSlot;
+		}
+		m_State = state;
+		m_Rep0 = rep0;
+		if (rep0 >= m_NowPos64 || rep0 >= m_DictionarySizeCheck)
+		{
+			// m_OutWindow.Flush();
+			return kStepError;
+		}
+		m_PendingLen = len;
+		return Step(room);
+	}
+	
+	public boolean Code(java.io.InputStream inStream, java.io.OutputStream outStream,
+			long outSize) throws IOException
+	{
+		m_RangeDecoder.SetStream(inStream);
+		m_OutWindow.SetStream(outStream);
+		InitState();
+		
+		while (outSize < 0 || m_NowPos64 < outSize)
+		{
+			int result = Step(Integer.MAX_VALUE);
+			if (result == kStepEnd)
+				break;
+			if (result == kStepError)
+				return false;
 		}
 		m_OutWindow.Flush();
 		m_OutWindow.ReleaseStream();
@@ -310,6 +351,41 @@ public class Decoder
 		return true;
 	}
 	
+	// Pulling instead of pushing: after Start, each call to Read
+	// decodes just enough to fill the caller's buffer, in the caller's
+	// thread.  The bytes go through the window, which must keep the
+	// history for matches; Read takes them out before it wraps.
+	public void Start(java.io.InputStream inStream) throws IOException
+	{
+		m_RangeDecoder.SetStream(inStream);
+		m_OutWindow.SetStream(null);
+		InitState();
+	}
+	
+	// Returns the number of bytes read, or -1 after the end marker.
+	public int Read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+		while (m_OutWindow.Available() < len && !m_Finished)
+		{
+			int room = m_OutWindow.Room();
+			if (room == 0)
+				break;
+			int result = Step(room);
+			if (result == kStepEnd)
+			{
+				m_Finished = true;
+				m_RangeDecoder.ReleaseStream();
+			}
+			else if (result == kStepError)
+				throw new IOException("corrupt LZMA data");
+		}
+		if (m_OutWindow.Available() == 0)
+			return -1;
+		return m_OutWindow.Take(b, off, len);
+	}
+	
 	public boolean SetDecoderProperties(byte[] properties)
 	{
 		if (properties.length < 5)
@@ -10,6 +10,7 @@ public class Encoder
 {
 	public static final int EMatchFinderTypeBT2 = 0;
 	public static final int EMatchFinderTypeBT4 = 1;
+	public static final int EMatchFinderTypeHC4 = 2;
 
 
 
@@ -356,11 +357,14 @@ public class Encoder
 
 	int _matchFinderType = EMatchFinderTypeBT4;
 	boolean _writeEndMark = false;
+	boolean _fastMode = false;
 
 	boolean _needReleaseMFStream = false;
 
 	void Create()
 	{
+		if (_matchFinder == null && _matchFinderType == EMatchFinderTypeHC4)
+			_matchFinder = new SevenZip.Compression.LZ.HC4();
 		if (_matchFinder == null)
 		{
 			SevenZip.Compression.LZ.BinTree bt = new SevenZip.Compression.LZ.BinTree();
@@ -1027,6 +1031,109 @@ public class Encoder
 		}
 	}
 
+	// The greedy parse of the C encoder's fast mode: take the longest
+	// match or rep, unless a short rep is nearly as long, or the match
+	// at the next position is better, in which case emit a literal.
+	// No prices are consulted.
+	int GetOptimumFast() throws IOException
+	{
+		int mainLen, numDistancePairs;
+		if (!_longestMatchWasFound)
+			mainLen = ReadMatchDistances();
+		else
+		{
+			mainLen = _longestMatchLength;
+			_longestMatchWasFound = false;
+		}
+		numDistancePairs = _numDistancePairs;
+
+		backRes = -1;
+		int numAvailableBytes = _matchFinder.GetNumAvailableBytes() + 1;
+		if (numAvailableBytes < 2)
+			return 1;
+		if (numAvailableBytes > Base.kMatchMaxLen)
+			numAvailableBytes = Base.kMatchMaxLen;
+
+		int repLen = 0, repIndex = 0;
+		for (int i = 0; i < Base.kNumRepDistances; i++)
+		{
+			int len = _matchFinder.GetMatchLen(0 - 1, _repDistances[i], numAvailableBytes);
+			if (len < 2)
+				continue;
+			if (len >= _numFastBytes)
+			{
+				backRes = i;
+				MovePos(len - 1);
+				return len;
+			}
+			if (len > repLen)
+			{
+				repIndex = i;
+				repLen = len;
+			}
+		}
+
+		if (mainLen >= _numFastBytes)
+		{
+			backRes = _matchDistances[numDistancePairs - 1] + Base.kNumRepDistances;
+			MovePos(mainLen - 1);
+			return mainLen;
+		}
+
+		int mainDist = 0;
+		if (mainLen >= 2)
+		{
+			mainDist = _matchDistances[numDistancePairs - 1];
+			while (numDistancePairs > 2 && mainLen == _matchDistances[numDistancePairs - 4] + 1)
+			{
+				if (!ChangePair(_matchDistances[numDistancePairs - 3], mainDist))
+					break;
+				numDistancePairs -= 2;
+				mainLen = _matchDistances[numDistancePairs - 2];
+				mainDist = _matchDistances[numDistancePairs - 1];
+			}
+			if (mainLen == 2 && mainDist >= 0x80)
+				mainLen = 1;
+		}
+
+		if (repLen >= 2 && (
+				(repLen + 1 >= mainLen) ||
+				(repLen + 2 >= mainLen && mainDist >= (1 << 9)) ||
+				(repLen + 3 >= mainLen && mainDist >= (1 << 15))))
+		{
+			backRes = repIndex;
+			MovePos(repLen - 1);
+			return repLen;
+		}
+
+		if (mainLen < 2 || numAvailableBytes <= 2)
+			return 1;
+
+		_longestMatchLength = ReadMatchDistances();
+		_longestMatchWasFound = true;
+		if (_longestMatchLength >= 2)
+		{
+			int newDistance = _matchDistances[_numDistancePairs - 1];
+			if ((_longestMatchLength >= mainLen && newDistance < mainDist) ||
+					(_longestMatchLength == mainLen + 1 && !ChangePair(mainDist, newDistance)) ||
+					(_longestMatchLength > mainLen + 1) ||
+					(_longestMatchLength + 1 >= mainLen && mainLen >= 3 && ChangePair(newDistance, mainDist)))
+				return 1;
+		}
+
+		for (int i = 0; i < Base.kNumRepDistances; i++)
+		{
+			int limit = mainLen - 1;
+			int len = _matchFinder.GetMatchLen(0 - 1, _repDistances[i], Math.max(limit, 2));
+			if (len >= 2 && len >= limit)
+				return 1;
+		}
+		_longestMatchWasFound = false;
+		backRes = mainDist + Base.kNumRepDistances;
+		MovePos(mainLen - 2);
+		return mainLen;
+	}
+
 	boolean ChangePair(int smallDist, int bigDist)
 	{
 		int kDif = 7;
@@ -1106,7 +1213,7 @@ public class Encoder
 		while (true)
 		{
 
-			int len = GetOptimum((int)nowPos64);
+			int len = _fastMode ? GetOptimumFast() : GetOptimum((int)nowPos64);
 			int pos = backRes;
 			int posState = ((int)nowPos64) & _posStateMask;
 			int complexState = (_state << Base.kNumPosStatesBitsMax) + posState;
@@ -1203,11 +1310,13 @@ public class Encoder
 			nowPos64 += len;
 			if (_additionalOffset == 0)
 			{
-				// if (!_fastMode)
-				if (_matchPriceCount >= (1 << 7))
-					FillDistancesPrices();
-				if (_alignPriceCount >= Base.kAlignTableSize)
-					FillAlignPrices();
+				if (!_fastMode)
+				{
+					if (_matchPriceCount >= (1 << 7))
+						FillDistancesPrices();
+					if (_alignPriceCount >= Base.kAlignTableSize)
+						FillAlignPrices();
+				}
 				inSize[0] = nowPos64;
 				outSize[0] = _rangeEncoder.GetProcessedSizeAdd();
 				if (_matchFinder.GetNumAvailableBytes() == 0)
@@ -1255,7 +1364,7 @@ public class Encoder
 		SetOutStream(outStream);
 		Init();
 
-		// if (!_fastMode)
+		if (!_fastMode)
 		{
 			FillDistancesPrices();
 			FillAlignPrices();
@@ -1353,10 +1462,10 @@ public class Encoder
 
 	public boolean SetAlgorithm(int algorithm)
 	{
-		/*
+		if (algorithm < 0 || algorithm > 2)
+			return false;
 		_fastMode = (algorithm == 0);
-		_maxMode = (algorithm >= 2);
-		*/
+		// _maxMode = (algorithm >= 2);
 		return true;
 	}
 
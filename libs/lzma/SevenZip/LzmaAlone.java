@@ -58,7 +58,7 @@ public class LzmaAlone
 					MatchFinder = 0;
 				else if (mfs.equals("bt4"))
 					MatchFinder = 1;
-				else if (mfs.equals("bt4b"))
+				else if (mfs.equals("hc4"))
 					MatchFinder = 2;
 				else
 					return false;
@@ -150,13 +150,13 @@ public class LzmaAlone
 				"  d: decode file\n" +
 				"  b: Benchmark\n" +
 				"<Switches>\n" +
-				// "  -a{N}:  set compression mode - [0, 1], default: 1 (max)\n" +
+				"  -a{N}:  set compression mode - [0, 2], 0 is fast, default: 2\n" +
 				"  -d{N}:  set dictionary - [0,28], default: 23 (8MB)\n" +
 				"  -fb{N}: set number of fast bytes - [5, 273], default: 128\n" +
 				"  -lc{N}: set number of literal context bits - [0, 8], default: 3\n" +
 				"  -lp{N}: set number of literal pos bits - [0, 4], default: 0\n" +
 				"  -pb{N}: set number of pos bits - [0, 4], default: 2\n" +
-				"  -mf{MF_ID}: set Match Finder: [bt2, bt4], default: bt4\n" +
+				"  -mf{MF_ID}: set Match Finder: [bt2, bt4, hc4], default: bt4\n" +
 				"  -eos:   write End Of Stream marker\n"
 				);
 	}
@@ -1,4 +1,4 @@
-// ConcurrentBufferInputStream.java -- read bytes from blocking queue
+// ConcurrentBufferInputStream.java -- read bytes from ring buffer
 // Copyright (c)2007 Christopher League <league@contrapunctus.net>
 
 // This is free software, but it comes with ABSOLUTELY NO WARRANTY.
@@ -8,40 +8,40 @@ package net.contrapunctus.lzma;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.io.PrintStream;
 
 class ConcurrentBufferInputStream extends InputStream
 {
-    protected BlockingIntQueue q;
-    protected boolean eof;
+    protected RingBuffer q;
 
     private static final PrintStream dbg = System.err;
     private static final boolean DEBUG =
         System.getProperty("DEBUG_ConcurrentBuffer") != null;
 
-    ConcurrentBufferInputStream( BlockingIntQueue q )
+    ConcurrentBufferInputStream( RingBuffer q )
     {
         if(DEBUG) dbg.printf("%s << %s%n", this, q);
         this.q = q;
-        this.eof = false;
     }
 
     public int read( ) throws IOException
     {
-        if( eof ) return -1;
-        try {
-            int i = q.take( );
-            if( i == -1 ) {
-                if(DEBUG) dbg.printf("%s got EOF%n", this);
-                eof = true;   
-            }
-            else i &= 0xFF;
-            return i;
-        }
-        catch( InterruptedException exn ) {
-            throw new InterruptedIOException( exn.getMessage() );
-        }
+        return q.read( );
+    }
+
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        if( off < 0 || len < 0 || len > b.length - off )
+            throw new IndexOutOfBoundsException( );
+        int n = q.read( b, off, len );
+        if(DEBUG && n < 0) dbg.printf("%s got EOF%n", this);
+        return n;
+    }
+
+    public void close( ) throws IOException
+    {
+        if(DEBUG) dbg.printf("%s closed%n", this);
+        q.abandon( );
     }
 
     public String toString( )
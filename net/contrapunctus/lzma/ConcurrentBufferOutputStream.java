@@ -1,4 +1,4 @@
-// ConcurrentBufferOutputStream.java -- write bytes to blocking queue
+// ConcurrentBufferOutputStream.java -- write bytes to ring buffer
 // Copyright (c)2007 Christopher League <league@contrapunctus.net>
 
 // This is free software, but it comes with ABSOLUTELY NO WARRANTY.
@@ -7,43 +7,39 @@
 package net.contrapunctus.lzma;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 
 class ConcurrentBufferOutputStream extends OutputStream
 {
-    protected BlockingIntQueue q;
+    protected RingBuffer q;
     
     private static final PrintStream dbg = System.err;
     private static final boolean DEBUG =
         System.getProperty("DEBUG_ConcurrentBuffer") != null;
 
-    ConcurrentBufferOutputStream( BlockingIntQueue q )
+    ConcurrentBufferOutputStream( RingBuffer q )
     {
         if(DEBUG) dbg.printf("%s >> %s%n", this, q);
         this.q = q;
     }
 
-    protected void guarded_put( int i ) throws IOException
+    public void write( int i ) throws IOException
     {
-        try {
-            q.put( i );
-        }
-        catch( InterruptedException exn ) {
-            throw new InterruptedIOException( exn.getMessage() );
-        }
+        q.write( i );
     }
 
-    public void write( int i ) throws IOException
+    public void write( byte[] b, int off, int len ) throws IOException
     {
-        guarded_put( i & 0xff );
+        if( off < 0 || len < 0 || len > b.length - off )
+            throw new IndexOutOfBoundsException( );
+        q.write( b, off, len );
     }
 
     public void close( ) throws IOException
     {
         if(DEBUG) dbg.printf("%s closed%n", this);
-        guarded_put( -1 );
+        q.close( );
     }
 
     public String toString( )
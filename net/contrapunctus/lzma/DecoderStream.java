@@ -0,0 +1,66 @@
+// DecoderStream.java -- run LZMA decoder in the reading thread
+// Copyright (c)2007 Christopher League <league@contrapunctus.net>
+
+// This is free software, but it comes with ABSOLUTELY NO WARRANTY.
+// GNU Lesser General Public License 2.1 or Common Public License 1.0
+
+package net.contrapunctus.lzma;
+
+import SevenZip.Compression.LZMA.Decoder;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+// Decodes as much as each read asks for, with no thread of its own.
+// The decoder starts on the first read, so that constructing the
+// stream does not block.
+
+class DecoderStream extends InputStream
+{
+    protected InputStream in;
+    protected Decoder dec;
+    private boolean started;
+    private final byte[] one = new byte[1];
+
+    private static final PrintStream dbg = System.err;
+    private static final boolean DEBUG =
+        System.getProperty("DEBUG_LzmaCoders") != null;
+
+    DecoderStream( InputStream _in, LzmaPreset preset )
+    {
+        // the range decoder reads one byte at a time
+        in = new BufferedInputStream( _in );
+        dec = new Decoder();
+        preset.configure( dec );
+    }
+
+    public int read( ) throws IOException
+    {
+        int n = read( one, 0, 1 );
+        return n < 0? -1 : one[0] & 0xFF;
+    }
+
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        if( off < 0 || len < 0 || len > b.length - off )
+            throw new IndexOutOfBoundsException( );
+        if( !started ) {
+            if(DEBUG) dbg.printf("%s begins%n", this);
+            dec.Start( in );
+            started = true;
+        }
+        return dec.Read( b, off, len );
+    }
+
+    public void close( ) throws IOException
+    {
+        if(DEBUG) dbg.printf("%s closed%n", this);
+        in.close( );
+    }
+
+    public String toString( )
+    {
+        return String.format("DecS@%x", hashCode());
+    }
+}
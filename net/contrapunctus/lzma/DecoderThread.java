@@ -7,61 +7,55 @@
 package net.contrapunctus.lzma;
 
 import SevenZip.Compression.LZMA.Decoder;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.util.concurrent.ArrayBlockingQueue;
 
 class DecoderThread extends Thread
 {
-    protected BlockingIntQueue q;
+    protected RingBuffer q;
     protected InputStream in;
     protected OutputStream out;
     protected Decoder dec;
+    protected LzmaPreset preset;
     protected IOException exn;
 
     private static final PrintStream dbg = System.err;
     private static final boolean DEBUG =
         System.getProperty("DEBUG_LzmaCoders") != null;
 
-    DecoderThread( InputStream _in )
+    DecoderThread( InputStream _in, LzmaPreset _preset )
     {
-        q = new BlockingIntQueue( );
-        in = _in;
+        q = new RingBuffer( );
+        // the range decoder reads one byte at a time
+        in = new BufferedInputStream( _in );
         out = new ConcurrentBufferOutputStream( q );
         dec = new Decoder();
+        preset = _preset;
         exn = null;
         if(DEBUG) dbg.printf("%s >> %s (%s)%n", this, out, q);
     }
 
-    static final int propSize = 5;
-    static final byte[] props = new byte[propSize];
-
-    static {
-        // enc.SetEndMarkerMode( true );
-        // enc.SetDictionarySize( 1 << 20 );
-        props[0] = 0x5d;
-        props[1] = 0x00;
-        props[2] = 0x00;
-        props[3] = 0x10;
-        props[4] = 0x00;
-    }
-
     public void run( )
     { 
         try {
-            // int n = in.read( props, 0, propSize );
-            dec.SetDecoderProperties( props );
+            preset.configure( dec );
             if(DEBUG) dbg.printf("%s begins%n", this);
-            dec.Code( in, out, -1 );
+            if( !dec.Code( in, out, -1 ) ) {
+                throw new IOException( "corrupt LZMA data" );
+            }
             if(DEBUG) dbg.printf("%s ends%n", this);
             in.close( ); //?
-            out.close( );
         }
         catch( IOException _exn ) {
             exn = _exn;
-            if(DEBUG) dbg.printf("%s exception: %s%n", exn.getMessage());
+            if(DEBUG) dbg.printf("%s exception: %s%n", this, exn.getMessage());
+        }
+        finally {
+            // the reader sees the end, and then checks ‘exn’
+            q.close( );
         }
     }
 
@@ -7,30 +7,33 @@
 package net.contrapunctus.lzma;
 
 import SevenZip.Compression.LZMA.Encoder;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.util.concurrent.ArrayBlockingQueue;
 
 class EncoderThread extends Thread
 {
-    protected BlockingIntQueue q;
+    protected RingBuffer q;
     protected InputStream in;
     protected OutputStream out;
     protected Encoder enc;
+    protected LzmaPreset preset;
     protected IOException exn;
 
     private static final PrintStream dbg = System.err;
     private static final boolean DEBUG =
         System.getProperty("DEBUG_LzmaCoders") != null;
 
-    EncoderThread( OutputStream _out )
+    EncoderThread( OutputStream _out, LzmaPreset _preset )
     {
-        q = new BlockingIntQueue( );
+        q = new RingBuffer( );
         in = new ConcurrentBufferInputStream( q );
-        out = _out;
+        // the range coder writes one byte at a time
+        out = new BufferedOutputStream( _out );
         enc = new Encoder();
+        preset = _preset;
         exn = null;
         if(DEBUG) dbg.printf("%s << %s (%s)%n", this, in, q);
     }
@@ -38,10 +41,8 @@ class EncoderThread extends Thread
     public void run( )
     {
         try {
-            enc.SetEndMarkerMode( true );
-            enc.SetDictionarySize( 1 << 20 );
-            // enc.WriteCoderProperties( out );
-            // 5d 00 00 10 00
+            // the properties are not written; the reader must know them
+            preset.configure( enc );
             if(DEBUG) dbg.printf("%s begins%n", this);
             enc.Code( in, out, -1, -1, null );
             if(DEBUG) dbg.printf("%s ends%n", this);
@@ -49,7 +50,11 @@ class EncoderThread extends Thread
         }
         catch( IOException _exn ) {
             exn = _exn;
-            if(DEBUG) dbg.printf("%s exception: %s%n", exn.getMessage());
+            if(DEBUG) dbg.printf("%s exception: %s%n", this, exn.getMessage());
+        }
+        finally {
+            // so the writer cannot wait forever for us
+            q.abandon( );
         }
     }
 
@@ -19,12 +19,55 @@ public class LzmaInputStream extends FilterInputStream
         System.getProperty("DEBUG_LzmaStreams") != null;
 
     public LzmaInputStream( InputStream _in )
+    {
+        this( _in, false );
+    }
+
+    // With ‘threaded’, the decoder runs ahead in a thread of its
+    // own; otherwise, it decodes in the reading thread, on demand.
+    public LzmaInputStream( InputStream _in, boolean threaded )
+    {
+        this( _in, LzmaPreset.DEFAULT, threaded );
+    }
+
+    // The ‘preset’ must be the one the stream was written with.
+    public LzmaInputStream( InputStream _in, LzmaPreset preset,
+                            boolean threaded )
     {
         super( null );
-        dth = new DecoderThread( _in );
-        in = new ConcurrentBufferInputStream( dth.q );
-        if(DEBUG) dbg.printf("%s << %s (%s)%n", this, in, dth.q);
-        dth.start( );
+        if( threaded ) {
+            dth = new DecoderThread( _in, preset );
+            in = new ConcurrentBufferInputStream( dth.q );
+            if(DEBUG) dbg.printf("%s << %s (%s)%n", this, in, dth.q);
+            dth.start( );
+        }
+        else {
+            in = new DecoderStream( _in, preset );
+            if(DEBUG) dbg.printf("%s << %s%n", this, in);
+        }
+    }
+
+    public int read( ) throws IOException
+    {
+        int k = in.read( );
+        if( k < 0 ) checkDecoder( );
+        return k;
+    }
+
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        int n = in.read( b, off, len );
+        if( n < 0 ) checkDecoder( );
+        return n;
+    }
+
+    // The decoder thread closes the buffer even when it fails, so
+    // check why it ended before reporting the end of the stream.
+    private void checkDecoder( ) throws IOException
+    {
+        if( dth != null && dth.exn != null ) {
+            throw dth.exn;
+        }
     }
 
     public void close( ) throws IOException
@@ -25,9 +25,15 @@ public class LzmaOutputStream extends FilterOutputStream
         System.getProperty("DEBUG_LzmaStreams") != null;
 
     public LzmaOutputStream( OutputStream _out ) 
+    {
+        this( _out, LzmaPreset.DEFAULT );
+    }
+
+    // The reader must use the same ‘preset’, as it is not written.
+    public LzmaOutputStream( OutputStream _out, LzmaPreset preset )
     {
         super( null );
-        eth = new EncoderThread( _out );
+        eth = new EncoderThread( _out, preset );
         out = new ConcurrentBufferOutputStream( eth.q );
         if(DEBUG) dbg.printf("%s >> %s (%s)%n", this, out, eth.q);
         eth.start( );
@@ -40,6 +46,14 @@ public class LzmaOutputStream extends FilterOutputStream
         }
         out.write( i );
     }
+
+    public void write( byte[] b, int off, int len ) throws IOException
+    {
+        if( eth.exn != null ) {
+            throw eth.exn;
+        }
+        out.write( b, off, len );
+    }
         
     public void close( ) throws IOException
     {
@@ -0,0 +1,240 @@
+// LzmaPreset.java -- parameters for the LZMA encoder and decoder
+// Copyright (c)2007 Christopher League <league@contrapunctus.net>
+
+// This is free software, but it comes with ABSOLUTELY NO WARRANTY.
+// GNU Lesser General Public License 2.1 or Common Public License 1.0
+
+package net.contrapunctus.lzma;
+
+import SevenZip.Compression.LZMA.Decoder;
+import SevenZip.Compression.LZMA.Encoder;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// The settings that LZMA streams are coded with.  The dictionary
+// size and the literal and position bits must be the same on both
+// sides, so they are what a stream has to record; the match finder,
+// the number of fast bytes and the mode only change how hard the
+// encoder looks.  The hash chains of hc4 take half the memory of the
+// binary trees and are quicker to keep up; the fast mode takes the
+// longest match it finds, where the normal one prices the ways to
+// code the next stretch and picks the cheapest.  Together with fewer
+// fast bytes (the length at which a match is taken without looking
+// further) they trade some ratio for a good deal of speed.  The
+// decoder allocates a window as large as the dictionary, so a small
+// dictionary suits readers with little memory.
+//
+// A preset is written as a list of settings separated by commas,
+// each either ‘key=value’ or the name of a preset to start from:
+//
+//   d=N     dictionary of 2^N bytes, 12 to 29 [20]
+//   lc=N    literal context bits, 0 to 8 [3]
+//   lp=N    literal position bits, 0 to 4 [0]
+//   pb=N    position bits, 0 to 4 [2]
+//   mf=MF   match finder, bt2, bt4 or hc4 [bt4]
+//   fb=N    fast bytes, 5 to 273 [32]
+//   mode=M  fast or normal [normal]
+//
+// For example, ‘small,fb=64’, ‘d=24,lc=0’ or ‘fast,d=16’.
+
+public final class LzmaPreset
+{
+    public static final int BT2 = Encoder.EMatchFinderTypeBT2;
+    public static final int BT4 = Encoder.EMatchFinderTypeBT4;
+    public static final int HC4 = Encoder.EMatchFinderTypeHC4;
+
+    private static final String[] matchFinders = { "bt2", "bt4", "hc4" };
+
+    // Set in the match finder byte of writeTo, so that streams in
+    // normal mode are written as they were before there was a mode.
+    private static final int FAST_BIT = 0x80;
+
+    // These are the settings that every stream used before presets
+    // could be chosen, so they are what a stream without any implies.
+    public static final LzmaPreset DEFAULT =
+        new LzmaPreset( 20, 3, 0, 2, BT4, 32 );
+
+    // 64K window, for decoders with little memory to spare.
+    public static final LzmaPreset SMALL =
+        new LzmaPreset( 16, 3, 0, 2, BT4, 32 );
+
+    // 16M window and a more thorough search, for archives.
+    public static final LzmaPreset LARGE =
+        new LzmaPreset( 24, 3, 0, 2, BT4, 64 );
+
+    // Hash chains and the greedy parse, for when time matters more
+    // than the last few percent.
+    public static final LzmaPreset FAST =
+        new LzmaPreset( 20, 3, 0, 2, HC4, 16, true );
+
+    public final int dictionaryBits;
+    public final int lc, lp, pb;
+    public final int matchFinder;
+    public final int fastBytes;
+    public final boolean fast;
+
+    public LzmaPreset( int dictionaryBits, int lc, int lp, int pb,
+                       int matchFinder, int fastBytes )
+    {
+        this( dictionaryBits, lc, lp, pb, matchFinder, fastBytes, false );
+    }
+
+    public LzmaPreset( int dictionaryBits, int lc, int lp, int pb,
+                       int matchFinder, int fastBytes, boolean fast )
+    {
+        check( "d", dictionaryBits, 12, 29 );
+        check( "lc", lc, 0, 8 );
+        check( "lp", lp, 0, 4 );
+        check( "pb", pb, 0, 4 );
+        check( "mf", matchFinder, 0, matchFinders.length - 1 );
+        check( "fb", fastBytes, 5, 273 );
+        this.dictionaryBits = dictionaryBits;
+        this.lc = lc;
+        this.lp = lp;
+        this.pb = pb;
+        this.matchFinder = matchFinder;
+        this.fastBytes = fastBytes;
+        this.fast = fast;
+    }
+
+    private static void check( String key, int x, int lo, int hi )
+    {
+        if( x < lo || x > hi )
+            throw new IllegalArgumentException
+                ( key+"="+x+" is not in "+lo+".."+hi );
+    }
+
+    public int dictionarySize( )
+    {
+        return 1 << dictionaryBits;
+    }
+
+    void configure( Encoder enc )
+    {
+        enc.SetEndMarkerMode( true );
+        enc.SetDictionarySize( dictionarySize() );
+        enc.SetLcLpPb( lc, lp, pb );
+        enc.SetMatchFinder( matchFinder );
+        enc.SeNumFastBytes( fastBytes );
+        enc.SetAlgorithm( fast? 0 : 2 );
+    }
+
+    // The five bytes that would precede the stream in an .lzma file;
+    // the default is 5d 00 00 10 00.
+    byte[] properties( )
+    {
+        byte[] props = new byte[5];
+        int size = dictionarySize();
+        props[0] = (byte)( (pb * 5 + lp) * 9 + lc );
+        for( int i = 0;  i < 4;  i++ )
+            props[1 + i] = (byte)( size >>> (i * 8) );
+        return props;
+    }
+
+    void configure( Decoder dec )
+    {
+        if( !dec.SetDecoderProperties( properties() ) )
+            throw new IllegalStateException( "bad LZMA properties" );
+    }
+
+    public void writeTo( DataOutput out ) throws IOException
+    {
+        out.write( dictionaryBits );
+        out.write( lc );
+        out.write( lp );
+        out.write( pb );
+        out.write( fast? matchFinder | FAST_BIT : matchFinder );
+        out.write( fastBytes - 5 );
+    }
+
+    public static LzmaPreset readFrom( DataInput in ) throws IOException
+    {
+        int d = in.readUnsignedByte( );
+        int lc = in.readUnsignedByte( );
+        int lp = in.readUnsignedByte( );
+        int pb = in.readUnsignedByte( );
+        int mf = in.readUnsignedByte( );
+        int fb = in.readUnsignedByte( ) + 5;
+        try {
+            return new LzmaPreset( d, lc, lp, pb, mf & ~FAST_BIT, fb,
+                                   (mf & FAST_BIT) != 0 );
+        }
+        catch( IllegalArgumentException exn ) {
+            throw new IOException( "bad LZMA preset: " + exn.getMessage() );
+        }
+    }
+
+    // Parses the form described at the top of this file.
+    public static LzmaPreset valueOf( String spec )
+    {
+        LzmaPreset p = DEFAULT;
+        int d = p.dictionaryBits, lc = p.lc, lp = p.lp, pb = p.pb;
+        int mf = p.matchFinder, fb = p.fastBytes;
+        boolean fast = p.fast;
+        for( String s : spec.split( "," ) ) {
+            s = s.trim().toLowerCase();
+            int i = s.indexOf( '=' );
+            if( i < 0 ) {
+                if( s.equals( "default" ) ) p = DEFAULT;
+                else if( s.equals( "small" ) ) p = SMALL;
+                else if( s.equals( "large" ) ) p = LARGE;
+                else if( s.equals( "fast" ) ) p = FAST;
+                else throw new IllegalArgumentException( "unknown preset "+s );
+                d = p.dictionaryBits;  lc = p.lc;  lp = p.lp;  pb = p.pb;
+                mf = p.matchFinder;  fb = p.fastBytes;  fast = p.fast;
+                continue;
+            }
+            String key = s.substring( 0, i ), val = s.substring( i + 1 );
+            if( key.equals( "mf" ) ) mf = matchFinder( val );
+            else if( key.equals( "mode" ) ) fast = mode( val );
+            else {
+                int n = Integer.parseInt( val );
+                if( key.equals( "d" ) ) d = n;
+                else if( key.equals( "lc" ) ) lc = n;
+                else if( key.equals( "lp" ) ) lp = n;
+                else if( key.equals( "pb" ) ) pb = n;
+                else if( key.equals( "fb" ) ) fb = n;
+                else throw new IllegalArgumentException( "unknown key "+key );
+            }
+        }
+        return new LzmaPreset( d, lc, lp, pb, mf, fb, fast );
+    }
+
+    private static int matchFinder( String name )
+    {
+        for( int i = 0;  i < matchFinders.length;  i++ )
+            if( matchFinders[i].equals( name ) ) return i;
+        throw new IllegalArgumentException( "unknown match finder "+name );
+    }
+
+    private static boolean mode( String name )
+    {
+        if( name.equals( "fast" ) ) return true;
+        if( name.equals( "normal" ) ) return false;
+        throw new IllegalArgumentException( "unknown mode "+name );
+    }
+
+    public boolean equals( Object o )
+    {
+        if( !(o instanceof LzmaPreset) ) return false;
+        LzmaPreset p = (LzmaPreset) o;
+        return dictionaryBits == p.dictionaryBits && lc == p.lc
+            && lp == p.lp && pb == p.pb && matchFinder == p.matchFinder
+            && fastBytes == p.fastBytes && fast == p.fast;
+    }
+
+    public int hashCode( )
+    {
+        return (((((dictionaryBits * 9 + lc) * 5 + lp) * 5 + pb) * 3
+                + matchFinder) * 274 + fastBytes) * 2 + (fast? 1 : 0);
+    }
+
+    public String toString( )
+    {
+        return String.format( "d=%d,lc=%d,lp=%d,pb=%d,mf=%s,fb=%d%s",
+                              dictionaryBits, lc, lp, pb,
+                              matchFinders[matchFinder], fastBytes,
+                              fast? ",mode=fast" : "" );
+    }
+}
@@ -0,0 +1,129 @@
+// ParallelBlockInputStream.java -- decompress blocks of a stream in parallel
+// Copyright (c)2007 Christopher League <league@contrapunctus.net>
+
+// This is free software, but it comes with ABSOLUTELY NO WARRANTY.
+// GNU Lesser General Public License 2.1 or Common Public License 1.0
+
+package net.contrapunctus.lzma;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Reads the blocks written by a ParallelBlockOutputStream.  The
+// lengths before each block tell where the next one starts, so
+// several blocks are read ahead and decoded in the common fork-join
+// pool while the reader works through the current one.  A subclass
+// supplies the codec for one block, in unpack.  Nothing is read until
+// the first read, so that constructing the stream does not block.
+
+public abstract class ParallelBlockInputStream extends InputStream
+{
+    private final DataInputStream in;
+    private LinkedList<Future<byte[]>> pending =
+        new LinkedList<Future<byte[]>>();
+    private byte[] cur;
+    private int pos;
+    private boolean ended;
+    private final byte[] one = new byte[1];
+
+    private static final PrintStream dbg = System.err;
+    private static final boolean DEBUG =
+        System.getProperty("DEBUG_LzmaStreams") != null;
+
+    protected ParallelBlockInputStream( InputStream _in )
+    {
+        if( _in == null )
+            throw new IllegalArgumentException( "Input stream was null." );
+        in = new DataInputStream( _in );
+    }
+
+    // Decompresses one block, which must come to exactly ‘length’
+    // bytes.  This runs in the pool, several blocks at once, so it
+    // must not change the state of the stream.
+    protected abstract byte[] unpack( byte[] packed, int length )
+        throws IOException;
+
+    private final class Block implements Callable<byte[]>
+    {
+        final byte[] packed;
+        final int length;
+
+        Block( byte[] packed, int length )
+        {
+            this.packed = packed;
+            this.length = length;
+        }
+
+        public byte[] call( ) throws IOException
+        {
+            return unpack( packed, length );
+        }
+    }
+
+    // Reads and submits blocks until enough are pending, then waits
+    // for the oldest.  Returns false at the end of the stream.
+    private boolean next( ) throws IOException
+    {
+        while( !ended
+               && pending.size() < ParallelBlockOutputStream.MAX_PENDING ) {
+            int length = in.readInt( );
+            if( length == 0 ) {
+                ended = true;
+                break;
+            }
+            int size = in.readInt( );
+            if( length < 0 || size < 0 )
+                throw new IOException( "corrupt block header" );
+            byte[] packed = new byte [size];
+            in.readFully( packed );
+            if(DEBUG) dbg.printf("%s submits %d -> %d bytes%n",
+                                 this, size, length);
+            pending.add( ForkJoinPool.commonPool().submit
+                         ( new Block( packed, length ) ) );
+        }
+        if( pending.isEmpty() ) return false;
+        cur = ParallelBlockOutputStream.await( pending.removeFirst() );
+        pos = 0;
+        return true;
+    }
+
+    public int read( ) throws IOException
+    {
+        int n = read( one, 0, 1 );
+        return n < 0? -1 : one[0] & 0xFF;
+    }
+
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        if( off < 0 || len < 0 || len > b.length - off )
+            throw new IndexOutOfBoundsException( );
+        if( len == 0 ) return 0;
+        while( cur == null || pos == cur.length ) {
+            if( !next() ) return -1;
+        }
+        int n = Math.min( len, cur.length - pos );
+        System.arraycopy( cur, pos, b, off, n );
+        pos += n;
+        return n;
+    }
+
+    public int available( )
+    {
+        return cur == null? 0 : cur.length - pos;
+    }
+
+    public void close( ) throws IOException
+    {
+        if(DEBUG) dbg.printf("%s closed%n", this);
+        for( Future<byte[]> f : pending ) f.cancel( false );
+        pending.clear( );
+        cur = null;
+        in.close( );
+    }
+}
@@ -0,0 +1,174 @@
+// ParallelBlockOutputStream.java -- compress blocks of a stream in parallel
+// Copyright (c)2007 Christopher League <league@contrapunctus.net>
+
+// This is free software, but it comes with ABSOLUTELY NO WARRANTY.
+// GNU Lesser General Public License 2.1 or Common Public License 1.0
+
+package net.contrapunctus.lzma;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Cuts the stream into blocks of a fixed size and compresses each one
+// on its own, in the common fork-join pool, so that a long stream is
+// compressed on as many cores as there are.  The blocks are written
+// in order, each as
+//
+//   uncompressed length (int), compressed length (int), packed data
+//
+// with the end of the stream marked by a zero length.  A subclass
+// supplies the codec for one block, in pack; the reading side is
+// ParallelBlockInputStream.  Only one thread should write to this
+// stream.
+
+public abstract class ParallelBlockOutputStream extends OutputStream
+{
+    static final int MAX_PENDING =
+        2 * ForkJoinPool.getCommonPoolParallelism( ) + 1;
+
+    private final DataOutputStream out;
+    private final int size;
+    private byte[] buf;
+    private int count;
+    private LinkedList<Future<Block>> pending =
+        new LinkedList<Future<Block>>();
+    private boolean closed;
+
+    private static final PrintStream dbg = System.err;
+    private static final boolean DEBUG =
+        System.getProperty("DEBUG_LzmaStreams") != null;
+
+    protected ParallelBlockOutputStream( OutputStream _out, int _size )
+    {
+        if( _out == null )
+            throw new IllegalArgumentException( "Output stream was null." );
+        out = new DataOutputStream( _out );
+        size = _size;
+    }
+
+    // Compresses the first ‘length’ bytes of ‘plain’ as one block.
+    // This runs in the pool, several blocks at once, so it must not
+    // change the state of the stream.
+    protected abstract byte[] pack( byte[] plain, int length )
+        throws IOException;
+
+    private final class Block implements Callable<Block>
+    {
+        final byte[] plain;
+        final int length;
+        byte[] packed;
+
+        Block( byte[] plain, int length )
+        {
+            this.plain = plain;
+            this.length = length;
+        }
+
+        public Block call( ) throws IOException
+        {
+            packed = pack( plain, length );
+            return this;
+        }
+    }
+
+    public void write( int i ) throws IOException
+    {
+        room( );
+        buf[count++] = (byte) i;
+    }
+
+    public void write( byte[] b, int off, int len ) throws IOException
+    {
+        if( off < 0 || len < 0 || len > b.length - off )
+            throw new IndexOutOfBoundsException( );
+        while( len > 0 ) {
+            room( );
+            int n = Math.min( len, size - count );
+            System.arraycopy( b, off, buf, count, n );
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Makes sure there is room in the current block for a byte.
+    private void room( ) throws IOException
+    {
+        if( closed ) throw new IOException( "stream already closed" );
+        if( count == size ) submit( );
+        if( buf == null ) buf = new byte [size];
+    }
+
+    // Hands the current block to the pool, then writes out finished
+    // blocks, waiting for the oldest ones if too many are pending.
+    private void submit( ) throws IOException
+    {
+        if(DEBUG) dbg.printf("%s submits %d bytes%n", this, count);
+        pending.add( ForkJoinPool.commonPool().submit
+                     ( new Block( buf, count ) ) );
+        buf = null;
+        count = 0;
+        while( pending.size() > MAX_PENDING
+               || !pending.isEmpty() && pending.getFirst().isDone() ) {
+            writeBlock( );
+        }
+    }
+
+    private void writeBlock( ) throws IOException
+    {
+        Block b = await( pending.removeFirst() );
+        out.writeInt( b.length );
+        out.writeInt( b.packed.length );
+        out.write( b.packed );
+    }
+
+    static <T> T await( Future<T> f ) throws IOException
+    {
+        try {
+            return f.get( );
+        }
+        catch( InterruptedException exn ) {
+            throw new InterruptedIOException( exn.getMessage() );
+        }
+        catch( ExecutionException exn ) {
+            if( exn.getCause() instanceof IOException )
+                throw (IOException) exn.getCause();
+            IOException x = new IOException( exn.getCause().toString() );
+            x.initCause( exn.getCause() );
+            throw x;
+        }
+    }
+
+    // Writes out the blocks that are finished, but does not end the
+    // current one early, as that would cost ratio.
+    public void flush( ) throws IOException
+    {
+        while( !pending.isEmpty() && pending.getFirst().isDone() ) {
+            writeBlock( );
+        }
+        out.flush( );
+    }
+
+    // Waits for the blocks still in the pool, writes them and the end
+    // marker, and closes the underlying stream.
+    public void close( ) throws IOException
+    {
+        if( closed ) return;
+        closed = true;
+        if( count > 0 ) submit( );
+        while( !pending.isEmpty() ) {
+            writeBlock( );
+        }
+        out.writeInt( 0 );
+        if(DEBUG) dbg.printf("%s closed%n", this);
+        out.close( );
+    }
+}
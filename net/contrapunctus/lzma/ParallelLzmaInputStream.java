@@ -0,0 +1,54 @@
+// ParallelLzmaInputStream.java -- decompress LZMA blocks in parallel
+// Copyright (c)2007 Christopher League <league@contrapunctus.net>
+
+// This is free software, but it comes with ABSOLUTELY NO WARRANTY.
+// GNU Lesser General Public License 2.1 or Common Public License 1.0
+
+package net.contrapunctus.lzma;
+
+import SevenZip.Compression.LZMA.Decoder;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads the blocks written by ParallelLzmaOutputStream, and decodes
+// several of them ahead in the common fork-join pool while the
+// reader works through the current one.
+
+public class ParallelLzmaInputStream extends ParallelBlockInputStream
+{
+    protected LzmaPreset preset;
+
+    public ParallelLzmaInputStream( InputStream _in )
+    {
+        this( _in, LzmaPreset.DEFAULT );
+    }
+
+    // The ‘preset’ must be the one the stream was written with.
+    public ParallelLzmaInputStream( InputStream _in, LzmaPreset _preset )
+    {
+        super( _in );
+        preset = _preset;
+    }
+
+    protected byte[] unpack( byte[] packed, int length ) throws IOException
+    {
+        Decoder dec = new Decoder();
+        preset.configure( dec );
+        dec.Start( new ByteArrayInputStream( packed ) );
+        byte[] plain = new byte [length];
+        for( int n = 0;  n < length;  ) {
+            int k = dec.Read( plain, n, length - n );
+            if( k < 0 ) throw new IOException( "LZMA block too short" );
+            n += k;
+        }
+        if( dec.Read( new byte[1], 0, 1 ) >= 0 )
+            throw new IOException( "LZMA block too long" );
+        return plain;
+    }
+
+    public String toString( )
+    {
+        return String.format("plzmaIn@%x", hashCode());
+    }
+}
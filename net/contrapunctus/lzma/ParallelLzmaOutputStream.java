@@ -0,0 +1,59 @@
+// ParallelLzmaOutputStream.java -- compress LZMA blocks in parallel
+// Copyright (c)2007 Christopher League <league@contrapunctus.net>
+
+// This is free software, but it comes with ABSOLUTELY NO WARRANTY.
+// GNU Lesser General Public License 2.1 or Common Public License 1.0
+
+package net.contrapunctus.lzma;
+
+import SevenZip.Compression.LZMA.Encoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Compresses each block of a ParallelBlockOutputStream as LZMA data
+// of its own, so that a long stream is compressed on as many cores
+// as there are.  No match reaches back into an earlier block, which
+// costs a little in ratio.  Each block is twice the dictionary size,
+// but at least 1M and at most 64M.
+//
+// ParallelLzmaInputStream reads this back.
+
+public class ParallelLzmaOutputStream extends ParallelBlockOutputStream
+{
+    protected LzmaPreset preset;
+
+    public ParallelLzmaOutputStream( OutputStream _out )
+    {
+        this( _out, LzmaPreset.DEFAULT );
+    }
+
+    // The reader must use the same ‘preset’, as it is not written.
+    public ParallelLzmaOutputStream( OutputStream _out, LzmaPreset _preset )
+    {
+        super( _out, blockSize( _preset ) );
+        preset = _preset;
+    }
+
+    static int blockSize( LzmaPreset p )
+    {
+        return Math.min( Math.max( 2 * p.dictionarySize(), 1 << 20 ),
+                         1 << 26 );
+    }
+
+    protected byte[] pack( byte[] plain, int length ) throws IOException
+    {
+        Encoder enc = new Encoder();
+        preset.configure( enc );
+        ByteArrayOutputStream bo = new ByteArrayOutputStream( length / 4 );
+        enc.Code( new ByteArrayInputStream( plain, 0, length ), bo,
+                  -1, -1, null );
+        return bo.toByteArray();
+    }
+
+    public String toString( )
+    {
+        return String.format("plzmaOut@%x", hashCode());
+    }
+}
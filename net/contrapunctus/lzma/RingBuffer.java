@@ -0,0 +1,179 @@
+// RingBuffer.java -- pass bytes from one thread to another
+// Copyright (c)2007 Christopher League <league@contrapunctus.net>
+
+// This is free software, but it comes with ABSOLUTELY NO WARRANTY.
+// GNU Lesser General Public License 2.1 or Common Public License 1.0
+
+package net.contrapunctus.lzma;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.concurrent.locks.LockSupport;
+
+// A bounded buffer of bytes with no locks, for precisely one producer
+// and one consumer.  The producer owns ‘tail’ and the consumer owns
+// ‘head’; each only reads the other's.  Both count bytes from the
+// start, so tail - head is the number of bytes in the buffer.  Bytes
+// are copied in and out in bulk, and a thread parks only when the
+// buffer is full (or empty) and wakes when the other moves its index.
+
+final class RingBuffer
+{
+    private final byte[] array;
+    private final int mask;
+    private volatile long head;
+    private volatile long tail;
+    private volatile boolean closed;    // no more bytes will come
+    private volatile boolean abandoned; // no more bytes will be taken
+    private volatile Thread producer;   // waiting for space, or null
+    private volatile Thread consumer;   // waiting for data, or null
+
+    private static final PrintStream dbg = System.err;
+    private static final boolean DEBUG =
+        System.getProperty("DEBUG_RingBuffer") != null;
+
+    RingBuffer( int size )
+    {
+        if( Integer.bitCount( size ) != 1 )
+            throw new IllegalArgumentException( "size must be a power of 2" );
+        array = new byte [size];
+        mask = size - 1;
+    }
+
+    RingBuffer( )
+    {
+        this( 1 << 16 );
+    }
+
+    void write( byte[] b, int off, int len ) throws IOException
+    {
+        long t = tail;
+        while( len > 0 ) {
+            int room = array.length - (int)(t - head);
+            if( room == 0 ) {
+                awaitSpace( t );
+                continue;
+            }
+            int at = (int)t & mask;
+            int n = Math.min( len, Math.min( room, array.length - at ) );
+            System.arraycopy( b, off, array, at, n );
+            off += n;
+            len -= n;
+            t += n;
+            tail = t;
+            wake( consumer );
+        }
+    }
+
+    void write( int x ) throws IOException
+    {
+        long t = tail;
+        if( t - head == array.length ) awaitSpace( t );
+        array[(int)t & mask] = (byte) x;
+        tail = t + 1;
+        wake( consumer );
+    }
+
+    // Returns -1 once the producer has closed and everything has been
+    // read; otherwise waits for at least one byte.
+    int read( byte[] b, int off, int len ) throws IOException
+    {
+        if( len == 0 ) return 0;
+        long h = head;
+        while( tail == h ) {
+            if( closed && tail == h ) return -1;
+            awaitData( h );
+        }
+        int count = 0;
+        while( len > 0 && tail != h ) {
+            int at = (int)h & mask;
+            int n = (int)Math.min( len, Math.min( tail - h, array.length - at ) );
+            System.arraycopy( array, at, b, off, n );
+            off += n;
+            len -= n;
+            count += n;
+            h += n;
+        }
+        head = h;
+        wake( producer );
+        return count;
+    }
+
+    int read( ) throws IOException
+    {
+        long h = head;
+        while( tail == h ) {
+            if( closed && tail == h ) return -1;
+            awaitData( h );
+        }
+        int x = array[(int)h & mask] & 0xFF;
+        head = h + 1;
+        wake( producer );
+        return x;
+    }
+
+    // Called by the producer after its last write.
+    void close( )
+    {
+        if(DEBUG) dbg.printf("%s closed at %d%n", this, tail);
+        closed = true;
+        wake( consumer );
+    }
+
+    // Called by the consumer when it will read no more; the producer
+    // gets an exception rather than waiting forever for space.
+    void abandon( )
+    {
+        if(DEBUG) dbg.printf("%s abandoned at %d%n", this, head);
+        abandoned = true;
+        wake( producer );
+    }
+
+    // Each side announces itself before checking once more, and the
+    // other side moves its index before looking for a waiter, so a
+    // wake-up cannot be lost between the check and the park.
+    private void awaitSpace( long t ) throws IOException
+    {
+        producer = Thread.currentThread( );
+        try {
+            while( t - head == array.length ) {
+                if( abandoned )
+                    throw new IOException( "reader has stopped" );
+                if(DEBUG) dbg.printf("%s < blocks%n", this);
+                LockSupport.park( this );
+                if( Thread.interrupted( ) )
+                    throw new InterruptedIOException( );
+            }
+        }
+        finally {
+            producer = null;
+        }
+    }
+
+    private void awaitData( long h ) throws IOException
+    {
+        consumer = Thread.currentThread( );
+        try {
+            while( tail == h && !closed ) {
+                if(DEBUG) dbg.printf("%s > blocks%n", this);
+                LockSupport.park( this );
+                if( Thread.interrupted( ) )
+                    throw new InterruptedIOException( );
+            }
+        }
+        finally {
+            consumer = null;
+        }
+    }
+
+    private static void wake( Thread th )
+    {
+        if( th != null ) LockSupport.unpark( th );
+    }
+
+    public String toString( )
+    {
+        return String.format("RB@%x", hashCode());
+    }
+}
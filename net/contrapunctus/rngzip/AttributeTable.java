@@ -0,0 +1,80 @@
+package net.contrapunctus.rngzip;
+
+/**
+ * A table of the attributes on one start tag, mapping name codes to
+ * values.  It replaces a <code>HashMap&lt;Integer,String&gt;</code>:
+ * the codes are kept in a plain <code>int</code> array parallel to
+ * the values, so nothing is boxed.  Tags rarely have more than a
+ * handful of attributes, so linear search is fine, and the
+ * compressor keeps one table per depth of the document and clears
+ * it for each new element, so at steady state nothing is allocated.
+ * Iteration, using {@link #size}, {@link #code} and {@link #value},
+ * follows the order in which attributes were added.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ * 
+ * @author Christopher League
+ */
+public final class AttributeTable
+{
+   private int[] codes = new int[4];
+   private String[] values = new String[4];
+   private int size;
+
+   /**
+    * Removes all the attributes, keeping the allocated space.
+    */
+   public void clear()
+   {
+      for(int i = 0;  i < size;  i++) {
+         values[i] = null;
+      }
+      size = 0;
+   }
+
+   /**
+    * Associates ‘value’ with the name code ‘code’.  As with a map,
+    * this replaces any previous value for the same code.
+    */
+   public void put(int code, String value)
+   {
+      int i = indexOf(code);
+      if(i >= 0) {
+         values[i] = value;
+         return;
+      }
+      if(size == codes.length) {
+         int[] cs = new int[2*size];
+         String[] vs = new String[2*size];
+         System.arraycopy(codes, 0, cs, 0, size);
+         System.arraycopy(values, 0, vs, 0, size);
+         codes = cs;
+         values = vs;
+      }
+      codes[size] = code;
+      values[size] = value;
+      size++;
+   }
+
+   public int size() { return size; }
+
+   /** Returns the name code of the ‘i’th attribute. */
+   public int code(int i) { return codes[i]; }
+
+   /** Returns the value of the ‘i’th attribute. */
+   public String value(int i) { return values[i]; }
+
+   /**
+    * Returns the position of the attribute with the given name code,
+    * or -1 if there is none.
+    */
+   public int indexOf(int code)
+   {
+      for(int i = 0;  i < size;  i++) {
+         if(codes[i] == code) return i;
+      }
+      return -1;
+   }
+}
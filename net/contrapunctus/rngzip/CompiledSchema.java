@@ -0,0 +1,160 @@
+package net.contrapunctus.rngzip;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import net.contrapunctus.rngzip.util.BaliAutomaton;
+import net.contrapunctus.rngzip.util.NoopOutputStream;
+import org.xml.sax.SAXException;
+
+/**
+ * The inner loops of {@link GenericCompressor} and {@link
+ * GenericDecompressor}, specialized to one schema.  The generic
+ * coders interpret the transition tables of a {@link BaliAutomaton};
+ * a subclass of this one, written by {@link SchemaWriter}, has the
+ * tables compiled into <code>switch</code> statements on the state,
+ * with the element names and values as constants, and the choice
+ * counts and successor states as literals.  The coders look for one
+ * whenever they are given an automaton, and fall back on the tables
+ * if there is none.
+ *
+ * <p>A subclass is found by name: it is this package's
+ * <code>Schema_</code> followed by the eight hex digits of the
+ * automaton's checksum, so it must be on the class path, with the
+ * rest of the package.  Before it is used, it must also agree with
+ * the automaton on a fingerprint of every table it compiled in,
+ * which the checksum alone does not cover.  Setting
+ * <code>-DNO_CompiledSchema</code> on the <code>java</code> command
+ * line ignores them, which is useful for comparisons.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see SchemaWriter
+ */
+abstract class CompiledSchema
+{
+   static final String PREFIX = "net.contrapunctus.rngzip.Schema_";
+
+   static boolean enabled = System.getProperty("NO_CompiledSchema") == null;
+
+   /* Each automaton is looked up once; null means there is none. */
+   private static final Map<BaliAutomaton, CompiledSchema> loaded =
+      new WeakHashMap<BaliAutomaton, CompiledSchema>();
+
+   /**
+    * Returns the fingerprint of the automaton this was written from.
+    * @see #fingerprint(BaliAutomaton)
+    */
+   protected abstract long fingerprint();
+
+   /**
+    * Decodes states from the stack of ‘w’ until it is done, just as
+    * its generic loop would, reporting what it finds to ‘dx’.
+    */
+   abstract void decode(GenericDecompressor.Walker w, Decompressor dx)
+      throws IOException, SAXException;
+
+   /**
+    * Offers the data and value transitions of state ‘s’, in order,
+    * to ‘m’.
+    */
+   abstract void matchChars(int s, GenericCompressor.CharMatcher m);
+
+   /**
+    * Offers the attribute, non-existent attribute, data, and value
+    * transitions of state ‘s’, in order, to ‘t’.
+    */
+   abstract void traceAttributes(int s, GenericCompressor.AttributeTracer t);
+
+   /**
+    * Returns the compiled code for ‘au’, or null if there is none on
+    * the class path (or it was written from a different automaton).
+    */
+   static CompiledSchema forAutomaton(BaliAutomaton au)
+   {
+      if(!enabled) return null;
+      synchronized(loaded) {
+         if(loaded.containsKey(au)) {
+            return loaded.get(au);
+         }
+         CompiledSchema cs = load(au);
+         loaded.put(au, cs);
+         return cs;
+      }
+   }
+
+   private static CompiledSchema load(BaliAutomaton au)
+   {
+      Class<?> c;
+      try {
+         c = Class.forName(className(au), true,
+                           CompiledSchema.class.getClassLoader());
+      }
+      catch(ClassNotFoundException x) {
+         return null;
+      }
+      try {
+         CompiledSchema cs = (CompiledSchema)
+            c.getDeclaredConstructor().newInstance();
+         return cs.fingerprint() == fingerprint(au)? cs : null;
+      }
+      catch(ReflectiveOperationException x) {
+         return null;
+      }
+      catch(ClassCastException x) {
+         return null;
+      }
+   }
+
+   /**
+    * Returns the fully-qualified name of the class compiled for ‘au’.
+    */
+   static String className(BaliAutomaton au)
+   {
+      return String.format("%s%08x", PREFIX, au.checksum());
+   }
+
+   /**
+    * Computes a CRC-32 of everything in ‘au’ that compiled code
+    * depends on: for each state, whether it is final and its data
+    * type, and for each transition, its kind, label, and child and
+    * sibling states.
+    */
+   static long fingerprint(BaliAutomaton au)
+   {
+      CRC32 sum = new CRC32();
+      DataOutputStream out = new DataOutputStream
+         (new CheckedOutputStream(new NoopOutputStream(), sum));
+      try {
+         int n = au.countStates();
+         out.writeInt(n);
+         out.writeInt(au.initialState());
+         for(int i = 0;  i < n;  i++) {
+            int m = au.countTransitions(i);
+            out.writeInt(m);
+            out.writeBoolean(au.isFinal(i));
+            out.writeByte(au.datatypeOf(i));
+            for(int j = 0;  j < m;  j++) {
+               out.writeByte(au.kindOf(i, j));
+               String s = au.labelOf(i, j);
+               out.writeInt(s == null? -1 : s.length());
+               if(s != null) out.writeChars(s);
+               out.writeInt(au.childOf(i, j));
+               out.writeInt(au.siblingOf(i, j));
+            }
+         }
+         out.flush();
+      }
+      catch(IOException x) {
+         /* NoopOutputStream does not throw. */
+         throw new AssertionError(x);
+      }
+      return sum.getValue();
+   }
+}
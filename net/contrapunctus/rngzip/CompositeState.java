@@ -3,7 +3,6 @@ package net.contrapunctus.rngzip;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Map;
 
 abstract class CompositeState
 {
@@ -11,16 +10,16 @@ abstract class CompositeState
       initialize( SingletonState s0 );
 
    public abstract CompositeState 
-      start( int element, Map<Integer,String> att ) throws IOException;
+      start( int element, AttributeTable att ) throws IOException;
 
    protected abstract CompositeState
-      attrs( Map<Integer,String> att ) throws IOException;
+      attrs( AttributeTable att ) throws IOException;
 
    public abstract CompositeState 
       chars( char[] buf, int start, int length ) throws IOException;
 
    public abstract CompositeState 
-      end( Map<Integer,String> att ) throws IOException;
+      end( AttributeTable att ) throws IOException;
 
    public abstract void 
       show(PrintWriter ps);
@@ -2,10 +2,10 @@ package net.contrapunctus.rngzip;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Stack;
+import java.util.Arrays;
+import net.contrapunctus.rngzip.io.ChunkedOutput;
 import net.contrapunctus.rngzip.io.RNGZOutputInterface;
+import net.contrapunctus.rngzip.util.ArrayStack;
 import net.contrapunctus.rngzip.util.ErrorReporter;
 import org.xml.sax.Attributes;
 import org.xml.sax.Locator;
@@ -17,8 +17,30 @@ public abstract class Compressor extends DefaultHandler
    protected ErrorReporter err;
    protected Locator loc;
    protected CompositeState state;
-   protected Stack<String> elts;
-   protected Stack<Map<Integer,String>> atts;
+   protected ArrayStack<String> elts;
+   /* One attribute table per depth, reused for each element at that
+      depth; atts[depth-1] belongs to the innermost open element. */
+   private AttributeTable[] atts;
+   private int depth;
+   /* When the output is chunked: the depth at which the chunk
+      element was first seen (that is, the number of elements open
+      around it), the number of chunk elements ended in the current
+      chunk, and how many elements have ended at each depth. */
+   private ChunkedOutput chunks;
+   private String chunkElt;
+   private int chunkDepth;
+   private int records;
+   private int[] closes;
+   /* When indexing: the key paths, the number of the current chunk
+      element (counting from zero over the whole document), whether
+      we are inside it, and the key element whose text is being
+      collected, if any. */
+   private String[] keys;
+   private long record;
+   private boolean record_p;
+   private int keyDepth;
+   private String keyName;
+   private StringBuilder keyText;
    private static final boolean DEBUG = 
       System.getProperty("DEBUG_Compressor") != null;
    private static final PrintWriter dbg = 
@@ -28,8 +50,18 @@ public abstract class Compressor extends DefaultHandler
    {
       err = _err;
       state = new SequentialStates(out);
-      elts = new Stack<String>();
-      atts = new Stack<Map<Integer,String>>();
+      elts = new ArrayStack<String>();
+      atts = new AttributeTable[16];
+      if(out instanceof ChunkedOutput) {
+         chunks = (ChunkedOutput) out;
+         chunkElt = chunks.getChunkElement();
+         if(chunkElt == null) chunks = null;
+         closes = new int[atts.length];
+         if(chunks != null && chunks.getIndexKeys().length > 0) {
+            keys = chunks.getIndexKeys();
+            keyText = new StringBuilder();
+         }
+      }
    }
 
    protected abstract SingletonState initialState();
@@ -50,14 +82,24 @@ public abstract class Compressor extends DefaultHandler
    {
       state.initialize(initialState());
       elts.clear();
-      atts.clear();
-      atts.push(null);
+      depth = 0;
+      chunkDepth = -1;
+      records = 0;
+      if(chunks != null) Arrays.fill(closes, 0);
+      record = -1;
+      record_p = false;
+      keyDepth = -1;
    }
 
    public void endDocument() throws SAXParseException
    {
       if(DEBUG) { trace("END document"); }
-      try { state = state.end(null); }
+      try { 
+         state = state.end(null);
+         if(chunks != null) {
+            chunks.endChunk(records, 0, closes[0], null, elts.asList());
+         }
+      }
       catch(IOException exn) { die(exn); }
       catch(IllegalStateException exn) { die(exn); }
    }
@@ -67,13 +109,29 @@ public abstract class Compressor extends DefaultHandler
       throws SAXParseException
    {
       if(DEBUG) { trace("START "+qname); }
-      HashMap<Integer,String> attm = new HashMap<Integer,String>();
+      if(depth == atts.length) {
+         AttributeTable[] a = new AttributeTable[2*depth];
+         System.arraycopy(atts, 0, a, 0, depth);
+         atts = a;
+         if(chunks != null) closes = Arrays.copyOf(closes, 2*depth);
+      }
+      if(chunks != null && chunkDepth < 0 && depth > 0
+         && (lname.equals(chunkElt) || qname.equals(chunkElt))) {
+         chunkDepth = depth;
+      }
+      if(keys != null) {
+         noteKeys(lname, qname, attr);
+      }
+      if(atts[depth] == null) {
+         atts[depth] = new AttributeTable();
+      }
+      AttributeTable attm = atts[depth++];
+      attm.clear();
       for(int i = 0;  i < attr.getLength();  i++) {
          attm.put(encodeName(attr.getURI(i), attr.getLocalName(i)),
                   attr.getValue(i));
       }
       elts.push(qname);
-      atts.push(attm);
       try { state = state.start(encodeName(ns, lname), attm); }
       catch(IOException exn) { die(exn); }
       catch(IllegalStateException exn) { die(exn); }
@@ -84,17 +142,79 @@ public abstract class Compressor extends DefaultHandler
    {
       if(DEBUG) { trace("END "+qname); }
       assert qname == elts.peek();
-      atts.pop();
-      try { state = state.end(atts.peek()); }
+      depth--;
+      try { state = state.end(depth > 0? atts[depth-1] : null); }
       catch(IOException exn) { die(exn); }
       catch(IllegalStateException exn) { die(exn); }
       elts.pop();
+      if(keys != null) {
+         if(depth == keyDepth) {
+            chunks.indexKey(keyName, keyText.toString(), record);
+            keyDepth = -1;
+         }
+         if(depth == chunkDepth) record_p = false;
+      }
+      if(chunks != null) {
+         noteEnd(lname.equals(chunkElt) || qname.equals(chunkElt));
+      }
+   }
+
+   /* Called at each start tag when indexing, before ‘depth’ counts
+      the new element.  Attribute keys are reported right away;
+      element keys once their text is complete, in endElement. */
+   private void noteKeys(String lname, String qname, Attributes attr)
+   {
+      if(depth == chunkDepth
+         && (lname.equals(chunkElt) || qname.equals(chunkElt))) {
+         record++;
+         record_p = true;
+      }
+      if(!record_p) return;
+      for(String k : keys) {
+         if(k.startsWith("@")) {
+            String a = k.substring(1);
+            for(int i = 0;  i < attr.getLength();  i++) {
+               if(a.equals(attr.getLocalName(i))
+                  || a.equals(attr.getQName(i))) {
+                  chunks.indexKey(k, attr.getValue(i), record);
+               }
+            }
+         }
+         else if(keyDepth < 0 && (k.equals(lname) || k.equals(qname))) {
+            keyName = k;
+            keyDepth = depth;
+            keyText.setLength(0);
+         }
+      }
+   }
+
+   /* Called after each end tag when chunking.  Once there are enough
+      chunk elements, the chunk ends at the first end tag at the same
+      depth where the state is just a stack of automaton states. */
+   private void noteEnd(boolean chunk_p) throws SAXParseException
+   {
+      closes[depth]++;
+      if(depth != chunkDepth) return;
+      if(chunk_p) records++;
+      if(records < chunks.getChunkRecords()) return;
+      if(!(state instanceof SequentialStates)) return;
+      int[] stack = ((SequentialStates) state).snapshot();
+      if(stack == null) return;
+      if(DEBUG) { trace("CHUNK "+records); }
+      try {
+         chunks.endChunk(records, depth, closes[depth], stack,
+                         elts.asList());
+      }
+      catch(IOException exn) { die(exn); }
+      records = 0;
+      Arrays.fill(closes, 0);
    }
    
    public void characters(char[] ch, int start, int length)
       throws SAXParseException
    {
       if(DEBUG) { trace("CHARS"); }
+      if(keyDepth >= 0) keyText.append(ch, start, length);
       try { state = state.chars(ch, start, length); }
       catch(IOException exn) { die(exn); }
       catch(IllegalStateException exn) { die(exn); }
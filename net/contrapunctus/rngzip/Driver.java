@@ -1,5 +1,6 @@
 package net.contrapunctus.rngzip;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -10,15 +11,24 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import net.contrapunctus.rngzip.io.InteractiveInput;
 import net.contrapunctus.rngzip.io.RNGZInputInterface;
 import net.contrapunctus.rngzip.io.RNGZInputStream;
 import net.contrapunctus.rngzip.io.RNGZOutputInterface;
 import net.contrapunctus.rngzip.io.RNGZOutputStream;
+import net.contrapunctus.rngzip.io.RNGZRandomAccess;
 import net.contrapunctus.rngzip.io.RNGZSettings;
 import net.contrapunctus.rngzip.io.VerboseOutput;
+import net.contrapunctus.rngzip.util.AutomatonCache;
 import net.contrapunctus.rngzip.util.BaliAutomaton;
 import net.contrapunctus.rngzip.util.ErrorReporter;
 import net.contrapunctus.rngzip.util.SchemaFormatException;
@@ -39,8 +49,6 @@ public class Driver
 
    private static final String myname = "rngzip";
    Options opt = new Options(myname);
-   private BaliAutomaton automaton;
-   private long checksum;
    static PrintStream err = System.err;
 
    void run(String[] args) throws Exception
@@ -51,48 +59,119 @@ public class Driver
             identify(args[i]);
          }
       }
-      if( opt.compress_p || opt.decompress_p ) {
+      if( !opt.extract.isEmpty() ) {
+         for( int i = first; i < args.length; i++) {
+            extract(new File(args[i]));
+         }
+      }
+      else if( opt.compress_p || opt.decompress_p ) {
+         BaliAutomaton au = null;
          if( opt.schema != null ) {
-            loadAutomaton(opt.schema);
+            au = loadAutomaton(opt.schema, err);
          }
-         Task task = opt.compress_p? new Zip() : new Unzip();
-         if( first < args.length ) {
+         if( opt.jobs > 1 && !opt.debug_p && args.length - first > 1 ) {
+            applyInParallel(au, args, first);
+         }
+         else if( first < args.length ) {
+            Task task = newTask(au);
             for( int i = first;  i < args.length;  i++ ) {
                applyToFile(task, new File(args[i]));
             }
          }
          else {
-            applyToStdIO(task);
+            applyToStdIO(newTask(au));
+         }
+      }
+   }
+
+   private Task newTask(BaliAutomaton au)
+   {
+      Task task = opt.compress_p? new Zip() : new Unzip();
+      task.setAutomaton(au);
+      return task;
+   }
+
+   /* Each file gets its own task, with its own coders, parser, and
+      settings; only the automata are shared.  Each task logs to its
+      own buffer, and the buffers are copied to ‘err’ in the order
+      the files were named, so output is never interleaved. */
+   private void applyInParallel(BaliAutomaton au, String[] args, int first)
+      throws Exception
+   {
+      ExecutorService pool = Executors.newFixedThreadPool(opt.jobs);
+      List<Future<?>> results = new ArrayList<Future<?>>();
+      List<ByteArrayOutputStream> logs = new ArrayList<ByteArrayOutputStream>();
+      try {
+         for( int i = first;  i < args.length;  i++ ) {
+            final Task task = newTask(au);
+            final File file = new File(args[i]);
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+            task.log = new PrintStream(log, true);
+            logs.add(log);
+            results.add(pool.submit(new Callable<Void>() {
+               public Void call() throws Exception {
+                  applyToFile(task, file);
+                  return null;
+               }
+            }));
+         }
+         for( int i = 0;  i < results.size();  i++ ) {
+            try {
+               results.get(i).get();
+            }
+            catch(ExecutionException x) {
+               logs.get(i).writeTo(err);
+               Throwable t = x.getCause();
+               if( t instanceof Exception ) throw (Exception) t;
+               throw (Error) t;
+            }
+            logs.get(i).writeTo(err);
          }
       }
+      finally {
+         pool.shutdownNow();
+      }
    }
 
    private HashMap<URL, BaliAutomaton> autoMap = 
       new HashMap<URL, BaliAutomaton>();
+   private AutomatonCache cache;
 
-   private void loadAutomaton (URL url) throws SchemaFormatException
+   /* Synchronized because parallel jobs share the map; a job that
+      needs an automaton that another is building waits for it. */
+   private synchronized BaliAutomaton loadAutomaton
+      (URL url, PrintStream log) throws SchemaFormatException
    {
-      automaton = autoMap.get(url);
+      BaliAutomaton automaton = autoMap.get(url);
       if( automaton == null ) {
-         info("loading %s%n", url);
-         info("building automaton... ");
+         info(log, "loading %s%n", url);
+         info(log, "building automaton... ");
          long start = 0;
          if( opt.timings_p ) { start = System.currentTimeMillis(); }
-         automaton = BaliAutomaton.fromRNG(url);
-         checksum = automaton.checksum();
+         if( opt.cache_dir != null ) {
+            if( cache == null ) {
+               cache = new AutomatonCache(opt.cache_dir);
+            }
+            automaton = cache.load(url);
+         }
+         else {
+            automaton = BaliAutomaton.fromRNG(url);
+         }
+         automaton.checksum();
          if( opt.timings_p ) {
             long elapsed = System.currentTimeMillis() - start;
-            err.printf("%5d%s", elapsed, 
+            log.printf("%5d%s", elapsed, 
                        opt.verbosity > 1? "ms\n" : ",");
          }
          else {
-            info("done%n");
+            info(log, "done%n");
          }
          autoMap.put(url, automaton);
       }
+      return automaton;
    }
 
-   private void loadAutomaton (File file) 
+   private BaliAutomaton loadAutomaton (File file, PrintStream log) 
       throws FileNotFoundException, SchemaFormatException
    {
       if(!file.exists()) 
@@ -100,17 +179,17 @@ public class Driver
       URL url = null;
       try { url = file.toURI().toURL(); }
       catch(MalformedURLException x) { assert false : x; }
-      loadAutomaton(url);
+      return loadAutomaton(url, log);
    }
 
-   private void loadAutomaton (String spec)
+   private BaliAutomaton loadAutomaton (String spec, PrintStream log)
       throws FileNotFoundException, SchemaFormatException
    {
       try {
-         loadAutomaton(new URL(spec));
+         return loadAutomaton(new URL(spec), log);
       }
       catch(MalformedURLException x) {
-         loadAutomaton(new File(spec));
+         return loadAutomaton(new File(spec), log);
       }
    }
 
@@ -144,19 +223,85 @@ public class Driver
       }
    }
 
-   private void error(String fmt, Object... args)
+   /* Writes the records named by --extract to standard output, each
+      as a document of its own. */
+   private void extract(File file) throws IOException, SAXException
+   {
+      RNGZRandomAccess ra =
+         new RNGZRandomAccess(file, new RNGZSettings(opt.settings));
+      try {
+         BaliAutomaton au = null;
+         if( opt.schema != null ) {
+            au = loadAutomaton(opt.schema, err);
+         }
+         if( ra.getSchemaURL() != null ) {
+            if( au == null ) {
+               au = loadAutomaton(ra.getSchemaURL(), err);
+            }
+            if( ra.getSchemaSum() != au.checksum() ) {
+               error(err, "MISMATCH %08X <> %08X",
+                     ra.getSchemaSum(), au.checksum());
+               error(err, "Schema was %s", ra.getSchemaURL());
+               throw new IOException("SUMS DO NOT MATCH"); // FIX
+            }
+         }
+         else if( au == null ) {
+            throw new IOException("NO SCHEMA SPECIFIED"); // FIX
+         }
+         RecordExtractor rx = new RecordExtractor(au, ra);
+         for( String spec : opt.extract ) {
+            long[] records;
+            int eq = spec.indexOf('=');
+            if( eq < 0 ) {
+               try {
+                  records = new long[] { Long.parseLong(spec) };
+               }
+               catch(NumberFormatException x) {
+                  error(err, "%s: not a record number or KEY=VALUE", spec);
+                  continue;
+               }
+            }
+            else {
+               records = rx.find(spec.substring(0, eq),
+                                 spec.substring(eq+1));
+            }
+            if( records.length == 0 ) {
+               error(err, "%s: no record has %s", file, spec);
+            }
+            for( long r : records ) {
+               ContentHandler ch = (opt.pretty_p?
+                  new PrettyXMLWriter(System.out, opt.pretty_tab) :
+                  new SimpleXMLWriter(System.out));
+               try {
+                  rx.extract(r, ch);
+               }
+               catch(IndexOutOfBoundsException x) {
+                  error(err, "%s: no record %d", file, r);
+                  continue;
+               }
+               System.out.write('\n');
+            }
+         }
+         System.out.flush();
+      }
+      finally {
+         ra.close();
+      }
+   }
+
+   private void error(PrintStream log, String fmt, Object... args)
    {
       if(opt.verbosity >= 0) {
-         System.err.printf("%s: error: ", myname);
-         System.err.printf(fmt, args);
-         System.err.println();
+         log.printf("%s: error: ", myname);
+         log.printf(fmt, args);
+         log.println();
       }
    }
 
-   private void info(String fmt, Object... args)
+   private void info(PrintStream log, String fmt, Object... args)
    {
       if(opt.verbosity > 1) {
-         err.printf(fmt, args);
+         log.printf(fmt, args);
       }
    }
 
@@ -172,13 +317,14 @@ public class Driver
    private void applyToFile (Task task, File infile)
       throws IOException, SAXException
    {
+      PrintStream log = task.log;
       task.setInput(infile);
       if( opt.stdout_p ) {
          task.setOutput(System.out);
          task.prepare();
          task.run();
          if( opt.timings_p ) {
-           err.printf("%5d%s", task.getTime(),
+           log.printf("%5d%s", task.getTime(),
                       opt.verbosity > 1? "ms\n" : ",");
          }
          return;
@@ -186,24 +332,24 @@ public class Driver
       File outfile = task.getOutput();
       try {
          if(!outfile.createNewFile() && !opt.force_p) {
-            error("%s already exists; use --force (-f) to overwrite.",
+            error(log, "%s already exists; use --force (-f) to overwrite.",
                   outfile);
             return;
          }
       }
       catch(IOException x) {
-         error("cannot create %s: %s", outfile, x.getMessage());
+         error(log, "cannot create %s: %s", outfile, x.getMessage());
          return;
       }
       OutputStream outstream = new FileOutputStream(outfile);
       task.setOutput(outstream);
       task.prepare();
-      info("%-25s ", infile);
+      info(log, "%-25s ", infile);
       task.run();
       task.closeInput();
       outstream.close();
       if( opt.timings_p ) {
-        err.printf("%5d%s", task.getTime(),
+        log.printf("%5d%s", task.getTime(),
                    opt.verbosity > 1? "ms\n" : ",");
       }
       float ratio = task.computeRatio();
@@ -211,10 +357,10 @@ public class Driver
       if( !opt.keep_p ) {
          del_p = infile.delete();
       }
-      info("%.2f%% -- %s %s%n",
+      info(log, "%.2f%% -- %s %s%n",
            ratio, del_p? "replaced with" : "created", outfile);
       if(!opt.keep_p && !del_p) {
-         error("could not remove %s", infile);
+         error(log, "could not remove %s", infile);
       }
    }
 
@@ -222,6 +368,9 @@ public class Driver
       protected File infile;
       protected File outfile;
       protected OutputStream outstream;
+      protected BaliAutomaton automaton;
+      protected long checksum;
+      PrintStream log = err;
       private long elapsed;
       abstract void setInput (File file) throws FileNotFoundException;
       abstract void setInput (InputStream in);
@@ -231,6 +380,10 @@ public class Driver
       void setOutput (OutputStream out) {
          outstream = out;
       }
+      void setAutomaton (BaliAutomaton au) {
+         automaton = au;
+         if( au != null ) checksum = au.checksum();
+      }
       float computeRatio() {
          assert infile != null && outfile != null;
          long insize = infile.length();
@@ -314,15 +467,17 @@ public class Driver
             zin = new InteractiveInput(instream, System.err);
          }
          else {
-            RNGZInputStream zis = new RNGZInputStream(instream, opt.settings);
+            RNGZInputStream zis = new RNGZInputStream
+               (instream, new RNGZSettings(opt.settings));
             if( zis.getSchemaURL() != null ) {
                // input stream has schema ref embedded
                if( opt.schema == null ) {
-                  loadAutomaton(zis.getSchemaURL());
+                  setAutomaton(loadAutomaton(zis.getSchemaURL(), log));
                }
                if( zis.getSchemaSum() != checksum ) {
-                  error("MISMATCH %08X <> %08X", zis.getSchemaSum(), checksum);
-                  error("Schema was %s", zis.getSchemaURL());
+                  error(log, "MISMATCH %08X <> %08X", 
+                        zis.getSchemaSum(), checksum);
+                  error(log, "Schema was %s", zis.getSchemaURL());
                   throw new IOException("SUMS DO NOT MATCH"); // FIX
                }
             }
@@ -337,7 +492,9 @@ public class Driver
       }
       void execute() throws IOException, SAXException {
          assert zin != null && ch != null;
-         new GenericDecompressor(automaton, zin, ch);
+         Projection p = opt.select.isEmpty()? null :
+            new Projection(opt.select.toArray(new String[0]));
+         new GenericDecompressor(automaton, zin, ch, p);
          outstream.write('\n');
       }
       void closeInput() throws IOException {
@@ -4,8 +4,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.Map;
-import java.util.Vector;
+import java.util.HashMap;
 import net.contrapunctus.rngzip.io.ChoiceEncoder;
 import net.contrapunctus.rngzip.io.ChoiceEncoderFactory;
 import net.contrapunctus.rngzip.io.RNGZOutputInterface;
@@ -14,8 +13,8 @@ import net.contrapunctus.rngzip.io.VerboseOutput;
 import net.contrapunctus.rngzip.util.BaliAutomaton;
 import net.contrapunctus.rngzip.util.ErrorReporter;
 import net.contrapunctus.rngzip.util.SchemaFormatException;
+import net.contrapunctus.rngzip.util.TypedValues;
 import org.kohsuke.bali.automaton.*;
-import org.kohsuke.bali.datatype.Value;
 import org.xml.sax.Attributes;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.XMLReaderFactory;
@@ -26,7 +25,11 @@ class GenericCompressor extends Compressor
       System.getProperty("DEBUG_Compressor") != null;
    private static final PrintStream dbg = System.err;
    private final BaliAutomaton au;
+   private final CompiledSchema code;
    private ChoiceEncoder[] ces;
+   private final ElementDispatcher dispatcher = new ElementDispatcher();
+   private final AttributeTracer tracer = new AttributeTracer();
+   private final CharMatcher matcher = new CharMatcher();
    
    public GenericCompressor
       (String filename, ErrorReporter err, RNGZOutputInterface out)
@@ -40,6 +43,7 @@ class GenericCompressor extends Compressor
    {
       super(err, out);
       au = _au;
+      code = CompiledSchema.forAutomaton(au);
       ces = new ChoiceEncoder[au.countStates()];
       for(int i = 0;  i < au.countStates();  i++) {
          int n = au.countChoices(i);
@@ -60,6 +64,20 @@ class GenericCompressor extends Compressor
       return r;
    }
 
+   /* Attribute names as they appear on paths, made once each. */
+   private final HashMap<String, String> pathNames =
+      new HashMap<String, String>();
+
+   private String pathName(String attr)
+   {
+      String s = pathNames.get(attr);
+      if(s == null) {
+         s = '@'+attr;
+         pathNames.put(attr, s);
+      }
+      return s;
+   }
+
    public String decodeName(int e)
    {
       String s = au.decodeName(e);
@@ -69,19 +87,39 @@ class GenericCompressor extends Compressor
    private abstract class GenericVisitor implements AlphabetVisitor
    {
       protected StringBuilder expecting = new StringBuilder();
-      protected Vector<Integer> matches;
-      protected int numTrans, stateID, transID;
+      protected int[] matches;
+      protected int count, numTrans, stateID, transID;
+      protected GenericVisitor() { }
       protected GenericVisitor(int id)
+      {
+         reset(id);
+         matches = new int[numTrans+1];
+      }
+      protected void reset(int id)
       {
          stateID = id;
          numTrans = au.countTransitions(id);
-         matches = new Vector<Integer>(numTrans+1);
+         count = 0;
+         expecting.setLength(0);
+      }
+      /* For visitors that are reused, rather than allocated for
+         each event. */
+      protected void reuse(int id)
+      {
+         reset(id);
+         if(matches == null || matches.length <= numTrans) {
+            matches = new int[numTrans+1];
+         }
+      }
+      protected final void match(int j)
+      {
+         matches[count++] = j;
       }
       protected void run() 
       {
          for(transID = 0;  transID < numTrans;  transID++) {
             if(au.visitAlphabet(stateID, transID, this) == Boolean.TRUE) {
-               matches.add(transID);
+               match(transID);
             }
          }
       }
@@ -116,7 +154,7 @@ class GenericCompressor extends Compressor
       protected boolean exec(SequentialStates st)
          throws IOException
       {
-         int n = matches.size();
+         int n = count;
          if(DEBUG) {
             dbg.printf("GenericVisitor: %d match(es)%n", n);
          }
@@ -127,11 +165,11 @@ class GenericCompressor extends Compressor
          if(ces[stateID] == null) {
             /* this is not a choice point */
             assert n == 1;
-            move(st, matches.get(0));
+            move(st, matches[0]);
          }
          else if(n == 1) {
             /* this is a choice point, but there was only one match */
-            int j = matches.get(0);
+            int j = matches[0];
             st.writeChoice(ces[stateID], j);
             move(st, j);
          }
@@ -141,7 +179,7 @@ class GenericCompressor extends Compressor
             for(int i = 0;  i < n;  i++) {
                /* EXCEPT for last time through loop: */
                if(i+1 < n) { alt = st.fork(); }
-               int j = matches.get(i);
+               int j = matches[i];
                st.writeChoice(ces[stateID], j);
                move(st, j);
                st = alt;
@@ -194,20 +232,57 @@ class GenericCompressor extends Compressor
       }
    } // end class GenericVisitor
 
-   private class AttributeTracer extends GenericVisitor
+   /* Finds the transitions that the attributes of a start tag (or
+      the value of one of them) can take.  It dispatches on the kind
+      of each transition, or lets the compiled code call the try
+      methods directly. */
+   class AttributeTracer extends GenericVisitor
    {
-      protected Map<Integer,String> atts;
+      protected AttributeTable atts;
       protected String attr, value, content;
       protected boolean top_p;
-      protected AttributeTracer(Map<Integer,String> as, int id, 
-                                String at, String val)
+      protected boolean trace(SequentialStates st, AttributeTable as, 
+                              int id, String at, String val)
+         throws IOException
       {
-         super(id);
+         reuse(id);
          atts = as;
          attr = at;
          value = val;
+         content = null;
          top_p = at == null;
          run();
+         boolean r = exec(st);
+         atts = null;
+         return r;
+      }
+      protected void run()
+      {
+         if(code != null) {
+            code.traceAttributes(stateID, this);
+         }
+         else {
+            runTables();
+         }
+      }
+      void runTables()
+      {
+         for(transID = 0;  transID < numTrans;  transID++) {
+            switch(au.kindOf(stateID, transID)) {
+            case BaliAutomaton.ATTRIBUTE:
+               tryAttribute(transID);
+               break;
+            case BaliAutomaton.NON_EXISTENT_ATTRIBUTE:
+               tryNonExistent(transID);
+               break;
+            case BaliAutomaton.DATA:
+               tryData(transID);
+               break;
+            case BaliAutomaton.VALUE:
+               tryValue(transID, au.labelOf(stateID, transID));
+               break;
+            }
+         }
       }
       protected SingletonState makeState(int id, boolean child_p)
       {
@@ -230,71 +305,73 @@ class GenericCompressor extends Compressor
       protected void write(SequentialStates st) throws IOException
       {
          if(content != null) {
-            st.writeContent(elts, content);
+            /* The decompressor reads attribute values with the
+               attribute on its path, so write them that way too. */
+            elts.push(pathName(attr));
+            st.writeContent(elts.asList(), au.datatypeOf(stateID), content);
+            elts.pop();
          }
       }
-      public Object attribute(AttributeAlphabet a) 
+      void tryAttribute(int j)
       {
         if(DEBUG) {
-          dbg.printf("AttributeTracer: attr: '%s'%n", a);
+          dbg.printf("AttributeTracer: attr: '%s'%n", au.labelOf(stateID, j));
         }
-         for(Integer k : atts.keySet()) {
-            if(a.name.accepts(k)) {
-               attr = decodeName(k);
-               value = atts.get(k);
-               return Boolean.TRUE;
+         for(int i = 0;  i < atts.size();  i++) {
+            if(au.acceptsName(stateID, j, atts.code(i))) {
+               attr = decodeName(atts.code(i));
+               value = atts.value(i);
+               match(j);
+               return;
             }
          }
-         return super.attribute(a);
       }      
-      public Object nonExistentAttribute(NonExistentAttributeAlphabet a)
+      void tryNonExistent(int j)
       {
         if(DEBUG) {
-          dbg.printf("AttributeTracer: non-exist attr: '%s'%n", a);
+          dbg.printf("AttributeTracer: non-exist attr #%d%n", j);
         }
-         for(Integer k : atts.keySet()) {
-            if(a.accepts(k)) {
-               return super.nonExistentAttribute(a);
+         for(int i = 0;  i < atts.size();  i++) {
+            if(au.acceptsName(stateID, j, atts.code(i))) {
+               return;
             }
          }
-         return Boolean.TRUE;
+         match(j);
       }
-      public Object data(DataAlphabet a) 
+      void tryData(int j) 
       {
          if(DEBUG) {
             dbg.printf("AttributeTracer: data value '%s'%n", value);
          }
          if(value == null) {
-            return Boolean.FALSE;
+            return;
          }
          if(value.length() == 0) {
             if(au.isFinal(stateID)) {
-               matches.add(numTrans);
+               match(numTrans);
             }
-            return Boolean.FALSE;
+            return;
          }
          content = value;
          value = "";
-         return Boolean.TRUE;
+         match(j);
       }
-      public Object value(ValueAlphabet a)
+      void tryValue(int j, String goal)
       {
          if(value == null) {
-            return Boolean.FALSE;
+            return;
          }
-         Value goal = (Value) a.value;
          if(DEBUG) {
             dbg.printf("AttributeTracer: testing value '%s' alphabet '%s': ", 
-                              value, goal.value);
+                              value, goal);
          }
-         if(value.equals(goal.value)) {
+         if(value.equals(goal)) {
             if(DEBUG) { dbg.println("yes"); }
             value = "";
-            return Boolean.TRUE;
+            match(j);
          }
          else {
             if(DEBUG) { dbg.println("no"); }
-            return Boolean.FALSE;
          }
       }
    } // end class AttributeTracer
@@ -321,48 +398,104 @@ class GenericCompressor extends Compressor
       }
    } // end class ElementFinder
 
-   private class CharMatcher extends GenericVisitor
+   /* Answers the same question as ElementFinder, but from the table
+      that BaliAutomaton compiles when it is loaded, so there is no
+      walk over the transitions.  There is just one instance, which
+      is reset for each start tag. */
+   private class ElementDispatcher extends GenericVisitor
+   {
+      protected boolean dispatch(SequentialStates st, int id, int elt)
+         throws IOException
+      {
+         reset(id);
+         matches = au.elementTransitions(id, elt);
+         count = matches.length;
+         if(DEBUG) {
+            dbg.printf("ElementDispatcher: #%d <%s> -> %d%n", 
+                       id, decodeName(elt), count);
+         }
+         return exec(st);
+      }
+   } // end class ElementDispatcher
+
+   class CharMatcher extends GenericVisitor
    {
       protected char[] buf;
       protected int start, length;
-      protected String str;
       protected boolean const_p = false;
-      protected CharMatcher(char[] _buf, int _start, int _length, int id)
+      protected void matchChars(SequentialStates st, char[] _buf, 
+                                int _start, int _length, int id)
+         throws IOException
       {
-         super(id);
+         reuse(id);
          buf = _buf;
          start = _start;
          length = _length;
-         str = new String(buf, start, length);
+         const_p = false;
          run();
+         exec(st);
+         buf = null;
       }
-      protected void write(SequentialStates st) throws IOException
+      /* Character data only ever matches data and value transitions,
+         so dispatch on the kind directly instead of visiting, or let
+         the compiled code call tryData and tryValue. */
+      protected void run()
       {
-         if( ! const_p ) {
-            st.writeContent(elts, buf, start, length);
+         if(code != null) {
+            code.matchChars(stateID, this);
+         }
+         else {
+            runTables();
+         }
+      }
+      void runTables()
+      {
+         for(transID = 0;  transID < numTrans;  transID++) {
+            switch(au.kindOf(stateID, transID)) {
+            case BaliAutomaton.DATA:
+               tryData(transID);
+               break;
+            case BaliAutomaton.VALUE:
+               tryValue(transID, au.labelOf(stateID, transID));
+               break;
+            }
          }
       }
-      public Object data(DataAlphabet a)
+      void tryData(int j)
       {
          const_p = false;
-         return Boolean.TRUE;
+         match(j);
       }
-      public Object value(ValueAlphabet a)
+      void tryValue(int j, String expected)
       {
-         Value v = (Value) a.value;
-         String expected = v.value;
          if(DEBUG) {
             dbg.printf("CharMatcher: testing value '%s' alphabet '%s'%n",
-                       str, expected);
+                       new String(buf, start, length), expected);
          }
-         if( str.equals(expected) ) {
-            const_p = true;
-            return Boolean.TRUE;
+         const_p = sameChars(expected);
+         if(const_p) match(j);
+      }
+      protected void write(SequentialStates st) throws IOException
+      {
+         if( ! const_p ) {
+            int type = au.datatypeOf(stateID);
+            if(type == TypedValues.STRING) {
+               st.writeContent(elts.asList(), buf, start, length);
+            }
+            else {
+               st.writeContent(elts.asList(), type,
+                               new String(buf, start, length));
+            }
          }
-         else {
-            const_p = false;
-            return Boolean.FALSE;
+      }
+      /* Compares the current range of buf with s, without copying. */
+      private boolean sameChars(String s)
+      {
+         if(s.length() != length) return false;
+         for(int i = 0;  i < length;  i++) {
+            if(s.charAt(i) != buf[start+i]) return false;
          }
+         return true;
       }
    } // end class CharMatcher
    
@@ -382,6 +515,7 @@ class GenericCompressor extends Compressor
         return s;
       }
       private CState(int id) { this.id = id; }
+      int stateID() { return attr == null? id : -1; }
       private CState(int id, String at, String val) { 
          this(id); 
          attr = at;
@@ -391,8 +525,9 @@ class GenericCompressor extends Compressor
       public void start(SequentialStates st, int elt)
          throws IOException
       {
-         ElementFinder ef = new ElementFinder(elt, id);
-         if(!ef.exec(st)) {
+         if(!dispatcher.dispatch(st, id, elt)) {
+            /* Only walk the transitions to report what we expected. */
+            ElementFinder ef = new ElementFinder(elt, id);
             if(ef.expecting.length() > 0) {
                dieStart(ef.expecting.substring(1), decodeName(elt));
             }
@@ -402,15 +537,15 @@ class GenericCompressor extends Compressor
          }
       }
 
-      public boolean attrs(SequentialStates st, Map<Integer,String> atts)
+      public boolean attrs(SequentialStates st, AttributeTable atts)
          throws IOException
       {
          if(DEBUG) {
             dbg.printf
                ("%s  <> ATTRS (epsilon=%b; final=%b; elts=...%s; atts=", 
                 this, au.isEpsilon(id), au.isFinal(id), elts.peek());
-            for(int k : atts.keySet()) {
-              dbg.printf("@%s ", decodeName(k));
+            for(int i = 0;  i < atts.size();  i++) {
+              dbg.printf("@%s ", decodeName(atts.code(i)));
             }
             dbg.printf(")%n");
          }
@@ -420,7 +555,7 @@ class GenericCompressor extends Compressor
             //return false;
          }
          else {
-            return new AttributeTracer(atts, id, attr, value).exec(st);
+            return tracer.trace(st, atts, id, attr, value);
          }
       }
       
@@ -428,7 +563,7 @@ class GenericCompressor extends Compressor
                         int start, int length)
          throws IOException
       {
-         new CharMatcher(buf, start, length, id).exec(st);
+         matcher.matchChars(st, buf, start, length, id);
       }
       
       public void end(SequentialStates st)
@@ -2,30 +2,32 @@ package net.contrapunctus.rngzip;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Stack;
-import org.kohsuke.bali.automaton.*;
-import org.kohsuke.bali.datatype.Value;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 import net.contrapunctus.rngzip.util.BaliAutomaton;
 import net.contrapunctus.rngzip.io.ChoiceDecoder;
 import net.contrapunctus.rngzip.io.ChoiceDecoderFactory;
+import net.contrapunctus.rngzip.io.RNGZChunk;
 import net.contrapunctus.rngzip.io.RNGZInputInterface;
 import net.contrapunctus.rngzip.io.RNGZInputStream;
 import net.contrapunctus.rngzip.io.InteractiveInput;
 import java.net.MalformedURLException;
 
-class GenericDecompressor
-   extends Decompressor implements AlphabetVisitor
+class GenericDecompressor extends Decompressor
 {
    private final BaliAutomaton au;
-   private final ChoiceDecoder[] cds;
-   private Stack<Integer> stack = new Stack<Integer>();
-   private RNGZInputInterface in;
-   private SAXException exn_sax;
-   private IOException exn_io;
+   /* Where the decoded events go: this, or a projection of it. */
+   private Decompressor sink = this;
+   private static final int MAX_PENDING =
+      2 * ForkJoinPool.getCommonPoolParallelism() + 1;
 
-   public GenericDecompressor(String filename, 
+   public GenericDecompressor(String filename,
                               RNGZInputInterface in,
                               ContentHandler ch)
       throws MalformedURLException, IOException, SAXException
@@ -33,105 +35,376 @@ class GenericDecompressor
      this(BaliAutomaton.fromRNG(new File(filename)), in, ch);
    }
 
-   public GenericDecompressor(BaliAutomaton _au, 
+   public GenericDecompressor(BaliAutomaton _au,
                               RNGZInputInterface in,
                               ContentHandler h)
       throws IOException, SAXException
+   {
+      this(_au, in, h, null);
+   }
+
+   /**
+    * Decompresses just what ‘p’ selects, or everything if ‘p’ is
+    * null.
+    * @see Projection
+    */
+   public GenericDecompressor(BaliAutomaton _au,
+                              RNGZInputInterface in,
+                              ContentHandler h,
+                              Projection p)
+      throws IOException, SAXException
    {
       au = _au;
-      cds = new ChoiceDecoder[au.countStates()];
-      for(int i = 0;  i < au.countStates();  i++) {
-         int n = au.countChoices(i);
-         if(n > 1) {
-            cds[i] = in.makeChoiceDecoder(n, i);
-         }
+      if(p != null) {
+         sink = p.to(this);
+      }
+      if(in instanceof RNGZInputStream
+         && ((RNGZInputStream) in).isChunked()) {
+         runChunks((RNGZInputStream) in, h);
+      }
+      else {
+         run(in, h);
       }
-      run(in, h);
    }
 
    public void run(RNGZInputInterface in, ContentHandler h)
       throws IOException, SAXException
    {
       initialize(h);
-      this.in = in;
-      stack.clear();
-      stack.push(au.initialState());
-      while(!stack.isEmpty()) {
-         int state = stack.pop();
-         if(au.isNull(state)) continue;
-         ChoiceDecoder cd = cds[state];
-         int n = au.countChoices(state);
-         int i = 0;
-         if(cd != null) {
-            i = in.readChoice(cd);
-            assert i >= 0 && i < n;
-         }
-         if(au.isFinal(state) && i == n-1) {
-            epsilon();
-            continue;
-         }
-         au.visitAlphabet(state, i, this);
-         if(exn_io != null) throw exn_io;
-         if(exn_sax != null) throw exn_sax;
-         stack.push(au.siblingOf(state, i));
-         int k = au.childOf(state, i);
-         if(k >= 0) {
-            stack.push(k);
-         }
-      }
+      Walker w = new Walker(au, in);
+      w.push(au.initialState());
+      w.run(sink);
    }
 
-   public Object attribute (AttributeAlphabet al)
+   /* Each chunk is decoded in the pool into a Recorder, and then the
+      recorded events are replayed here, in order.  Chunks are read
+      ahead only so far, to bound the memory used. */
+   private void runChunks(final RNGZInputStream in, ContentHandler h)
+      throws IOException, SAXException
    {
-      addAttribute(al.name.nameClass.toString());
-      return null;
+      initialize(h);
+      LinkedList<Future<Recorder>> pending =
+         new LinkedList<Future<Recorder>>();
+      RNGZChunk c;
+      while((c = in.readChunk()) != null) {
+         final RNGZChunk chunk = c;
+         pending.add(ForkJoinPool.commonPool().submit
+                     (new Callable<Recorder>() {
+            public Recorder call() throws IOException, SAXException {
+               return decodeChunk(au, in.openChunk(chunk), chunk);
+            }
+         }));
+         while(pending.size() > MAX_PENDING) {
+            replay(pending.removeFirst());
+         }
+      }
+      while(!pending.isEmpty()) {
+         replay(pending.removeFirst());
+      }
    }
 
-   public Object nonExistentAttribute (NonExistentAttributeAlphabet al)
+   /* Decodes the events of one chunk; this does not depend on any
+      other chunk.  See also RecordExtractor. */
+   static Recorder decodeChunk(BaliAutomaton au, RNGZInputInterface in,
+                               final RNGZChunk c)
+      throws IOException, SAXException
    {
-      return null;
+      final Recorder r = new Recorder(c);
+      Walker w = new Walker(au, in) {
+         /* The last chunk runs to the end of the document; others
+            end when the compressor split them: after the right
+            number of elements have closed at the chunk depth, and the
+            stack is back to what it was then. */
+         protected boolean done()
+         {
+            if(c.isLast()) return sp == 0;
+            if(r.closes != c.getCloses()) return false;
+            int[] end = c.getEndStack();
+            if(sp != end.length) return false;
+            for(int i = 0;  i < sp;  i++) {
+               if(stack[i] != end[i]) return false;
+            }
+            return true;
+         }
+      };
+      /* Only the first chunk starts with an empty stack. */
+      if(c.getStartStack().length == 0) {
+         w.push(au.initialState());
+      }
+      for(int s : c.getStartStack()) {
+         w.push(s);
+      }
+      w.run(r);
+      in.close();
+      return r;
    }
-   
-   public Object element (ElementAlphabet al)
+
+   private void replay(Future<Recorder> f) throws IOException, SAXException
    {
+      Recorder r;
       try {
-         startElement(al.name.nameClass.toString());
+         r = f.get();
       }
-      catch(SAXException e) {
-         exn_sax = e;
+      catch(InterruptedException x) {
+         throw new IOException(x.toString());
       }
-      return null;
-   }
-   
-   public Object interleave (InterleaveAlphabet al)
-   {
-      assert false;
-      return null;
-   }
-   
-   public Object list (ListAlphabet al)
-   {
-      assert false;
-      return null;
+      catch(ExecutionException x) {
+         Throwable t = x.getCause();
+         if(t instanceof IOException) throw (IOException) t;
+         if(t instanceof SAXException) throw (SAXException) t;
+         if(t instanceof RuntimeException) throw (RuntimeException) t;
+         throw new IOException(t.toString());
+      }
+      r.replay(sink);
    }
-   
-   public Object data (DataAlphabet al)
+
+   /* Reads choices from ‘in’ and walks the automaton, reporting what
+      it finds to a Decompressor.  Choice decoders are made as they
+      are needed.  If there is compiled code for the automaton, it
+      runs the loop instead, through choose, content, push, and pop. */
+   static class Walker
    {
-      try { chars(in.readContent(eltStack)); } 
-      catch(IOException e) { exn_io = e; }
-      catch(SAXException e) { exn_sax = e; }         
-      return null;
-   }  
+      private final BaliAutomaton au;
+      private final RNGZInputInterface in;
+      private final ChoiceDecoder[] cds;
+      private final CompiledSchema code;
+      protected int[] stack = new int[64];
+      protected int sp;
+
+      Walker(BaliAutomaton au, RNGZInputInterface in)
+      {
+         this.au = au;
+         this.in = in;
+         cds = new ChoiceDecoder[au.countStates()];
+         code = CompiledSchema.forAutomaton(au);
+      }
+
+      protected boolean done()
+      {
+         return sp == 0;
+      }
+
+      void run(Decompressor dx) throws IOException, SAXException
+      {
+         if(code != null) {
+            code.decode(this, dx);
+            return;
+         }
+         while(!done()) {
+            step(pop(), dx);
+         }
+      }
+
+      /* Decodes one state by interpreting the tables. */
+      void step(int state, Decompressor dx)
+         throws IOException, SAXException
+      {
+         if(au.isNull(state)) return;
+         int n = au.countChoices(state);
+         int i = n > 1? choose(state, n) : 0;
+         if(au.isFinal(state) && i == n-1) {
+            dx.epsilon();
+            return;
+         }
+         switch(au.kindOf(state, i)) {
+         case BaliAutomaton.ELEMENT:
+            dx.startElement(au.labelOf(state, i));
+            break;
+         case BaliAutomaton.ATTRIBUTE:
+            dx.addAttribute(au.labelOf(state, i));
+            break;
+         case BaliAutomaton.NON_EXISTENT_ATTRIBUTE:
+            break;
+         case BaliAutomaton.DATA:
+            dx.chars(content(dx, au.datatypeOf(state)));
+            break;
+         case BaliAutomaton.VALUE:
+            dx.chars(au.labelOf(state, i).trim());
+            break;
+         default:
+            /* interleave and list are not supported */
+            assert false : au.kindOf(state, i);
+         }
+         push(au.siblingOf(state, i));
+         int k = au.childOf(state, i);
+         if(k >= 0) {
+            push(k);
+         }
+      }
+
+      /* Reads which of the ‘n’ choices was taken from ‘state’. */
+      int choose(int state, int n) throws IOException
+      {
+         ChoiceDecoder cd = cds[state];
+         if(cd == null) {
+            cd = cds[state] = in.makeChoiceDecoder(n, state);
+         }
+         int i = in.readChoice(cd);
+         assert i >= 0 && i < n;
+         return i;
+      }
 
-   public Object value (ValueAlphabet al)
+      String content(Decompressor dx, int type) throws IOException
+      {
+         return in.readContent(dx.eltStack, type);
+      }
+
+      int pop()
+      {
+         return stack[--sp];
+      }
+
+      void push(int state)
+      {
+         if(sp == stack.length) {
+            int[] a = new int[2*sp];
+            System.arraycopy(stack, 0, a, 0, sp);
+            stack = a;
+         }
+         stack[sp++] = state;
+      }
+   } // end class Walker
+
+   /* Keeps the events of one chunk, to be replayed on the real
+      Decompressor later.  It tracks just as much as the chunk needs
+      to be decoded: the path of open elements (which provides the
+      context for the data stream, and starts with the path recorded
+      in the chunk), and the number of elements closed at the chunk
+      depth. */
+   static final class Recorder extends Decompressor
    {
-      //System.err.printf(" *** ValueAlphabet >%s< (%s)%n", al.value,
-      //                  al.value.getClass());
-      try { 
-         Value v = (Value) al.value; // should work?
-         chars(v.value.trim());
-      }
-      catch(SAXException e) { exn_sax = e; }
-      return null;
-   }
+      private static final byte START = 0, ATTR = 1, CHARS = 2, EPSILON = 3;
+      private byte[] ops = new byte[256];
+      private int count;
+      private final ArrayList<String> args = new ArrayList<String>();
+      private final int depth, start;
+      private boolean attr_p;
+      int closes;
+
+      Recorder(RNGZChunk c)
+      {
+         for(String e : c.getStartPath()) {
+            eltStack.push(e);
+         }
+         depth = c.getDepth();
+         start = eltStack.size();
+      }
+
+      private void add(byte op, String arg)
+      {
+         if(count == ops.length) {
+            byte[] a = new byte[2*count];
+            System.arraycopy(ops, 0, a, 0, count);
+            ops = a;
+         }
+         ops[count++] = op;
+         args.add(arg);
+      }
+
+      protected void startElement(String e)
+      {
+         add(START, e);
+         eltStack.push(e);
+      }
+
+      protected void addAttribute(String a)
+      {
+         add(ATTR, a);
+         if(attr_p) eltStack.pop();
+         attr_p = true;
+         eltStack.push('@'+a);
+      }
+
+      protected void chars(String s)
+      {
+         add(CHARS, s);
+      }
+
+      protected void epsilon()
+      {
+         add(EPSILON, null);
+         if(attr_p) {
+            eltStack.pop();
+            attr_p = false;
+         }
+         else if(!eltStack.isEmpty()) {
+            eltStack.pop();
+            if(eltStack.size() == depth) closes++;
+         }
+      }
+
+      void replay(Decompressor dx) throws SAXException
+      {
+         for(int i = 0;  i < count;  i++) {
+            switch(ops[i]) {
+            case START:   dx.startElement(args.get(i)); break;
+            case ATTR:    dx.addAttribute(args.get(i)); break;
+            case CHARS:   dx.chars(args.get(i));        break;
+            case EPSILON: dx.epsilon();                 break;
+            }
+         }
+      }
+
+      /**
+       * Replays just the ‘i’th element named ‘elt’ that starts at the
+       * chunk depth, with everything in it.  Returns false if there
+       * is no such element in this chunk.
+       */
+      boolean replayRecord(int i, String elt, Decompressor dx)
+         throws SAXException
+      {
+         /* Find it, tracking the depth just as epsilon() does.  Every
+            chunk but the first starts at the chunk depth; in the
+            first, that is where the compressor first saw ‘elt’. */
+         int d = start, k = 0, at = start > 0? start : -1;
+         boolean in_attr = false;
+         for(;  k < count;  k++) {
+            if(ops[k] == START) {
+               if(matches(args.get(k), elt)) {
+                  if(at < 0 && d > 0) at = d;
+                  if(d == at && i-- == 0) break;
+               }
+               d++;
+            }
+            else if(ops[k] == ATTR) {
+               in_attr = true;
+            }
+            else if(ops[k] == EPSILON) {
+               if(in_attr) in_attr = false;
+               else d--;
+            }
+         }
+         if(k == count) return false;
+         /* Then replay until it ends. */
+         int end = d;
+         in_attr = false;
+         do {
+            switch(ops[k]) {
+            case START:
+               dx.startElement(args.get(k));
+               d++;
+               break;
+            case ATTR:
+               dx.addAttribute(args.get(k));
+               in_attr = true;
+               break;
+            case CHARS:
+               dx.chars(args.get(k));
+               break;
+            case EPSILON:
+               dx.epsilon();
+               if(in_attr) in_attr = false;
+               else d--;
+               break;
+            }
+            k++;
+         } while(d > end);
+         return true;
+      }
+
+      private static boolean matches(String label, String elt)
+      {
+         return label.equals(elt) || label.endsWith(":"+elt);
+      }
+   } // end class Recorder
 }
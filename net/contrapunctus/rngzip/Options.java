@@ -2,36 +2,50 @@ package net.contrapunctus.rngzip;
 
 import gnu.getopt.Getopt;
 import gnu.getopt.LongOpt;
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 import net.contrapunctus.rngzip.io.RNGZSettings;
+import net.contrapunctus.rngzip.util.AutomatonCache;
 
 public class Options
 {
-  private static final String shortopts = "cDdE:fhikp::qS:s:T:tVvZ:";
+  private static final String shortopts = "cDdE:fhij:kp::qS:s:T:tVvZ:";
 
   private static LongOpt[] longopts = new LongOpt[] {
     new LongOpt("stdout",          LongOpt.NO_ARGUMENT,       null, 'c'),
+    new LongOpt("chunk",           LongOpt.REQUIRED_ARGUMENT, null,  5 ),
+    new LongOpt("containers",      LongOpt.NO_ARGUMENT,       null,  9 ),
     new LongOpt("debug",           LongOpt.NO_ARGUMENT,       null, 'D'),
     new LongOpt("decompress",      LongOpt.NO_ARGUMENT,       null, 'd'),
     new LongOpt("tree-encoder",    LongOpt.REQUIRED_ARGUMENT, null, 'E'),
+    new LongOpt("extract",         LongOpt.REQUIRED_ARGUMENT, null,  7 ),
     new LongOpt("force",           LongOpt.NO_ARGUMENT,       null, 'f'),
     new LongOpt("help",            LongOpt.NO_ARGUMENT,       null, 'h'),
     new LongOpt("identify",        LongOpt.NO_ARGUMENT,       null, 'i'),
     new LongOpt("ignore-checksum", LongOpt.NO_ARGUMENT,       null,  2 ),
+    new LongOpt("index",           LongOpt.REQUIRED_ARGUMENT, null,  6 ),
+    new LongOpt("jobs",            LongOpt.REQUIRED_ARGUMENT, null, 'j'),
     new LongOpt("keep",            LongOpt.NO_ARGUMENT,       null, 'k'),
     new LongOpt("pretty-print",    LongOpt.OPTIONAL_ARGUMENT, null, 'p'),
     new LongOpt("quiet",           LongOpt.NO_ARGUMENT,       null, 'q'),
+    new LongOpt("select",          LongOpt.REQUIRED_ARGUMENT, null,  8 ),
     new LongOpt("suffix",          LongOpt.REQUIRED_ARGUMENT, null, 'S'),
     new LongOpt("schema",          LongOpt.REQUIRED_ARGUMENT, null, 's'),
+    new LongOpt("schema-cache",    LongOpt.OPTIONAL_ARGUMENT, null,  4 ),
     new LongOpt("tree-compressor", LongOpt.REQUIRED_ARGUMENT, null, 'T'),
+    new LongOpt("tree-lzma",       LongOpt.REQUIRED_ARGUMENT, null, 11 ),
     new LongOpt("timings",         LongOpt.NO_ARGUMENT,       null, 't'),
+    new LongOpt("typed-values",    LongOpt.NO_ARGUMENT,       null, 10 ),
     new LongOpt("version",         LongOpt.NO_ARGUMENT,       null, 'V'),
     new LongOpt("exact-version",   LongOpt.NO_ARGUMENT,       null,  3 ),
     new LongOpt("verbose",         LongOpt.NO_ARGUMENT,       null, 'v'),
-    new LongOpt("data-compressor", LongOpt.REQUIRED_ARGUMENT, null, 'Z')
+    new LongOpt("data-compressor", LongOpt.REQUIRED_ARGUMENT, null, 'Z'),
+    new LongOpt("data-lzma",       LongOpt.REQUIRED_ARGUMENT, null, 12 )
   };
 
   private Getopt opt;
@@ -46,13 +60,17 @@ public class Options
   boolean compress_p;
   boolean force_p;        // force overwrite of output files
   boolean identify_p;     // print information about .rnz files
+  List<String> extract = new ArrayList<String>(); // records to extract
   boolean ignore_sum_p;   // decompress even if schema changed
+  int jobs = 1;           // process this many files concurrently
   boolean keep_p;         // do not remove input files
   boolean pretty_p;       // line-break and indent XML output
   int pretty_tab = 2;     //   how far to indent?
+  List<String> select = new ArrayList<String>(); // decompress only these paths
   int verbosity = 1;      // 0=errors only, 1=warnings, 2=stats&info
   String suffix = ".rnz"; // use this suffix on compressed files
   String schema;          // use this schema (required to compress)
+  File cache_dir;         // keep compiled schemas here, if not null
   boolean timings_p;      // output timing information
 
   public Options (String myname)
@@ -81,7 +99,12 @@ public class Options
 
   protected void check(int i, int n)
   {
-    if( !decompress_p && !identify_p ) { // We ARE compressing
+    if( !extract.isEmpty() && n == i ) {
+      err.printf("%s: error: --extract requires a file%n", myname);
+      errcount++;
+    }
+    if( !decompress_p && !identify_p && extract.isEmpty() ) {
+      // We ARE compressing
       compress_p = true;
       if( schema == null ) {
         err.printf("%s: error: schema must be specified when compressing%n",
@@ -95,13 +118,18 @@ public class Options
       errcount++;
     }
     if( verbosity < 1 ) return;
-    if( decompress_p || identify_p ) { // We are not compressing
+    if( jobs > 1 && (stdout_p || debug_p) ) {
+      err.printf("%s: warning: --jobs (-j) is irrelevant with "+
+                 "--stdout (-c) or --debug (-D)%n", myname);
+    }
+    if( !compress_p ) {         // We are not compressing
       if( settings_p ) {
         err.printf("%s: warning: not compressing, so "+
-                   "-E,-T,-Z will be ignored%n", myname);
+                   "-E,-T,-Z,--chunk,--containers,--index,--typed-values "+
+                   "will be ignored%n", myname);
       }
     }
-    if( !decompress_p ) {       // We are not decompressing
+    if( !decompress_p && extract.isEmpty() ) { // We are not decompressing
       final String msg = "%s: warning: not decompressing, so ";
       if( ignore_sum_p ) {
         err.printf(msg+"--ignore-checksum is irrelevant%n", myname);
@@ -110,6 +138,10 @@ public class Options
         err.printf(msg+"--pretty-print (-p) is irrelevant%n", myname);
       }
     }
+    if( !decompress_p && !select.isEmpty() ) {
+      err.printf("%s: warning: not decompressing, so "+
+                 "--select is irrelevant%n", myname);
+    }
     if( identify_p && !decompress_p ) { // We are identifying ONLY
       final String msg = "%s: warning: in identification mode (-i), ";
       if( schema != null ) {
@@ -130,24 +162,34 @@ public class Options
       {
       case '?': errcount++;               break;
       case 'c': stdout_p = true;          break;
+      case  5 : handleChunk();            break;
+      case  9 : handleContainers();       break;
       case 'D': debug_p = true;           break;
       case 'd': decompress_p = true;      break;
       case 'E': handleTreeEncoder();      break;
+      case  7 : extract.add(opt.getOptarg()); break;
       case 'f': force_p = true;           break;
       case 'h': showHelp(System.out);     break;
       case 'i': identify_p = true;        break;
       case  2 : ignore_sum_p = true;      break;
+      case  6 : handleIndex();            break;
+      case 'j': handleJobs();             break;
       case 'k': keep_p = true;            break;
       case 'p': handlePretty();           break;
       case 'q': verbosity--;              break;
+      case  8 : handleSelect();           break;
       case 'S': suffix = opt.getOptarg(); break;
       case 's': schema = opt.getOptarg(); break;
+      case  4 : handleSchemaCache();      break;
       case 'T': handleTreeCompressor();   break;
+      case 11 : handleTreeLzma();         break;
       case 't': timings_p = true;         break;
+      case 10 : handleTypedValues();      break;
       case 'V': showVersion(System.out);  break;
       case  3 : showContext(System.out);  break;
       case 'v': verbosity++;              break;
       case 'Z': handleDataCompressor();   break;
+      case 12 : handleDataLzma();         break;
       default: assert false : curopt;
       }
   }
@@ -225,6 +267,94 @@ public class Options
     settings_p = true;
   }
 
+  protected void handleTreeLzma()
+  {
+    try {
+      settings.setTreeLzma(opt.getOptarg());
+    }
+    catch(IllegalArgumentException x) { // includes NumberFormatException
+      invalid(x.getMessage());
+    }
+    settings_p = true;
+  }
+
+  protected void handleDataLzma()
+  {
+    try {
+      settings.setDataLzma(opt.getOptarg());
+    }
+    catch(IllegalArgumentException x) {
+      invalid(x.getMessage());
+    }
+    settings_p = true;
+  }
+
+  protected void handleJobs()
+  {
+    try {
+      jobs = Integer.parseInt(opt.getOptarg());
+      if( jobs < 1 ) invalid("requires a positive integer");
+    }
+    catch(NumberFormatException x) {
+      invalid("requires a positive integer");
+    }
+  }
+
+  protected void handleChunk()
+  {
+    String arg = opt.getOptarg();
+    int records = RNGZSettings.DEFAULT_CHUNK_RECORDS;
+    int i = arg.lastIndexOf(',');
+    try {
+      if( i >= 0 ) {
+        records = Integer.parseInt(arg.substring(i+1));
+        arg = arg.substring(0, i);
+      }
+      settings.setChunking(arg, records);
+    }
+    catch(IllegalArgumentException x) { // includes NumberFormatException
+      invalid("requires an element name and a positive integer");
+    }
+    settings_p = true;
+  }
+
+  protected void handleContainers()
+  {
+    settings.setContainers(true);
+    settings_p = true;
+  }
+
+  protected void handleTypedValues()
+  {
+    settings.setTypedValues(true);
+    settings_p = true;
+  }
+
+  protected void handleIndex()
+  {
+    settings.setIndexKeys(opt.getOptarg().split(","));
+    settings_p = true;
+  }
+
+  protected void handleSelect()
+  {
+    for( String p : opt.getOptarg().split(",") ) {
+      if( p.length() > 0 ) select.add(p);
+    }
+    try {
+      new Projection(select.toArray(new String[0]));
+    }
+    catch(IllegalArgumentException x) {
+      invalid(x.getMessage());
+    }
+  }
+
+  protected void handleSchemaCache()
+  {
+    cache_dir = opt.getOptarg() == null?
+      AutomatonCache.defaultDirectory() : new File(opt.getOptarg());
+  }
+
   protected void handlePretty()
   {
     pretty_p = true;
@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Vector;
 
 class ParallelStates extends CompositeState
@@ -38,7 +37,7 @@ class ParallelStates extends CompositeState
       return vec.get(0).initialize(s0);
    }
    
-   public CompositeState start(int elt, Map<Integer,String> att)
+   public CompositeState start(int elt, AttributeTable att)
       throws IOException
    {
       for(Iterator<SequentialStates> i = vec.iterator(); i.hasNext(); ) {
@@ -53,7 +52,7 @@ class ParallelStates extends CompositeState
       return next();
    }
 
-   public CompositeState attrs(Map<Integer,String> att)
+   public CompositeState attrs(AttributeTable att)
       throws IOException
    {
       for(Iterator<SequentialStates> i = vec.iterator(); i.hasNext(); ) {
@@ -83,7 +82,7 @@ class ParallelStates extends CompositeState
       return next();
    }
    
-   public CompositeState end(Map<Integer,String> att) throws IOException
+   public CompositeState end(AttributeTable att) throws IOException
    {
       for(Iterator<SequentialStates> i = vec.iterator(); i.hasNext(); ) {
          try {
@@ -0,0 +1,149 @@
+package net.contrapunctus.rngzip;
+
+import java.util.Arrays;
+import org.xml.sax.SAXException;
+
+/**
+ * A decompressor that passes on only the parts of the document that
+ * lie on a set of element paths.  Each path is a list of element
+ * names separated by ‘/’, starting from the root; the name
+ * <code>*</code> matches any element.  For example,
+ * <code>set/rec/title</code> selects the <code>title</code> elements
+ * of every <code>rec</code>.  A selected element is passed on with
+ * everything in it; the elements around it are passed on too, but
+ * without their attributes or text, so the result is still a
+ * document.  Nothing else is.
+ *
+ * <p>The events of skipped subtrees are dropped here, before the
+ * {@link Decompressor} builds any events or attribute lists for
+ * them, and no path is compared more than once per element.  The
+ * tree and data streams must still be read in full, since neither
+ * can be decoded from the middle.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see GenericDecompressor
+ */
+public class Projection extends Decompressor
+{
+   /* One bit per path, but not all 64, which would be SELECTED. */
+   private static final int MAX_PATHS = 63;
+
+   private final String[][] paths;
+   private Decompressor dx;
+
+   /* For each open element (and one for the document, at the bottom)
+      a bit set of the paths it still matches; or SELECTED if it is in
+      a selected subtree, or 0 if it is skipped. */
+   private static final long SELECTED = -1L;
+   private long[] live = new long[16];
+   private int depth;
+   private boolean attr_p;
+
+   /**
+    * Selects the given paths.
+    * @throws IllegalArgumentException if there are too many paths,
+    * or one is empty.
+    */
+   public Projection(String... paths)
+   {
+      if(paths.length > MAX_PATHS) {
+         throw new IllegalArgumentException("too many paths");
+      }
+      this.paths = new String[paths.length][];
+      for(int i = 0;  i < paths.length;  i++) {
+         String p = paths[i];
+         if(p.startsWith("/")) p = p.substring(1);
+         if(p.length() == 0) {
+            throw new IllegalArgumentException("empty path");
+         }
+         this.paths[i] = p.split("/");
+      }
+   }
+
+   /**
+    * Sends what is selected to ‘dx’, which must be initialized
+    * separately.  Returns this object.
+    */
+   Projection to(Decompressor dx)
+   {
+      this.dx = dx;
+      eltStack.clear();
+      depth = 0;
+      attr_p = false;
+      live[0] = (1L << paths.length) - 1;
+      return this;
+   }
+
+   /* Which of the paths in ‘mask’ go on to match ‘e’ as element
+      number ‘d’ (from 0)?  If one ends there, ‘e’ is selected. */
+   private long step(long mask, int d, String e)
+   {
+      long next = 0;
+      for(int i = 0;  i < paths.length;  i++) {
+         if((mask & (1L << i)) == 0) continue;
+         String[] p = paths[i];
+         if(d < p.length && matches(e, p[d])) {
+            if(d == p.length-1) return SELECTED;
+            next |= 1L << i;
+         }
+      }
+      return next;
+   }
+
+   private static boolean matches(String label, String name)
+   {
+      return name.equals("*") || label.equals(name)
+         || label.endsWith(":"+name);
+   }
+
+   private final boolean selected()
+   {
+      return live[depth] == SELECTED;
+   }
+
+   protected void startElement(String e) throws SAXException
+   {
+      long parent = live[depth];
+      long mask = parent == SELECTED? SELECTED
+         : parent == 0? 0 : step(parent, depth, e);
+      if(++depth == live.length) {
+         live = Arrays.copyOf(live, 2*depth);
+      }
+      live[depth] = mask;
+      eltStack.push(e);
+      if(mask != 0) dx.startElement(e);
+   }
+
+   protected void addAttribute(String a)
+   {
+      if(attr_p) eltStack.pop();
+      attr_p = true;
+      eltStack.push('@'+a);
+      if(selected()) dx.addAttribute(a);
+   }
+
+   protected void chars(String s) throws SAXException
+   {
+      if(selected()) dx.chars(s);
+   }
+
+   protected void epsilon() throws SAXException
+   {
+      if(attr_p) {
+         eltStack.pop();
+         attr_p = false;
+         if(selected()) dx.epsilon();
+      }
+      else if(depth > 0) {
+         eltStack.pop();
+         if(live[depth--] != 0) dx.epsilon();
+      }
+      else {
+         dx.epsilon();          // end of document
+      }
+   }
+}
@@ -0,0 +1,81 @@
+package net.contrapunctus.rngzip;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import net.contrapunctus.rngzip.io.RNGZChunk;
+import net.contrapunctus.rngzip.io.RNGZRandomAccess;
+import net.contrapunctus.rngzip.util.BaliAutomaton;
+
+/**
+ * Decompresses single records from a chunked file, without decoding
+ * the rest of it.  Only the chunk that holds a record is read and
+ * decoded; the most recently used chunks are kept, so that extracting
+ * records near each other is cheap.  Each record is reported to the
+ * content handler as a document of its own.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see RNGZRandomAccess
+ */
+public class RecordExtractor
+{
+   private static final int CACHED_CHUNKS = 16;
+
+   private final BaliAutomaton au;
+   private final RNGZRandomAccess file;
+   private final Map<Integer, GenericDecompressor.Recorder> cache =
+      new LinkedHashMap<Integer, GenericDecompressor.Recorder>
+      (CACHED_CHUNKS, 0.75f, true) {
+         protected boolean removeEldestEntry
+            (Map.Entry<Integer, GenericDecompressor.Recorder> e)
+         {
+            return size() > CACHED_CHUNKS;
+         }
+      };
+
+   public RecordExtractor(BaliAutomaton au, RNGZRandomAccess file)
+   {
+      this.au = au;
+      this.file = file;
+   }
+
+   /**
+    * Reports the record numbered ‘record’ (counting from zero) to
+    * ‘h’, as a document.
+    * @throws IndexOutOfBoundsException if there is no such record.
+    */
+   public void extract(long record, ContentHandler h)
+      throws IOException, SAXException
+   {
+      int k = file.chunkOf(record);
+      GenericDecompressor.Recorder r = cache.get(k);
+      if(r == null) {
+         RNGZChunk c = file.readChunk(k);
+         r = GenericDecompressor.decodeChunk(au, file.openChunk(c), c);
+         cache.put(k, r);
+      }
+      Decompressor dx = new Decompressor() { };
+      dx.initialize(h);
+      int i = (int) (record - file.getFirstRecord(k));
+      if(!r.replayRecord(i, file.getSettings().getChunkElement(), dx)) {
+         throw new IOException("record "+record+" not found in chunk "+k);
+      }
+      dx.epsilon();             // end of document
+   }
+
+   /**
+    * Returns the numbers of the records where ‘value’ was found at
+    * the index key ‘key’.
+    * @see RNGZRandomAccess#lookup
+    */
+   public long[] find(String key, String value)
+   {
+      return file.lookup(key, value);
+   }
+}
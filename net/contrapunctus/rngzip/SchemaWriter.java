@@ -0,0 +1,431 @@
+package net.contrapunctus.rngzip;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import net.contrapunctus.rngzip.util.BaliAutomaton;
+
+/**
+ * Writes the Java source of a {@link CompiledSchema} for one
+ * automaton, much as Bali's <code>JavaWriter</code> writes a
+ * validatelet.  Run it on the schemas you compress against most,
+ * when building, and compile its output with the rest of the
+ * package:
+ *
+ * <pre>    java net.contrapunctus.rngzip.SchemaWriter DIR SCHEMA.rng...</pre>
+ *
+ * <p>writes <code>DIR/net/contrapunctus/rngzip/Schema_XXXXXXXX.java</code>
+ * for each schema.  (The <code>compiled-schemata</code> target of the
+ * Makefile does both steps.)  The generated decoder is one
+ * <code>switch</code> over the states, in which each state reads its
+ * choice, if it has one, and each choice reports its element name,
+ * attribute name, or value as a string constant and pushes its
+ * successors as integer constants.  The compressor's value matching
+ * and attribute tracing become switches too, with the values to
+ * compare against inlined.  Element dispatch in the compressor is
+ * already a table lookup by name code, and name codes are assigned
+ * when the schema is loaded, so that is left as it is.
+ *
+ * <p>The JIT does not compile methods much larger than 8000 bytes of
+ * bytecode, so the states are split among methods, sixteen to a
+ * method, and a state with many transitions gets a method of its
+ * own.  A state with so many that its method might pass the 64K
+ * limit is left to the tables.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see CompiledSchema
+ */
+public class SchemaWriter
+{
+   private static final int GROUP_BITS = 4;
+   private static final int INLINE_TRANSITIONS = 16;
+   private static final int MAX_TRANSITIONS = 1000;
+
+   private static final String DECODE_PARAMS =
+      "GenericDecompressor.Walker w, Decompressor dx";
+   private static final String DECODE_THROWS =
+      "throws IOException, SAXException";
+
+   private final BaliAutomaton au;
+   private final String className;
+   private PrintWriter out;
+
+   /**
+    * Prepares to write the code for ‘au’.
+    * @throws IOException if ‘au’ has interleave or list transitions,
+    * which the coders do not support.
+    */
+   public SchemaWriter(BaliAutomaton au) throws IOException
+   {
+      this.au = au;
+      String name = CompiledSchema.className(au);
+      className = name.substring(name.lastIndexOf('.') + 1);
+      for(int i = 0;  i < au.countStates();  i++) {
+         for(int j = 0;  j < au.countTransitions(i);  j++) {
+            if(au.kindOf(i, j) == BaliAutomaton.OTHER) {
+               throw new IOException
+                  (au.getURL() + ": interleave and list are not supported");
+            }
+         }
+      }
+   }
+
+   /**
+    * Returns the name of the generated class, without its package.
+    */
+   public String getClassName()
+   {
+      return className;
+   }
+
+   /**
+    * Writes the source into the package directories under ‘dir’,
+    * creating them if necessary, and returns the file written.
+    */
+   public File write(File dir) throws IOException
+   {
+      File pkg = new File(dir, "net/contrapunctus/rngzip");
+      if(!pkg.isDirectory() && !pkg.mkdirs()) {
+         throw new IOException("cannot create " + pkg);
+      }
+      File f = new File(pkg, className + ".java");
+      Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+      try {
+         write(w);
+      }
+      finally {
+         w.close();
+      }
+      return f;
+   }
+
+   /**
+    * Writes the source to ‘w’.
+    */
+   public void write(Writer w) throws IOException
+   {
+      out = new PrintWriter(w);
+      out.printf("/* Written by SchemaWriter from %s;%n", au.getURL());
+      out.printf("   do not edit. */%n%n");
+      out.printf("package net.contrapunctus.rngzip;%n%n");
+      out.printf("import java.io.IOException;%n");
+      out.printf("import org.xml.sax.SAXException;%n%n");
+      out.printf("final class %s extends CompiledSchema%n{%n", className);
+      out.printf("   protected long fingerprint()%n   {%n");
+      out.printf("      return 0x%08xL;%n   }%n",
+                 CompiledSchema.fingerprint(au));
+      writeDecode();
+      writeMatchChars();
+      writeTraceAttributes();
+      out.printf("}%n");
+      out.flush();
+      if(out.checkError()) {
+         throw new IOException("error writing " + className);
+      }
+   }
+
+   /* One of the three switches that are written.  A state with no
+      case costs nothing, and does nothing. */
+   private abstract class Switch
+   {
+      final String name, params, args, throwsClause;
+      Switch(String name, String params, String args, String throwsClause)
+      {
+         this.name = name;
+         this.params = params;
+         this.args = args;
+         this.throwsClause = throwsClause;
+      }
+      /* The number of transitions from ‘s’ that need code, or 0 if
+         ‘s’ needs no case at all. */
+      abstract int cost(int s);
+      /* The statements of the case for ‘s’, which falls through to a
+         break. */
+      abstract void writeCase(int s, String ind);
+      /* The statement that does the same by interpreting the tables. */
+      abstract String fallback();
+   }
+
+   /* Whether any state in group ‘g’ needs a case. */
+   private boolean hasCases(Switch sw, int g)
+   {
+      int hi = Math.min(au.countStates(), (g+1) << GROUP_BITS);
+      for(int s = g << GROUP_BITS;  s < hi;  s++) {
+         if(sw.cost(s) > 0) return true;
+      }
+      return false;
+   }
+
+   private int countGroups()
+   {
+      return (au.countStates() + (1 << GROUP_BITS) - 1) >>> GROUP_BITS;
+   }
+
+   /* Writes a method for each group of states that needs one, and
+      for each large state. */
+   private void writeGroupMethods(Switch sw)
+   {
+      String throwsLine = sw.throwsClause == null?
+         "" : String.format("      %s%n", sw.throwsClause);
+      for(int g = 0;  g < countGroups();  g++) {
+         if(!hasCases(sw, g)) continue;
+         out.printf("%n   private static void %s%d%n      (int s, %s)%n%s",
+                    sw.name, g, sw.params, throwsLine);
+         out.printf("   {%n      switch(s) {%n");
+         int hi = Math.min(au.countStates(), (g+1) << GROUP_BITS);
+         for(int s = g << GROUP_BITS;  s < hi;  s++) {
+            int c = sw.cost(s);
+            if(c == 0) continue;
+            out.printf("      case %d:%n", s);
+            if(c > MAX_TRANSITIONS) {
+               out.printf("         %s;%n", sw.fallback());
+            }
+            else if(c > INLINE_TRANSITIONS) {
+               out.printf("         %s%dState(%s);%n",
+                          sw.name, s, sw.args.substring(3));
+            }
+            else {
+               sw.writeCase(s, "         ");
+            }
+            out.printf("         break;%n");
+         }
+         out.printf("      }%n   }%n");
+      }
+      for(int s = 0;  s < au.countStates();  s++) {
+         int c = sw.cost(s);
+         if(c <= INLINE_TRANSITIONS || c > MAX_TRANSITIONS) continue;
+         out.printf("%n   private static void %s%dState%n      (%s)%n%s   {%n",
+                    sw.name, s, sw.params, throwsLine);
+         sw.writeCase(s, "      ");
+         out.printf("   }%n");
+      }
+   }
+
+   /* Writes the cases of the switch on the group, at ‘ind’. */
+   private void writeGroupCases(Switch sw, String ind)
+   {
+      for(int g = 0;  g < countGroups();  g++) {
+         if(hasCases(sw, g)) {
+            out.printf("%scase %d: %s%d(%s); break;%n",
+                       ind, g, sw.name, g, sw.args);
+         }
+      }
+   }
+
+   private void writeDecode()
+   {
+      Switch sw = new Switch("decode", DECODE_PARAMS, "s, w, dx",
+                             DECODE_THROWS) {
+         int cost(int s)
+         {
+            return au.isNull(s)? 0 : Math.max(1, au.countTransitions(s));
+         }
+         void writeCase(int s, String ind)
+         {
+            writeDecodeState(s, ind);
+         }
+         String fallback()
+         {
+            return "w.step(s, dx)";
+         }
+      };
+      writeGroupMethods(sw);
+      out.printf("%n   void decode(%s)%n      %s%n   {%n",
+                 DECODE_PARAMS, DECODE_THROWS);
+      out.printf("      while(!w.done()) {%n");
+      out.printf("         int s = w.pop();%n");
+      out.printf("         switch(s >>> %d) {%n", GROUP_BITS);
+      writeGroupCases(sw, "         ");
+      out.printf("         }%n      }%n   }%n");
+   }
+
+   private void writeMatchChars()
+   {
+      Switch sw = new Switch("matchChars",
+                             "GenericCompressor.CharMatcher m", "s, m",
+                             null) {
+         int cost(int s)
+         {
+            int c = 0;
+            for(int j = 0;  j < au.countTransitions(s);  j++) {
+               int k = au.kindOf(s, j);
+               if(k == BaliAutomaton.DATA || k == BaliAutomaton.VALUE) c++;
+            }
+            return c;
+         }
+         void writeCase(int s, String ind)
+         {
+            for(int j = 0;  j < au.countTransitions(s);  j++) {
+               switch(au.kindOf(s, j)) {
+               case BaliAutomaton.DATA:
+                  out.printf("%sm.tryData(%d);%n", ind, j);
+                  break;
+               case BaliAutomaton.VALUE:
+                  out.printf("%sm.tryValue(%d, %s);%n",
+                             ind, j, literal(au.labelOf(s, j)));
+                  break;
+               }
+            }
+         }
+         String fallback()
+         {
+            return "m.runTables()";
+         }
+      };
+      writeGroupMethods(sw);
+      out.printf("%n   void matchChars(int s, %s)%n   {%n", sw.params);
+      out.printf("      switch(s >>> %d) {%n", GROUP_BITS);
+      writeGroupCases(sw, "      ");
+      out.printf("      }%n   }%n");
+   }
+
+   private void writeTraceAttributes()
+   {
+      Switch sw = new Switch("traceAttributes",
+                             "GenericCompressor.AttributeTracer t", "s, t",
+                             null) {
+         int cost(int s)
+         {
+            int c = 0;
+            for(int j = 0;  j < au.countTransitions(s);  j++) {
+               if(au.kindOf(s, j) != BaliAutomaton.ELEMENT) c++;
+            }
+            return c;
+         }
+         void writeCase(int s, String ind)
+         {
+            for(int j = 0;  j < au.countTransitions(s);  j++) {
+               switch(au.kindOf(s, j)) {
+               case BaliAutomaton.ATTRIBUTE:
+                  out.printf("%st.tryAttribute(%d);%n", ind, j);
+                  break;
+               case BaliAutomaton.NON_EXISTENT_ATTRIBUTE:
+                  out.printf("%st.tryNonExistent(%d);%n", ind, j);
+                  break;
+               case BaliAutomaton.DATA:
+                  out.printf("%st.tryData(%d);%n", ind, j);
+                  break;
+               case BaliAutomaton.VALUE:
+                  out.printf("%st.tryValue(%d, %s);%n",
+                             ind, j, literal(au.labelOf(s, j)));
+                  break;
+               }
+            }
+         }
+         String fallback()
+         {
+            return "t.runTables()";
+         }
+      };
+      writeGroupMethods(sw);
+      out.printf("%n   void traceAttributes(int s, %s)%n   {%n", sw.params);
+      out.printf("      switch(s >>> %d) {%n", GROUP_BITS);
+      writeGroupCases(sw, "      ");
+      out.printf("      }%n   }%n");
+   }
+   /* The case for state ‘s’ of the decoder, as in Walker.step. */
+   private void writeDecodeState(int s, String ind)
+   {
+      int m = au.countTransitions(s), n = au.countChoices(s);
+      if(m == 0) {
+         out.printf("%sdx.epsilon();%n", ind);
+      }
+      else if(n == 1) {
+         writeDecodeTransition(s, 0, ind);
+      }
+      else {
+         out.printf("%sswitch(w.choose(%d, %d)) {%n", ind, s, n);
+         for(int j = 0;  j < m;  j++) {
+            out.printf("%scase %d:%n", ind, j);
+            writeDecodeTransition(s, j, ind + "   ");
+            out.printf("%s   break;%n", ind);
+         }
+         if(au.isFinal(s)) {
+            out.printf("%scase %d:%n%s   dx.epsilon();%n%s   break;%n",
+                       ind, m, ind, ind);
+         }
+         out.printf("%s}%n", ind);
+      }
+   }
+
+   private void writeDecodeTransition(int s, int j, String ind)
+   {
+      switch(au.kindOf(s, j)) {
+      case BaliAutomaton.ELEMENT:
+         out.printf("%sdx.startElement(%s);%n", ind, literal(au.labelOf(s, j)));
+         break;
+      case BaliAutomaton.ATTRIBUTE:
+         out.printf("%sdx.addAttribute(%s);%n", ind, literal(au.labelOf(s, j)));
+         break;
+      case BaliAutomaton.DATA:
+         out.printf("%sdx.chars(w.content(dx, %d));%n", ind, au.datatypeOf(s));
+         break;
+      case BaliAutomaton.VALUE:
+         out.printf("%sdx.chars(%s);%n", ind,
+                    literal(au.labelOf(s, j).trim()));
+         break;
+      }
+      out.printf("%sw.push(%d);%n", ind, au.siblingOf(s, j));
+      int k = au.childOf(s, j);
+      if(k >= 0) {
+         out.printf("%sw.push(%d);%n", ind, k);
+      }
+   }
+
+   /* Quotes ‘s’ as a Java string literal.  Control characters are
+      written in octal, since a \\u escape of a line break would end
+      the line before the compiler saw the string. */
+   static String literal(String s)
+   {
+      StringBuilder b = new StringBuilder(s.length() + 2);
+      b.append('"');
+      for(int i = 0;  i < s.length();  i++) {
+         char c = s.charAt(i);
+         switch(c) {
+         case '"':  b.append("\\\""); break;
+         case '\\': b.append("\\\\"); break;
+         case '\n': b.append("\\n"); break;
+         case '\r': b.append("\\r"); break;
+         case '\t': b.append("\\t"); break;
+         default:
+            if(c < 0x20) {
+               b.append(String.format("\\%03o", (int) c));
+            }
+            else if(c > 0x7e) {
+               b.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+               b.append(c);
+            }
+         }
+      }
+      b.append('"');
+      return b.toString();
+   }
+
+   /**
+    * Writes the source for each schema named on the command line
+    * into the directory given first, and prints the name of each
+    * file written.
+    */
+   public static void main(String[] args) throws IOException
+   {
+      if(args.length < 2) {
+         System.err.println("usage: SchemaWriter DIR SCHEMA.rng...");
+         System.exit(1);
+      }
+      File dir = new File(args[0]);
+      for(int i = 1;  i < args.length;  i++) {
+         BaliAutomaton au = BaliAutomaton.fromRNG(new File(args[i]));
+         File f = new SchemaWriter(au).write(dir);
+         System.out.printf("%s: %s%n", args[i], f);
+      }
+   }
+}
@@ -2,7 +2,6 @@ package net.contrapunctus.rngzip;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Map;
 import java.io.PrintWriter;
 import net.contrapunctus.rngzip.io.ChoiceEncoder;
 import net.contrapunctus.rngzip.io.RNGZOutputInterface;
@@ -40,14 +39,14 @@ public class SequentialStates extends CompositeState
       return this;
    }
 
-   public CompositeState start(int elt, Map<Integer,String> att) 
+   public CompositeState start(int elt, AttributeTable att) 
       throws IOException
    {
       stack.start(this, elt);
       return next().attrs(att);
    }
 
-   protected CompositeState attrs(Map<Integer,String> att)
+   protected CompositeState attrs(AttributeTable att)
       throws IOException
    {
       if(stack.attrs(this, att)) {
@@ -65,7 +64,7 @@ public class SequentialStates extends CompositeState
       return next();
    }
    
-   public CompositeState end(Map<Integer,String> att) throws IOException
+   public CompositeState end(AttributeTable att) throws IOException
    {
       stack.end(this);
       if(att != null) {
@@ -103,6 +102,23 @@ public class SequentialStates extends CompositeState
       return that;
    }
 
+   /* Returns the automaton states on the stack, bottom first, or
+      null if the stack cannot be described that way: while there
+      are alternatives, or while in the middle of an attribute. */
+   int[] snapshot()
+   {
+      if(para != null) return null;
+      int n = 0;
+      for(SingletonState s = stack;  s != null;  s = s.next) n++;
+      int[] ids = new int[n];
+      for(SingletonState s = stack;  s != null;  s = s.next) {
+         int id = s.stateID();
+         if(id < 0) return null;
+         ids[--n] = id;
+      }
+      return ids;
+   }
+
    public CompositeState next()
    {
       if(para == null) return this;
@@ -134,6 +150,12 @@ public class SequentialStates extends CompositeState
    {
       out.writeContent(path, buf, start, length);
    }
+
+   public void writeContent(List<String> path, int type, String dat)
+      throws IOException
+   {
+      out.writeContent(path, type, dat);
+   }
    
    public void close() throws IOException
    {
@@ -1,19 +1,25 @@
 package net.contrapunctus.rngzip;
 
 import java.io.IOException;
-import java.util.Map;
 
 public abstract class SingletonState
 {
    SingletonState next;
 
+   /* The automaton state this represents, if it can be resumed from
+      just that number; otherwise -1.  See SequentialStates.snapshot. */
+   int stateID()
+   {
+      return -1;
+   }
+
    public void start (SequentialStates st, int elt)
       throws IOException
    {
       die("not expecting <"+elt+">");
    }
 
-   public boolean attrs (SequentialStates st, Map<Integer,String> att)
+   public boolean attrs (SequentialStates st, AttributeTable att)
       throws IOException
    {
       return false;
@@ -52,24 +58,26 @@ public abstract class SingletonState
       die("unexpected attribute @#"+a);
    }
 
-   protected final void noAttrs(Map<Integer,String> att)
+   protected final void noAttrs(AttributeTable att)
    {
-      for(Integer k : att.keySet()) {
-         dieAttr(k);
+      for(int i = 0;  i < att.size();  i++) {
+         dieAttr(att.code(i));
       }
    }
    
-   protected final void noAttrsExcept(Map<Integer,String> att, int a1)
+   protected final void noAttrsExcept(AttributeTable att, int a1)
    {
-      for(Integer k : att.keySet()) {
+      for(int i = 0;  i < att.size();  i++) {
+         int k = att.code(i);
          if(k == a1) ;
          else dieAttr(k);
       }
    }
    
-   protected final void noAttrsExcept(Map<Integer,String> att, int a1, int a2)
+   protected final void noAttrsExcept(AttributeTable att, int a1, int a2)
    {
-      for(Integer k : att.keySet()) {
+      for(int i = 0;  i < att.size();  i++) {
+         int k = att.code(i);
          if(k == a1) ;
          else if(k == a2) ;
          else dieAttr(k);
@@ -1,10 +1,12 @@
 package net.contrapunctus.rngzip;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.io.IOException;
 import java.io.PrintStream;
 import net.contrapunctus.rngzip.io.ChoiceEncoder;
 import net.contrapunctus.rngzip.io.RNGZOutputInterface;
+import net.contrapunctus.rngzip.util.TypedValues;
 
 class TentativeOutput
    implements RNGZOutputInterface,
@@ -76,13 +78,19 @@ class TentativeOutput
    }
    
    public void writeContent(List<String> path, String s) throws IOException
+   {
+      writeContent(path, TypedValues.STRING, s);
+   }
+
+   public void writeContent(List<String> path, int type, String s)
+      throws IOException
    {
       assert invariants();
       if(tentative) {
-         history = new ContentStrEvent(path, s, history);
+         history = new ContentStrEvent(path, type, s, history);
       }
       else {
-         out.writeContent(path, s);
+         out.writeContent(path, type, s);
       }
    }
 
@@ -158,17 +166,20 @@ class TentativeOutput
    private class ContentStrEvent extends Event
    {
       private List<String> path;
+      private int type;
       private String str;
-      private ContentStrEvent(List<String> path, String str, Event prev)
+      private ContentStrEvent(List<String> path, int type, String str,
+                              Event prev)
       {
          super(prev);
-         this.path = path;
+         this.path = new ArrayList<String>(path);
+         this.type = type;
          this.str = str;
          magnitude += str.length();
       }
       protected void playback(RNGZOutputInterface out) throws IOException
       {
-         out.writeContent(path, str);
+         out.writeContent(path, type, str);
       }
    }
 
@@ -181,9 +192,12 @@ class TentativeOutput
                            int start, int length, Event prev)
       {
          super(prev);
-         this.path = path;
-         this.buf = buf;
-         this.start = start;
+         /* The compressor reuses its path stack, and the parser
+            reuses its buffer, so keep copies of both. */
+         this.path = new ArrayList<String>(path);
+         this.buf = new char[length];
+         System.arraycopy(buf, start, this.buf, 0, length);
+         this.start = 0;
          this.length = length;
          magnitude += length;
       }
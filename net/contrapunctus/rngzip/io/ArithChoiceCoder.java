@@ -0,0 +1,129 @@
+package net.contrapunctus.rngzip.io;
+
+import com.colloquial.arithcode.ArithDecoder;
+import java.io.IOException;
+import java.util.Arrays;
+import net.contrapunctus.rngzip.util.BitInputStream;
+import net.contrapunctus.rngzip.util.BitOutputStream;
+
+/**
+ * This class represents choice points in an automaton using
+ * arithmetic coding, with an adaptive frequency table for each
+ * choice point.  All the choice points share one arithmetic coder,
+ * which belongs to the bit stream; see {@link
+ * BitOutputStream#arithEncoder}.  Unlike the Huffman coder, this one
+ * can spend a small fraction of a bit on a choice that is nearly
+ * always the same (such as whether a list has another item), and it
+ * works as well for two choices as for many.  Its output is also
+ * already compressed, so it needs no tree compressor after it.
+ *
+ * <p>Every choice starts with a count of one; each time a choice is
+ * taken, its count goes up by 32.  When the total passes
+ * 2<sup>16</sup> (or four times the number of choices, if that is
+ * more), all the counts are halved, so that the table follows
+ * changes in the document.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see ArithChoiceFactory
+ */
+public final class ArithChoiceCoder implements ChoiceCoder
+{
+   private static final int INCREMENT = 32;
+   private static final int MAX_TOTAL = 1 << 16;
+   /* The coder works to 27 bits, and needs totals under 2^25. */
+   private static final int MAX_LIMIT = 1 << 22;
+
+   private final int limit, maxTotal;
+   private final Object id;
+   private final int[] counts;
+   private int total;
+
+   /**
+    * Construct an arithmetic coder for a choice point with ‘limit’
+    * possible choices.
+    *
+    * @param limit the number of choices at this choice point, which
+    * must be greater than 1.
+    *
+    * @param id this object is just used to represent the choice point
+    * for debugging purposes—it may be null.  If non-null, only its
+    * ‘toString’ method will be called.
+    *
+    * @throws IllegalArgumentException if ‘limit’ is not greater than
+    * 1, or is more than 2<sup>22</sup>.
+    */
+   public ArithChoiceCoder(int limit, Object id)
+   {
+      if(limit < 2 || limit > MAX_LIMIT) {
+         throw new IllegalArgumentException("limit range");
+      }
+      this.limit = limit;
+      this.maxTotal = Math.max(MAX_TOTAL, 4 * limit);
+      this.id = id;
+      counts = new int[limit];
+      Arrays.fill(counts, 1);
+      total = limit;
+   }
+
+   public void encode(int choice, BitOutputStream bo)
+      throws IOException
+   {
+      if(bo == null)
+         throw new IllegalArgumentException("bo cannot be null");
+      if(choice < 0 || choice >= limit)
+         throw new IndexOutOfBoundsException
+            ("Choice "+choice+" is out of bounds for choice point "+this);
+      int low = 0;
+      for(int i = 0;  i < choice;  i++) {
+         low += counts[i];
+      }
+      bo.arithEncoder().encode(low, low + counts[choice], total);
+      tick(choice);
+   }
+
+   public int decode(BitInputStream bi) throws IOException
+   {
+      if(bi == null)
+         throw new IllegalArgumentException("bi cannot be null");
+      ArithDecoder ad = bi.arithDecoder();
+      int target = ad.getCurrentSymbolCount(total);
+      int ch = 0, low = 0;
+      while(ch < limit && low + counts[ch] <= target) {
+         low += counts[ch++];
+      }
+      if(ch == limit || target < 0) {
+         throw new RNGZFormatException
+            ("input stream produced invalid choice at "+this);
+      }
+      ad.removeSymbolFromStream(low, low + counts[ch], total);
+      tick(ch);
+      return ch;
+   }
+
+   private void tick(int choice)
+   {
+      counts[choice] += INCREMENT;
+      total += INCREMENT;
+      if(total > maxTotal) {
+         total = 0;
+         for(int i = 0;  i < limit;  i++) {
+            counts[i] = (counts[i] + 1) / 2;
+            total += counts[i];
+         }
+      }
+   }
+
+   /**
+    * Identifies this choice point using the ‘id’ object provided to
+    * the constructor (if it was non-null).
+    */
+   public String toString()
+   {
+      if(id == null) return super.toString();
+      else return id.toString();
+   }
+}
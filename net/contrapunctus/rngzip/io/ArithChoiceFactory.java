@@ -0,0 +1,32 @@
+package net.contrapunctus.rngzip.io;
+
+/**
+ * This class creates encoders and decoders that use arithmetic
+ * coding.  The choices at all the choice points are coded together,
+ * by one arithmetic coder on the bit stream, so a stream written with
+ * these encoders should not be written with any others.
+ * 
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ * 
+ * @author Christopher League
+ * @see ArithChoiceCoder
+ */
+public class ArithChoiceFactory 
+  implements ChoiceEncoderFactory, ChoiceDecoderFactory
+{
+   public ChoiceEncoder makeChoiceEncoder(int limit, Object id)
+   {
+      if(limit < 1) throw new IllegalArgumentException("limit < 1");
+      else if(limit == 1) return TrivialChoiceCoder.instance;
+      else return new ArithChoiceCoder(limit, id);
+   }
+   
+   public ChoiceDecoder makeChoiceDecoder(int limit, Object id)
+   {
+      if(limit < 1) throw new IllegalArgumentException("limit < 1");
+      else if(limit == 1) return TrivialChoiceCoder.instance;
+      else return new ArithChoiceCoder(limit, id);
+   }
+}
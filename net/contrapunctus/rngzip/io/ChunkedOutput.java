@@ -0,0 +1,61 @@
+package net.contrapunctus.rngzip.io;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An output interface that can split the document into independently
+ * coded chunks.  Only the compressor knows when the document is at a
+ * point where it may be split, so it asks the output which element to
+ * split at, and then tells it where each chunk ends.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see RNGZChunk
+ */
+public interface ChunkedOutput
+{
+   /**
+    * Returns the name of the element at which to split the document,
+    * or null if this output is not chunked.
+    */
+   String getChunkElement();
+
+   /**
+    * Returns the number of chunk elements that should go in each
+    * chunk.
+    */
+   int getChunkRecords();
+
+   /**
+    * Returns the key paths whose values should be indexed, each the
+    * name of an element or (with a leading ‘@’) an attribute within
+    * a chunk element.
+    */
+   String[] getIndexKeys();
+
+   /**
+    * Notes that ‘value’ was found at the key path ‘key’ within the
+    * chunk element numbered ‘record’ (counting from zero over the
+    * whole document).
+    */
+   void indexKey(String key, String value, long record);
+
+   /**
+    * Ends the current chunk and starts a new one, or if ‘stack’ is
+    * null, ends the last chunk.
+    * @param records the number of chunk elements in the chunk.
+    * @param depth the number of open elements.
+    * @param closes the number of elements, since the start of the
+    * chunk, whose end left exactly ‘depth’ elements open.
+    * @param stack the automaton states on the stack, bottom first, or
+    * null at the end of the document.
+    * @param path the names of the open elements, outermost first.
+    */
+   void endChunk(int records, int depth, int closes, int[] stack,
+                 List<String> path)
+      throws IOException;
+}
@@ -0,0 +1,94 @@
+package net.contrapunctus.rngzip.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import net.contrapunctus.rngzip.util.ContextualInputStream;
+import net.contrapunctus.rngzip.util.MultiplexBlockRep;
+import net.contrapunctus.rngzip.util.MultiplexInputStream;
+import net.contrapunctus.rngzip.util.PathKey;
+
+/**
+ * Reads content written by a {@link ContainerOutputStream}.  Paths
+ * are assigned to containers in the order they first appear, just as
+ * they were when compressing.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ */
+final class ContainerInputStream implements ContextualInputStream
+{
+   private final MultiplexInputStream mux;
+   private final RNGZSettings settings;
+   private final ContextualInputStream overflow;
+   private int next;
+
+   private final HashMap<List<String>, Entry> byPath =
+      new HashMap<List<String>, Entry>();
+   private final HashMap<String, ContextualInputStream> byKey =
+      new HashMap<String, ContextualInputStream>();
+   private Entry last;
+
+   private static final class Entry
+   {
+      final List<String> path;
+      final ContextualInputStream in;
+      Entry(List<String> path, ContextualInputStream in)
+      {
+         this.path = path;
+         this.in = in;
+      }
+   }
+
+   /**
+    * Containers are read from ‘mux’, from stream ‘first’ up.
+    */
+   ContainerInputStream(MultiplexInputStream mux, RNGZSettings settings,
+                        ContextualInputStream overflow, int first)
+   {
+      this.mux = mux;
+      this.settings = settings;
+      this.overflow = overflow;
+      this.next = first;
+   }
+
+   private ContextualInputStream container(List<String> path)
+      throws IOException
+   {
+      if(path == null) return overflow;
+      if(last != null && path.equals(last.path)) return last.in;
+      Entry e = byPath.get(path);
+      if(e == null) {
+         String k = PathKey.of(path);
+         ContextualInputStream c = byKey.get(k);
+         if(c == null) {
+            c = next < MultiplexBlockRep.MAX_STREAM_ID?
+               settings.newDataInput(mux, next++) : overflow;
+            byKey.put(k, c);
+         }
+         e = new Entry(new ArrayList<String>(path), c);
+         byPath.put(e.path, e);
+      }
+      last = e;
+      return e.in;
+   }
+
+   public long readLong(List<String> path) throws IOException
+   {
+      return container(path).readLong(path);
+   }
+
+   public String readUTF(List<String> path) throws IOException
+   {
+      return container(path).readUTF(path);
+   }
+
+   public String readTyped(List<String> path, int type) throws IOException
+   {
+      return container(path).readTyped(path, type);
+   }
+}
@@ -0,0 +1,163 @@
+package net.contrapunctus.rngzip.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import net.contrapunctus.rngzip.util.ContextualOutputStream;
+import net.contrapunctus.rngzip.util.MultiplexBlockRep;
+import net.contrapunctus.rngzip.util.MultiplexOutputStream;
+import net.contrapunctus.rngzip.util.OutputStreamFilter;
+import net.contrapunctus.rngzip.util.PathKey;
+
+/**
+ * A data stream that keeps the content of each path in its own
+ * container, in the style of XMill.  Each distinct path of element
+ * names (ending with an ‘@’ name for attribute values) gets its own
+ * embedded stream of a multiplex stream, with its own compressor, so
+ * that similar strings are compressed together.  Containers are
+ * numbered in the order their paths first appear, which the decoder
+ * can reproduce, so it needs no map.  Still, the map is written out
+ * on close, so that tools can tell which stream holds which path.
+ * When the stream IDs run out, the remaining paths share the
+ * overflow stream, which also gets anything written without a path.
+ *
+ * <p>Paths are compared by local names, so that the qualified names
+ * seen by the compressor match the names in the schema seen by the
+ * decompressor.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see ContainerInputStream
+ * @see RNGZSettings#setContainers
+ */
+final class ContainerOutputStream implements ContextualOutputStream
+{
+   private final MultiplexOutputStream mux;
+   private final boolean close_p;
+   private final RNGZSettings settings;
+   private final ContextualOutputStream overflow;
+   private final int mapStream;
+   private int next;
+
+   /* Containers by the paths as given (which the compressor reuses,
+      so each entry keeps a copy), and by key, with the keys in
+      order. */
+   private final HashMap<List<String>, Entry> byPath =
+      new HashMap<List<String>, Entry>();
+   private final HashMap<String, ContextualOutputStream> byKey =
+      new HashMap<String, ContextualOutputStream>();
+   private final ArrayList<String> keys = new ArrayList<String>();
+   private Entry last;
+
+   private static final class Entry
+   {
+      final List<String> path;
+      final ContextualOutputStream out;
+      Entry(List<String> path, ContextualOutputStream out)
+      {
+         this.path = path;
+         this.out = out;
+      }
+   }
+
+   /**
+    * Containers go on ‘mux’, from stream ‘first’ up; the map goes
+    * on ‘mapStream’.  If ‘close_p’ is true, closing this stream also
+    * closes ‘mux’.
+    */
+   ContainerOutputStream(MultiplexOutputStream mux, boolean close_p,
+                         RNGZSettings settings,
+                         ContextualOutputStream overflow,
+                         int mapStream, int first)
+   {
+      this.mux = mux;
+      this.close_p = close_p;
+      this.settings = settings;
+      this.overflow = overflow;
+      this.mapStream = mapStream;
+      this.next = first;
+   }
+
+   private ContextualOutputStream container(List<String> path)
+      throws IOException
+   {
+      if(path == null) return overflow;
+      if(last != null && path.equals(last.path)) return last.out;
+      Entry e = byPath.get(path);
+      if(e == null) {
+         String k = PathKey.of(path);
+         ContextualOutputStream c = byKey.get(k);
+         if(c == null) {
+            if(next < MultiplexBlockRep.MAX_STREAM_ID) {
+               c = settings.newDataOutput(mux, next++, false);
+               keys.add(k);
+            }
+            else {
+               c = overflow;
+            }
+            byKey.put(k, c);
+         }
+         e = new Entry(new ArrayList<String>(path), c);
+         byPath.put(e.path, e);
+      }
+      last = e;
+      return e.out;
+   }
+
+   public void writeLong(List<String> path, long lo) throws IOException
+   {
+      container(path).writeLong(path, lo);
+   }
+
+   public void writeUTF(List<String> path, String st) throws IOException
+   {
+      container(path).writeUTF(path, st);
+   }
+
+   public void writeTyped(List<String> path, int type, String st)
+      throws IOException
+   {
+      container(path).writeTyped(path, type, st);
+   }
+
+   public void flush() throws IOException
+   {
+      overflow.flush();
+      for(String k : keys) {
+         byKey.get(k).flush();
+      }
+   }
+
+   /* The map gives the number of containers, then the path key of
+      each, in the order of their stream IDs. */
+   private void writeMap() throws IOException
+   {
+      DataOutputStream out = mux.open
+         (mapStream, new OutputStreamFilter<DataOutputStream>() {
+            public DataOutputStream wrap(OutputStream out) {
+               return new DataOutputStream(out);
+            }
+         });
+      out.writeInt(keys.size());
+      for(String k : keys) {
+         out.writeUTF(k);
+      }
+   }
+
+   /**
+    * Writes the map.  The containers are closed along with the
+    * multiplex stream; so if ‘close_p’ was false, the caller must
+    * close that.
+    */
+   public void close() throws IOException
+   {
+      writeMap();
+      if(close_p) mux.close();
+   }
+}
@@ -0,0 +1,251 @@
+package net.contrapunctus.rngzip.io;
+
+import com.colloquial.arithcode.ArithDecoder;
+import com.colloquial.arithcode.ArithEncoder;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import net.contrapunctus.rngzip.util.BitInputStream;
+import net.contrapunctus.rngzip.util.BitOutputStream;
+import net.contrapunctus.rngzip.util.ChoiceHistory;
+
+/**
+ * This class represents choice points using arithmetic coding, like
+ * {@link ArithChoiceCoder}, but it predicts each choice from a small
+ * context instead of from this choice point's history alone.  The
+ * context is the choice point coded just before this one on the bit
+ * stream and the choice taken there (usually the parent's content
+ * model, or the previous sibling's), the previous choice made at
+ * this choice point, and how many times in a row that choice has
+ * been made here (so, in a list, roughly the sibling index, up to
+ * three).  When the same content model is reused in different
+ * places, each place gets its own statistics.
+ *
+ * <p>Each context has its own frequency table, which starts out
+ * empty.  A choice that has not yet been seen in the context is
+ * coded as an escape, followed by the choice from the table for the
+ * whole choice point (as in {@link ArithChoiceCoder}), leaving out
+ * the choices the context has already seen.  Choice points are
+ * numbered with the hash code of their ‘id’, so the encoder and
+ * decoder must be given equal ids.  A choice point keeps at most
+ * 1024 contexts; after that, new contexts just use its own table.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see ContextChoiceFactory
+ */
+public final class ContextChoiceCoder implements ChoiceCoder
+{
+   private static final int INCREMENT = 32;
+   private static final int ESCAPE = 16;
+   private static final int MAX_TOTAL = 1 << 16;
+   private static final int MAX_LIMIT = 1 << 20;
+   private static final int MAX_CONTEXTS = 1024;
+   private static final int MAX_RUN = 3;
+
+   private final int limit, maxTotal, point;
+   private final Object id;
+   private final Table base;
+   private final HashMap<Long, Table> contexts = new HashMap<Long, Table>();
+   private int prev, run;
+
+   /* A frequency table.  In a context, ‘distinct’ counts the choices
+      that have been seen, and the escape count is proportional to
+      it; the table for the whole choice point never escapes. */
+   private static final class Table
+   {
+      final int[] counts;
+      int total, distinct;
+      Table(int limit)
+      {
+         counts = new int[limit];
+      }
+      int escape()
+      {
+         return distinct * ESCAPE;
+      }
+      int low(int choice)
+      {
+         int low = 0;
+         for(int i = 0;  i < choice;  i++) {
+            low += counts[i];
+         }
+         return low;
+      }
+      void tick(int choice, int maxTotal)
+      {
+         if(counts[choice] == 0) distinct++;
+         counts[choice] += INCREMENT;
+         total += INCREMENT;
+         if(total > maxTotal) {
+            total = 0;
+            for(int i = 0;  i < counts.length;  i++) {
+               counts[i] = (counts[i] + 1) / 2;
+               total += counts[i];
+            }
+         }
+      }
+   }
+
+   /**
+    * Construct a context-sensitive arithmetic coder for a choice
+    * point with ‘limit’ possible choices.
+    *
+    * @param limit the number of choices at this choice point, which
+    * must be greater than 1.
+    *
+    * @param id identifies the choice point, both in the contexts of
+    * other choice points (through its hash code) and for debugging
+    * (through its ‘toString’ method).  It may be null, but then the
+    * other choice points cannot tell this one apart from any others
+    * with a null id.
+    *
+    * @throws IllegalArgumentException if ‘limit’ is not greater than
+    * 1, or is more than 2<sup>20</sup>.
+    */
+   public ContextChoiceCoder(int limit, Object id)
+   {
+      if(limit < 2 || limit > MAX_LIMIT) {
+         throw new IllegalArgumentException("limit range");
+      }
+      this.limit = limit;
+      this.maxTotal = Math.max(MAX_TOTAL, 4 * limit);
+      this.id = id;
+      this.point = id == null? 0 : id.hashCode();
+      base = new Table(limit);
+      Arrays.fill(base.counts, 1);
+      base.total = limit;
+      prev = limit;
+   }
+
+   /* Finds (or makes) the table for the current context, or returns
+      null if there is none, or it has not seen anything yet. */
+   private Table context(ChoiceHistory h)
+   {
+      long key = (long) h.lastPoint() << 40
+         ^ (long) h.lastChoice() << 20
+         ^ (long) prev << 2
+         ^ run;
+      Table t = contexts.get(key);
+      if(t == null && contexts.size() < MAX_CONTEXTS) {
+         t = new Table(limit);
+         contexts.put(key, t);
+      }
+      return t;
+   }
+
+   /* The total of the base table, less the choices in ‘t’. */
+   private int excludedTotal(Table t)
+   {
+      int total = base.total;
+      for(int i = 0;  i < limit;  i++) {
+         if(t.counts[i] > 0) total -= base.counts[i];
+      }
+      return total;
+   }
+
+   public void encode(int choice, BitOutputStream bo)
+      throws IOException
+   {
+      if(bo == null)
+         throw new IllegalArgumentException("bo cannot be null");
+      if(choice < 0 || choice >= limit)
+         throw new IndexOutOfBoundsException
+            ("Choice "+choice+" is out of bounds for choice point "+this);
+      ArithEncoder ae = bo.arithEncoder();
+      ChoiceHistory h = bo.choiceHistory();
+      Table t = context(h);
+      if(t == null || t.distinct == 0) {
+         int low = base.low(choice);
+         ae.encode(low, low + base.counts[choice], base.total);
+      }
+      else if(t.counts[choice] > 0) {
+         int low = t.low(choice);
+         ae.encode(low, low + t.counts[choice], t.total + t.escape());
+      }
+      else {
+         ae.encode(t.total, t.total + t.escape(), t.total + t.escape());
+         int low = 0;
+         for(int i = 0;  i < choice;  i++) {
+            if(t.counts[i] == 0) low += base.counts[i];
+         }
+         ae.encode(low, low + base.counts[choice], excludedTotal(t));
+      }
+      update(t, choice, h);
+   }
+
+   public int decode(BitInputStream bi) throws IOException
+   {
+      if(bi == null)
+         throw new IllegalArgumentException("bi cannot be null");
+      ArithDecoder ad = bi.arithDecoder();
+      ChoiceHistory h = bi.choiceHistory();
+      Table t = context(h);
+      int ch;
+      if(t == null || t.distinct == 0) {
+         ch = decode(ad, base, null, base.total);
+      }
+      else {
+         int total = t.total + t.escape();
+         int target = ad.getCurrentSymbolCount(total);
+         if(target >= t.total && target < total) {
+            ad.removeSymbolFromStream(t.total, total, total);
+            ch = decode(ad, base, t, excludedTotal(t));
+         }
+         else {
+            ch = decode(ad, t, null, total);
+         }
+      }
+      update(t, ch, h);
+      return ch;
+   }
+
+   /* Decodes a choice from table ‘t’, leaving out the choices seen
+      in ‘ex’ (if it is not null). */
+   private int decode(ArithDecoder ad, Table t, Table ex, int total)
+      throws IOException
+   {
+      int target = ad.getCurrentSymbolCount(total);
+      int ch = 0, low = 0;
+      while(ch < limit) {
+         if(ex == null || ex.counts[ch] == 0) {
+            if(low + t.counts[ch] > target) break;
+            low += t.counts[ch];
+         }
+         ch++;
+      }
+      if(ch == limit || target < 0 || t.counts[ch] == 0) {
+         throw new RNGZFormatException
+            ("input stream produced invalid choice at "+this);
+      }
+      ad.removeSymbolFromStream(low, low + t.counts[ch], total);
+      return ch;
+   }
+
+   private void update(Table t, int choice, ChoiceHistory h)
+   {
+      if(t != null) t.tick(choice, maxTotal);
+      base.tick(choice, maxTotal);
+      if(choice == prev) {
+         if(run < MAX_RUN) run++;
+      }
+      else {
+         prev = choice;
+         run = 0;
+      }
+      h.note(point, choice);
+   }
+
+   /**
+    * Identifies this choice point using the ‘id’ object provided to
+    * the constructor (if it was non-null).
+    */
+   public String toString()
+   {
+      if(id == null) return super.toString();
+      else return id.toString();
+   }
+}
@@ -0,0 +1,33 @@
+package net.contrapunctus.rngzip.io;
+
+/**
+ * This class creates encoders and decoders that use arithmetic
+ * coding with context-sensitive models.  As with {@link
+ * ArithChoiceFactory}, a stream written with these encoders should
+ * not be written with any others; and the encoders and decoders for
+ * a choice point must be made with equal ids.
+ * 
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ * 
+ * @author Christopher League
+ * @see ContextChoiceCoder
+ */
+public class ContextChoiceFactory 
+  implements ChoiceEncoderFactory, ChoiceDecoderFactory
+{
+   public ChoiceEncoder makeChoiceEncoder(int limit, Object id)
+   {
+      if(limit < 1) throw new IllegalArgumentException("limit < 1");
+      else if(limit == 1) return TrivialChoiceCoder.instance;
+      else return new ContextChoiceCoder(limit, id);
+   }
+   
+   public ChoiceDecoder makeChoiceDecoder(int limit, Object id)
+   {
+      if(limit < 1) throw new IllegalArgumentException("limit < 1");
+      else if(limit == 1) return TrivialChoiceCoder.instance;
+      else return new ContextChoiceCoder(limit, id);
+   }
+}
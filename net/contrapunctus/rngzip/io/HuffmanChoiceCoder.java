@@ -18,6 +18,14 @@ import net.contrapunctus.rngzip.util.BitInputStream;
  * <p>One other nice thing about the Huffman encoding is that, because
  * it is based on a binary tree, <i>every</i> valid bit sequence
  * decodes to a permissible choice.
+ *
+ * <p>Walking the tree one bit at a time is slow, so the decoder also
+ * keeps a table indexed by the next few bits (up to 8), which gives
+ * the leaf (or the deeper node to continue from) in one lookup, and
+ * the encoder keeps each leaf's code word.  These must be redone
+ * whenever the tree changes shape; early on that happens nearly every
+ * time, so the decoder waits until the tree has held still for a few
+ * choices before it rebuilds the table.
  * 
  * <p class='license'>This is free software; you may modify and/or
  * redistribute it under the terms of the GNU General Public License,
@@ -33,6 +41,17 @@ public final class HuffmanChoiceCoder implements ChoiceCoder
    private Object id;
    private Node root;
    private Leaf[] leaves;
+
+   private static final int TABLE_BITS = 8;
+   private static final int REBUILD_AFTER = 8;
+   /* ‘shape’ counts the rotations of the tree, and ‘still’ the
+      choices since the last one.  The table is valid while
+      ‘tableShape’ equals ‘shape’. */
+   private int shape, still, tableShape = -1;
+   private final int tableBits;
+   private int[] tableChoice;
+   private byte[] tableLength;
+   private Node[] tableNode;
    
    static {
       if(DEBUG) {
@@ -69,6 +88,7 @@ public final class HuffmanChoiceCoder implements ChoiceCoder
       assert limit > 2;
       this.limit = limit;
       this.id = id;
+      tableBits = Math.min(TABLE_BITS, limit - 1);
       leaves = new Leaf[limit];
       LinkedList<AbstractNode> q = new LinkedList<AbstractNode>();
       for(int i = 0;  i < limit;  i++) {
@@ -92,16 +112,6 @@ public final class HuffmanChoiceCoder implements ChoiceCoder
       protected abstract Leaf asLeaf();
       protected abstract int decode(BitInputStream in) throws IOException;
       protected void update() { }
-      protected void encode(BitOutputStream bo) throws IOException
-      {
-         if(parent != null) {
-            parent.encode(bo);
-            bo.writeBit(first_p);
-            if(DEBUG) {
-               dbg.print(first_p? 1 : 0);
-            }
-         }
-      }
       protected void tick()
       {
          frequency++;
@@ -113,6 +123,8 @@ public final class HuffmanChoiceCoder implements ChoiceCoder
          }
          AbstractNode uncle = parent.first_p? gp.second : gp.first;
          if(frequency > uncle.frequency) {
+            shape++;
+            still = 0;
             if(DEBUG) {
                dbg.printf("  -- rotating %s with %s%n", this, uncle);
                dbg.printf("  -- starting from %s%n", gp);
@@ -146,6 +158,11 @@ public final class HuffmanChoiceCoder implements ChoiceCoder
    private class Leaf extends AbstractNode
    {
       protected int choice;
+      /* The code word, in the low ‘length’ bits, as of the tree
+         shape ‘codeShape’.  Only the length is kept if it is longer
+         than 64 bits. */
+      protected long code;
+      protected int length, codeShape = -1;
       protected Leaf(int ch)
       {
          choice = ch;
@@ -210,11 +227,49 @@ public final class HuffmanChoiceCoder implements ChoiceCoder
          throw new IndexOutOfBoundsException
             ("Choice "+choice+" is out of bounds for choice point "+this);
       if(DEBUG) dbg.printf("%s: %d/%d -> ", this, choice, limit);
-      leaves[choice].encode(bo);
+      Leaf lf = leaves[choice];
+      if(lf.codeShape != shape) {
+         codeWord(lf);
+      }
+      if(lf.length <= 64) {
+         bo.writeBits(lf.code, lf.length);
+      }
+      else {
+         writeLongCode(lf, bo);
+      }
       if(DEBUG) dbg.println();
-      leaves[choice].tick();
+      lf.tick();
    }
-   
+
+   /* Finds the code word for ‘lf’ by following its parents up to the
+      root.  The first child of a node is a 1 bit. */
+   private void codeWord(Leaf lf)
+   {
+      long code = 0;
+      int length = 0;
+      for(AbstractNode n = lf;  n.parent != null;  n = n.parent) {
+         if(n.first_p && length < 64) code |= 1L << length;
+         length++;
+      }
+      lf.code = code;
+      lf.length = length;
+      lf.codeShape = shape;
+   }
+
+   /* For the rare code word that does not fit in a long. */
+   private void writeLongCode(Leaf lf, BitOutputStream bo)
+      throws IOException
+   {
+      boolean[] bits = new boolean[lf.length];
+      int i = bits.length;
+      for(AbstractNode n = lf;  n.parent != null;  n = n.parent) {
+         bits[--i] = n.first_p;
+      }
+      for(boolean b : bits) {
+         bo.writeBit(b);
+      }
+   }
+
    public int decode(BitInputStream bi) throws IOException
    {
       if(bi == null)
@@ -222,7 +277,19 @@ public final class HuffmanChoiceCoder implements ChoiceCoder
       if(DEBUG) {
          dbg.printf("%s: ", this);
       }
-      int ch = root.decode(bi);
+      int ch;
+      if(tableShape == shape) {
+         int bits = (int) bi.peekBits(tableBits);
+         bi.skipBits(tableLength[bits]);
+         ch = tableChoice[bits];
+         if(ch < 0) ch = tableNode[bits].decode(bi);
+      }
+      else {
+         ch = root.decode(bi);
+         if(++still >= REBUILD_AFTER) {
+            buildTable();
+         }
+      }
       /* the huffman decoder should NEVER produce an invalid choice,
          as long as there are enough bits on the stream. */
       assert ch >= 0 && ch < limit;
@@ -233,6 +300,41 @@ public final class HuffmanChoiceCoder implements ChoiceCoder
       return ch;
    }
    
+   /* Fills in the decoding table: each entry covers the bit patterns
+      that start with the code word of a leaf, or with the first
+      ‘tableBits’ bits of the path to a deeper node.  For a leaf, the
+      entry holds its choice; otherwise it holds -1, and the node to
+      continue from. */
+   private void buildTable()
+   {
+      if(tableChoice == null) {
+         tableChoice = new int[1 << tableBits];
+         tableLength = new byte[1 << tableBits];
+         tableNode = new Node[1 << tableBits];
+      }
+      fill(root, 0, 0);
+      tableShape = shape;
+   }
+
+   private void fill(AbstractNode n, int prefix, int depth)
+   {
+      Leaf lf = n.asLeaf();
+      Node nd = lf == null? (Node) n : null;
+      if(lf != null || depth == tableBits) {
+         int from = prefix << tableBits - depth;
+         int to = prefix + 1 << tableBits - depth;
+         for(int i = from;  i < to;  i++) {
+            tableChoice[i] = lf == null? -1 : lf.choice;
+            tableLength[i] = (byte) depth;
+            tableNode[i] = nd;
+         }
+      }
+      else {
+         fill(nd.first, prefix << 1 | 1, depth + 1);
+         fill(nd.second, prefix << 1, depth + 1);
+      }
+   }
+
    /**
     * Identifies this choice point using the ‘id’ object provided to
     * the constructor (if it was non-null).
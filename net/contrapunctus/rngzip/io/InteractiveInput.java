@@ -78,6 +78,11 @@ public class InteractiveInput implements RNGZInputInterface
       return in.readLine();
    }
 
+   public String readContent(List<String> path, int type) throws IOException
+   {
+      return readContent(path);
+   }
+
    /**
     * Does nothing; does not even close the underlying
     * <code>PrintStream</code>.
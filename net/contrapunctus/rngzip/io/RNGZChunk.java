@@ -0,0 +1,294 @@
+package net.contrapunctus.rngzip.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import net.contrapunctus.rngzip.util.BitInputStream;
+import net.contrapunctus.rngzip.util.ContextualInputStream;
+import net.contrapunctus.rngzip.util.ContextualOutputStream;
+
+/**
+ * One chunk of a document compressed in chunked mode.  When the
+ * settings name a chunk element, the document is split after every
+ * so many occurrences of that element, and each piece is coded on its
+ * own: the choice coders start afresh, and the tree and data streams
+ * of the chunk are compressed separately.  This means chunks can be
+ * compressed and decompressed in parallel.
+ *
+ * <p>Each chunk records where it fits into the whole: the automaton
+ * states that were on the stack and the path of open elements when it
+ * begins, and (unless it is the last one) the stack when it ends,
+ * along with how many elements were closed at the depth of the split.
+ * A decoder starts from the first and stops when it has seen enough
+ * of the second.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see RNGZSettings#setChunking
+ */
+public final class RNGZChunk
+{
+   private static final int[] NO_STATES = new int[0];
+
+   private int records;
+   private int[] startStack;
+   private String[] startPath;
+   private boolean last;
+   private int depth, closes;
+   private int[] endStack = NO_STATES;
+   private byte[] tree, data;
+
+   RNGZChunk(int[] stack, String[] path)
+   {
+      startStack = stack;
+      startPath = path;
+   }
+
+   /**
+    * Returns the number of chunk elements that end in this chunk.
+    */
+   public int getRecords()
+   {
+      return records;
+   }
+
+   /**
+    * Returns the automaton states on the stack at the start of this
+    * chunk, bottom first.
+    */
+   public int[] getStartStack()
+   {
+      return startStack;
+   }
+
+   /**
+    * Returns the names of the elements that are open at the start of
+    * this chunk, outermost first.
+    */
+   public String[] getStartPath()
+   {
+      return startPath;
+   }
+
+   /**
+    * Returns true if this chunk runs to the end of the document.
+    */
+   public boolean isLast()
+   {
+      return last;
+   }
+
+   /**
+    * Returns the number of open elements at the point where the
+    * document is split.
+    */
+   public int getDepth()
+   {
+      return depth;
+   }
+
+   /**
+    * Returns how many elements end in this chunk leaving exactly
+    * {@link #getDepth} elements open.
+    */
+   public int getCloses()
+   {
+      return closes;
+   }
+
+   /**
+    * Returns the automaton states on the stack at the end of this
+    * chunk, bottom first.  For the last chunk, this is empty.
+    */
+   public int[] getEndStack()
+   {
+      return endStack;
+   }
+
+   void end(int records, int depth, int closes, int[] stack)
+   {
+      this.records = records;
+      this.depth = depth;
+      this.closes = closes;
+      this.endStack = stack;
+      this.last = false;
+   }
+
+   void endLast(int records)
+   {
+      this.records = records;
+      this.last = true;
+   }
+
+   /**
+    * Compresses the chunk: ‘bits’ are the (uncompressed) bytes of the
+    * tree representation, and ‘content’ are the strings written to the
+    * data stream, each with its path and type.  This does not depend
+    * on any other chunk, so it may run in any thread.
+    */
+   void compress(RNGZSettings settings, byte[] bits,
+                 List<List<String>> paths, List<String> content,
+                 List<Integer> types)
+      throws IOException
+   {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      OutputStream out = RNGZSettings.wrapOutput
+         (buf, settings.treeCompr, settings.treeLzma);
+      out.write(bits);
+      out.close();
+      tree = buf.toByteArray();
+      buf = new ByteArrayOutputStream();
+      ContextualOutputStream dout = settings.newChunkDataOutput(buf);
+      for(int i = 0;  i < content.size();  i++) {
+         dout.writeTyped(paths.get(i), types.get(i), content.get(i));
+      }
+      dout.close();
+      data = buf.toByteArray();
+   }
+
+   /**
+    * Returns an input interface that reads the tree and data of this
+    * chunk, with choice decoders made according to ‘settings’.
+    */
+   RNGZInputInterface open(final RNGZSettings settings) throws IOException
+   {
+      final BitInputStream bits = new BitInputStream
+         (RNGZSettings.wrapInput(new ByteArrayInputStream(tree),
+                                 settings.treeCompr, settings.treeLzma));
+      final ContextualInputStream din =
+         settings.newChunkDataInput(new ByteArrayInputStream(data));
+      return new RNGZInputInterface() {
+         public ChoiceDecoder makeChoiceDecoder(int limit, Object id)
+         {
+            return settings.makeChoiceCoder(limit, id);
+         }
+         public int readChoice(ChoiceDecoder dec) throws IOException
+         {
+            return dec.decode(bits);
+         }
+         public String readContent(List<String> path) throws IOException
+         {
+            return din.readUTF(path);
+         }
+         public String readContent(List<String> path, int type)
+            throws IOException
+         {
+            return din.readTyped(path, settings.valueType(type));
+         }
+         public void close() throws IOException
+         {
+            bits.close();
+         }
+      };
+   }
+
+   /*  Each chunk is written as:
+
+       01        marker
+       int       number of chunk elements
+       int n     start stack size, then n state numbers (int)
+       int m     start path length, then m element names (UTF)
+       byte      1 if this is the last chunk, otherwise 0, and then:
+         int     depth of the split
+         int     elements closed at that depth
+         int k   end stack size, then k state numbers (int)
+       int, ...  length and bytes of the compressed tree
+       int, ...  length and bytes of the compressed data
+   */
+   private static final int MARKER = 1;
+
+   void writeTo(DataOutputStream out) throws IOException
+   {
+      out.write(MARKER);
+      out.writeInt(records);
+      writeStates(out, startStack);
+      out.writeInt(startPath.length);
+      for(String s : startPath) {
+         out.writeUTF(s);
+      }
+      out.writeBoolean(last);
+      if(!last) {
+         out.writeInt(depth);
+         out.writeInt(closes);
+         writeStates(out, endStack);
+      }
+      out.writeInt(tree.length);
+      out.write(tree);
+      out.writeInt(data.length);
+      out.write(data);
+   }
+
+   private static void writeStates(DataOutputStream out, int[] states)
+      throws IOException
+   {
+      out.writeInt(states.length);
+      for(int s : states) {
+         out.writeInt(s);
+      }
+   }
+
+   /**
+    * Reads the next chunk from ‘in’, or returns null at the end of
+    * the stream.
+    * @throws RNGZFormatException if the data are not a chunk.
+    */
+   static RNGZChunk readFrom(DataInputStream in) throws IOException
+   {
+      int m = in.read();
+      if(m < 0) {
+         return null;
+      }
+      if(m != MARKER) {
+         throw new RNGZFormatException("bad chunk marker");
+      }
+      int records = in.readInt();
+      int[] stack = readStates(in);
+      String[] path = new String[checkLength(in.readInt())];
+      for(int i = 0;  i < path.length;  i++) {
+         path[i] = in.readUTF();
+      }
+      RNGZChunk c = new RNGZChunk(stack, path);
+      if(in.readBoolean()) {
+         c.endLast(records);
+      }
+      else {
+         int depth = in.readInt();
+         int closes = in.readInt();
+         c.end(records, depth, closes, readStates(in));
+      }
+      c.tree = readBytes(in);
+      c.data = readBytes(in);
+      return c;
+   }
+
+   private static int[] readStates(DataInputStream in) throws IOException
+   {
+      int[] states = new int[checkLength(in.readInt())];
+      for(int i = 0;  i < states.length;  i++) {
+         states[i] = in.readInt();
+      }
+      return states;
+   }
+
+   private static byte[] readBytes(DataInputStream in) throws IOException
+   {
+      byte[] b = new byte[checkLength(in.readInt())];
+      in.readFully(b);
+      return b;
+   }
+
+   private static int checkLength(int n) throws RNGZFormatException
+   {
+      if(n < 0) {
+         throw new RNGZFormatException("bad chunk");
+      }
+      return n;
+   }
+}
@@ -45,4 +45,12 @@ public interface RNGZInputInterface
     * stream. 
     */
    String readContent(List<String> path) throws IOException;
+
+   /**
+    * Retrieve a piece of data of a known type from the input stream.
+    * This is the same as {@link #readContent(List)}, for data that
+    * were written with {@link RNGZOutputInterface#writeContent(List,
+    * int,String)} and the same ‘type’.
+    */
+   String readContent(List<String> path, int type) throws IOException;
 }
@@ -1,5 +1,6 @@
 package net.contrapunctus.rngzip.io;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
@@ -9,6 +10,7 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPInputStream;
 import net.contrapunctus.rngzip.util.BaliAutomaton;
 import net.contrapunctus.rngzip.util.BitInputStream;
+import net.contrapunctus.rngzip.util.ContextFreeInputStream;
 import net.contrapunctus.rngzip.util.ContextualInputStream;
 import net.contrapunctus.rngzip.util.MultiplexInputStream;
 import net.contrapunctus.rngzip.util.SchemaFormatException;
@@ -18,6 +20,10 @@ import net.contrapunctus.rngzip.util.SchemaFormatException;
  * tree structure and data stream(s) from a single underlying input
  * stream.  The embedded streams may optionally be compressed using
  * gzip; this is specified in a configuration stream of the input.
+ *
+ * <p>If the input is chunked, the tree and data come instead in
+ * {@link RNGZChunk}s, read in order with {@link #readChunk}; each
+ * can then be decoded on its own with {@link #openChunk}.
  * 
  * <p class='license'>This is free software; you may modify and/or
  * redistribute it under the terms of the GNU General Public License,
@@ -33,6 +39,7 @@ public final class RNGZInputStream implements RNGZInputInterface
    private ContextualInputStream data;
    private URL schemaURL;
    private long expectedSum;
+   private DataInputStream chunks;
 
    private InputStream filter(int streamID, int kind) throws IOException
    {
@@ -61,8 +68,19 @@ public final class RNGZInputStream implements RNGZInputInterface
    {
       mux = new MultiplexInputStream(in);
       settings = se.fromStream(mux, 1);
-      bits = settings.newBitInput(mux, 0);
-      data = settings.newDataInput(mux, 2);
+      if(isChunked()) {
+         chunks = new DataInputStream
+            (mux.open(RNGZOutputStream.CHUNK_STREAM));
+         data = new ContextFreeInputStream(mux.open(2));
+      }
+      else {
+         bits = settings.newBitInput(mux, 0);
+         data = settings.newDataInput(mux, 2);
+         if(settings.getContainers()) {
+            data = new ContainerInputStream
+               (mux, settings, data, RNGZOutputStream.FIRST_CONTAINER);
+         }
+      }
       String s = data.readUTF(null);
       if( s.length() > 0 ) {
          schemaURL = new URL( s );
@@ -87,6 +105,41 @@ public final class RNGZInputStream implements RNGZInputInterface
       }
    }
 
+   /**
+    * Returns true if the tree and data of this stream are divided
+    * into chunks.  Then {@link #readChoice} and {@link #readContent}
+    * may not be used; read the chunks instead.
+    * @see RNGZSettings#setChunking
+    */
+   public boolean isChunked()
+   {
+      return settings.getChunkElement() != null;
+   }
+
+   /**
+    * Reads the next chunk, or returns null after the last one.
+    * @throws IllegalStateException if the stream is already closed,
+    * or is not chunked.
+    */
+   public RNGZChunk readChunk() throws IOException
+   {
+      check();
+      if(chunks == null) {
+         throw new IllegalStateException("stream is not chunked");
+      }
+      return RNGZChunk.readFrom(chunks);
+   }
+
+   /**
+    * Returns an input interface for decoding just the given chunk of
+    * this stream, with its own choice decoders.  The chunk does not
+    * refer to this stream, so it may be decoded in any thread.
+    */
+   public RNGZInputInterface openChunk(RNGZChunk c) throws IOException
+   {
+      return c.open(settings);
+   }
+
    public ChoiceDecoder makeChoiceDecoder(int limit, Object id)
    {
       return settings.makeChoiceCoder(limit, id);
@@ -111,6 +164,15 @@ public final class RNGZInputStream implements RNGZInputInterface
       return data.readUTF(path);
    }
 
+   /**
+    * @throws IllegalStateException if the stream is already closed.
+    */
+   public String readContent(List<String> path, int type) throws IOException
+   {
+      check();
+      return data.readTyped(path, settings.valueType(type));
+   }
+
    /**
     * Closes the multiplexed input stream, and all the embedded
     * streams; the object becomes useless after this.
@@ -123,5 +185,6 @@ public final class RNGZInputStream implements RNGZInputInterface
       mux = null;
       bits = null;
       data = null;
+      chunks = null;
    }
 }
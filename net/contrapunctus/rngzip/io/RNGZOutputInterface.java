@@ -64,4 +64,17 @@ public interface RNGZOutputInterface
     */
    void writeContent(List<String> path, char[] buf, int start, int length) 
       throws IOException;
+
+   /**
+    * Record a piece of data of a known type to the output stream.
+    * This is the same as {@link #writeContent(List,String)}, except
+    * that the implementing class may use ‘type’ to store ‘s’ more
+    * compactly, so long as the same string comes back when it is read
+    * with that type.
+    * @param type the type the schema gives this data, as one of the
+    * constants of {@link net.contrapunctus.rngzip.util.TypedValues}.
+    * @see RNGZInputInterface#readContent(List,int)
+    */
+   void writeContent(List<String> path, int type, String s)
+      throws IOException;
 }
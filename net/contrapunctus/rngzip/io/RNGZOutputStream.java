@@ -1,20 +1,30 @@
 package net.contrapunctus.rngzip.io;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 import net.contrapunctus.rngzip.util.BaliAutomaton;
 import net.contrapunctus.rngzip.util.BitOutputStream;
+import net.contrapunctus.rngzip.util.ContextFreeOutputStream;
 import net.contrapunctus.rngzip.util.ContextualOutputStream;
 import net.contrapunctus.rngzip.util.ErrorReporter;
 import net.contrapunctus.rngzip.util.MultiplexOutputStream;
 import net.contrapunctus.rngzip.util.OutputStreamFilter;
+import net.contrapunctus.rngzip.util.TypedValues;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.XMLReaderFactory;
 
@@ -23,6 +33,22 @@ import org.xml.sax.helpers.XMLReaderFactory;
  * the tree structure and data stream(s) onto a single underlying
  * output stream.  The embedded streams may optionally be compressed
  * using gzip.
+ *
+ * <p>If the settings name a chunk element, the output is instead a
+ * sequence of {@link RNGZChunk}s on a stream of their own, followed
+ * by an index giving the number of chunk elements and the position
+ * of each chunk, and the records where the values of the key paths
+ * (if any) were found.  Each chunk starts a new block of the
+ * multiplexed stream, and a fixed-size trailer at the very end tells
+ * where the index is, so {@link RNGZRandomAccess} can go straight to
+ * any chunk.  The choices and content of each chunk are collected
+ * here, in the compressor’s thread, and then compressed on the common
+ * fork-join pool while the compressor goes on with the next chunk.
+ * The chunks are still written in order.
+ *
+ * <p>If the settings call for containers, the content of each path
+ * goes on a stream of its own (inside each chunk, when chunking);
+ * see {@link ContainerOutputStream}.
  * 
  * <p class='license'>This is free software; you may modify and/or
  * redistribute it under the terms of the GNU General Public License,
@@ -30,13 +56,51 @@ import org.xml.sax.helpers.XMLReaderFactory;
  * 
  * @author Christopher League
  */
-public class RNGZOutputStream implements RNGZOutputInterface
+public class RNGZOutputStream implements RNGZOutputInterface, ChunkedOutput
 {
    private MultiplexOutputStream mux;
    private RNGZSettings settings;
    private BitOutputStream bits;
    private ContextualOutputStream data;
 
+   /* Stream numbers used only in chunked mode. */
+   static final int CHUNK_STREAM = 3;
+   static final int INDEX_STREAM = 4;
+   static final int TRAILER_STREAM = 5;
+
+   /* Stream numbers used only with containers, when not chunked.
+      (Chunks hold their containers themselves.) */
+   static final int CONTAINER_MAP_STREAM = 6;
+   static final int FIRST_CONTAINER = 7;
+
+   /* The trailer is a block of TRAILER_STREAM, holding the position
+      of the index (a long) and then this number, which represents
+      “rnZI” in ASCII. */
+   static final int INDEX_MAGIC = 0x726E5A49;
+   static final int TRAILER_SIZE = 12;
+
+   /* The chunk being collected, with its uncompressed tree bits and
+      its content.  The ‘epoch’ counts chunks, so that choice
+      encoders know when to start over. */
+   private RNGZChunk chunk;
+   private ByteArrayOutputStream chunkBits;
+   private List<List<String>> chunkPaths;
+   private List<String> chunkContent;
+   private List<Integer> chunkTypes;
+   private List<String> lastPath;
+   private int epoch;
+
+   /* Chunks being compressed, in order, and the index of those
+      already written, with the values found at the key paths. */
+   private LinkedList<Future<RNGZChunk>> pending;
+   private DataOutputStream chunks;
+   private ArrayList<Integer> chunkRecords;
+   private ArrayList<Long> chunkPositions;
+   private String[] keys;
+   private KeyIndex[] keyIndex;
+   private static final int MAX_PENDING =
+      2 * ForkJoinPool.getCommonPoolParallelism() + 1;
+
    private final boolean STATS = false;
    private final PrintStream dbg = System.err;
    private HashMap<String, Integer> tallies;
@@ -55,8 +119,25 @@ public class RNGZOutputStream implements RNGZOutputInterface
       this.settings = settings;
       mux = new MultiplexOutputStream(out, settings.magic());
       settings.writeTo(mux, 1);
-      bits = settings.newBitOutput(mux, 0);
-      data = settings.newDataOutput(mux, 2);
+      if(settings.getChunkElement() == null) {
+         bits = settings.newBitOutput(mux, 0);
+         data = settings.newDataOutput(mux, 2);
+         if(settings.getContainers()) {
+            data = new ContainerOutputStream(mux, false, settings, data,
+                                             CONTAINER_MAP_STREAM,
+                                             FIRST_CONTAINER);
+         }
+      }
+      else {
+         /* There is nothing else on this stream, so leave it
+            uncompressed; then closing it twice does no harm.  See
+            writeIndex(). */
+         data = mux.open(2, new OutputStreamFilter<ContextualOutputStream>() {
+            public ContextualOutputStream wrap(OutputStream out) {
+               return new ContextFreeOutputStream(out);
+            }
+         });
+      }
       if (au != null) {
          data.writeUTF(null, au.getURL().toString());
          data.writeLong(null, au.checksum());
@@ -67,8 +148,27 @@ public class RNGZOutputStream implements RNGZOutputInterface
       if(STATS) {
          tallies = new HashMap<String, Integer>();
       }
+      if(settings.getChunkElement() != null) {
+         chunks = mux.open(CHUNK_STREAM, DATA_FILTER);
+         pending = new LinkedList<Future<RNGZChunk>>();
+         chunkRecords = new ArrayList<Integer>();
+         chunkPositions = new ArrayList<Long>();
+         keys = settings.getIndexKeys();
+         keyIndex = new KeyIndex[keys.length];
+         for(int i = 0;  i < keys.length;  i++) {
+            keyIndex[i] = new KeyIndex();
+         }
+         beginChunk(new int[0], new String[0]);
+      }
    }
 
+   private static final OutputStreamFilter<DataOutputStream> DATA_FILTER =
+      new OutputStreamFilter<DataOutputStream>() {
+         public DataOutputStream wrap(OutputStream out) {
+            return new DataOutputStream(out);
+         }
+      };
+
    private final void check()
    {
       if(mux == null) {
@@ -78,9 +178,221 @@ public class RNGZOutputStream implements RNGZOutputInterface
 
    public ChoiceEncoder makeChoiceEncoder(int limit, Object id)
    {
+      if(chunks != null) {
+         return new ChunkedChoiceEncoder(limit, id);
+      }
       return settings.makeChoiceCoder(limit, id);
    }
 
+   /* Adaptive coders must not carry what they learned from one chunk
+      into the next, or the chunks could not be decoded separately.
+      So in chunked mode, each choice point gets a fresh coder the
+      first time it is used in each chunk. */
+   private final class ChunkedChoiceEncoder implements ChoiceEncoder
+   {
+      private final int limit;
+      private final Object id;
+      private ChoiceEncoder coder;
+      private int coderEpoch = -1;
+      ChunkedChoiceEncoder(int limit, Object id)
+      {
+         this.limit = limit;
+         this.id = id;
+      }
+      public void encode(int choice, BitOutputStream bo) throws IOException
+      {
+         if(coderEpoch != epoch) {
+            coder = settings.makeChoiceCoder(limit, id);
+            coderEpoch = epoch;
+         }
+         coder.encode(choice, bo);
+      }
+   }
+
+   public String getChunkElement()
+   {
+      return settings.getChunkElement();
+   }
+
+   public int getChunkRecords()
+   {
+      return settings.getChunkRecords();
+   }
+
+   public String[] getIndexKeys()
+   {
+      return settings.getIndexKeys();
+   }
+
+   /**
+    * @throws IllegalStateException if the stream is already closed,
+    * or is not chunked.
+    * @throws IllegalArgumentException if ‘key’ is not one of the
+    * index keys.
+    */
+   public void indexKey(String key, String value, long record)
+   {
+      check();
+      if(chunks == null) {
+         throw new IllegalStateException("stream is not chunked");
+      }
+      for(int i = 0;  i < keys.length;  i++) {
+         if(keys[i].equals(key)) {
+            keyIndex[i].add(value, record);
+            return;
+         }
+      }
+      throw new IllegalArgumentException("not an index key: "+key);
+   }
+
+   private static final class KeyIndex
+   {
+      private String[] values = new String[16];
+      private long[] records = new long[16];
+      private int size;
+      private void add(String value, long record)
+      {
+         if(size == values.length) {
+            values = Arrays.copyOf(values, 2*size);
+            records = Arrays.copyOf(records, 2*size);
+         }
+         values[size] = value;
+         records[size++] = record;
+      }
+   }
+
+   /**
+    * @throws IllegalStateException if the stream is already closed,
+    * or is not chunked.
+    */
+   public void endChunk(int records, int depth, int closes, int[] stack,
+                        List<String> path)
+      throws IOException
+   {
+      check();
+      if(chunks == null) {
+         throw new IllegalStateException("stream is not chunked");
+      }
+      if(stack == null) {
+         chunk.endLast(records);
+         submitChunk();
+      }
+      else {
+         chunk.end(records, depth, closes, stack);
+         submitChunk();
+         beginChunk(stack, path.toArray(new String[path.size()]));
+      }
+   }
+
+   private void beginChunk(int[] stack, String[] path)
+   {
+      chunk = new RNGZChunk(stack, path);
+      chunkBits = new ByteArrayOutputStream();
+      bits = new BitOutputStream(chunkBits);
+      chunkPaths = new ArrayList<List<String>>();
+      chunkContent = new ArrayList<String>();
+      chunkTypes = new ArrayList<Integer>();
+      lastPath = null;
+      epoch++;
+   }
+
+   /* Hands the current chunk to the pool, then writes out finished
+      chunks, waiting for the oldest ones if too many are pending. */
+   private void submitChunk() throws IOException
+   {
+      bits.close();
+      final RNGZChunk c = chunk;
+      final byte[] b = chunkBits.toByteArray();
+      final List<List<String>> ps = chunkPaths;
+      final List<String> cs = chunkContent;
+      final List<Integer> ts = chunkTypes;
+      pending.add(ForkJoinPool.commonPool().submit(new Callable<RNGZChunk>() {
+         public RNGZChunk call() throws IOException {
+            c.compress(settings, b, ps, cs, ts);
+            return c;
+         }
+      }));
+      chunk = null;
+      chunkBits = null;
+      chunkPaths = null;
+      chunkContent = null;
+      chunkTypes = null;
+      while(pending.size() > MAX_PENDING) {
+         writeChunk();
+      }
+   }
+
+   private void writeChunk() throws IOException
+   {
+      RNGZChunk c;
+      try {
+         c = pending.removeFirst().get();
+      }
+      catch(InterruptedException x) {
+         throw new IOException(x.toString());
+      }
+      catch(ExecutionException x) {
+         if(x.getCause() instanceof IOException) {
+            throw (IOException) x.getCause();
+         }
+         throw new IOException(x.getCause().toString());
+      }
+      /* Start a new block, so the chunk can be read from here. */
+      mux.flush();
+      chunkRecords.add(c.getRecords());
+      chunkPositions.add(mux.position());
+      c.writeTo(chunks);
+   }
+
+   /* The index follows all the chunks, on a stream of its own, and
+      compressed with gzip:
+
+        int        number of chunks, then for each one:
+          int      number of chunk elements
+          long     position of its first block
+        int        number of key paths, then for each one:
+          UTF      the key path
+          int      number of values, then for each one:
+            UTF    the value
+            long   the record where it was found
+
+      Then the trailer gives the position of the index.  By then,
+      every other stream has been closed (or is a plain data stream
+      on which closing again does nothing), so the trailer is the
+      last block. */
+   private void writeIndex() throws IOException
+   {
+      mux.flush();
+      long at = mux.position();
+      DataOutputStream idx = mux.open
+         (INDEX_STREAM, new OutputStreamFilter<DataOutputStream>() {
+            public DataOutputStream wrap(OutputStream out)
+               throws IOException {
+               return new DataOutputStream(new GZIPOutputStream(out));
+            }
+         });
+      idx.writeInt(chunkPositions.size());
+      for(int i = 0;  i < chunkPositions.size();  i++) {
+         idx.writeInt(chunkRecords.get(i));
+         idx.writeLong(chunkPositions.get(i));
+      }
+      idx.writeInt(keys.length);
+      for(int i = 0;  i < keys.length;  i++) {
+         KeyIndex k = keyIndex[i];
+         idx.writeUTF(keys[i]);
+         idx.writeInt(k.size);
+         for(int j = 0;  j < k.size;  j++) {
+            idx.writeUTF(k.values[j]);
+            idx.writeLong(k.records[j]);
+         }
+      }
+      idx.close();
+      mux.flush();
+      DataOutputStream trailer = mux.open(TRAILER_STREAM, DATA_FILTER);
+      trailer.writeLong(at);
+      trailer.writeInt(INDEX_MAGIC);
+   }
+
    /**
     * @throws IllegalStateException if the stream is already closed.
     */
@@ -94,14 +406,37 @@ public class RNGZOutputStream implements RNGZOutputInterface
     * @throws IllegalStateException if the stream is already closed.
     */
    public void writeContent(List<String> path, String s) throws IOException
+   {
+      writeContent(path, TypedValues.STRING, s);
+   }
+
+   /**
+    * Typed values are written in binary only if the settings say so.
+    * @throws IllegalStateException if the stream is already closed.
+    * @see RNGZSettings#setTypedValues
+    */
+   public void writeContent(List<String> path, int type, String s)
+      throws IOException
    {
       check();
+      type = settings.valueType(type);
       if(STATS) {
          String elt = path.get(path.size()-1);
          assert elt.intern() == elt;
          tally(elt);
       }
-      data.writeUTF(path, s);
+      if(chunks != null) {
+         /* The compressor reuses its path, but it changes rarely,
+            so share copies between consecutive strings. */
+         if(!path.equals(lastPath)) {
+            lastPath = new ArrayList<String>(path);
+         }
+         chunkPaths.add(lastPath);
+         chunkContent.add(s);
+         chunkTypes.add(type);
+         return;
+      }
+      data.writeTyped(path, type, s);
    }
    
    /**
@@ -135,6 +470,20 @@ public class RNGZOutputStream implements RNGZOutputInterface
    public void close() throws IOException
    {
       check();
+      if(chunks != null) {
+         if(chunk != null) {
+            chunk.endLast(0);
+            submitChunk();
+         }
+         while(!pending.isEmpty()) {
+            writeChunk();
+         }
+         data.close();
+         writeIndex();
+      }
+      else if(settings.getContainers()) {
+         data.close();          // writes the map
+      }
       mux.close();
       if(STATS) {
          for(Map.Entry<String, Integer> e : tallies.entrySet()) {
@@ -145,6 +494,8 @@ public class RNGZOutputStream implements RNGZOutputInterface
       bits = null;
       data = null;
       tallies = null;
+      chunks = null;
+      pending = null;
    }   
 
    private void tally(String elt)
@@ -0,0 +1,278 @@
+package net.contrapunctus.rngzip.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import net.contrapunctus.rngzip.util.ContextFreeInputStream;
+import net.contrapunctus.rngzip.util.ContextualInputStream;
+import net.contrapunctus.rngzip.util.MultiplexBlockRep;
+import net.contrapunctus.rngzip.util.MultiplexInputStream;
+
+/**
+ * Random access to a chunked file by record number, or by the value
+ * of an index key.  A chunked {@link RNGZOutputStream} ends with an
+ * index giving the position of each chunk and the number of records
+ * (chunk elements) in it, and a trailer giving the position of the
+ * index.  So to get at one record, this class reads the header, the
+ * trailer, and the index, and then just the chunk that holds the
+ * record; each chunk starts with everything needed to decode it.
+ *
+ * <p>Record numbers count the chunk elements from zero over the
+ * whole document.  Index keys are set with {@link
+ * RNGZSettings#setIndexKeys} when compressing.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see RNGZChunk
+ */
+public final class RNGZRandomAccess implements Closeable
+{
+   private static final long[] NO_RECORDS = new long[0];
+
+   private RandomAccessFile file;
+   private final FileChannel channel;
+   private final RNGZSettings settings;
+   private final int magic;
+   private URL schemaURL;
+   private long expectedSum;
+
+   /* first[k] is the number of the first record in chunk k, and
+      first[first.length-1] is the total number of records. */
+   private final long[] first;
+   private final long[] positions;
+   private final HashMap<String, HashMap<String, long[]>> keys =
+      new HashMap<String, HashMap<String, long[]>>();
+
+   /**
+    * Opens ‘f’, and reads its settings into ‘se’ and its index.
+    * @throws RNGZFormatException if ‘f’ is not a chunked file with
+    * an index.
+    * @throws IOException if there is some other problem reading ‘f’.
+    */
+   public RNGZRandomAccess(File f, RNGZSettings se) throws IOException
+   {
+      file = new RandomAccessFile(f, "r");
+      channel = file.getChannel();
+      try {
+         MultiplexInputStream mux = new MultiplexInputStream(channel, 0);
+         settings = se.fromStream(mux, 1);
+         if(settings.getChunkElement() == null) {
+            throw new RNGZFormatException("not a chunked file");
+         }
+         magic = mux.magic();
+         ContextualInputStream data = new ContextFreeInputStream(mux.open(2));
+         String s = data.readUTF(null);
+         if(s.length() > 0) {
+            schemaURL = new URL(s);
+            expectedSum = data.readLong(null);
+         }
+         mux = resume(readTrailer());
+         DataInputStream idx =
+            new DataInputStream(new GZIPInputStream
+                                (mux.open(RNGZOutputStream.INDEX_STREAM)));
+         int n = checkLength(idx.readInt());
+         first = new long[n+1];
+         positions = new long[n];
+         for(int i = 0;  i < n;  i++) {
+            first[i+1] = first[i] + idx.readInt();
+            positions[i] = idx.readLong();
+         }
+         for(int i = checkLength(idx.readInt());  i > 0;  i--) {
+            String key = idx.readUTF();
+            HashMap<String, long[]> m = new HashMap<String, long[]>();
+            for(int j = checkLength(idx.readInt());  j > 0;  j--) {
+               String value = idx.readUTF();
+               long[] rs = m.get(value);
+               rs = rs == null? new long[1] : Arrays.copyOf(rs, rs.length+1);
+               rs[rs.length-1] = idx.readLong();
+               m.put(value, rs);
+            }
+            keys.put(key, m);
+         }
+      }
+      catch(IOException x) {
+         file.close();
+         throw x;
+      }
+   }
+
+   /* The trailer is one block of TRAILER_STREAM at the very end of
+      the file; its header is always the same, so we know how far
+      back to look. */
+   private long readTrailer() throws IOException
+   {
+      ByteArrayOutputStream hdr = new ByteArrayOutputStream();
+      new MultiplexBlockRep(hdr, RNGZOutputStream.TRAILER_STREAM)
+         .encode(RNGZOutputStream.TRAILER_SIZE);
+      byte[] expect = hdr.toByteArray();
+      long at = file.length() - expect.length - RNGZOutputStream.TRAILER_SIZE;
+      if(at < 0) {
+         throw new RNGZFormatException("no index");
+      }
+      DataInputStream in = streamAt(at);
+      byte[] b = new byte[expect.length];
+      in.readFully(b);
+      long pos = in.readLong();
+      if(!Arrays.equals(b, expect)
+         || in.readInt() != RNGZOutputStream.INDEX_MAGIC
+         || pos < 0 || pos >= at) {
+         throw new RNGZFormatException("no index");
+      }
+      return pos;
+   }
+
+   private DataInputStream streamAt(long pos) throws IOException
+   {
+      channel.position(pos);
+      return new DataInputStream(new BufferedInputStream
+                                 (Channels.newInputStream(channel)));
+   }
+
+   private MultiplexInputStream resume(long pos) throws IOException
+   {
+      return new MultiplexInputStream(channel, pos, magic);
+   }
+
+   private static int checkLength(int n) throws RNGZFormatException
+   {
+      if(n < 0) {
+         throw new RNGZFormatException("bad index");
+      }
+      return n;
+   }
+
+   private final void check()
+   {
+      if(file == null) {
+         throw new IllegalStateException("file already closed");
+      }
+   }
+
+   public URL getSchemaURL()
+   {
+      return schemaURL;
+   }
+
+   public long getSchemaSum()
+   {
+      return expectedSum;
+   }
+
+   /**
+    * Returns the settings that were read from the file.
+    */
+   public RNGZSettings getSettings()
+   {
+      return settings;
+   }
+
+   /**
+    * Returns the total number of records in the file.
+    */
+   public long getRecordCount()
+   {
+      return first[first.length-1];
+   }
+
+   public int getChunkCount()
+   {
+      return positions.length;
+   }
+
+   /**
+    * Returns the number of the first record in chunk ‘k’.
+    */
+   public long getFirstRecord(int k)
+   {
+      return first[k];
+   }
+
+   /**
+    * Returns the number of the chunk that holds ‘record’.
+    * @throws IndexOutOfBoundsException if there is no such record.
+    */
+   public int chunkOf(long record)
+   {
+      if(record < 0 || record >= getRecordCount()) {
+         throw new IndexOutOfBoundsException("no record "+record);
+      }
+      /* The record is in the last chunk that starts at or before
+         it, which skips any empty chunks. */
+      int lo = 0, hi = positions.length-1;
+      while(lo < hi) {
+         int mid = (lo + hi + 1) >>> 1;
+         if(first[mid] <= record) lo = mid;
+         else hi = mid-1;
+      }
+      return lo;
+   }
+
+   /**
+    * Returns the numbers of the records in which ‘value’ was found at
+    * the index key ‘key’, in document order; or an empty array if
+    * there are none, or ‘key’ was not indexed.
+    */
+   public long[] lookup(String key, String value)
+   {
+      HashMap<String, long[]> m = keys.get(key);
+      long[] rs = m == null? null : m.get(value);
+      return rs == null? NO_RECORDS : rs.clone();
+   }
+
+   /**
+    * Returns the index keys of the file.
+    */
+   public String[] getIndexKeys()
+   {
+      return keys.keySet().toArray(new String[keys.size()]);
+   }
+
+   /**
+    * Reads chunk ‘k’ from the file.
+    * @throws IllegalStateException if the file is already closed.
+    */
+   public synchronized RNGZChunk readChunk(int k) throws IOException
+   {
+      check();
+      MultiplexInputStream mux = resume(positions[k]);
+      RNGZChunk c = RNGZChunk.readFrom
+         (new DataInputStream(mux.open(RNGZOutputStream.CHUNK_STREAM)));
+      if(c == null) {
+         throw new RNGZFormatException("missing chunk "+k);
+      }
+      return c;
+   }
+
+   /**
+    * Returns an input interface for decoding just the given chunk.
+    * @see RNGZInputStream#openChunk
+    */
+   public RNGZInputInterface openChunk(RNGZChunk c) throws IOException
+   {
+      return c.open(settings);
+   }
+
+   /**
+    * Closes the file; the object becomes useless after this.
+    * @throws IllegalStateException if the file is already closed.
+    */
+   public synchronized void close() throws IOException
+   {
+      check();
+      file.close();
+      file = null;
+   }
+}
@@ -13,6 +13,9 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import net.contrapunctus.lzma.LzmaInputStream;
 import net.contrapunctus.lzma.LzmaOutputStream;
+import net.contrapunctus.lzma.LzmaPreset;
+import net.contrapunctus.lzma.ParallelLzmaInputStream;
+import net.contrapunctus.lzma.ParallelLzmaOutputStream;
 import net.contrapunctus.rngzip.util.*;
 import org.apache.commons.compress.bzip2.CBZip2InputStream;
 import org.apache.commons.compress.bzip2.CBZip2OutputStream;
@@ -59,7 +62,26 @@ public class RNGZSettings
        * Uses a full byte for each choice point.  Requires that there
        * are 256 or fewer choices.
        */
-      BYTE;
+      BYTE,
+
+      /**
+       * Uses adaptive arithmetic coding, with a frequency table for
+       * each choice point.  A choice that is nearly always the same
+       * costs a small fraction of a bit, and the bits are already
+       * compressed, so the tree compressor should be <code>NONE</code>.
+       * @see ArithChoiceFactory
+       */
+      ARITH,
+
+      /**
+       * Like <code>ARITH</code>, but each choice is predicted from
+       * the choice point coded before it, and from the previous
+       * choices at the same choice point, falling back to the
+       * choice point's own table for choices not yet seen in that
+       * context.
+       * @see ContextChoiceFactory
+       */
+      CONTEXT;
    }
 
    /**
@@ -103,7 +125,34 @@ public class RNGZSettings
       /** 
        * Same as PPM, except the context is extended to 5.
        */
-      PPMX
+      PPMX,
+
+      /**
+       * Applies LZMA compression to independent blocks of the stream,
+       * on as many processors as there are, in compressing and in
+       * decompressing.  The ratio is a little worse than
+       * <code>LZMA</code>.
+       * @see ParallelLzmaOutputStream
+       */
+      PLZMA,
+
+      /**
+       * Applies BZip2 compression to the stream, sorting and coding
+       * its blocks on as many processors as there are, in
+       * compressing and in decompressing.
+       * @see ParallelBZip2OutputStream
+       */
+      PBZ2,
+
+      /**
+       * Same as PPMX, except that on a data stream each path of
+       * element names gets a model of its own, instead of seeding
+       * one model with the parent tag.  The models are limited in
+       * size all together; the ones least recently used are dropped
+       * to make room.  On the tree stream this is just PPMX.
+       * @see PPMPathOutputStream
+       */
+      PPMP
    }
 
    private static final int PPM_SMALL_LENGTH = 4;
@@ -134,6 +183,76 @@ public class RNGZSettings
     */
    protected DataCompression dataCompr = DEFAULT_COMPRESSOR;
 
+   public static final int DEFAULT_CHUNK_RECORDS = 1000;
+
+   /**
+    * The name of the repeating element at which the document is split
+    * into independently compressed chunks, or null (the default) if
+    * the document is compressed as a single unit.
+    * @see RNGZChunk
+    */
+   protected String chunkElement = null;
+
+   /**
+    * The number of chunk elements in each chunk.  The default is
+    * 1000.
+    */
+   protected int chunkRecords = DEFAULT_CHUNK_RECORDS;
+
+   /**
+    * The key paths to index when chunking: element names, whose
+    * content is the key, or attribute names preceded by ‘@’.  These
+    * are not part of the configuration stream; the index itself
+    * lists them.
+    * @see RNGZRandomAccess
+    */
+   protected String[] indexKeys = new String[0];
+
+   /**
+    * Whether the content of each distinct path goes in a container
+    * of its own, compressed separately.  The default is false, which
+    * puts all the content in one data stream.
+    * @see ContainerOutputStream
+    */
+   protected boolean containers = false;
+
+   /**
+    * Whether values of XML Schema types (integers, dates, and so on)
+    * are written in a binary form, according to the type given in
+    * the schema.  The default is false, which writes every value as
+    * a string.
+    * @see TypedValues
+    */
+   protected boolean typedValues = false;
+
+   /**
+    * The LZMA parameters for the tree stream, when {@link #treeCompr}
+    * is <code>LZMA</code> or <code>PLZMA</code>.  The decoder needs a
+    * window as large as the dictionary, so a small one suits readers
+    * with little memory, and a large one suits archives.  The default
+    * is {@link LzmaPreset#DEFAULT}.
+    */
+   protected LzmaPreset treeLzma = LzmaPreset.DEFAULT;
+
+   /**
+    * The LZMA parameters for the data stream (and containers, and the
+    * data of each chunk), when {@link #dataCompr} is
+    * <code>LZMA</code> or <code>PLZMA</code>.  The default is {@link
+    * LzmaPreset#DEFAULT}.
+    */
+   protected LzmaPreset dataLzma = LzmaPreset.DEFAULT;
+
+   /**
+    * Whether the compressors for the tree and data streams each run
+    * in a thread of their own, while compressing a document that is
+    * not chunked.  This does not change the format, so it is not part
+    * of the configuration stream.  The default is true when there is
+    * more than one processor.
+    * @see WorkerOutputStream
+    */
+   protected boolean threaded =
+      Runtime.getRuntime().availableProcessors() > 1;
+
    /**
     * Default constructor, creates an object that represents
     * (initially) all the default settings.
@@ -158,6 +277,26 @@ public class RNGZSettings
       dataCompr = dc;
    }
 
+   /**
+    * Copy constructor.  Decompressing overwrites the settings with
+    * those recorded in the stream, so concurrent decompressors should
+    * each work on their own copy.
+    */
+   public RNGZSettings(RNGZSettings that)
+   {
+      coding = that.coding;
+      treeCompr = that.treeCompr;
+      dataCompr = that.dataCompr;
+      chunkElement = that.chunkElement;
+      chunkRecords = that.chunkRecords;
+      indexKeys = that.indexKeys;
+      containers = that.containers;
+      typedValues = that.typedValues;
+      treeLzma = that.treeLzma;
+      dataLzma = that.dataLzma;
+      threaded = that.threaded;
+   }
+
    /**
     * Adjusts the strategy used to encode choice points as bits.
     * @see #coding
@@ -216,13 +355,216 @@ public class RNGZSettings
       setDataCompressor(DataCompression.valueOf(dc.toUpperCase()));
    }
 
+   /**
+    * Splits the document into chunks of ‘records’ occurrences of the
+    * element named ‘elt’ (matched by local or qualified name).  The
+    * chunks are coded independently, so they can be compressed and
+    * decompressed in parallel.  A null ‘elt’ turns chunking off.
+    * @throws IllegalArgumentException if ‘records’ is not positive.
+    * @see #chunkElement
+    */
+   public void setChunking(String elt, int records)
+   {
+      if(records < 1) {
+         throw new IllegalArgumentException("records < 1");
+      }
+      chunkElement = elt;
+      chunkRecords = records;
+   }
+
+   /**
+    * Returns the name of the element at which documents are split
+    * into chunks, or null if they are not.
+    * @see #chunkElement
+    */
+   public String getChunkElement()
+   {
+      return chunkElement;
+   }
+
+   /**
+    * Returns the number of chunk elements per chunk.
+    * @see #chunkRecords
+    */
+   public int getChunkRecords()
+   {
+      return chunkRecords;
+   }
+
+   /**
+    * Sets the key paths to index, so records can be found by the
+    * values there.  This takes effect only when chunking.
+    * @see #indexKeys
+    */
+   public void setIndexKeys(String... keys)
+   {
+      indexKeys = keys.clone();
+   }
+
+   /**
+    * Returns the key paths to index.
+    * @see #indexKeys
+    */
+   public String[] getIndexKeys()
+   {
+      return indexKeys.clone();
+   }
+
+   /**
+    * Turns containers on or off.
+    * @see #containers
+    */
+   public void setContainers(boolean on)
+   {
+      containers = on;
+   }
+
+   /**
+    * Returns true if the content of each path is kept in its own
+    * container.
+    * @see #containers
+    */
+   public boolean getContainers()
+   {
+      return containers;
+   }
+
+   /**
+    * Turns the binary encoding of typed values on or off.
+    * @see #typedValues
+    */
+   public void setTypedValues(boolean on)
+   {
+      typedValues = on;
+   }
+
+   /**
+    * Returns true if typed values are written in binary.
+    * @see #typedValues
+    */
+   public boolean getTypedValues()
+   {
+      return typedValues;
+   }
+
+   /**
+    * Sets the LZMA parameters for the tree stream.
+    * @see #treeLzma
+    */
+   public void setTreeLzma(LzmaPreset p)
+   {
+      if(p == null) {
+         throw new IllegalArgumentException("preset is null");
+      }
+      treeLzma = p;
+   }
+
+   /**
+    * Sets the LZMA parameters for the tree stream.
+    * @param spec a preset name or parameter list, such as “small” or
+    * “d=24,lc=0”, as understood by {@link LzmaPreset#valueOf}.
+    */
+   public void setTreeLzma(String spec)
+   {
+      setTreeLzma(LzmaPreset.valueOf(spec));
+   }
+
+   /**
+    * Returns the LZMA parameters for the tree stream.
+    * @see #treeLzma
+    */
+   public LzmaPreset getTreeLzma()
+   {
+      return treeLzma;
+   }
+
+   /**
+    * Sets the LZMA parameters for the data stream.
+    * @see #dataLzma
+    */
+   public void setDataLzma(LzmaPreset p)
+   {
+      if(p == null) {
+         throw new IllegalArgumentException("preset is null");
+      }
+      dataLzma = p;
+   }
+
+   /**
+    * Sets the LZMA parameters for the data stream.
+    * @see #setTreeLzma(String)
+    */
+   public void setDataLzma(String spec)
+   {
+      setDataLzma(LzmaPreset.valueOf(spec));
+   }
+
+   /**
+    * Returns the LZMA parameters for the data stream.
+    * @see #dataLzma
+    */
+   public LzmaPreset getDataLzma()
+   {
+      return dataLzma;
+   }
+
+   /* True if either stream is coded with LZMA parameters other than
+      the default, which must then be recorded. */
+   private boolean lzmaPresets()
+   {
+      return isLzma(treeCompr) && !treeLzma.equals(LzmaPreset.DEFAULT)
+         || isLzma(dataCompr) && !dataLzma.equals(LzmaPreset.DEFAULT);
+   }
+
+   private static boolean isLzma(DataCompression cm)
+   {
+      return cm == DataCompression.LZMA || cm == DataCompression.PLZMA;
+   }
+
+   /**
+    * Turns the compressor threads on or off.
+    * @see #threaded
+    */
+   public void setThreaded(boolean on)
+   {
+      threaded = on;
+   }
+
+   /**
+    * Returns true if the compressors run in threads of their own.
+    * @see #threaded
+    */
+   public boolean getThreaded()
+   {
+      return threaded;
+   }
+
+   /* The type to use for a value whose schema type is ‘type’. */
+   int valueType(int type)
+   {
+      return typedValues? type : TypedValues.STRING;
+   }
+
    /**
     * Provides a brief, human-readable representation of these
     * settings.
     */
    public String toString()
    {
-      return coding + "-" + treeCompr + "-" + dataCompr;
+      String s = coding + "-" + treeCompr + "-" + dataCompr;
+      if(chunkElement != null) {
+         s += "-" + chunkElement + "/" + chunkRecords;
+      }
+      if(containers) {
+         s += "-containers";
+      }
+      if(typedValues) {
+         s += "-typed";
+      }
+      if(lzmaPresets()) {
+         s += "-lzma(" + treeLzma + "/" + dataLzma + ")";
+      }
+      return s;
    }
 
    /**
@@ -230,10 +572,27 @@ public class RNGZSettings
     * Java-standard big-endian byte order.  They follow the four bytes
     * of {@link MultiplexOutputStream#MAGIC}.  These bytes represent
     * the letters “rnZ” in ASCII (72 6E 5A in hexadecimal) followed by
-    * a one-byte version number, currently 01.
+    * a one-byte version number, 01 for streams written without any of
+    * the optional settings.
     */
    public static final int MAGIC = 0x726E5A01;
 
+   /**
+    * Version 02 of the stream format, used when any of the optional
+    * settings (chunking, containers, typed values, or LZMA parameters
+    * other than the default) are in effect.  The
+    * configuration stream then continues with tagged settings.
+    * @see #MAGIC
+    */
+   public static final int EXTENDED_MAGIC = 0x726E5A02;
+
+   /* Tags for the optional settings in version 02. */
+   private static final int END_TAG = 0;
+   private static final int CHUNK_TAG = 1;
+   private static final int CONTAINER_TAG = 2;
+   private static final int TYPED_TAG = 3;
+   private static final int LZMA_TAG = 4;
+
    /* ----------------------------------------------------------------
     *                       COMPRESSOR INTERFACE
     * ----------------------------------------------------------------
@@ -261,16 +620,28 @@ public class RNGZSettings
    public static OutputStream wrapOutput
       (OutputStream out, DataCompression cm)
       throws IOException
+   {
+      return wrapOutput(out, cm, LzmaPreset.DEFAULT);
+   }
+
+   /**
+    * The same, but LZMA uses the parameters in ‘lzma’.
+    */
+   public static OutputStream wrapOutput
+      (OutputStream out, DataCompression cm, LzmaPreset lzma)
+      throws IOException
    {
       switch(cm) {
       case NONE: break;
       case GZ: out = new GZIPOutputStream(out); break;
       case BZ2: out = new CBZip2OutputStream(out); break; 
-      case LZMA: out = new LzmaOutputStream(out); break;
+      case LZMA: out = new LzmaOutputStream(out, lzma); break;
+      case PLZMA: out = new ParallelLzmaOutputStream(out, lzma); break;
+      case PBZ2: out = new ParallelBZip2OutputStream(out); break;
       case PPM:
         out = new ArithCodeOutputStream(out, new PPMModel(PPM_SMALL_LENGTH));
         break;
-      case PPMX:
+      case PPMX: case PPMP:
         out = new ArithCodeOutputStream(out, new PPMModel(PPM_LARGE_LENGTH));
         break;
 
@@ -296,10 +667,21 @@ public class RNGZSettings
          other embedded streams will exist, then gives the compression
          scheme for each one.  For now, that is:
 
-         zz  encoder id (one byte, 0=FIXED, 1=HUFFMAN, 2=BYTE)
+         zz  encoder id (one byte, 0=FIXED, 1=HUFFMAN, 2=BYTE, 3=ARITH,
+             4=CONTEXT)
          02  number of streams
          xx  compression for bit stream (0=NONE, 1=GZ, 2=BZ2, 3=PPM, 4=LZMA)
          yy  compression for data stream (same)
+
+         In version 02 (EXTENDED_MAGIC), this is followed by tagged
+         settings, each a one-byte tag and its value, ending with a
+         zero byte:
+
+         01  chunking: element name (UTF), records per chunk (int)
+         02  containers (no value)
+         03  typed values (no value)
+         04  LZMA parameters: for the tree stream, then the data stream,
+             six bytes each (see LzmaPreset.writeTo)
       */
       DataOutputStream out = mux.open
          (stream, new OutputStreamFilter<DataOutputStream>() {
@@ -312,6 +694,25 @@ public class RNGZSettings
       out.write(2);
       out.write(treeCompr.ordinal());
       out.write(dataCompr.ordinal());
+      if(magic() == EXTENDED_MAGIC) {
+         if(chunkElement != null) {
+            out.write(CHUNK_TAG);
+            out.writeUTF(chunkElement);
+            out.writeInt(chunkRecords);
+         }
+         if(containers) {
+            out.write(CONTAINER_TAG);
+         }
+         if(typedValues) {
+            out.write(TYPED_TAG);
+         }
+         if(lzmaPresets()) {
+            out.write(LZMA_TAG);
+            treeLzma.writeTo(out);
+            dataLzma.writeTo(out);
+         }
+         out.write(END_TAG);
+      }
    }
 
    /** 
@@ -326,11 +727,22 @@ public class RNGZSettings
       return mux.open
          (stream, new OutputStreamFilter<BitOutputStream>() {
             public BitOutputStream wrap (OutputStream out) throws IOException {
-               return new BitOutputStream(wrapOutput(out, treeCompr));
+               return new BitOutputStream
+                  (worker(wrapOutput(out, treeCompr, treeLzma), treeCompr));
             }
          });
    }
 
+   /* Moves the compressor ‘out’ into a thread of its own, if these
+      settings call for it and there is a compressor at all. */
+   private OutputStream worker(OutputStream out, DataCompression cm)
+   {
+      if(threaded && cm != DataCompression.NONE) {
+         return new WorkerOutputStream(out);
+      }
+      return out;
+   }
+
    /**
     * Construct a <code>DataOutputStream</code> which is compressed
     * according to the settings.
@@ -339,22 +751,74 @@ public class RNGZSettings
   protected ContextualOutputStream newDataOutput
     (MultiplexOutputStream mux, int stream)
     throws IOException
+  {
+    return newDataOutput(mux, stream, threaded);
+  }
+
+   /**
+    * The same, but the compressor runs in a thread of its own only
+    * if ‘threaded’ is true.  Containers and chunks pass false, since
+    * there are many of them, and chunks are already compressed in
+    * parallel.
+    */
+  ContextualOutputStream newDataOutput
+    (MultiplexOutputStream mux, int stream, final boolean threaded)
+    throws IOException
   {
     return mux.open
       (stream, new OutputStreamFilter<ContextualOutputStream>() {
         public ContextualOutputStream wrap (OutputStream out) 
           throws IOException {
-          switch( dataCompr ) {
-          case PPM:
-            return new PPMContextOutputStream(out, PPM_SMALL_LENGTH);
-          case PPMX:
-            return new PPMContextOutputStream(out, PPM_LARGE_LENGTH);
-          default:
-            return new ContextFreeOutputStream(wrapOutput(out, dataCompr));
-          }
+          return newDataOutput(out, threaded);
         }});
   }
 
+   /**
+    * Construct a <code>DataOutputStream</code> on ‘out’, which is
+    * compressed according to the settings.
+    * @see #dataCompr
+    */
+  protected ContextualOutputStream newDataOutput(OutputStream out)
+    throws IOException
+  {
+    return newDataOutput(out, false);
+  }
+
+  private ContextualOutputStream newDataOutput
+    (OutputStream out, boolean threaded)
+    throws IOException
+  {
+    switch( dataCompr ) {
+    case PPM:
+      return new PPMContextOutputStream(out, PPM_SMALL_LENGTH, threaded);
+    case PPMX:
+      return new PPMContextOutputStream(out, PPM_LARGE_LENGTH, threaded);
+    case PPMP:
+      return new PPMPathOutputStream(out, PPM_LARGE_LENGTH, threaded);
+    default:
+      out = wrapOutput(out, dataCompr, dataLzma);
+      if( threaded ) out = worker(out, dataCompr);
+      return new ContextFreeOutputStream(out);
+    }
+  }
+
+   /**
+    * Construct a data stream on ‘out’ for the content of one chunk:
+    * if containers are on, this is a multiplex stream of its own,
+    * with a container for each path; otherwise it is just
+    * {@link #newDataOutput(OutputStream)}.
+    */
+   ContextualOutputStream newChunkDataOutput(OutputStream out)
+      throws IOException
+   {
+      if(!containers) {
+         return newDataOutput(out);
+      }
+      MultiplexOutputStream mux = new MultiplexOutputStream(out, magic());
+      return new ContainerOutputStream(mux, true, this,
+                                       newDataOutput(mux, 0, false), 1, 2);
+   }
+
    /**
     * Construct a <code>ChoiceCoder</code> according to these
     * settings.
@@ -368,6 +832,12 @@ public class RNGZSettings
       else if(limit == 1) {
          return TrivialChoiceCoder.instance;
       }
+      else if(coding == BitCoding.ARITH) {
+         return new ArithChoiceCoder(limit, id);
+      }
+      else if(coding == BitCoding.CONTEXT) {
+         return new ContextChoiceCoder(limit, id);
+      }
       else if(limit > 2 && coding == BitCoding.HUFFMAN) {
          return new HuffmanChoiceCoder(limit, id);
       }
@@ -394,7 +864,8 @@ public class RNGZSettings
     */
    protected int magic() 
    {
-      return MAGIC;
+      return chunkElement != null || containers || typedValues
+         || lzmaPresets()? EXTENDED_MAGIC : MAGIC;
    }
 
    /**
@@ -404,7 +875,8 @@ public class RNGZSettings
                                      int stream)
       throws IOException
    {
-      if(mux.magic() != magic()) {
+      int version = mux.magic();
+      if(version != MAGIC && version != EXTENDED_MAGIC) {
          throw new RNGZFormatException("bad magic");
       }
       DataInputStream config = new DataInputStream(mux.open(stream));
@@ -415,6 +887,14 @@ public class RNGZSettings
          }
          treeCompr = DataCompression_values[config.read()];
          dataCompr = DataCompression_values[config.read()];
+         chunkElement = null;
+         chunkRecords = DEFAULT_CHUNK_RECORDS;
+         containers = false;
+         typedValues = false;
+         treeLzma = dataLzma = LzmaPreset.DEFAULT;
+         if(version == EXTENDED_MAGIC) {
+            readExtensions(config);
+         }
       }
       catch(IndexOutOfBoundsException x) {
          throw new RNGZFormatException("unknown coding");
@@ -422,6 +902,31 @@ public class RNGZSettings
       return this;
    }
 
+   private void readExtensions(DataInputStream config) throws IOException
+   {
+      for(int tag = config.readUnsignedByte();  tag != END_TAG;
+          tag = config.readUnsignedByte()) {
+         switch(tag) {
+         case CHUNK_TAG:
+            chunkElement = config.readUTF();
+            chunkRecords = config.readInt();
+            break;
+         case CONTAINER_TAG:
+            containers = true;
+            break;
+         case TYPED_TAG:
+            typedValues = true;
+            break;
+         case LZMA_TAG:
+            treeLzma = LzmaPreset.readFrom(config);
+            dataLzma = LzmaPreset.readFrom(config);
+            break;
+         default:
+            throw new RNGZFormatException("unknown setting "+tag);
+         }
+      }
+   }
+
    /** 
     * Create a decompressing input stream, according to the value of
     * ‘cm’. 
@@ -429,16 +934,29 @@ public class RNGZSettings
    public static InputStream wrapInput
       (InputStream in, DataCompression cm)
       throws IOException
+   {
+      return wrapInput(in, cm, LzmaPreset.DEFAULT);
+   }
+
+   /**
+    * The same, but LZMA uses the parameters in ‘lzma’, which must be
+    * those the stream was written with.
+    */
+   public static InputStream wrapInput
+      (InputStream in, DataCompression cm, LzmaPreset lzma)
+      throws IOException
    {
       switch(cm) {
       case NONE: break;
       case GZ: in = new GZIPInputStream(in); break;
       case BZ2: in = new CBZip2InputStream(in); break;
-      case LZMA: in = new LzmaInputStream(in); break;
+      case LZMA: in = new LzmaInputStream(in, lzma, false); break;
+      case PLZMA: in = new ParallelLzmaInputStream(in, lzma); break;
+      case PBZ2: in = new ParallelBZip2InputStream(in); break;
       case PPM: 
         in = new ArithCodeInputStream(in, new PPMModel(PPM_SMALL_LENGTH));
         break;
-      case PPMX: 
+      case PPMX: case PPMP:
         in = new ArithCodeInputStream(in, new PPMModel(PPM_LARGE_LENGTH));
         break;
       default: assert false;
@@ -455,7 +973,8 @@ public class RNGZSettings
                                         int stream)
       throws IOException
    {
-      return new BitInputStream(wrapInput(mux.open(stream), treeCompr));
+      return new BitInputStream
+         (wrapInput(mux.open(stream), treeCompr, treeLzma));
    }
    
    /**
@@ -467,14 +986,40 @@ public class RNGZSettings
      (MultiplexInputStream mux, int stream)
       throws IOException
    {
-     InputStream in = mux.open(stream);
+     return newDataInput(mux.open(stream));
+   }
+
+   /**
+    * Reads the content of one chunk.
+    * @see #newChunkDataOutput
+    */
+   ContextualInputStream newChunkDataInput(InputStream in)
+      throws IOException
+   {
+      if(!containers) {
+         return newDataInput(in);
+      }
+      MultiplexInputStream mux = new MultiplexInputStream(in);
+      return new ContainerInputStream(mux, this, newDataInput(mux, 0), 2);
+   }
+
+   /**
+    * Create a decompressing data input stream on ‘in’, according to
+    * these settings.
+    * @see #dataCompr
+    */
+   protected ContextualInputStream newDataInput(InputStream in)
+      throws IOException
+   {
      switch( dataCompr ) {
      case PPM:
        return new PPMContextInputStream(in, PPM_SMALL_LENGTH);
      case PPMX:
        return new PPMContextInputStream(in, PPM_LARGE_LENGTH);
+     case PPMP:
+       return new PPMPathInputStream(in, PPM_LARGE_LENGTH);
      default:
-       return new ContextFreeInputStream(wrapInput(in, dataCompr));
+       return new ContextFreeInputStream(wrapInput(in, dataCompr, dataLzma));
      }
    }
 }
@@ -79,6 +79,11 @@ public class VerboseOutput implements RNGZOutputInterface
       writeContent(path, new String(buf, start, length));
    }
 
+   public void writeContent(List<String> path, int type, String s)
+   {
+      writeContent(path, s);
+   }
+
    /**
     * Flushes the underlying PrintStream.
     */
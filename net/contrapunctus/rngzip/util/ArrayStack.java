@@ -0,0 +1,84 @@
+package net.contrapunctus.rngzip.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A stack backed by an <code>ArrayList</code>, for use where
+ * <code>java.util.Stack</code> would pay for synchronization we do
+ * not need.  Its {@link #asList} view lets the compressor pass its
+ * stack of element names directly as the ‘path’ of a content string,
+ * bottom element first, without letting the receiver change it.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ * 
+ * @author Christopher League
+ */
+public class ArrayStack<T>
+{
+   private final ArrayList<T> items;
+   private final List<T> view;
+
+   public ArrayStack() { this(10); }
+   
+   public ArrayStack(int capacity)
+   {
+      items = new ArrayList<T>(capacity);
+      view = Collections.unmodifiableList(items);
+   }
+
+   /**
+    * Pushes an item onto the top of the stack, and returns it.
+    */
+   public T push(T x)
+   {
+      items.add(x);
+      return x;
+   }
+
+   /**
+    * Removes and returns the item at the top of the stack.
+    * @throws IndexOutOfBoundsException if the stack is empty.
+    */
+   public T pop()
+   {
+      return items.remove(items.size() - 1);
+   }
+
+   /**
+    * Returns the item at the top of the stack, without removing it.
+    * @throws IndexOutOfBoundsException if the stack is empty.
+    */
+   public T peek()
+   {
+      return items.get(items.size() - 1);
+   }
+
+   public int size()
+   {
+      return items.size();
+   }
+
+   public boolean isEmpty()
+   {
+      return items.isEmpty();
+   }
+
+   public void clear()
+   {
+      items.clear();
+   }
+
+   /**
+    * Returns a read-only view of the stack, bottom item first.  It
+    * follows later pushes and pops, so a receiver that keeps it must
+    * copy it.
+    */
+   public List<T> asList()
+   {
+      return view;
+   }
+}
@@ -0,0 +1,223 @@
+package net.contrapunctus.rngzip.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An on-disk cache of compiled automata.  Building a
+ * <code>BaliAutomaton</code> from a RELAX NG schema means running the
+ * whole schema reader, the Bali optimizers, and the automaton
+ * builder; for short runs on small files, that dominates the running
+ * time.  This class keeps the binary representation written by
+ * {@link BaliAutomaton#writeCompiled} in a directory, one file per
+ * schema, and loads it instead when it can.
+ *
+ * <p>Cache files are named by a SHA-1 digest of the schema URL and
+ * the contents found at that URL, so editing the schema invalidates
+ * its entry.  The automaton also depends on the other files that the
+ * schema includes or references, so each entry begins with the URI
+ * of each of those, as the schema reader resolved them, and a digest
+ * of its contents.  Loading the entry reads them all again, and if
+ * any has changed (or cannot be read), the entry is stale.  The
+ * cache is strictly an optimization: a missing, stale, or corrupt
+ * entry just means the automaton is built from the schema again, and
+ * failure to write an entry is ignored.  Entries are written to a
+ * temporary file and then renamed, so concurrent processes sharing a
+ * cache never see a partial entry.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ */
+public class AutomatonCache
+{
+   private static final boolean DEBUG =
+      System.getProperty("DEBUG_AutomatonCache") != null;
+   private static final PrintStream dbg = System.err;
+   private static final String SUFFIX = ".bali";
+   private static final int DIGEST_SIZE = 20;  // SHA-1
+   private static final int SOURCES_VERSION = 1;
+
+   private final File dir;
+
+   /**
+    * Use (and if necessary, create) the given cache directory.
+    */
+   public AutomatonCache(File dir)
+   {
+      this.dir = dir;
+   }
+
+   /**
+    * Returns the default cache directory, <code>.rngzip</code> in the
+    * user’s home directory.
+    */
+   public static File defaultDirectory()
+   {
+      return new File(System.getProperty("user.home"), ".rngzip");
+   }
+
+   /**
+    * Loads the automaton for the schema at ‘url’ from the cache if
+    * possible; otherwise builds it with
+    * {@link BaliAutomaton#fromRNG(URL)} and adds it to the cache.
+    */
+   public BaliAutomaton load(URL url) throws SchemaFormatException
+   {
+      File entry = null;
+      try {
+         entry = new File(dir, key(url) + SUFFIX);
+      }
+      catch(IOException x) {
+         /* Can’t read the schema?  Let fromRNG report it. */
+         if(DEBUG) dbg.printf("AutomatonCache: %s: %s%n", url, x);
+      }
+      if(entry != null && entry.isFile()) {
+         try {
+            DataInputStream in = new DataInputStream
+               (new BufferedInputStream(new FileInputStream(entry)));
+            try {
+               if(fresh(in)) {
+                  BaliAutomaton ba = BaliAutomaton.readCompiled(in, url);
+                  if(DEBUG) dbg.printf("AutomatonCache: hit %s%n", entry);
+                  return ba;
+               }
+               if(DEBUG) dbg.printf("AutomatonCache: stale %s%n", entry);
+            }
+            finally {
+               in.close();
+            }
+         }
+         catch(IOException x) {
+            if(DEBUG) dbg.printf("AutomatonCache: bad %s: %s%n", entry, x);
+         }
+         entry.delete();
+      }
+      ArrayList<String> sources = new ArrayList<String>();
+      BaliAutomaton ba = BaliAutomaton.fromRNG(url, sources);
+      if(entry != null) {
+         store(ba, sources, entry);
+      }
+      return ba;
+   }
+
+   /* Reads the list of included files at the start of an entry, and
+      checks that each still has the same contents. */
+   private static boolean fresh(DataInputStream in) throws IOException
+   {
+      boolean fresh = true;
+      for(int n = in.readInt();  n > 0;  n--) {
+         String uri = in.readUTF();
+         byte[] sum = new byte[DIGEST_SIZE];
+         in.readFully(sum);
+         if(fresh) {
+            try {
+               fresh = Arrays.equals(sum, digest(uri));
+            }
+            catch(IOException x) {
+               fresh = false;
+            }
+         }
+      }
+      return fresh;
+   }
+
+   private void store(BaliAutomaton ba, List<String> sources, File entry)
+   {
+      File tmp = null;
+      try {
+         dir.mkdirs();
+         tmp = File.createTempFile("tmp", SUFFIX, dir);
+         DataOutputStream out = new DataOutputStream
+            (new BufferedOutputStream(new FileOutputStream(tmp)));
+         try {
+            out.writeInt(sources.size());
+            for(String uri : sources) {
+               out.writeUTF(uri);
+               out.write(digest(uri));
+            }
+            ba.writeCompiled(out);
+         }
+         finally {
+            out.close();
+         }
+         if(tmp.renameTo(entry)) {
+            tmp = null;
+            if(DEBUG) dbg.printf("AutomatonCache: stored %s%n", entry);
+         }
+      }
+      catch(IOException x) {
+         if(DEBUG) dbg.printf("AutomatonCache: cannot store: %s%n", x);
+      }
+      finally {
+         if(tmp != null) tmp.delete();
+      }
+   }
+
+   /* The digest also covers the format version, and the version of
+      the list of included files, so that entries from an older
+      format are simply never found. */
+   private static String key(URL url) throws IOException
+   {
+      MessageDigest md = sha1();
+      md.update(Integer.toHexString(AutomatonFormat.MAGIC).getBytes("UTF-8"));
+      md.update((byte) SOURCES_VERSION);
+      md.update(url.toString().getBytes("UTF-8"));
+      md.update((byte) 0);
+      update(md, url);
+      StringBuilder sb = new StringBuilder();
+      for(byte b : md.digest()) {
+         sb.append(String.format("%02x", b & 0xFF));
+      }
+      return sb.toString();
+   }
+
+   /* The digest of the contents at ‘uri’. */
+   private static byte[] digest(String uri) throws IOException
+   {
+      MessageDigest md = sha1();
+      update(md, new URL(uri));
+      return md.digest();
+   }
+
+   private static MessageDigest sha1() throws IOException
+   {
+      try {
+         return MessageDigest.getInstance("SHA-1");
+      }
+      catch(NoSuchAlgorithmException x) {
+         throw new IOException(x.getMessage());
+      }
+   }
+
+   private static void update(MessageDigest md, URL url) throws IOException
+   {
+      InputStream in = url.openStream();
+      try {
+         byte[] buf = new byte[8192];
+         int n;
+         while((n = in.read(buf)) > 0) {
+            md.update(buf, 0, n);
+         }
+      }
+      finally {
+         in.close();
+      }
+   }
+}
@@ -0,0 +1,411 @@
+package net.contrapunctus.rngzip.util;
+
+import com.sun.msv.grammar.AnyNameClass;
+import com.sun.msv.grammar.ChoiceNameClass;
+import com.sun.msv.grammar.DifferenceNameClass;
+import com.sun.msv.grammar.NameClass;
+import com.sun.msv.grammar.NamespaceNameClass;
+import com.sun.msv.grammar.NotNameClass;
+import com.sun.msv.grammar.SimpleNameClass;
+import com.sun.msv.util.StringPair;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.kohsuke.bali.automaton.*;
+import org.kohsuke.bali.datatype.DatatypeImpl;
+import org.kohsuke.bali.datatype.DatatypeLibraryImpl;
+import org.kohsuke.bali.datatype.Parameter;
+import org.kohsuke.bali.datatype.ValidationContextImpl;
+import org.kohsuke.bali.datatype.Value;
+import org.relaxng.datatype.Datatype;
+import org.relaxng.datatype.DatatypeBuilder;
+import org.relaxng.datatype.DatatypeException;
+import org.relaxng.datatype.ValidationContext;
+
+/**
+ * This class implements the compact binary representation of a
+ * <code>BaliAutomaton</code>, so that it can be loaded again without
+ * going through the RELAX NG reader, the Bali optimizers, and the
+ * automaton builder.  The representation records the transitions in
+ * their <em>sorted</em> order, along with the name codes, name
+ * classes, datatypes, values, and the checksum.  Reading it produces
+ * an automaton that prints (and therefore checksums) exactly like the
+ * original.
+ *
+ * <p>Interleave and list alphabets are not supported (nor are they by
+ * the rest of rngzip), so automata containing them cannot be written;
+ * any problem, on writing or reading, is reported as an
+ * <code>IOException</code>, and the caller can just fall back to
+ * building the automaton from the schema.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see AutomatonCache
+ */
+final class AutomatonFormat
+{
+   /** Identifies the format, and its version in the low byte. */
+   static final int MAGIC = 0x726E4201;
+
+   private static final int ELEMENT = 1, ATTRIBUTE = 2,
+      NON_EXISTENT = 3, DATA = 4, VALUE = 5;
+
+   private static final int SIMPLE = 1, NS_NAME = 2, ANY_NAME = 3,
+      NOT = 4, CHOICE = 5, DIFFERENCE = 6;
+
+   private AutomatonFormat() { }
+
+   /* ------------------------------------------------------------ */
+
+   static void write(DataOutput out, TreeAutomaton au,
+                     State[] states, Transition[][] trans, long sum)
+      throws IOException
+   {
+      if(au.getInitialState().id != 0) {
+         throw new IOException("initial state is not #0");
+      }
+      out.writeInt(MAGIC);
+      out.writeLong(sum);
+      StringPair[] ps = au.listNameCodes();
+      out.writeInt(ps.length);
+      for(StringPair p : ps) {
+         out.writeUTF(p.namespaceURI);
+         out.writeUTF(p.localName);
+         out.writeInt(au.getNameCode(p));
+      }
+      Writer w = new Writer(out);
+      out.writeInt(states.length);
+      for(int i = 0;  i < states.length;  i++) {
+         out.writeBoolean(states[i].isFinal);
+         out.writeInt(trans[i].length);
+         for(Transition t : trans[i]) {
+            out.writeInt(t.left == null? -1 : t.left.id);
+            out.writeInt(t.right.id);
+            w.alphabet(t.alphabet);
+         }
+      }
+   }
+
+   private static class Writer
+   {
+      private final DataOutput out;
+      private final Map<Datatype,Integer> datatypes =
+         new IdentityHashMap<Datatype,Integer>();
+
+      Writer(DataOutput out) { this.out = out; }
+
+      void alphabet(Alphabet a) throws IOException
+      {
+         if(a instanceof ElementAlphabet) {
+            out.writeByte(ELEMENT);
+            signature(((ElementAlphabet)a).name);
+         }
+         else if(a instanceof AttributeAlphabet) {
+            AttributeAlphabet aa = (AttributeAlphabet) a;
+            out.writeByte(ATTRIBUTE);
+            signature(aa.name);
+            out.writeBoolean(aa.repeated);
+         }
+         else if(a instanceof NonExistentAttributeAlphabet) {
+            NonExistentAttributeAlphabet na =
+               (NonExistentAttributeAlphabet) a;
+            out.writeByte(NON_EXISTENT);
+            signatures(na.negativeNameTests);
+            signatures(na.positiveNameTests);
+         }
+         else if(a instanceof DataAlphabet) {
+            out.writeByte(DATA);
+            datatype(((DataAlphabet)a).datatype);
+         }
+         else if(a instanceof ValueAlphabet) {
+            ValueAlphabet va = (ValueAlphabet) a;
+            Value v = (Value) va.value;
+            out.writeByte(VALUE);
+            datatype(va.datatype);
+            out.writeUTF(v.value);
+            context(v.context);
+         }
+         else {
+            throw new IOException("unsupported alphabet: "+a);
+         }
+      }
+
+      void signatures(NameSignature[] ss) throws IOException
+      {
+         out.writeInt(ss.length);
+         for(NameSignature s : ss) {
+            signature(s);
+         }
+      }
+
+      void signature(NameSignature s) throws IOException
+      {
+         out.writeInt(s.mask);
+         out.writeInt(s.test);
+         nameClass(s.nameClass);
+      }
+
+      void nameClass(NameClass nc) throws IOException
+      {
+         if(nc instanceof SimpleNameClass) {
+            SimpleNameClass s = (SimpleNameClass) nc;
+            out.writeByte(SIMPLE);
+            out.writeUTF(s.namespaceURI);
+            out.writeUTF(s.localName);
+         }
+         else if(nc instanceof NamespaceNameClass) {
+            out.writeByte(NS_NAME);
+            out.writeUTF(((NamespaceNameClass)nc).namespaceURI);
+         }
+         else if(nc instanceof AnyNameClass) {
+            out.writeByte(ANY_NAME);
+         }
+         else if(nc instanceof NotNameClass) {
+            out.writeByte(NOT);
+            nameClass(((NotNameClass)nc).child);
+         }
+         else if(nc instanceof ChoiceNameClass) {
+            ChoiceNameClass c = (ChoiceNameClass) nc;
+            out.writeByte(CHOICE);
+            nameClass(c.nc1);
+            nameClass(c.nc2);
+         }
+         else if(nc instanceof DifferenceNameClass) {
+            DifferenceNameClass d = (DifferenceNameClass) nc;
+            out.writeByte(DIFFERENCE);
+            nameClass(d.nc1);
+            nameClass(d.nc2);
+         }
+         else {
+            throw new IOException("unsupported name class: "+nc);
+         }
+      }
+
+      /* Each datatype is written in full the first time only; after
+         that, just its index. */
+      void datatype(Datatype dt) throws IOException
+      {
+         Integer k = datatypes.get(dt);
+         if(k != null) {
+            out.writeInt(k);
+            return;
+         }
+         if(!(dt instanceof DatatypeImpl)) {
+            throw new IOException("unsupported datatype: "+dt);
+         }
+         DatatypeImpl di = (DatatypeImpl) dt;
+         out.writeInt(datatypes.size());
+         datatypes.put(dt, datatypes.size());
+         out.writeUTF(di.nsURI);
+         out.writeUTF(di.name);
+         out.writeInt(di.parameters.length);
+         for(Parameter p : di.parameters) {
+            out.writeUTF(p.name);
+            out.writeUTF(p.value);
+            context(p.context);
+         }
+      }
+
+      /* The only part of a validation context that matters to
+         datatypes is the prefixes they resolved. */
+      void context(ValidationContextImpl vc) throws IOException
+      {
+         String[] ns = vc == null? new String[0]
+            : vc.getQueriedNamespaces();
+         int n = 0;
+         for(int i = 0;  i+1 < ns.length;  i += 2) {
+            if(ns[i] != null && ns[i+1] != null) n++;
+         }
+         out.writeInt(n);
+         for(int i = 0;  i+1 < ns.length;  i += 2) {
+            if(ns[i] != null && ns[i+1] != null) {
+               out.writeUTF(ns[i]);
+               out.writeUTF(ns[i+1]);
+            }
+         }
+      }
+   } // end class Writer
+
+   /* ------------------------------------------------------------ */
+
+   static BaliAutomaton read(DataInput in, URL url) throws IOException
+   {
+      if(in.readInt() != MAGIC) {
+         throw new IOException("not a compiled automaton");
+      }
+      long sum = in.readLong();
+      int n = in.readInt();
+      HashMap<StringPair,Integer> codes = new HashMap<StringPair,Integer>();
+      for(int i = 0;  i < n;  i++) {
+         String ns = in.readUTF();
+         String ln = in.readUTF();
+         codes.put(new StringPair(ns, ln), in.readInt());
+      }
+      TreeAutomaton au = new TreeAutomaton(codes);
+      int m = in.readInt();
+      boolean[] fin = new boolean[m];
+      State[] states = new State[m];
+      Transition[][] trans = new Transition[m][];
+      /* States must all exist before transitions can refer to them,
+         so read the transitions into parallel arrays first. */
+      int[][] lefts = new int[m][], rights = new int[m][];
+      Alphabet[][] alphas = new Alphabet[m][];
+      Reader r = new Reader(in);
+      for(int i = 0;  i < m;  i++) {
+         fin[i] = in.readBoolean();
+         int k = in.readInt();
+         lefts[i] = new int[k];
+         rights[i] = new int[k];
+         alphas[i] = new Alphabet[k];
+         for(int j = 0;  j < k;  j++) {
+            lefts[i][j] = in.readInt();
+            rights[i][j] = in.readInt();
+            alphas[i][j] = r.alphabet();
+         }
+      }
+      for(int i = 0;  i < m;  i++) {
+         states[i] = au.createState(null, fin[i], null);
+      }
+      for(int i = 0;  i < m;  i++) {
+         int k = alphas[i].length;
+         trans[i] = new Transition[k];
+         for(int j = 0;  j < k;  j++) {
+            State left = lefts[i][j] < 0? null : states[lefts[i][j]];
+            State right = states[rights[i][j]];
+            trans[i][j] = new Transition(alphas[i][j], left, right);
+            states[i].addTransition(alphas[i][j], left, right);
+         }
+      }
+      return new BaliAutomaton(url, au, trans, sum);
+   }
+
+   private static class Reader
+   {
+      private final DataInput in;
+      private final ArrayList<Datatype> datatypes = new ArrayList<Datatype>();
+
+      Reader(DataInput in) { this.in = in; }
+
+      Alphabet alphabet() throws IOException
+      {
+         switch(in.readByte()) {
+         case ELEMENT:
+            return new ElementAlphabet(signature());
+         case ATTRIBUTE:
+            NameSignature s = signature();
+            return new AttributeAlphabet(s, in.readBoolean());
+         case NON_EXISTENT:
+            NameSignature[] neg = signatures();
+            return new NonExistentAttributeAlphabet(neg, signatures());
+         case DATA:
+            return new DataAlphabet(datatype());
+         case VALUE:
+            Datatype dt = datatype();
+            String v = in.readUTF();
+            Object o = dt.createValue(v, context());
+            if(o == null) {
+               throw new IOException("invalid value: \""+v+"\"");
+            }
+            return new ValueAlphabet(dt, o);
+         default:
+            throw new IOException("bad alphabet tag");
+         }
+      }
+
+      NameSignature[] signatures() throws IOException
+      {
+         NameSignature[] ss = new NameSignature[in.readInt()];
+         for(int i = 0;  i < ss.length;  i++) {
+            ss[i] = signature();
+         }
+         return ss;
+      }
+
+      /* The encoder is only used by NameSignature.toString, for
+         debugging, so we do without it. */
+      NameSignature signature() throws IOException
+      {
+         int mask = in.readInt();
+         int test = in.readInt();
+         return new NameSignature(nameClass(), mask, test, null);
+      }
+
+      NameClass nameClass() throws IOException
+      {
+         switch(in.readByte()) {
+         case SIMPLE:
+            String ns = in.readUTF();
+            return new SimpleNameClass(ns, in.readUTF());
+         case NS_NAME:
+            return new NamespaceNameClass(in.readUTF());
+         case ANY_NAME:
+            return AnyNameClass.theInstance;
+         case NOT:
+            return new NotNameClass(nameClass());
+         case CHOICE:
+            NameClass c1 = nameClass();
+            return new ChoiceNameClass(c1, nameClass());
+         case DIFFERENCE:
+            NameClass d1 = nameClass();
+            return new DifferenceNameClass(d1, nameClass());
+         default:
+            throw new IOException("bad name class tag");
+         }
+      }
+
+      Datatype datatype() throws IOException
+      {
+         int k = in.readInt();
+         if(k < datatypes.size()) {
+            return datatypes.get(k);
+         }
+         if(k != datatypes.size()) {
+            throw new IOException("bad datatype index");
+         }
+         String lib = in.readUTF();
+         String name = in.readUTF();
+         int n = in.readInt();
+         try {
+            DatatypeBuilder b =
+               new DatatypeLibraryImpl(lib).createDatatypeBuilder(name);
+            for(int i = 0;  i < n;  i++) {
+               String pn = in.readUTF();
+               String pv = in.readUTF();
+               b.addParameter(pn, pv, context());
+            }
+            Datatype dt = b.createDatatype();
+            datatypes.add(dt);
+            return dt;
+         }
+         catch(DatatypeException x) {
+            throw new IOException(x.getMessage());
+         }
+      }
+
+      ValidationContext context() throws IOException
+      {
+         int n = in.readInt();
+         final HashMap<String,String> map = new HashMap<String,String>();
+         for(int i = 0;  i < n;  i++) {
+            String prefix = in.readUTF();
+            map.put(prefix, in.readUTF());
+         }
+         return new ValidationContext() {
+            public String resolveNamespacePrefix(String prefix) {
+               return map.get(prefix);
+            }
+            public String getBaseUri() { return null; }
+            public boolean isUnparsedEntity(String name) { return true; }
+            public boolean isNotation(String name) { return true; }
+         };
+      }
+   } // end class Reader
+}
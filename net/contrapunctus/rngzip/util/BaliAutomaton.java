@@ -1,15 +1,21 @@
 package net.contrapunctus.rngzip.util;
 
+import com.sun.msv.driver.textui.DebugController;
 import com.sun.msv.grammar.Grammar;
+import com.sun.msv.reader.trex.ng.RELAXNGReader;
 import com.sun.msv.util.StringPair;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.zip.Adler32;
@@ -18,8 +24,11 @@ import java.util.zip.Checksum;
 import org.kohsuke.bali.Driver;
 import org.kohsuke.bali.automaton.*;
 import org.kohsuke.bali.automaton.builder.TreeAutomatonBuilder;
+import org.kohsuke.bali.datatype.Value;
 import org.kohsuke.bali.optimizer.*;
 import org.kohsuke.bali.writer.AutomatonWriter;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
 
 /**
  * This class encapsulates the <code>TreeAutomaton</code> from the
@@ -40,7 +49,9 @@ import org.kohsuke.bali.writer.AutomatonWriter;
  * <p>For efficiency, Bali maps qualified names to integers.  This
  * class also contains methods <code>encodeName</code> and
  * <code>decodeName</code> to provide convenient access to that
- * mapping.
+ * mapping.  Because there are only finitely many name codes, we
+ * also precompile, for each state, the element transitions that
+ * accept each code; see {@link #elementTransitions}.
  *
  * <p class='license'>This is free software; you may modify and/or
  * redistribute it under the terms of the GNU General Public License,
@@ -59,11 +70,58 @@ public final class BaliAutomaton
    private State[] states;
    private HashMap<Integer,String> names = new HashMap<Integer,String>();
    private TransitionSorter ts = new TransitionSorter();
+   private NameIndex[] elementIndex;
+   private volatile long adler = -1;
+   private byte[][] kinds;
+   private String[][] labels;
+   private int[][] children, siblings;
+   private byte[] datatypes;
+
+   /** Kinds of transitions, as returned by {@link #kindOf}. */
+   public static final int ELEMENT = 0, ATTRIBUTE = 1,
+      NON_EXISTENT_ATTRIBUTE = 2, DATA = 3, VALUE = 4, OTHER = 5;
+
+   private static final int[] NO_TRANSITIONS = new int[0];
+
+   /* Bali uses this code for any name that does not appear in the
+      schema; only wildcard name classes can accept it. */
+   private static final int UNKNOWN_NAME = -1;
 
    public static BaliAutomaton fromRNG (URL url)
       throws SchemaFormatException
    {
-      Grammar gr = Driver.loadRELAXNGGrammar(url);
+      return fromRNG(url, null);
+   }
+
+   /**
+    * Build an automaton from the Relax NG schema at ‘url’, and add
+    * to ‘sources’ (unless it is null) the URI of every other file
+    * that the schema reader resolves along the way: those named by
+    * <code>include</code> and <code>externalRef</code>, for example.
+    * The automaton depends on their contents as well as the schema’s.
+    * @throws SchemaFormatException if there is a problem reading a
+    * Relax NG schema from ‘url’
+    * @see AutomatonCache
+    */
+   public static BaliAutomaton fromRNG (URL url,
+                                        final Collection<String> sources)
+      throws SchemaFormatException
+   {
+      RELAXNGReader reader = Driver.createRELAXNGReader();
+      if( sources != null ) {
+         /* The reader resolves each included file through the
+            controller, which passes it on to this resolver; null
+            means to go ahead and read the URI as it is. */
+         ((DebugController) reader.controller.getCore())
+            .externalEntityResolver = new EntityResolver() {
+               public InputSource resolveEntity(String pub, String sys) {
+                  sources.add(sys);
+                  return null;
+               }
+            };
+      }
+      reader.parse(url.toExternalForm());
+      Grammar gr = reader.getResult();
       if( gr == null ) throw new SchemaFormatException(url.toString());
       gr = Unifier.unify(gr);
       gr = ZeroOrMoreAttributeExpander.optimize(gr);
@@ -116,7 +174,23 @@ public final class BaliAutomaton
       this.url = url;
       this.au = au;
       states = au.getStates();
-      /* Build the names map: it is mostly used for debugging. */
+      buildNames();
+      /* Transitions are stored in a 2-D array. */
+      trans = new Transition[states.length][];
+      for(int i = 0;  i < states.length;  i++) {
+         assert states[i].id == i : states[i];
+         trans[i] = states[i].getTransitions();
+         /* Now we sort them: the order itself doesn’t really matter,
+            but MUST be consistent between different runs. */
+         Arrays.sort(trans[i], ts);
+      }
+      buildElementIndex();
+      buildTables();
+   }
+
+   /* Build the names map: it is mostly used for debugging. */
+   private void buildNames()
+   {
       StringBuilder s = new StringBuilder();
       for(StringPair p : au.listNameCodes()) {
          if(p.namespaceURI.length() > 0) {
@@ -127,17 +201,120 @@ public final class BaliAutomaton
          names.put(au.getNameCode(p), s.toString());
          s.setLength(0);
       }
-      /* Transitions are stored in a 2-D array. */
-      trans = new Transition[states.length][];
+   }
+
+   /* Used by AutomatonFormat, when the transitions arrive already
+      sorted and the checksum is known. */
+   BaliAutomaton(URL url, TreeAutomaton au, Transition[][] trans, long sum)
+   {
+      this.url = url;
+      this.au = au;
+      this.trans = trans;
+      this.adler = sum;
+      states = au.getStates();
+      buildNames();
+      buildElementIndex();
+      buildTables();
+   }
+
+   /* Every name code that encodeName can return is a value of the
+      Bali name map, or UNKNOWN_NAME.  So for each state we can
+      decide, once and for all, which element transitions accept
+      each code. */
+   private void buildElementIndex()
+   {
+      StringPair[] ps = au.listNameCodes();
+      int[] codes = new int[ps.length];
+      for(int k = 0;  k < ps.length;  k++) {
+         codes[k] = au.getNameCode(ps[k]);
+      }
+      int[] buf = new int[0];
+      int[][] found = new int[codes.length][];
+      elementIndex = new NameIndex[states.length];
       for(int i = 0;  i < states.length;  i++) {
-         assert states[i].id == i : states[i];
-         trans[i] = states[i].getTransitions();
-         /* Now we sort them: the order itself doesn’t really matter,
-            but MUST be consistent between different runs. */
-         Arrays.sort(trans[i], ts);
+         Transition[] tr = trans[i];
+         if(buf.length < tr.length) buf = new int[tr.length];
+         int n = 0;
+         for(int k = 0;  k < codes.length;  k++) {
+            found[k] = acceptingElements(tr, codes[k], buf);
+            if(found[k] != NO_TRANSITIONS) n++;
+         }
+         NameIndex ix = new NameIndex(n);
+         for(int k = 0;  k < codes.length;  k++) {
+            ix.put(codes[k], found[k]);
+         }
+         ix.unknown = acceptingElements(tr, UNKNOWN_NAME, buf);
+         elementIndex[i] = ix;
+      }
+   }
+
+   /* Flatten the transitions into arrays, so that the compressor and
+      decompressor can dispatch with a switch on the kind, rather
+      than through an AlphabetVisitor. */
+   private void buildTables()
+   {
+      kinds = new byte[states.length][];
+      labels = new String[states.length][];
+      children = new int[states.length][];
+      siblings = new int[states.length][];
+      datatypes = new byte[states.length];
+      for(int i = 0;  i < states.length;  i++) {
+         int type = -1;
+         Transition[] tr = trans[i];
+         kinds[i] = new byte[tr.length];
+         labels[i] = new String[tr.length];
+         children[i] = new int[tr.length];
+         siblings[i] = new int[tr.length];
+         for(int j = 0;  j < tr.length;  j++) {
+            Alphabet a = tr[j].alphabet;
+            if(a instanceof ElementAlphabet) {
+               kinds[i][j] = ELEMENT;
+               labels[i][j] = ((ElementAlphabet)a).name.nameClass.toString();
+            }
+            else if(a instanceof AttributeAlphabet) {
+               kinds[i][j] = ATTRIBUTE;
+               labels[i][j] =
+                  ((AttributeAlphabet)a).name.nameClass.toString();
+            }
+            else if(a instanceof NonExistentAttributeAlphabet) {
+               kinds[i][j] = NON_EXISTENT_ATTRIBUTE;
+            }
+            else if(a instanceof DataAlphabet) {
+               kinds[i][j] = DATA;
+               int t = TypedValues.typeOf(((DataAlphabet)a).datatype);
+               type = type < 0 || type == t? t : TypedValues.STRING;
+            }
+            else if(a instanceof ValueAlphabet) {
+               kinds[i][j] = VALUE;
+               labels[i][j] = ((Value)((ValueAlphabet)a).value).value;
+            }
+            else {
+               kinds[i][j] = OTHER;
+            }
+            Transition t = tr[j];
+            children[i][j] = 
+               t.left == null || isNull(t.left.id)? -1 : t.left.id;
+            siblings[i][j] = t.right.id;
+         }
+         datatypes[i] = (byte) Math.max(type, TypedValues.STRING);
       }
    }
 
+   /* Returns the indices of the element transitions in ‘tr’ that
+      accept name code ‘c’, using ‘buf’ as scratch space. */
+   private static int[] acceptingElements(Transition[] tr, int c, int[] buf)
+   {
+      int n = 0;
+      for(int j = 0;  j < tr.length;  j++) {
+         Alphabet a = tr[j].alphabet;
+         if(a instanceof ElementAlphabet
+            && ((ElementAlphabet)a).name.accepts(c)) {
+            buf[n++] = j;
+         }
+      }
+      return n == 0? NO_TRANSITIONS : Arrays.copyOf(buf, n);
+   }
+
    /** 
     * Return the ID of the start state of the automaton.  This usually
     * returns the integer zero, but clients should not depend on that.
@@ -229,9 +406,7 @@ public final class BaliAutomaton
     */
    public int childOf(int si, int tj)
    {
-      Transition tr = trans[si][tj];
-      if(tr.left == null || isNull(tr.left.id)) return -1;
-      else return tr.left.id;
+      return children[si][tj];
    }
 
    /**
@@ -242,9 +417,86 @@ public final class BaliAutomaton
     */   
    public int siblingOf(int si, int tj)
    {
-      return trans[si][tj].right.id;
+      return siblings[si][tj];
+   }
+
+   /**
+    * Returns the kind of alphabet on transition ‘tj’ from state ‘si’:
+    * one of {@link #ELEMENT}, {@link #ATTRIBUTE}, {@link
+    * #NON_EXISTENT_ATTRIBUTE}, {@link #DATA}, {@link #VALUE}, or
+    * {@link #OTHER} (interleave and list, which are not supported).
+    * Together with {@link #labelOf}, this lets clients dispatch on a
+    * transition with a <code>switch</code>, which is much cheaper
+    * than {@link #visitAlphabet} in the inner loop of a coder.
+    */
+   public int kindOf(int si, int tj)
+   {
+      return kinds[si][tj];
+   }
+
+   /**
+    * Returns the label of transition ‘tj’ from state ‘si’.  For
+    * element and attribute transitions, this is the name class
+    * (usually just the qualified name); for value transitions, it is
+    * the literal value, exactly as in the schema.  For other kinds,
+    * it is <code>null</code>.
+    */
+   public String labelOf(int si, int tj)
+   {
+      return labels[si][tj];
+   }
+
+   /**
+    * Determines whether transition ‘tj’ from state ‘si’ accepts the
+    * name code ‘c’.  For element and attribute transitions, this
+    * tests the name class; for a non-existent attribute transition,
+    * it tests whether ‘c’ is one of the names that must
+    * <em>not</em> appear.  Transitions of other kinds accept no
+    * names.
+    * @param c a name code, as returned by {@link #encodeName}.
+    */
+   public boolean acceptsName(int si, int tj, int c)
+   {
+      Alphabet a = trans[si][tj].alphabet;
+      switch(kinds[si][tj]) {
+      case ELEMENT:
+         return ((ElementAlphabet)a).name.accepts(c);
+      case ATTRIBUTE:
+         return ((AttributeAlphabet)a).name.accepts(c);
+      case NON_EXISTENT_ATTRIBUTE:
+         return ((NonExistentAttributeAlphabet)a).accepts(c);
+      default:
+         return false;
+      }
+   }
+
+   /**
+    * Returns the type of the data accepted by the data transitions
+    * from state ‘si’, as one of the constants of {@link TypedValues}.
+    * This belongs to the state rather than a transition, so that the
+    * compressor can encode a value before it knows which transition
+    * matched.  If the data transitions have different types, or there
+    * are none, it is {@link TypedValues#STRING}.
+    */
+   public int datatypeOf(int si)
+   {
+      return datatypes[si];
    }
    
+   /**
+    * Returns the indices of all element transitions from state ‘si’
+    * that accept the name code ‘elt’, in increasing order.  This is
+    * equivalent to visiting each transition and testing its
+    * <code>ElementAlphabet</code>, but it is answered from a table
+    * compiled when the automaton was loaded, and allocates nothing.
+    * The returned array is shared, so clients must not modify it.
+    * @param elt a name code, as returned by {@link #encodeName}.
+    */
+   public int[] elementTransitions(int si, int elt)
+   {
+      return elementIndex[si].get(elt);
+   }
+
    /**
     * Returns the integer representing the qualified name
     * ‘ns’:‘lname’.  For efficiency, Bali maps qualified names to
@@ -318,7 +570,36 @@ public final class BaliAutomaton
     */
    public long checksum()
    {
-      return checksum(new Adler32());
+      if(adler < 0) {
+         adler = checksum(new Adler32());
+      }
+      return adler;
+   }
+
+   /**
+    * Writes a compact binary representation of this automaton, which
+    * {@link #readCompiled} can load much faster than building it
+    * again from the schema.
+    * @throws IOException if the automaton uses features that the
+    * binary representation does not support, or on output errors.
+    * @see AutomatonCache
+    */
+   public void writeCompiled(OutputStream out) throws IOException
+   {
+      DataOutputStream dout = new DataOutputStream(out);
+      AutomatonFormat.write(dout, au, states, trans, checksum());
+      dout.flush();
+   }
+
+   /**
+    * Reads an automaton written by {@link #writeCompiled}.  The ‘url’
+    * is recorded as the automaton’s schema URL; it is not checked.
+    * @throws IOException if the input is not in the right format.
+    */
+   public static BaliAutomaton readCompiled(InputStream in, URL url)
+      throws IOException
+   {
+      return AutomatonFormat.read(new DataInputStream(in), url);
    }
 
    public URL getURL()
@@ -363,6 +644,53 @@ public final class BaliAutomaton
          }
    }
 
+   /* A small open-addressing map from name codes to arrays of
+      transition indices.  Codes that no element transition accepts
+      are not stored at all, so most of these tables are tiny. */
+   private static final class NameIndex
+   {
+      private int[] keys;
+      private int[][] vals;
+      private int mask;
+      int[] unknown = NO_TRANSITIONS;
+
+      NameIndex(int n)
+      {
+         int cap = 2;
+         while(cap < 2*n) cap <<= 1;
+         keys = new int[cap];
+         vals = new int[cap][];
+         mask = cap - 1;
+      }
+
+      private int slot(int code)
+      {
+         int h = code * 0x9E3779B9;
+         return (h ^ (h >>> 16)) & mask;
+      }
+
+      void put(int code, int[] ts)
+      {
+         if(ts == NO_TRANSITIONS || code == UNKNOWN_NAME) return;
+         int h = slot(code);
+         while(vals[h] != null) {
+            if(keys[h] == code) { vals[h] = ts; return; }
+            h = (h + 1) & mask;
+         }
+         keys[h] = code;
+         vals[h] = ts;
+      }
+
+      int[] get(int code)
+      {
+         if(code == UNKNOWN_NAME) return unknown;
+         for(int h = slot(code);  vals[h] != null;  h = (h + 1) & mask) {
+            if(keys[h] == code) return vals[h];
+         }
+         return NO_TRANSITIONS;
+      }
+   }
+
    private class TransitionSorter 
       implements AlphabetVisitor, Comparator<Transition>
    {
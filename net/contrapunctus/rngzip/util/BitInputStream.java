@@ -1,5 +1,6 @@
 package net.contrapunctus.rngzip.util;
 
+import com.colloquial.arithcode.ArithDecoder;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
@@ -7,7 +8,10 @@ import java.io.InputStream;
 
 /**
  * This class is used to read individual bits from an input stream.
- * It is compatible with BitOutputStream.
+ * It is compatible with BitOutputStream.  It reads the underlying
+ * stream a block at a time, and keeps up to 64 bits at hand in a
+ * word, so it reads ahead of the bits it has returned; nothing else
+ * should read from the underlying stream after it.
  *
  * <p class='license'>This is free software; you may modify and/or
  * redistribute it under the terms of the GNU General Public License,
@@ -19,15 +23,21 @@ import java.io.InputStream;
 public final class BitInputStream implements Closeable
 {
    /* To be compatible with BitOutputStream, we must do the opposite:
-    * we fill the buffer from MOST significant to LEAST.  The ‘mask’
-    * has exactly one bit set, which is the next one to load.  When
-    * ‘mask’ becomes zero, that means the buffer is empty and we need
-    * to read a new byte from the underlying stream.
+    * we read bits from MOST significant to LEAST.  The low ‘count’
+    * bits of ‘acc’ are the ones not yet read, and the next one is bit
+    * ‘count-1’.  They are loaded from ‘bytes’, between ‘next’ and
+    * ‘limit’.  Once the underlying stream runs out, ‘eof’ is set, so
+    * that we do not keep asking.
     */
-   private byte buf;
-   private int mask;
+   private static final int BUFSIZE = 4096;
+   private long acc;
+   private int count, next, limit;
+   private final byte[] bytes = new byte[BUFSIZE];
+   private boolean eof;
    private InputStream in;
    private boolean close_p;
+   private ArithDecoder arith;
+   private ChoiceHistory history;
    
    /* We set ‘in’ to null when the stream is closed. */
    private void check()
@@ -50,8 +60,6 @@ public final class BitInputStream implements Closeable
          throw new IllegalArgumentException("Input stream was null");
       this.in = in;
       this.close_p = close_p;
-      this.buf = 0;
-      this.mask = 0;            // start with empty buffer
    }
 
    /** 
@@ -79,18 +87,34 @@ public final class BitInputStream implements Closeable
     */
    public boolean readBit() throws IOException
    {
-      check();
-      if(mask == 0) {
-         /* Buffer is empty */
-         int r = in.read();
-         if(r < 0) throw new EOFException();
-         assert r >= 0 && r <= 255 : r;
-         buf = (byte) r;
-         mask = 0x80;
+      if(count == 0) {
+         check();
+         if(!fill()) throw new EOFException();
+      }
+      count--;
+      return (acc >>> count & 1) != 0;
+   }
+
+   /* Loads as many bytes into ‘acc’ as fit, and returns false if there
+      were none left to load. */
+   private boolean fill() throws IOException
+   {
+      int before = count;
+      while(count <= 56) {
+         if(next == limit) {
+            if(eof) break;
+            limit = in.read(bytes, 0, BUFSIZE);
+            next = 0;
+            if(limit < 0) {
+               limit = 0;
+               eof = true;
+               break;
+            }
+         }
+         acc = acc << 8 | bytes[next++] & 0xFF;
+         count += 8;
       }
-      int r = buf & mask;
-      mask >>>= 1;
-      return r != 0;
+      return count > before;
    }
 
    /**
@@ -111,13 +135,112 @@ public final class BitInputStream implements Closeable
    {
       if(n < 0 || n > 64)
          throw new IllegalArgumentException("n must be 0..64");
-      long r = 0;
-      /* We keep this simple by just calling readBit() repeatedly. */
-      for(int i = 0;  i < n;  i++) {
-         r <<= 1;
-         if(readBit()) r |= 1;
+      if(n > 56) {
+         long hi = readBits(n - 32);
+         return hi << 32 | readBits(32);
+      }
+      if(count < n) {
+         check();
+         fill();
+         if(count < n) {
+            count = 0;
+            throw new EOFException();
+         }
+      }
+      count -= n;
+      return acc >>> count & (1L << n) - 1;
+   }
+
+   /**
+    * Returns the next ‘n’ bits of the input stream, in the
+    * least-significant bits of an integer value, without reading
+    * them.  If the stream ends before ‘n’ bits, the missing bits are
+    * zero; call {@link #skipBits} to find out whether they were
+    * really there.
+    *
+    * @param n the number of bits to look at.
+    * @throws IllegalArgumentException if ‘n’ is negative or &gt;56.
+    * @throws IOException if there is a failure reading the underlying
+    * stream.
+    * @throws IllegalStateException if the stream is already closed.
+    */
+   public long peekBits(int n) throws IOException
+   {
+      /* The checks are left to the slow path; it is always taken
+         after close, which empties the buffer. */
+      if(n < 0 || n > 56 || count < n) {
+         if(n < 0 || n > 56)
+            throw new IllegalArgumentException("n must be 0..56");
+         check();
+         fill();
       }
-      return r;
+      long r = count < n? acc << n - count : acc >>> count - n;
+      return r & (1L << n) - 1;
+   }
+
+   /**
+    * Reads ‘n’ bits and discards them; usually these are bits that
+    * were already seen through {@link #peekBits}.
+    *
+    * @throws IllegalArgumentException if ‘n’ is negative or &gt;56.
+    * @throws IOException if there is a failure reading the underlying
+    * stream.
+    * @throws EOFException if the stream ends before ‘n’ bits.
+    * @throws IllegalStateException if the stream is already closed.
+    */
+   public void skipBits(int n) throws IOException
+   {
+      if(n <= 0 || n > count) {
+         if(n < 0 || n > 56)
+            throw new IllegalArgumentException("n must be 0..56");
+         check();
+         fill();
+         if(count < n) {
+            count = 0;
+            throw new EOFException();
+         }
+      }
+      count -= n;
+   }
+
+   /**
+    * Returns an arithmetic decoder that reads its bits from this
+    * stream, for a stream written with {@link
+    * BitOutputStream#arithEncoder}.  It is created the first time.
+    * @throws IllegalStateException if the stream is already closed.
+    * @throws IOException if there is a problem reading the first
+    * bits of the code.
+    */
+   public ArithDecoder arithDecoder() throws IOException
+   {
+      check();
+      if(arith == null) {
+         /* The decoder reads past the end of the code, and expects
+            to find the end of the stream there. */
+         arith = new ArithDecoder(new InputStream() {
+            public int read() throws IOException {
+               try {
+                  return (int) readBits(8);
+               }
+               catch(EOFException x) {
+                  return -1;
+               }
+            }
+            public void close() { }
+         });
+      }
+      return arith;
+   }
+
+   /**
+    * Returns the record of the last choice decoded from this stream,
+    * to match {@link BitOutputStream#choiceHistory}.  It is created
+    * the first time.
+    */
+   public ChoiceHistory choiceHistory()
+   {
+      if(history == null) history = new ChoiceHistory();
+      return history;
    }
 
    /**
@@ -136,5 +259,6 @@ public final class BitInputStream implements Closeable
          in.close();
       }
       in = null;
+      count = 0;
    }
 }
@@ -1,21 +1,24 @@
 package net.contrapunctus.rngzip.util;
 
+import com.colloquial.arithcode.ArithEncoder;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 
 /**
  * This class is used to write individual bits to an output stream.
- * It is compatible with BitInputStream.  Internally, it keeps a
- * buffer of bits, and outputs them to the underlying stream once the
- * buffer is full.  At this time, the buffer holds exactly 8 bits, but
- * it could reasonably be any multiple of 8, such as 32.
+ * It is compatible with BitInputStream.  Internally, it gathers bits
+ * in a 64-bit word, moves each finished byte into a byte array, and
+ * writes the array to the underlying stream in one call when it
+ * fills up, so that the (usually compressing) stream underneath sees
+ * a few large writes rather than one call per byte.
  * 
- * <p> A non-full buffer is flushed only upon calling {@link #close()
- * close()}, which <i>optionally</i> closes the underlying stream.  We
- * do not provide a ‘flush()’ method, because it is nonsensical to
- * flush a non-full buffer if there is more output to come.  Such a
- * stream could not be read back correctly by BitInputStream.
+ * <p> The buffered bytes, and a partial last byte, are written only
+ * upon calling {@link #close() close()}, which <i>optionally</i>
+ * closes the underlying stream.  We do not provide a ‘flush()’
+ * method, because it is nonsensical to flush a partial byte if there
+ * is more output to come.  Such a stream could not be read back
+ * correctly by BitInputStream.
  *
  * <p class='license'>This is free software; you may modify and/or
  * redistribute it under the terms of the GNU General Public License,
@@ -26,18 +29,24 @@ import java.io.OutputStream;
  */
 public final class BitOutputStream implements Closeable
 {
-   /* The ‘pos’ field represents which bit (0–7) we will read next.
-      The bits are pushed into the least-significant side of ‘buf’. */
-   private static final int BUFSIZE = 8;
-   private short buf, pos;
+   /* The low ‘count’ bits of ‘acc’ are the bits not yet moved into
+      ‘bytes’, the oldest in the most-significant position.  Whole
+      bytes are moved out at the end of each write, so ‘count’ is
+      between 0 and 7 (inclusive) in between.  The first ‘nbytes’ of
+      ‘bytes’ are waiting to be written to the stream. */
+   private static final int BUFSIZE = 4096;
+   private long acc;
+   private int count, nbytes;
+   private final byte[] bytes = new byte[BUFSIZE];
    private OutputStream out;
    private boolean close_p;
+   private ArithEncoder arith;
+   private ChoiceHistory history;
 
-   /* As soon as ‘pos’ reaches 8, the buffer should be dumped to the
-      stream, so pos should always be between 0 and 7 (inclusive). */
    private boolean invariants()
    {
-      assert pos >= 0 && pos < BUFSIZE : pos;
+      assert count >= 0 && count < 8 : count;
+      assert nbytes >= 0 && nbytes < BUFSIZE : nbytes;
       return true;
    }
 
@@ -65,8 +74,6 @@ public final class BitOutputStream implements Closeable
          throw new IllegalArgumentException("Output stream was null.");
       this.out = out;
       this.close_p = close_p;
-      this.buf = 0;
-      this.pos = 0;
    }
 
    /** 
@@ -95,26 +102,25 @@ public final class BitOutputStream implements Closeable
    public void writeBit(boolean b) throws IOException
    {
       check();
-      pos++;
-      buf <<= 1;
-      if(b) buf |= 1;
-      maybeDumpByte();
-   }
-
-   /* Check whether the bit buffer is full; dump its if needed. */
-   private void maybeDumpByte() throws IOException
-   {
-      if(pos == BUFSIZE) dumpByte();
-      else assert invariants();
+      acc = acc << 1 | (b? 1 : 0);
+      if(++count == 8) {
+         dumpBytes();
+      }
    }
 
-   /* Dump the contents of the bit buffer and reset it. */
-   private void dumpByte() throws IOException
+   /* Moves the whole bytes in ‘acc’ into ‘bytes’, and writes those
+      to the stream if it is full. */
+   private void dumpBytes() throws IOException
    {
-      out.write((byte)buf);
-      buf = 0;
-      pos = 0;
-      /* invariants trivially hold here */
+      while(count >= 8) {
+         count -= 8;
+         bytes[nbytes++] = (byte) (acc >>> count);
+         if(nbytes == BUFSIZE) {
+            out.write(bytes, 0, BUFSIZE);
+            nbytes = 0;
+         }
+      }
+      assert invariants();
    }
    
    /** 
@@ -150,25 +156,14 @@ public final class BitOutputStream implements Closeable
       if(n < 0 || n > 64)
          throw new IllegalArgumentException("n must be 0..64");
       check();
-      /* Determine how many free bits remain in the buffer; there 
-         will be at least one. */
-      int capacity = BUFSIZE - pos;
-      assert capacity > 0;
-      while(n > capacity) {
-         /* We cannot fit all ‘n’ bits; just write ‘capacity’ bits to
-            fill the buffer, and do the rest later. */
-         n -= capacity;
-         pos += capacity;
-         buf <<= capacity;
-         buf |= ((x >>> n) & mask(capacity));
-         dumpByte();
-         capacity = BUFSIZE;
+      /* There is room in ‘acc’ for 56 more bits. */
+      if(n > 56) {
+         writeBits(x >>> 32, n - 32);
+         n = 32;
       }
-      /* The remaining ‘n’ bits in ‘x’ now fit within the buffer. */
-      pos += n;
-      buf <<= n;
-      buf |= x & mask(n);
-      maybeDumpByte();
+      acc = acc << n | x & (1L << n) - 1;
+      count += n;
+      dumpBytes();
    }
    
    /* Construct a bit mask with ‘k’ ones in the least-significant
@@ -181,10 +176,11 @@ public final class BitOutputStream implements Closeable
    }
 
    /**
-    * Flushes any remaining buffered bits to the stream (padding any
-    * unused bits with zeros), then closes the stream.  If this stream
-    * was created with ‘close_p’ set to true, this also closes the
-    * underlying stream.
+    * Finishes the arithmetic code, if there is one, and flushes any
+    * remaining buffered bits to the stream (padding any unused bits
+    * with zeros), then closes the stream.  If this stream was created
+    * with ‘close_p’ set to true, this also closes the underlying
+    * stream.
     *
     * @throws IllegalStateException if the stream is already closed.
     * @throws IOException if underlying stream complains during
@@ -193,6 +189,9 @@ public final class BitOutputStream implements Closeable
    public void close() throws IOException
    {
       check();
+      if(arith != null) {
+         arith.close();
+      }
       flush();
       if(close_p) {
          out.close();
@@ -201,15 +200,51 @@ public final class BitOutputStream implements Closeable
       out = null;
    }
    
+   /**
+    * Returns an arithmetic encoder that writes its bits to this
+    * stream.  It is created the first time, and finished when this
+    * stream is closed.  Its bits are not separated from any others,
+    * so a stream that uses it should be written by nothing else; the
+    * {@link BitInputStream#arithDecoder decoder} reads ahead.
+    * @throws IllegalStateException if the stream is already closed.
+    */
+   public ArithEncoder arithEncoder()
+   {
+      check();
+      if(arith == null) {
+         arith = new ArithEncoder(new OutputStream() {
+            public void write(int b) throws IOException {
+               writeBits(b, 8);
+            }
+            public void close() { }
+         });
+      }
+      return arith;
+   }
+
+   /**
+    * Returns the record of the last choice coded on this stream,
+    * which context-sensitive choice coders share.  It is created the
+    * first time.
+    */
+   public ChoiceHistory choiceHistory()
+   {
+      if(history == null) history = new ChoiceHistory();
+      return history;
+   }
+
    /* Here is how we flush the stream.  This is not exported publicly
       because flushing before the end of the stream will corrupt the
       output.  (It would not be readable by BitInputStream.) */
    private void flush() throws IOException
    {
-      if(pos > 0) {
-         buf <<= (BUFSIZE - pos);     // pad with zeros
-         dumpByte();
+      if(count > 0) {
+         acc <<= 8 - count;     // pad with zeros
+         count = 8;
+         dumpBytes();
       }
+      out.write(bytes, 0, nbytes);
+      nbytes = 0;
       out.flush();
    }
 
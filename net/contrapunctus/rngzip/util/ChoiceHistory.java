@@ -0,0 +1,46 @@
+package net.contrapunctus.rngzip.util;
+
+/**
+ * Remembers the last choice coded on a bit stream, so that the next
+ * choice point can use it as context.  Each bit stream has one
+ * (see {@link BitOutputStream#choiceHistory}); since choices are
+ * read in the same order they were written, the decoder sees the
+ * same history as the encoder did.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ */
+public final class ChoiceHistory
+{
+   private int point = -1, choice;
+
+   /**
+    * Returns the number of the choice point that was coded last, or
+    * -1 if there has not been one.
+    */
+   public int lastPoint()
+   {
+      return point;
+   }
+
+   /**
+    * Returns the choice that was taken at the last choice point, or
+    * zero if there has not been one.
+    */
+   public int lastChoice()
+   {
+      return choice;
+   }
+
+   /**
+    * Records that ‘choice’ was just coded at choice point ‘point’.
+    */
+   public void note(int point, int choice)
+   {
+      this.point = point;
+      this.choice = choice;
+   }
+}
@@ -22,4 +22,8 @@ public class ContextFreeInputStream
   {
     return in.readUTF();
   }
+  public String readTyped(List<String> cx, int type) throws IOException
+  {
+    return TypedValues.read(in, type);
+  }
 }
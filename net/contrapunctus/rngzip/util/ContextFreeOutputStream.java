@@ -22,6 +22,11 @@ public class ContextFreeOutputStream
   {
     out.writeUTF(st);
   }
+  public void writeTyped(List<String> cx, int type, String st)
+    throws IOException
+  {
+    TypedValues.write(out, type, st);
+  }
   public void flush() throws IOException
   {
     out.flush();
@@ -7,4 +7,5 @@ public interface ContextualInputStream
 {
   public long readLong(List<String> cx) throws IOException;
   public String readUTF(List<String> cx) throws IOException;
+  public String readTyped(List<String> cx, int type) throws IOException;
 }
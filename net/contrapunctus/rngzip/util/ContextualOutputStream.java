@@ -8,5 +8,7 @@ public interface ContextualOutputStream extends Closeable
 {
   public void writeLong(List<String> cx, long lo) throws IOException;
   public void writeUTF(List<String> cx, String st) throws IOException;
+  public void writeTyped(List<String> cx, int type, String st)
+    throws IOException;
   public void flush() throws IOException;
 }
@@ -4,6 +4,7 @@ import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * This class encapsulates the encoding format used to represent block
@@ -107,6 +108,11 @@ public final class MultiplexBlockRep
     */
    public static final int MAX_STREAM_ID = 1 << 6; // 64
 
+   /**
+    * The longest block header is {@value} bytes.
+    */
+   public static final int MAX_HEADER_SIZE = 4;
+
    /**
     * This method validates that the stream ID ‘sid’ is within range.
     * It must be non-negative and less than or equal to
@@ -128,6 +134,7 @@ public final class MultiplexBlockRep
    private int size;
    private OutputStream os;
    private InputStream is;
+   private ByteBuffer bb;
 
    /**
     * Construct a block representation for encoding.  Headers will be
@@ -144,6 +151,26 @@ public final class MultiplexBlockRep
       this.streamID = streamID;
    }
 
+   /**
+    * Construct a block representation that encodes headers into
+    * buffers, using {@link #encode(int, ByteBuffer)}.
+    * @throws AssertionError if the ‘streamID’ is out of range
+    * (assuming assertions are enabled).
+    */
+   public MultiplexBlockRep(int streamID)
+   {
+      assert streamID >= 0 && streamID < MAX_STREAM_ID : streamID;
+      this.streamID = streamID;
+   }
+
+   /**
+    * Construct a block representation that decodes headers from
+    * buffers, using {@link #decode(ByteBuffer)}.
+    */
+   public MultiplexBlockRep()
+   {
+   }
+
    /**
     * Construct a block representation for decoding.  A header will be
     * read from the stream ‘is’ each time <code>decode</code> is
@@ -166,7 +193,7 @@ public final class MultiplexBlockRep
     */
    public void encode(int sz) throws IOException
    {
-      assert os != null;
+      assert os != null || bb != null;
       size = sz;
       assert size >= 0 && size < MAX_BLOCK_SIZE : size;
       if(streamID == 0) encodeS0();
@@ -174,6 +201,25 @@ public final class MultiplexBlockRep
       else encodeOther();
    }
 
+   /**
+    * Put a header for a block of ‘size’ bytes into ‘buf’, which must
+    * have room for {@link #MAX_HEADER_SIZE} bytes.
+    * @throws AssertionError if ‘size’ is out of range.
+    */
+   public void encode(int sz, ByteBuffer buf)
+   {
+      bb = buf;
+      try {
+         encode(sz);
+      }
+      catch(IOException x) {
+         throw new AssertionError(x); // buffers do not fail
+      }
+      finally {
+         bb = null;
+      }
+   }
+
    /**
     * Input a block header, and return the size of that block.
     * @throws AssertionError if this objects was not constructed with
@@ -182,7 +228,7 @@ public final class MultiplexBlockRep
     */
    public int decode() throws IOException
    {
-      assert is != null;
+      assert is != null || bb != null;
       int b0 = readByte();
       if((b0 & 0x80) == 0) {    // 0xxx xxxx
          return decodeS0(b0); 
@@ -196,14 +242,40 @@ public final class MultiplexBlockRep
       }
    }
 
+   /**
+    * Take a block header from the current position of ‘buf’, and
+    * return the size of that block.
+    * @throws EOFException if ‘buf’ ends within the header.
+    */
+   public int decode(ByteBuffer buf) throws IOException
+   {
+      bb = buf;
+      try {
+         return decode();
+      }
+      finally {
+         bb = null;
+      }
+   }
+
    private void writeBits(int k, int mask) throws IOException
    {
-      os.write(mask | size >> k);
+      writeByte(mask | size >> k);
       size &= (1 << k) - 1;
    }
 
+   private void writeByte(int b) throws IOException
+   {
+      if(bb != null) bb.put((byte) b);
+      else os.write(b);
+   }
+
    private int readByte() throws IOException
    {
+      if(bb != null) {
+         if(!bb.hasRemaining()) throw new EOFException();
+         return bb.get() & 0xFF;
+      }
       int b = is.read();
       if(b == -1) throw new EOFException();
       else return b;
@@ -311,7 +383,7 @@ public final class MultiplexBlockRep
    private void encodeOther() throws IOException
    {
       assert streamID < 1 << 6 : streamID;
-      os.write(0xC0 | streamID);
+      writeByte(0xC0 | streamID);
       if(size < 1 << 15) {
          writeBits(7, 0x00);
          writeBits(0, 0x00);
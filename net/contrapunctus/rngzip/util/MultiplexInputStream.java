@@ -1,42 +1,70 @@
 package net.contrapunctus.rngzip.util;
 
-import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 /**
  * This cless reads multiple logical streams of data from a single
  * underlying input stream.  Each embedded stream is identified by a
  * small integer.  To begin reading an embedded stream, you must first
  * open it.
- * 
+ *
+ * <p>Blocks are read in the order they appear, so the blocks for
+ * streams that are not being read yet must wait in memory.  When
+ * reading a file, though, this class maps the file into memory
+ * instead (see {@link #MultiplexInputStream(FileChannel, long)}).
+ * It reads the headers from the mapping as they are needed, and each
+ * waiting block is just a slice of the mapping, so nothing is copied,
+ * and the heap does not fill up with the file.  This happens
+ * automatically for a plain FileInputStream.
+ *
+ * <p>The embedded streams may be read from different threads, such
+ * as by a decompressor that runs in a thread of its own; each read
+ * holds the lock on this object.
+ *
  * <p class='license'>This is free software; you may modify and/or
  * redistribute it under the terms of the GNU General Public License,
  * but it comes with <b>absolutely no warranty.</b>
- * 
+ *
  * @author Christopher League
  * @see MultiplexOutputStream
  */
 public final class MultiplexInputStream implements Closeable
 {
    /* The underlying data stream. After this stream is closed, we set
-      ‘in’ to null and forbid any rfurther operations on this or any
-      embedded streams. */
+      ‘map’ to null and forbid any rfurther operations on this or any
+      embedded streams.  When reading from a file channel, ‘in’ is
+      used only for closing, and may be null. */
    private DataInputStream in;
    private boolean close_p;
 
    private final void check()
    {
-      if(in == null)
+      if(map == null)
          throw new IllegalStateException("Stream already closed.");
    }
 
+   /* When reading from a file channel, the file is mapped in windows
+      of WINDOW bytes, each extended far enough to hold any block that
+      starts in it.  ‘scan’ is the position of the next header, and
+      ‘end’ the size of the file. */
+   private static final long WINDOW = 1L << 30;
+   private static final long OVERLAP =
+      MultiplexBlockRep.MAX_HEADER_SIZE + MultiplexBlockRep.MAX_BLOCK_SIZE;
+   private FileChannel channel;
+   private ArrayList<ByteBuffer> windows;
+   private long scan, end;
+
    /* The application-defined magic/version number read from the
       stream. */
    private int magic;
@@ -46,17 +74,17 @@ public final class MultiplexInputStream implements Closeable
 
    /* A map from stream ID to an embedded input stream.  If it’s not
       in this map, it hasn’t been opened yet. */
-   private HashMap<Integer,EmbeddedIS> map = 
+   private HashMap<Integer,EmbeddedIS> map =
       new HashMap<Integer,EmbeddedIS>();
 
    private static final boolean DEBUG = false;
-   private static final boolean TRACE_MEM = 
+   private static final boolean TRACE_MEM =
       System.getProperty("TRACE_MEM") != null;
    private static final PrintStream dbg = System.err;
 
    /**
     * The primary constructor for objects of this class.
-    * 
+    *
     * @param in the underlying data input streams.  Embedded streams
     * opened with this class are read from ‘in’.
     * @param close_p determines whether closing this stream also
@@ -66,7 +94,7 @@ public final class MultiplexInputStream implements Closeable
     * information from the underlying stream.
     * @throws MultiplexFormatException if this does not appear to be a
     * valid multiplex input stream.
-    */   
+    */
    public MultiplexInputStream(DataInputStream in, boolean close_p)
       throws IOException
    {
@@ -78,14 +106,77 @@ public final class MultiplexInputStream implements Closeable
       magic = in.readInt();
    }
 
+   /**
+    * Construct a multiplex input stream that starts reading in the
+    * middle of a stream, at a block boundary.  The magic numbers at
+    * the start of the stream are not read, so the application-level
+    * one must be provided.
+    * @see MultiplexOutputStream#position
+    */
+   public MultiplexInputStream(DataInputStream in, boolean close_p,
+                               int magic)
+   {
+      this.in = in;
+      this.close_p = close_p;
+      this.block = new MultiplexBlockRep(in);
+      this.magic = magic;
+   }
+
+   /**
+    * Construct a multiplex input stream that maps the file behind
+    * ‘ch’ into memory, and reads it from the magic numbers at ‘pos’.
+    * The position of the channel is not used, and the channel is not
+    * closed along with this stream.
+    * @throws IOException if there is a problem mapping the file.
+    * @throws MultiplexFormatException if this does not appear to be a
+    * valid multiplex input stream.
+    */
+   public MultiplexInputStream(FileChannel ch, long pos) throws IOException
+   {
+      mapFile(ch, pos);
+      readMagic();
+   }
+
+   /**
+    * Construct a multiplex input stream that maps the file behind
+    * ‘ch’ into memory, and starts reading in the middle, at the
+    * block boundary ‘pos’.  As with {@link
+    * #MultiplexInputStream(DataInputStream, boolean, int)}, the
+    * application-level magic number must be provided.  The channel
+    * is not closed along with this stream.
+    * @throws IOException if there is a problem finding the size of
+    * the file.
+    */
+   public MultiplexInputStream(FileChannel ch, long pos, int magic)
+      throws IOException
+   {
+      mapFile(ch, pos);
+      this.magic = magic;
+   }
+
    /**
     * Convenience constructor for a normal input stream.  It
     * constructs a <code>DataInputStream</code> around ‘in’ for you.
+    * If ‘in’ is a FileInputStream for a regular file, this reads it
+    * through its channel instead, starting from its current
+    * position.
     */
    public MultiplexInputStream(InputStream in, boolean close_p)
       throws IOException
    {
-      this(new DataInputStream(in), close_p);
+      this.in = new DataInputStream(in);
+      this.close_p = close_p;
+      FileChannel ch = channelOf(in);
+      if(ch != null) {
+         mapFile(ch, ch.position());
+         readMagic();
+      }
+      else {
+         block = new MultiplexBlockRep(this.in);
+         if(this.in.readInt() != MultiplexOutputStream.MAGIC)
+            throw MultiplexFormatException.badMagic();
+         magic = this.in.readInt();
+      }
    }
 
    /**
@@ -96,22 +187,75 @@ public final class MultiplexInputStream implements Closeable
    {
       this(in, true);
    }
-   
+
    /**
     * Convenience constructor for a normal input stream that also
     * automatically sets ‘close_p’ to true.
     */
    public MultiplexInputStream(InputStream in) throws IOException
    {
-      this(new DataInputStream(in), true);
+      this(in, true);
    }
-   
+
+   /* Returns the channel of a plain FileInputStream, if it is a
+      regular file with something left to read. */
+   private static FileChannel channelOf(InputStream in)
+   {
+      if(in == null || in.getClass() != FileInputStream.class) return null;
+      try {
+         FileChannel ch = ((FileInputStream) in).getChannel();
+         return ch.size() > ch.position()? ch : null;
+      }
+      catch(IOException x) {
+         return null;           // not a regular file; just read it
+      }
+   }
+
+   private void mapFile(FileChannel ch, long pos) throws IOException
+   {
+      channel = ch;
+      windows = new ArrayList<ByteBuffer>();
+      block = new MultiplexBlockRep();
+      scan = pos;
+      end = ch.size();
+   }
+
+   private void readMagic() throws IOException
+   {
+      ByteBuffer w = at(scan);
+      if(w.remaining() < 8 || w.getInt() != MultiplexOutputStream.MAGIC)
+         throw MultiplexFormatException.badMagic();
+      magic = w.getInt();
+      scan += 8;
+   }
+
+   /* Returns a view of the mapping with its position at ‘pos’; it
+      extends at least to the end of any block whose header starts
+      there. */
+   private ByteBuffer at(long pos) throws IOException
+   {
+      int k = (int) (pos / WINDOW);
+      while(windows.size() <= k) {
+         windows.add(null);
+      }
+      ByteBuffer w = windows.get(k);
+      if(w == null) {
+         long start = k * WINDOW;
+         long size = Math.min(end - start, WINDOW + OVERLAP);
+         w = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+         windows.set(k, w);
+      }
+      w = w.duplicate();
+      w.position((int) (pos - k * WINDOW));
+      return w;
+   }
+
    /**
     * Retrieve the application-level magic/version number read from
     * the stream.  This is the 4-byte ‘magic’ value provided to the
     * <code>MultiplexOutputStream</code> class when it was created.
     */
-   public int magic() 
+   public int magic()
    {
       return magic;
    }
@@ -129,8 +273,8 @@ public final class MultiplexInputStream implements Closeable
     * @throws IllegalStateException if the stream is already closed.
     * @see MultiplexBlockRep#MAX_STREAM_ID
     * @see MultiplexOutputStream#open(int, OutputStreamFilter)
-    */   
-   public InputStream open(int streamID)
+    */
+   public synchronized InputStream open(int streamID)
    {
       MultiplexBlockRep.checkStreamID(streamID);
       check();
@@ -157,12 +301,14 @@ public final class MultiplexInputStream implements Closeable
     * @throws IOException if there is a problem closing the underlying
     * stream.
     */
-   public void close() throws IOException
+   public synchronized void close() throws IOException
    {
       check();
-      if(close_p) in.close();
+      if(close_p && in != null) in.close();
       in = null;
       block = null;
+      channel = null;
+      windows = null;
       map.clear();
       map = null;
    }
@@ -170,34 +316,34 @@ public final class MultiplexInputStream implements Closeable
    private final class EmbeddedIS extends InputStream
    {
       private int streamID;
-      /* A queue of blocks read from the underlying stream. */
-      private LinkedList<byte[]> queue = new LinkedList<byte[]>();
-      /* The current block is wrapped in this input stream: */
-      private ByteArrayInputStream bin;
+      /* A queue of blocks read from the underlying stream; these are
+         either arrays or slices of the mapping. */
+      private ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+      /* The current block: */
+      private ByteBuffer bin;
 
-      /* Get ready to read data, or return false if nothing remains. */ 
+      /* Get ready to read data, or return false if nothing remains. */
       private boolean prepare() throws IOException
       {
-         if(bin != null && bin.available() > 0) {
+         if(bin != null && bin.hasRemaining()) {
             /* Some bytes still remain in ‘bin’. */
             return true;
          }
          /* bin is empty; get more data from the queue. */
-         if(queue.size() < 1) {
+         if(queue.isEmpty()) {
             /* queue is empty, read from underlying stream */
             readMore(streamID);
          }
          /* Now queue should be ready */
-         byte[] bs = queue.poll();
-         if(bs == null || bs.length == 0) {
+         bin = queue.poll();
+         if(bin == null || !bin.hasRemaining()) {
             /* There was nothing left for this stream. */
             bin = null;
             return false;
          }
-         bin = new ByteArrayInputStream(bs);
          return true;
       }
-      
+
       private EmbeddedIS(int streamID)
       {
          this.streamID = streamID;
@@ -208,8 +354,10 @@ public final class MultiplexInputStream implements Closeable
        */
       public int read() throws IOException
       {
-         if(prepare()) return bin.read();
-         else return -1; // EOF
+         synchronized(MultiplexInputStream.this) {
+            if(prepare()) return bin.get() & 0xFF;
+            else return -1; // EOF
+         }
       }
 
       /* Returns the number of bytes that can be read “without
@@ -218,13 +366,19 @@ public final class MultiplexInputStream implements Closeable
        * down to the underlying stream.
        */
       public int available() throws IOException
+      {
+         synchronized(MultiplexInputStream.this) {
+            return available1();
+         }
+      }
+      private int available1()
       {
          int n = 0;
          if(bin != null) {
-            n = bin.available();
+            n = bin.remaining();
          }
-         for(byte[] bs : queue) {
-            n += bs.length;
+         for(ByteBuffer bs : queue) {
+            n += bs.remaining();
          }
          return n;
       }
@@ -237,15 +391,26 @@ public final class MultiplexInputStream implements Closeable
        */
       public int read(byte[] b, int off, int len) throws IOException
       {
-         if(prepare()) return bin.read(b, off, len);
-         else return -1;
+         if(off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+         if(len == 0) return 0;
+         synchronized(MultiplexInputStream.this) {
+            if(!prepare()) return -1;
+            len = Math.min(len, bin.remaining());
+            bin.get(b, off, len);
+            return len;
+         }
       }
-      
+
       public long skip(long n) throws IOException
       {
-         if(prepare()) return bin.skip(n);
-         else return 0;
-      }  
+         synchronized(MultiplexInputStream.this) {
+            if(n <= 0 || !prepare()) return 0;
+            int k = (int) Math.min(n, bin.remaining());
+            bin.position(bin.position() + k);
+            return k;
+         }
+      }
    }
 
    /* We need to read blocks from the underlying stream.  As they are
@@ -260,34 +425,64 @@ public final class MultiplexInputStream implements Closeable
          dbg.printf("*** Asked to read more from stream %d%n", streamID);
       }
       do {
-         int sz;
-         try { sz = block.decode(); }
-         catch(EOFException x) { return; } // this EOF is okay
-         assert sz > 0;
-         if(DEBUG) {
-            dbg.printf("*** Found stream %d with %d bytes.%n", 
-                       block.streamID, sz);
-         }
-         byte buf[] = new byte[sz];
-         try { in.readFully(buf); }
-         catch(EOFException x) { // this EOF indicates an error
-            throw MultiplexFormatException.endOfStream(sz);
-         }
+         ByteBuffer buf = channel == null? readBlock() : sliceBlock();
+         if(buf == null) return; // this EOF is okay
          getStream(block.streamID).queue.offer(buf);
       } while(block.streamID != streamID);
       if(TRACE_MEM) reportMemoryStats();
    }
 
+   /* Reads the next block from ‘in’, or returns null at the end. */
+   private ByteBuffer readBlock() throws IOException
+   {
+      int sz;
+      try { sz = block.decode(); }
+      catch(EOFException x) { return null; }
+      assert sz > 0;
+      if(DEBUG) {
+         dbg.printf("*** Found stream %d with %d bytes.%n",
+                    block.streamID, sz);
+      }
+      byte buf[] = new byte[sz];
+      try { in.readFully(buf); }
+      catch(EOFException x) { // this EOF indicates an error
+         throw MultiplexFormatException.endOfStream(sz);
+      }
+      return ByteBuffer.wrap(buf);
+   }
+
+   /* Finds the next block in the mapping, or returns null at the
+      end. */
+   private ByteBuffer sliceBlock() throws IOException
+   {
+      if(scan >= end) return null;
+      ByteBuffer w = at(scan);
+      int sz;
+      try { sz = block.decode(w); }
+      catch(EOFException x) { return null; }
+      if(DEBUG) {
+         dbg.printf("*** Found stream %d with %d bytes at %d.%n",
+                    block.streamID, sz, scan);
+      }
+      if(w.remaining() < sz) {
+         throw MultiplexFormatException.endOfStream(sz);
+      }
+      w.limit(w.position() + sz);
+      scan += w.position() - (int) (scan % WINDOW) + sz;
+      return w.slice();
+   }
+
    private void reportMemoryStats()
    {
       int streamCount = 0, byteCount = 0;
       for(EmbeddedIS is : map.values()) {
          streamCount++;
-         for(byte[] bs : is.queue) {
-            byteCount += bs.length;
+         for(ByteBuffer bs : is.queue) {
+            byteCount += bs.remaining();
          }
       }
-      System.err.printf("MEM: MuxInputStream: %d bytes in %d streams%n",
-                        byteCount, streamCount);
+      System.err.printf("MEM: MuxInputStream: %d bytes %s in %d streams%n",
+                        byteCount, channel == null? "queued" : "mapped",
+                        streamCount);
    }
 }
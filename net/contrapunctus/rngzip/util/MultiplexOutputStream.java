@@ -1,12 +1,17 @@
 package net.contrapunctus.rngzip.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 
 /**
@@ -25,9 +30,21 @@ import java.util.LinkedList;
  * to embed further configuration or version data, just do so by
  * allocating a particular embedded stream for that information.
  *
- * <p>Although it may make sense to use this stream abstraction in a
- * multi-threaded environment, this implementation is currently <b>not
- * thread-safe.</b>
+ * <p>Each embedded stream buffers its data in fixed-size segments,
+ * taken from a pool that they share and returned once written.  When
+ * the underlying stream is a FileOutputStream, the segments are
+ * direct buffers, and the block headers and segments are written to
+ * its channel in one gathering write; otherwise, the segments are
+ * written from their arrays.  Either way, the data is copied once on
+ * its way in, and not again here.
+ *
+ * <p>The embedded streams may be written from different threads,
+ * such as when each one runs its own compressor (see {@link
+ * WorkerOutputStream}); each write holds the lock on this object.
+ * Any one embedded stream should still be written by only one thread
+ * at a time.  The streams wrapped around the embedded streams are
+ * closed without holding the lock, so they may wait for their own
+ * threads to finish writing.
  *
  * <p class='license'>This is free software; you may modify and/or
  * redistribute it under the terms of the GNU General Public License,
@@ -63,13 +80,25 @@ public final class MultiplexOutputStream implements Closeable, Flushable
    private LinkedList<Closeable> streams = new LinkedList<Closeable>();
 
    /* Here is where we buffer all the output data.  Each embedded
-      stream holds a byte buffer, and membership in the queue implies
-      that the buffer is non-empty.  The total number of bytes in all
-      queued buffers is ‘total’.  Once this number reaches ‘capacity’,
+      stream holds a list of segments, and membership in the queue
+      implies that it is non-empty.  The total number of bytes in all
+      queued streams is ‘total’.  Once this number reaches ‘capacity’,
       the queue is dumped to the underlying stream. */
-   private LinkedList<EmbeddedOS> queue = new LinkedList<EmbeddedOS>();
+   private ArrayList<EmbeddedOS> queue = new ArrayList<EmbeddedOS>();
    private int total, capacity = 32768;
 
+   /* Free segments, and the array used to gather the buffers for one
+      dump; it grows as needed, but is not reallocated each time. */
+   private static final int SEGMENT_SIZE = 8192;
+   private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+   private ByteBuffer[] gather = new ByteBuffer[16];
+
+   /* When ‘out’ is just a wrapper around a file, we write the blocks
+      to its channel instead.  The number of bytes written is kept in
+      ‘position’. */
+   private final FileChannel channel;
+   private long position;
+
    private static final boolean DEBUG = false;
    private static final PrintStream dbg = System.err;
 
@@ -85,7 +114,7 @@ public final class MultiplexOutputStream implements Closeable, Flushable
       int n = 0;
       for(EmbeddedOS e : queue) {
          assert e.queued;
-         int k = e.buf.size();
+         int k = e.size;
          assert k > 0;
          n += k;
       }
@@ -110,13 +139,22 @@ public final class MultiplexOutputStream implements Closeable, Flushable
                                   boolean close_p,
                                   int magic)
       throws IOException
+   {
+      this(out, close_p, magic, null);
+   }
+
+   private MultiplexOutputStream(DataOutputStream out, boolean close_p,
+                                 int magic, FileChannel channel)
+      throws IOException
    {
       if(out == null)
          throw new IllegalArgumentException("Output stream was null.");
       this.out = out;
       this.close_p = close_p;
+      this.channel = channel;
       out.writeInt(MAGIC);
       out.writeInt(magic);
+      position = 8;
    }
 
    /**
@@ -126,7 +164,7 @@ public final class MultiplexOutputStream implements Closeable, Flushable
    public MultiplexOutputStream(OutputStream out, boolean close_p, int magic)
       throws IOException
    {
-      this(new DataOutputStream(out), close_p, magic);
+      this(new DataOutputStream(out), close_p, magic, channelOf(out));
    }
 
    /**
@@ -146,7 +184,17 @@ public final class MultiplexOutputStream implements Closeable, Flushable
    public MultiplexOutputStream(OutputStream out, int magic)
       throws IOException
    {
-      this(new DataOutputStream(out), true, magic);
+      this(new DataOutputStream(out), true, magic, channelOf(out));
+   }
+
+   /* The DataOutputStream we wrap around ‘out’ does no buffering, so
+      it is safe to mix its writes with writes to the channel. */
+   private static FileChannel channelOf(OutputStream out)
+   {
+      if(out != null && out.getClass() == FileOutputStream.class) {
+         return ((FileOutputStream) out).getChannel();
+      }
+      else return null;
    }
 
    /**
@@ -154,7 +202,7 @@ public final class MultiplexOutputStream implements Closeable, Flushable
     * buffers reach this capacity, they are all dumped as blocks to
     * the underlying stream.
     */
-   public int capacity() 
+   public synchronized int capacity() 
    { 
       return capacity; 
    }
@@ -173,7 +221,7 @@ public final class MultiplexOutputStream implements Closeable, Flushable
     * @return this object.
     * @throws IllegalArgumentException if ‘cap’ is negative.
     */
-   public MultiplexOutputStream capacity(int cap)
+   public synchronized MultiplexOutputStream capacity(int cap)
    {
       if(capacity < 0) throw new IllegalArgumentException();
       capacity = cap;
@@ -216,10 +264,17 @@ public final class MultiplexOutputStream implements Closeable, Flushable
       if(factory == null)
          throw new IllegalArgumentException("factory may not be null");
       MultiplexBlockRep.checkStreamID(streamID);
-      check();
-      
-      T str = factory.wrap(new EmbeddedOS(streamID));
-      streams.add(str);
+      EmbeddedOS eos;
+      synchronized(this) {
+         check();
+         eos = new EmbeddedOS(streamID);
+      }
+      /* The factory may start writing from another thread, so it is
+         called without the lock. */
+      T str = factory.wrap(eos);
+      synchronized(this) {
+         streams.add(str);
+      }
       return str;
    }
    
@@ -233,22 +288,80 @@ public final class MultiplexOutputStream implements Closeable, Flushable
     * @throws IOException if there is a problem writing to or flushing
     * the underlying stream.
     */
-   public void flush() throws IOException
+   public synchronized void flush() throws IOException
    {
       check();
       dump();
       out.flush();
    }
 
+   /**
+    * Returns the number of bytes written so far to the underlying
+    * stream, counting from the first byte of the magic numbers.
+    * Right after {@link #flush}, this is where the next block will
+    * begin, so a reader that knows it can start reading there with
+    * {@link MultiplexInputStream#MultiplexInputStream(DataInputStream,
+    * boolean, int)}.
+    * @throws IllegalStateException if the stream is already closed.
+    */
+   public synchronized long position()
+   {
+      check();
+      return position;
+   }
+
    private void dump() throws IOException
    {
-      if(total > 0) {
+      if(total == 0) return;
+      if(channel != null) {
+         gatherAll();
+      }
+      else {
          for(EmbeddedOS e : queue) {
             e.dequeue();
          }
-         queue.clear();
-         total = 0;
       }
+      for(EmbeddedOS e : queue) {
+         e.release();
+      }
+      queue.clear();
+      total = 0;
+   }
+
+   /* Writes all the queued blocks with one gathering write (or as
+      many as the channel needs to finish). */
+   private void gatherAll() throws IOException
+   {
+      int n = 0;
+      for(EmbeddedOS e : queue) {
+         n += 1 + e.segs.size();
+      }
+      if(gather.length < n) {
+         gather = new ByteBuffer[Math.max(n, 2 * gather.length)];
+      }
+      int i = 0;
+      for(EmbeddedOS e : queue) {
+         gather[i++] = e.header();
+         for(ByteBuffer b : e.segs) {
+            b.flip();
+            gather[i++] = b;
+         }
+         position += e.header.remaining() + e.size;
+      }
+      for(i = 0;  i < n;  ) {
+         channel.write(gather, i, n - i);
+         while(i < n && !gather[i].hasRemaining()) i++;
+      }
+      Arrays.fill(gather, 0, n, null);
+   }
+
+   /* Takes an empty segment from the pool. */
+   private ByteBuffer segment()
+   {
+      ByteBuffer b = pool.poll();
+      if(b != null) return b;
+      else if(channel != null) return ByteBuffer.allocateDirect(SEGMENT_SIZE);
+      else return ByteBuffer.allocate(SEGMENT_SIZE);
    }
 
    private void maybeDump() throws IOException
@@ -268,74 +381,140 @@ public final class MultiplexOutputStream implements Closeable, Flushable
     */
    public void close() throws IOException
    {
-      check();
-      for(Closeable cl : streams) {
+      LinkedList<Closeable> outer;
+      synchronized(this) {
+         check();
+         outer = streams;
+      }
+      for(Closeable cl : outer) {
          cl.close();
       }
-      dump();
-      out.flush();
-      if(close_p) out.close();
-      out = null;
-      queue = null;
-      streams = null;
+      synchronized(this) {
+         check();
+         dump();
+         out.flush();
+         if(close_p) out.close();
+         out = null;
+         queue = null;
+         streams = null;
+      }
    }
 
    private class EmbeddedOS extends OutputStream
    {
-      private ByteArrayOutputStream buf = new ByteArrayOutputStream();
-      private MultiplexBlockRep blk;
+      private final ArrayList<ByteBuffer> segs = new ArrayList<ByteBuffer>();
+      private final ByteBuffer header =
+         ByteBuffer.allocate(MultiplexBlockRep.MAX_HEADER_SIZE);
+      private final MultiplexBlockRep blk;
+      private int size;
       private boolean queued = false;
       private EmbeddedOS(int streamID)
       {
-         blk = new MultiplexBlockRep(out, streamID);
+         blk = new MultiplexBlockRep(streamID);
       }
       private void enqueue() 
       {
          assert !queued;
-         queue.offer(this);
+         queue.add(this);
          queued = true;
       }
-      private void dequeue() throws IOException
+      /* Encodes the header, ready to write. */
+      private ByteBuffer header()
       {
-         assert queued;
          if(DEBUG) {
             dbg.printf("*** Writing %d bytes from stream %d%n",
-                       buf.size(), blk.streamID);
+                       size, blk.streamID);
+         }
+         header.clear();
+         blk.encode(size, header);
+         header.flip();
+         return header;
+      }
+      /* Writes the block to ‘out’. */
+      private void dequeue() throws IOException
+      {
+         assert queued;
+         header();
+         out.write(header.array(), 0, header.limit());
+         for(ByteBuffer b : segs) {
+            out.write(b.array(), b.arrayOffset(), b.position());
+         }
+         position += header.limit() + size;
+      }
+      /* Returns the segments to the pool, once the block is written. */
+      private void release()
+      {
+         for(ByteBuffer b : segs) {
+            b.clear();
+            pool.push(b);
          }
-         blk.encode(buf.size());
-         buf.writeTo(out);
-         buf.reset();
+         segs.clear();
+         size = 0;
          queued = false;
       }
+      /* The segment to write into next. */
+      private ByteBuffer current()
+      {
+         int n = segs.size();
+         if(n > 0 && segs.get(n-1).hasRemaining()) {
+            return segs.get(n-1);
+         }
+         ByteBuffer b = segment();
+         segs.add(b);
+         return b;
+      }
+      private void put(byte[] b, int off, int len)
+      {
+         while(len > 0) {
+            ByteBuffer s = current();
+            int n = Math.min(len, s.remaining());
+            s.put(b, off, n);
+            off += n;
+            len -= n;
+            size += n;
+            total += n;
+         }
+      }
       public void write(int b) throws IOException
+      {
+         synchronized(MultiplexOutputStream.this) {
+            write1(b);
+         }
+      }
+      private void write1(int b) throws IOException
       {
          check();
-         if(buf.size()+1 == MultiplexBlockRep.MAX_BLOCK_SIZE) {
+         if(size+1 == MultiplexBlockRep.MAX_BLOCK_SIZE) {
             dump();
          }
          if(!queued) enqueue();
-         buf.write(b);
+         current().put((byte) b);
+         size++;
          total++;
          maybeDump();
       }
       public void write(byte[] b, int off, int len) throws IOException
+      {
+         synchronized(MultiplexOutputStream.this) {
+            writeN(b, off, len);
+         }
+      }
+      private void writeN(byte[] b, int off, int len) throws IOException
       {
          check();
          if(off < 0 || len < 0) throw new IndexOutOfBoundsException();
          if(len == 0) return;
-         while(buf.size() + len >= MultiplexBlockRep.MAX_BLOCK_SIZE) {
-            int n = MultiplexBlockRep.MAX_BLOCK_SIZE - buf.size() - 1;
+         while(size + len >= MultiplexBlockRep.MAX_BLOCK_SIZE) {
+            int n = MultiplexBlockRep.MAX_BLOCK_SIZE - size - 1;
             assert n > 0 && n < MultiplexBlockRep.MAX_BLOCK_SIZE : n;
             if(!queued) enqueue();
-            buf.write(b, off, n);
-            total += n;
+            put(b, off, n);
             dump();
             off += n;
             len -= n;
          }
          if(!queued) enqueue();
-         buf.write(b, off, len);
-         total += len;
+         put(b, off, len);
          maybeDump();
       }
    }
@@ -30,4 +30,9 @@ public class PPMContextInputStream
     noteContext(cx);
     return in.readUTF();
   }
+  public String readTyped(List<String> cx, int type) throws IOException
+  {
+    noteContext(cx);
+    return TypedValues.read(in, type);
+  }
 }
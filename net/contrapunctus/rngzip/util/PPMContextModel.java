@@ -16,14 +16,17 @@ class PPMContextModel
   protected void noteContext(List<String> cx)
   {
     if( cx != null ) {
-      String e = cx.get(cx.size()-1);
-      int h = e.hashCode() & 0xFF;
-      //System.err.printf("injecting %s (%02x)\n", e, h);
-      while( model.escaped(h) ) {
-        //System.err.print(".");
-        model.interval(ArithCodeModel.ESCAPE, range);
-      }
-      model.interval(h, range);
+      noteContext(cx.get(cx.size()-1));
     }
   }
+  protected void noteContext(String e)
+  {
+    int h = e.hashCode() & 0xFF;
+    //System.err.printf("injecting %s (%02x)\n", e, h);
+    while( model.escaped(h) ) {
+      //System.err.print(".");
+      model.interval(ArithCodeModel.ESCAPE, range);
+    }
+    model.interval(h, range);
+  }
 }
@@ -14,23 +14,52 @@ public class PPMContextOutputStream
 {
   private DataOutputStream out;
   private ArithCodeOutputStream aco;
+  private WorkerOutputStream worker;
 
   public PPMContextOutputStream(OutputStream _out, int len)
+    {
+      this(_out, len, false);
+    }
+  /* With ‘threaded’, the model and coder run in a worker thread,
+     and the contexts are passed along with the bytes. */
+  public PPMContextOutputStream(OutputStream _out, int len,
+                                boolean threaded)
     {
       super(len);
       aco = new ArithCodeOutputStream(_out, model);
-      out = new DataOutputStream(aco);
+      if( threaded ) {
+        worker = new WorkerOutputStream(aco) {
+            protected void noted(Object e) {
+              noteContext((String) e);
+            }
+          };
+        out = new DataOutputStream(worker);
+      }
+      else {
+        out = new DataOutputStream(aco);
+      }
     }
+  private void context(List<String> cx) throws IOException
+  {
+    if( worker == null ) noteContext(cx);
+    else if( cx != null ) worker.note(cx.get(cx.size()-1));
+  }
   public void writeLong(List<String> cx, long lo) throws IOException
   {
-    noteContext(cx);
+    context(cx);
     out.writeLong(lo);
   }
   public void writeUTF(List<String> cx, String st) throws IOException
   {
-    noteContext(cx);
+    context(cx);
     out.writeUTF(st);
   }
+  public void writeTyped(List<String> cx, int type, String st)
+    throws IOException
+  {
+    context(cx);
+    TypedValues.write(out, type, st);
+  }
   public void flush() throws IOException
   {
     out.flush();
@@ -0,0 +1,36 @@
+package net.contrapunctus.rngzip.util;
+
+import com.colloquial.arithcode.ArithCodeInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+public class PPMPathInputStream 
+  extends PPMPathModel
+  implements ContextualInputStream
+{
+  private DataInputStream in;
+
+  public PPMPathInputStream(InputStream _in, int len)
+    throws IOException
+  {
+    super(len);
+    in = new DataInputStream(new ArithCodeInputStream(_in, this));
+  }
+  public long readLong(List<String> cx) throws IOException
+  {
+    select(key(cx));
+    return in.readLong();
+  }
+  public String readUTF(List<String> cx) throws IOException
+  {
+    select(key(cx));
+    return in.readUTF();
+  }
+  public String readTyped(List<String> cx, int type) throws IOException
+  {
+    select(key(cx));
+    return TypedValues.read(in, type);
+  }
+}
@@ -0,0 +1,145 @@
+package net.contrapunctus.rngzip.util;
+
+import com.colloquial.arithcode.ArithCodeModel;
+import com.colloquial.arithcode.PPMModel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A PPM model for the data stream that keeps a separate {@link
+ * PPMModel} for each path of element names (ending with an ‘@’ name
+ * for attribute values), and codes each value with the model for its
+ * path.  Unlike {@link PPMContextModel}, unrelated fields never share
+ * statistics, and each trie stays small.
+ *
+ * <p>The models together may hold at most {@link #BUDGET} trie nodes.
+ * When a value is about to be coded and they hold more, the models
+ * least recently used are dropped, and start afresh if their paths
+ * come up again; if the model for the current path is the only one
+ * left, it starts afresh itself.  The decoder sees the same paths and
+ * codes the same bytes, so it makes the same choices.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ */
+class PPMPathModel implements ArithCodeModel
+{
+  /** In trie nodes, about 32 bytes each, so this comes to 64MB. */
+  static final int BUDGET = 1 << 21;
+
+  /* Seeded before each value, so that its first bytes are predicted
+     from the start of the last value, not from whatever it ended
+     with.  Strings never contain this byte in modified UTF-8. */
+  private static final int MARK = 0xFF;
+
+  private static final class Entry
+  {
+    PPMModel model;
+    int nodes;
+  }
+
+  private final int len;
+  private final int budget;
+  /* In order of use, least recent first. */
+  private final LinkedHashMap<String, Entry> models =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private Entry cur;
+  private int total;
+  private final int[] range = new int[3];
+
+  /* The last path given to key(), and its key. */
+  private List<String> lastPath;
+  private String lastKey;
+
+  PPMPathModel(int len)
+  {
+    this(len, BUDGET);
+  }
+  PPMPathModel(int len, int budget)
+  {
+    this.len = len;
+    this.budget = budget;
+    select("");
+  }
+
+  /* Returns the key of ‘cx’, which the compressor reuses and changes
+     rarely, so the last one is remembered. */
+  protected String key(List<String> cx)
+  {
+    if( cx == null ) return "";
+    if( !cx.equals(lastPath) ) {
+      lastPath = new ArrayList<String>(cx);
+      lastKey = PathKey.of(cx);
+    }
+    return lastKey;
+  }
+
+  /* Switches to the model for ‘key’, first dropping models if there
+     are too many nodes. */
+  protected void select(String key)
+  {
+    if( cur != null ) {
+      total += cur.model.nodeCount() - cur.nodes;
+      cur.nodes = cur.model.nodeCount();
+    }
+    cur = models.get(key);
+    if( cur == null ) {
+      cur = new Entry();
+      cur.model = new PPMModel(len);
+      models.put(key, cur);
+    }
+    Iterator<Entry> it = models.values().iterator();
+    while( total > budget ) {
+      Entry e = it.next();
+      total -= e.nodes;
+      if( e == cur ) {
+        cur.model = new PPMModel(len);
+        cur.nodes = 0;
+      }
+      else {
+        it.remove();
+      }
+    }
+    PPMModel m = cur.model;
+    while( m.escaped(MARK) ) {
+      m.interval(ArithCodeModel.ESCAPE, range);
+    }
+    m.interval(MARK, range);
+  }
+
+  /** The number of paths with a model, for testing. */
+  int size()
+  {
+    return models.size();
+  }
+
+  public int totalCount()
+  {
+    return cur.model.totalCount();
+  }
+  public int pointToSymbol(int count)
+  {
+    return cur.model.pointToSymbol(count);
+  }
+  public void interval(int symbol, int[] result)
+  {
+    cur.model.interval(symbol, result);
+  }
+  public boolean escaped(int symbol)
+  {
+    return cur.model.escaped(symbol);
+  }
+  public void exclude(int symbol)
+  {
+    cur.model.exclude(symbol);
+  }
+  public void increment(int symbol)
+  {
+    cur.model.increment(symbol);
+  }
+}
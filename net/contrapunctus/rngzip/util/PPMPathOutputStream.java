@@ -0,0 +1,70 @@
+package net.contrapunctus.rngzip.util;
+
+import com.colloquial.arithcode.ArithCodeOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+public class PPMPathOutputStream 
+  extends PPMPathModel
+  implements ContextualOutputStream
+{
+  private DataOutputStream out;
+  private ArithCodeOutputStream aco;
+  private WorkerOutputStream worker;
+
+  public PPMPathOutputStream(OutputStream _out, int len)
+    {
+      this(_out, len, false);
+    }
+  /* With ‘threaded’, the models and coder run in a worker thread,
+     and the path keys are passed along with the bytes. */
+  public PPMPathOutputStream(OutputStream _out, int len,
+                             boolean threaded)
+    {
+      super(len);
+      aco = new ArithCodeOutputStream(_out, this);
+      if( threaded ) {
+        worker = new WorkerOutputStream(aco) {
+            protected void noted(Object k) {
+              select((String) k);
+            }
+          };
+        out = new DataOutputStream(worker);
+      }
+      else {
+        out = new DataOutputStream(aco);
+      }
+    }
+  private void context(List<String> cx) throws IOException
+  {
+    if( worker == null ) select(key(cx));
+    else worker.note(key(cx));
+  }
+  public void writeLong(List<String> cx, long lo) throws IOException
+  {
+    context(cx);
+    out.writeLong(lo);
+  }
+  public void writeUTF(List<String> cx, String st) throws IOException
+  {
+    context(cx);
+    out.writeUTF(st);
+  }
+  public void writeTyped(List<String> cx, int type, String st)
+    throws IOException
+  {
+    context(cx);
+    TypedValues.write(out, type, st);
+  }
+  public void flush() throws IOException
+  {
+    out.flush();
+  }
+  public void close() throws IOException
+  {
+    out.close();
+    aco.close();
+  }
+}
@@ -0,0 +1,40 @@
+package net.contrapunctus.rngzip.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import net.contrapunctus.lzma.ParallelBlockInputStream;
+import org.apache.commons.compress.bzip2.CBZip2InputStream;
+
+/**
+ * This input stream reads the blocks written by {@link
+ * ParallelBZip2OutputStream}.  Several blocks are read ahead and
+ * decoded in the common fork-join pool while the reader works
+ * through the current one; see {@link ParallelBlockInputStream}.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ */
+public class ParallelBZip2InputStream extends ParallelBlockInputStream
+{
+   public ParallelBZip2InputStream(InputStream in)
+   {
+      super(in);
+   }
+
+   protected byte[] unpack(byte[] packed, int length) throws IOException
+   {
+      InputStream z = new CBZip2InputStream(new ByteArrayInputStream(packed));
+      byte[] plain = new byte[length];
+      for(int n = 0;  n < length;  ) {
+         int k = z.read(plain, n, length - n);
+         if(k < 0) throw new IOException("BZip2 block too short");
+         n += k;
+      }
+      if(z.read() >= 0) throw new IOException("BZip2 block too long");
+      return plain;
+   }
+}
@@ -0,0 +1,45 @@
+package net.contrapunctus.rngzip.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import net.contrapunctus.lzma.ParallelBlockOutputStream;
+import org.apache.commons.compress.bzip2.CBZip2OutputStream;
+
+/**
+ * This output stream compresses with BZip2, in the manner of
+ * ‘pbzip2’: it cuts the stream into blocks of 900k, the size of a
+ * BZip2 block, and each block is sorted and coded as a BZip2 stream
+ * of its own, in the common fork-join pool.  The blocks are framed
+ * by {@link ParallelBlockOutputStream}.  Because a BZip2 block never
+ * depended on the one before it, this costs only a few bytes per
+ * block.
+ *
+ * <p>{@link ParallelBZip2InputStream} reads this back, decoding the
+ * blocks in parallel too.  Only one thread should write to this
+ * stream.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ */
+public class ParallelBZip2OutputStream extends ParallelBlockOutputStream
+{
+   static final int BLOCK_SIZE = 900000;
+
+   public ParallelBZip2OutputStream(OutputStream out)
+   {
+      super(out, BLOCK_SIZE);
+   }
+
+   protected byte[] pack(byte[] plain, int length) throws IOException
+   {
+      ByteArrayOutputStream bo = new ByteArrayOutputStream(length / 4);
+      OutputStream z = new CBZip2OutputStream(bo);
+      z.write(plain, 0, length);
+      z.close();
+      return bo.toByteArray();
+   }
+}
@@ -0,0 +1,37 @@
+package net.contrapunctus.rngzip.util;
+
+import java.util.List;
+
+/**
+ * Turns a path of element names, as passed to a {@link
+ * ContextualOutputStream}, into a key that the compressor and the
+ * decompressor agree on.  The compressor sees qualified names, and
+ * the decompressor the names in the schema, so only the local names
+ * are kept.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ */
+public final class PathKey
+{
+   private PathKey() { }
+
+   /**
+    * Returns the key for ‘path’: its local names, separated by ‘/’.
+    * An attribute keeps its ‘@’.
+    */
+   public static String of(List<String> path)
+   {
+      StringBuilder sb = new StringBuilder();
+      for(String e : path) {
+         if(sb.length() > 0) sb.append('/');
+         int i = Math.max(e.lastIndexOf(':'), e.lastIndexOf('}'));
+         if(e.startsWith("@")) sb.append('@');
+         sb.append(e, i+1, e.length());
+      }
+      return sb.toString();
+   }
+}
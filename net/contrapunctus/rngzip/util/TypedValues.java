@@ -0,0 +1,519 @@
+package net.contrapunctus.rngzip.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.math.BigDecimal;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.kohsuke.bali.datatype.DatatypeImpl;
+import org.relaxng.datatype.Datatype;
+
+/**
+ * Binary representations for values of the XML Schema datatypes.
+ * Integers are written as variable-length (zigzag) numbers, decimals
+ * as a scale and an unscaled integer, doubles the same way or as
+ * IEEE bits, dates and times as packed fields, booleans as a byte,
+ * and binary data as the bytes themselves.
+ *
+ * <p>The decompressor must reproduce the document exactly, not just
+ * the values, so a string is encoded in binary only if formatting the
+ * binary form gives back that very string.  Anything else—leading
+ * zeros, surrounding space, <code>+1</code> or <code>1e3</code>, a
+ * date with an odd time zone—is escaped and written as a string.
+ * Since the schema says what type to expect, the decoder knows how
+ * to read it back.  Values of {@link #STRING} type are always just
+ * written with {@link DataOutputStream#writeUTF}.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ * @see BaliAutomaton#datatypeOf
+ */
+public final class TypedValues
+{
+   /** Types of values, as returned by {@link #typeOf}. */
+   public static final int STRING = 0, INTEGER = 1, BOOLEAN = 2,
+      DECIMAL = 3, DOUBLE = 4, DATE = 5, DATE_TIME = 6, TIME = 7,
+      BASE64 = 8, HEX = 9;
+
+   private static final String XSD_NS =
+      "http://www.w3.org/2001/XMLSchema-datatypes";
+
+   private TypedValues() { }
+
+   /**
+    * Returns the type of values of ‘dt’: one of the constants of this
+    * class, or {@link #STRING} if it is not an XML Schema datatype
+    * that has a binary representation.
+    */
+   public static int typeOf(Datatype dt)
+   {
+      if(!(dt instanceof DatatypeImpl)) return STRING;
+      DatatypeImpl di = (DatatypeImpl) dt;
+      if(!XSD_NS.equals(di.nsURI)) return STRING;
+      String n = di.name;
+      if(n.equals("integer") || n.equals("long") || n.equals("int")
+         || n.equals("short") || n.equals("byte")
+         || n.endsWith("Integer") || n.startsWith("unsigned")) {
+         return INTEGER;
+      }
+      if(n.equals("boolean")) return BOOLEAN;
+      if(n.equals("decimal")) return DECIMAL;
+      if(n.equals("double") || n.equals("float")) return DOUBLE;
+      if(n.equals("date")) return DATE;
+      if(n.equals("dateTime")) return DATE_TIME;
+      if(n.equals("time")) return TIME;
+      if(n.equals("base64Binary")) return BASE64;
+      if(n.equals("hexBinary")) return HEX;
+      return STRING;
+   }
+
+   /* ----------------------------------------------------------------
+    *                            ENCODING
+    * ----------------------------------------------------------------
+    */
+
+   /*  Each typed value begins with a variable-length number, and 0
+       there means a string follows instead:
+
+       INTEGER    the value, zigzagged, plus one
+       BOOLEAN    1–4 for false, true, 0, 1
+       DECIMAL    scale plus 2, then the unscaled value, zigzagged
+       DOUBLE     the same as DECIMAL; or 1, then 8 bytes of IEEE bits
+       DATE       1 + time zone kind, then the date
+       TIME       1 + 10 * time zone kind + digits of fraction, then
+                  seconds of the day, the fraction (if any), and the
+                  time zone offset (if any)
+       DATE_TIME  like TIME, but with the date before the seconds
+       BASE64     number of bytes plus one, then the bytes
+       HEX        2 * number of bytes, plus 1 for upper case or 2 for
+                  lower, then the bytes
+
+       A date is packed into one number, from the year (offset from
+       2000 and zigzagged), the month, and the day.  The time zone
+       kind is 0 for none, 1 for ‘Z’, or 2 for an offset in minutes,
+       zigzagged.
+   */
+   private static final int ESCAPE = 0;
+
+   /**
+    * Writes ‘s’, a value of type ‘type’, to ‘out’.
+    */
+   public static void write(DataOutputStream out, int type, String s)
+      throws IOException
+   {
+      boolean done;
+      switch(type) {
+      case STRING:    out.writeUTF(s); return;
+      case INTEGER:   done = writeInteger(out, s); break;
+      case BOOLEAN:   done = writeBoolean(out, s); break;
+      case DECIMAL:   done = writeDecimal(out, s); break;
+      case DOUBLE:    done = writeDecimal(out, s) || writeDouble(out, s);
+                      break;
+      case DATE:
+      case DATE_TIME:
+      case TIME:      done = writeDateTime(out, type, s); break;
+      case BASE64:    done = writeBase64(out, s); break;
+      case HEX:       done = writeHex(out, s); break;
+      default:        throw new IllegalArgumentException("type "+type);
+      }
+      if(!done) {
+         writeVarint(out, ESCAPE);
+         out.writeUTF(s);
+      }
+   }
+
+   private static boolean writeInteger(DataOutputStream out, String s)
+      throws IOException
+   {
+      long v = parseLong(s);
+      if(v == Long.MIN_VALUE || !Long.toString(v).equals(s)) return false;
+      writeVarint(out, zigzag(v) + 1);
+      return true;
+   }
+
+   private static final String[] BOOLEANS = { "false", "true", "0", "1" };
+
+   private static boolean writeBoolean(DataOutputStream out, String s)
+      throws IOException
+   {
+      for(int i = 0;  i < BOOLEANS.length;  i++) {
+         if(BOOLEANS[i].equals(s)) {
+            writeVarint(out, i+1);
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static final int MAX_SCALE = 120;
+
+   private static boolean writeDecimal(DataOutputStream out, String s)
+      throws IOException
+   {
+      BigDecimal d;
+      try {
+         d = new BigDecimal(s);
+      }
+      catch(NumberFormatException x) {
+         return false;
+      }
+      int scale = d.scale();
+      if(scale < 0 || scale > MAX_SCALE
+         || d.unscaledValue().bitLength() > 62) {
+         return false;
+      }
+      long u = d.unscaledValue().longValue();
+      if(!formatDecimal(u, scale).equals(s)) return false;
+      writeVarint(out, scale + 2);
+      writeVarint(out, zigzag(u));
+      return true;
+   }
+
+   private static boolean writeDouble(DataOutputStream out, String s)
+      throws IOException
+   {
+      double d;
+      if(s.equals("INF")) d = Double.POSITIVE_INFINITY;
+      else if(s.equals("-INF")) d = Double.NEGATIVE_INFINITY;
+      else {
+         try {
+            d = Double.parseDouble(s);
+         }
+         catch(NumberFormatException x) {
+            return false;
+         }
+      }
+      if(!formatDouble(d).equals(s)) return false;
+      writeVarint(out, 1);
+      out.writeLong(Double.doubleToRawLongBits(d));
+      return true;
+   }
+
+   private static final Pattern DATE_RE =
+      Pattern.compile("(-?\\d{4,9})-(\\d\\d)-(\\d\\d)");
+   private static final Pattern TIME_RE =
+      Pattern.compile("(\\d\\d):(\\d\\d):(\\d\\d)(?:\\.(\\d{1,9}))?");
+   private static final Pattern ZONE_RE =
+      Pattern.compile("(?:(Z)|([+-])(\\d\\d):(\\d\\d))?");
+
+   /* The fields of a date, time, or both, as parsed or read. */
+   private static final class Moment
+   {
+      int year, month, day, secs, fraction, digits, zone, offset;
+   }
+
+   private static boolean writeDateTime(DataOutputStream out, int type,
+                                        String s)
+      throws IOException
+   {
+      Moment m = parseDateTime(type, s);
+      if(m == null || !formatDateTime(type, m).equals(s)) return false;
+      writeVarint(out, 1 + 10 * m.zone + m.digits);
+      if(type != TIME) {
+         writeVarint(out, (zigzag(m.year - 2000) * 12 + m.month - 1) * 31
+                     + m.day - 1);
+      }
+      if(type != DATE) {
+         writeVarint(out, m.secs);
+         if(m.digits > 0) writeVarint(out, m.fraction);
+      }
+      if(m.zone == 2) writeVarint(out, zigzag(m.offset));
+      return true;
+   }
+
+   private static Moment parseDateTime(int type, String s)
+   {
+      Moment m = new Moment();
+      Matcher r;
+      int at = 0;
+      if(type != TIME) {
+         r = DATE_RE.matcher(s);
+         if(!r.lookingAt()) return null;
+         m.year = Integer.parseInt(r.group(1));
+         m.month = Integer.parseInt(r.group(2));
+         m.day = Integer.parseInt(r.group(3));
+         if(m.month < 1 || m.month > 12 || m.day < 1 || m.day > 31) {
+            return null;
+         }
+         at = r.end();
+      }
+      if(type == DATE_TIME) {
+         if(at == s.length() || s.charAt(at) != 'T') return null;
+         at++;
+      }
+      if(type != DATE) {
+         r = TIME_RE.matcher(s).region(at, s.length());
+         if(!r.lookingAt()) return null;
+         int h = Integer.parseInt(r.group(1));
+         int mi = Integer.parseInt(r.group(2));
+         int se = Integer.parseInt(r.group(3));
+         if(h > 24 || mi > 59 || se > 59) return null;
+         m.secs = (h * 60 + mi) * 60 + se;
+         if(r.group(4) != null) {
+            m.digits = r.group(4).length();
+            m.fraction = Integer.parseInt(r.group(4));
+         }
+         at = r.end();
+      }
+      r = ZONE_RE.matcher(s).region(at, s.length());
+      if(!r.matches()) return null;
+      if(r.group(1) != null) {
+         m.zone = 1;
+      }
+      else if(r.group(2) != null) {
+         m.zone = 2;
+         int mi = Integer.parseInt(r.group(4));
+         if(mi > 59) return null;
+         m.offset = Integer.parseInt(r.group(3)) * 60 + mi;
+         if(r.group(2).equals("-")) m.offset = -m.offset;
+      }
+      return m;
+   }
+
+   private static boolean writeBase64(DataOutputStream out, String s)
+      throws IOException
+   {
+      byte[] b;
+      try {
+         b = Base64.getDecoder().decode(s);
+      }
+      catch(IllegalArgumentException x) {
+         return false;
+      }
+      if(!Base64.getEncoder().encodeToString(b).equals(s)) return false;
+      writeVarint(out, b.length + 1);
+      out.write(b);
+      return true;
+   }
+
+   private static final String UPPER_HEX = "0123456789ABCDEF";
+   private static final String LOWER_HEX = "0123456789abcdef";
+
+   private static boolean writeHex(DataOutputStream out, String s)
+      throws IOException
+   {
+      int n = s.length();
+      if(n % 2 != 0) return false;
+      /* The case of the first letter decides, and any other letter
+         must match it. */
+      String digits = UPPER_HEX;
+      for(int i = 0;  i < n;  i++) {
+         if(LOWER_HEX.indexOf(s.charAt(i)) >= 10) {
+            digits = LOWER_HEX;
+            break;
+         }
+      }
+      byte[] b = new byte[n / 2];
+      for(int i = 0;  i < n;  i += 2) {
+         int hi = digits.indexOf(s.charAt(i));
+         int lo = digits.indexOf(s.charAt(i+1));
+         if(hi < 0 || lo < 0) return false;
+         b[i/2] = (byte) (hi << 4 | lo);
+      }
+      writeVarint(out, 2L * b.length + (digits == UPPER_HEX? 1 : 2));
+      out.write(b);
+      return true;
+   }
+
+   /* ----------------------------------------------------------------
+    *                            DECODING
+    * ----------------------------------------------------------------
+    */
+
+   /**
+    * Reads a value of type ‘type’ from ‘in’, as written by {@link
+    * #write}.
+    * @throws IOException if there is a problem reading from ‘in’, or
+    * (as a {@link UTFDataFormatException}) if what was read
+    * does not represent a value of this type.
+    */
+   public static String read(DataInputStream in, int type)
+      throws IOException
+   {
+      if(type == STRING) return in.readUTF();
+      long h = readVarint(in);
+      if(h == ESCAPE) return in.readUTF();
+      switch(type) {
+      case INTEGER:
+         return Long.toString(unzigzag(h - 1));
+      case BOOLEAN:
+         check(h <= BOOLEANS.length);
+         return BOOLEANS[(int) h - 1];
+      case DECIMAL:
+      case DOUBLE:
+         if(h == 1 && type == DOUBLE) {
+            return formatDouble(Double.longBitsToDouble(in.readLong()));
+         }
+         check(h >= 2 && h - 2 <= MAX_SCALE);
+         return formatDecimal(unzigzag(readVarint(in)), (int) h - 2);
+      case DATE:
+      case DATE_TIME:
+      case TIME:
+         return readDateTime(in, type, h);
+      case BASE64:
+      case HEX:
+         long n = type == BASE64? h - 1 : (h - 1) / 2;
+         check(n <= Integer.MAX_VALUE);
+         byte[] b = new byte[(int) n];
+         in.readFully(b);
+         if(type == BASE64) return Base64.getEncoder().encodeToString(b);
+         return formatHex(b, h % 2 == 1? UPPER_HEX : LOWER_HEX);
+      default:
+         throw new IllegalArgumentException("type "+type);
+      }
+   }
+
+   private static String readDateTime(DataInputStream in, int type, long h)
+      throws IOException
+   {
+      Moment m = new Moment();
+      check(h <= 30);
+      m.zone = (int) (h - 1) / 10;
+      m.digits = (int) (h - 1) % 10;
+      check(m.zone <= 2 && (type != DATE || m.digits == 0));
+      if(type != TIME) {
+         long d = readVarint(in);
+         m.day = (int) (d % 31) + 1;
+         d /= 31;
+         m.month = (int) (d % 12) + 1;
+         m.year = (int) unzigzag(d / 12) + 2000;
+      }
+      if(type != DATE) {
+         m.secs = (int) readVarint(in);
+         if(m.digits > 0) m.fraction = (int) readVarint(in);
+      }
+      if(m.zone == 2) m.offset = (int) unzigzag(readVarint(in));
+      return formatDateTime(type, m);
+   }
+
+   private static void check(boolean ok) throws IOException
+   {
+      if(!ok) {
+         throw new UTFDataFormatException("bad typed value");
+      }
+   }
+
+   /* ----------------------------------------------------------------
+    *                           FORMATTING
+    * ----------------------------------------------------------------
+    */
+
+   private static long parseLong(String s)
+   {
+      try {
+         return Long.parseLong(s);
+      }
+      catch(NumberFormatException x) {
+         return Long.MIN_VALUE;
+      }
+   }
+
+   private static String formatDecimal(long u, int scale)
+   {
+      StringBuilder sb = new StringBuilder(24);
+      String digits = Long.toString(Math.abs(u));
+      if(u < 0) sb.append('-');
+      for(int i = digits.length();  i <= scale;  i++) {
+         sb.append('0');
+      }
+      sb.append(digits);
+      if(scale > 0) sb.insert(sb.length() - scale, '.');
+      return sb.toString();
+   }
+
+   private static String formatDouble(double d)
+   {
+      if(d == Double.POSITIVE_INFINITY) return "INF";
+      if(d == Double.NEGATIVE_INFINITY) return "-INF";
+      return Double.toString(d);
+   }
+
+   private static String formatDateTime(int type, Moment m)
+   {
+      StringBuilder sb = new StringBuilder(32);
+      if(type != TIME) {
+         if(m.year < 0) sb.append('-');
+         pad(sb, Math.abs(m.year), 4).append('-');
+         pad(sb, m.month, 2).append('-');
+         pad(sb, m.day, 2);
+      }
+      if(type == DATE_TIME) sb.append('T');
+      if(type != DATE) {
+         pad(sb, m.secs / 3600, 2).append(':');
+         pad(sb, m.secs / 60 % 60, 2).append(':');
+         pad(sb, m.secs % 60, 2);
+         if(m.digits > 0) pad(sb.append('.'), m.fraction, m.digits);
+      }
+      if(m.zone == 1) sb.append('Z');
+      else if(m.zone == 2) {
+         sb.append(m.offset < 0? '-' : '+');
+         pad(sb, Math.abs(m.offset) / 60, 2).append(':');
+         pad(sb, Math.abs(m.offset) % 60, 2);
+      }
+      return sb.toString();
+   }
+
+   /* Appends ‘n’ with at least ‘width’ digits. */
+   private static StringBuilder pad(StringBuilder sb, int n, int width)
+   {
+      String digits = Integer.toString(n);
+      for(int i = digits.length();  i < width;  i++) {
+         sb.append('0');
+      }
+      return sb.append(digits);
+   }
+
+   private static String formatHex(byte[] b, String digits)
+   {
+      char[] cs = new char[2 * b.length];
+      for(int i = 0;  i < b.length;  i++) {
+         cs[2*i] = digits.charAt((b[i] >> 4) & 15);
+         cs[2*i+1] = digits.charAt(b[i] & 15);
+      }
+      return new String(cs);
+   }
+
+   /* ----------------------------------------------------------------
+    *                            NUMBERS
+    * ----------------------------------------------------------------
+    */
+
+   private static long zigzag(long v)
+   {
+      return (v << 1) ^ (v >> 63);
+   }
+
+   private static long unzigzag(long z)
+   {
+      return (z >>> 1) ^ -(z & 1);
+   }
+
+   /* Seven bits at a time, least significant first, with the high
+      bit set on all but the last byte. */
+   private static void writeVarint(DataOutputStream out, long v)
+      throws IOException
+   {
+      while((v & ~0x7FL) != 0) {
+         out.write((int) (v & 0x7F) | 0x80);
+         v >>>= 7;
+      }
+      out.write((int) v);
+   }
+
+   private static long readVarint(DataInputStream in) throws IOException
+   {
+      long v = 0;
+      for(int shift = 0;  shift < 64;  shift += 7) {
+         int b = in.readUnsignedByte();
+         v |= (long) (b & 0x7F) << shift;
+         if(b < 0x80) return v;
+      }
+      throw new UTFDataFormatException("bad typed value");
+   }
+}
@@ -0,0 +1,259 @@
+package net.contrapunctus.rngzip.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * This output stream hands its bytes to a thread of its own, which
+ * writes them to the underlying stream.  It is meant to go in front
+ * of a compressor, so that the compressor runs on another core while
+ * the writer gets on with its work.  The bytes are handed over in
+ * batches, not one at a time, and only a few batches may be waiting
+ * at once; when the worker falls behind, the writer waits for it.
+ *
+ * <p>The writer may also {@link #note} a token between bytes; the
+ * worker passes it to {@link #noted} when it reaches that point in
+ * the stream.  This is how a compressor whose model depends on
+ * something besides the bytes can keep it in step with them.
+ *
+ * <p>Exceptions thrown in the worker are thrown again from the next
+ * write, flush, or close.  Only one thread should write to this
+ * stream.
+ *
+ * <p class='license'>This is free software; you may modify and/or
+ * redistribute it under the terms of the GNU General Public License,
+ * but it comes with <b>absolutely no warranty.</b>
+ *
+ * @author Christopher League
+ */
+public class WorkerOutputStream extends OutputStream
+{
+   private static final int BATCH_SIZE = 32768;
+   private static final int MAX_WAITING = 4;
+
+   private final OutputStream out;
+   private final Thread worker;
+
+   /* Batches waiting for the worker (the first may be in progress),
+      and empty ones ready for reuse.  Both are guarded by ‘this’, as
+      is ‘exn’.  The writer fills ‘cur’ without locking. */
+   private final ArrayDeque<Batch> full = new ArrayDeque<Batch>();
+   private final ArrayDeque<Batch> free = new ArrayDeque<Batch>();
+   private Batch cur = new Batch();
+   private IOException exn;
+   private boolean closed;
+
+   private static final class Batch
+   {
+      byte[] bytes = new byte[BATCH_SIZE];
+      int length;
+      /* notes[i] goes between bytes[noteAt[i]-1] and bytes[noteAt[i]] */
+      int[] noteAt = new int[64];
+      Object[] notes = new Object[64];
+      int nnotes;
+      boolean flush, last;
+
+      void clear()
+      {
+         Arrays.fill(notes, 0, nnotes, null);
+         length = nnotes = 0;
+         flush = last = false;
+      }
+   }
+
+   /**
+    * Starts a worker that writes to ‘out’.  From now on, ‘out’ should
+    * be used only through this stream.
+    */
+   public WorkerOutputStream(OutputStream out)
+   {
+      if(out == null)
+         throw new IllegalArgumentException("Output stream was null.");
+      this.out = out;
+      worker = new Thread("rngzip worker") {
+            public void run() {
+               work();
+            }
+         };
+      worker.setDaemon(true);
+      worker.start();
+   }
+
+   public void write(int b) throws IOException
+   {
+      if(cur.length == BATCH_SIZE) {
+         send();
+      }
+      cur.bytes[cur.length++] = (byte) b;
+   }
+
+   public void write(byte[] b, int off, int len) throws IOException
+   {
+      if(off < 0 || len < 0 || len > b.length - off)
+         throw new IndexOutOfBoundsException();
+      while(len > 0) {
+         if(cur.length == BATCH_SIZE) {
+            send();
+         }
+         int n = Math.min(len, BATCH_SIZE - cur.length);
+         System.arraycopy(b, off, cur.bytes, cur.length, n);
+         cur.length += n;
+         off += n;
+         len -= n;
+      }
+   }
+
+   /**
+    * Records ‘token’ at the current point in the stream.  The worker
+    * calls {@link #noted} with it after writing all the bytes before
+    * this point, and before any of the bytes after it.
+    */
+   public void note(Object token) throws IOException
+   {
+      Batch b = cur;
+      if(b.nnotes == b.notes.length) {
+         b.noteAt = Arrays.copyOf(b.noteAt, 2 * b.nnotes);
+         b.notes = Arrays.copyOf(b.notes, 2 * b.nnotes);
+      }
+      b.noteAt[b.nnotes] = b.length;
+      b.notes[b.nnotes++] = token;
+   }
+
+   /**
+    * Called in the worker thread for each token passed to {@link
+    * #note}.  This implementation does nothing.
+    */
+   protected void noted(Object token) throws IOException
+   {
+   }
+
+   /**
+    * Waits until the worker has written and flushed everything
+    * written so far.
+    */
+   public void flush() throws IOException
+   {
+      cur.flush = true;
+      send();
+      synchronized(this) {
+         try {
+            while(!full.isEmpty() && exn == null) {
+               wait();
+            }
+         }
+         catch(InterruptedException x) {
+            throw new InterruptedIOException(x.getMessage());
+         }
+         rethrow();
+      }
+   }
+
+   /**
+    * Waits until the worker has written everything, and closed the
+    * underlying stream.
+    */
+   public void close() throws IOException
+   {
+      if(closed) return;
+      closed = true;
+      cur.last = true;
+      send();
+      try {
+         worker.join();
+      }
+      catch(InterruptedException x) {
+         throw new InterruptedIOException(x.getMessage());
+      }
+      synchronized(this) {
+         rethrow();
+      }
+   }
+
+   /* Queues ‘cur’ for the worker, and starts a new batch. */
+   private void send() throws IOException
+   {
+      if(closed && !cur.last)
+         throw new IOException("Stream already closed.");
+      synchronized(this) {
+         try {
+            while(full.size() >= MAX_WAITING && exn == null) {
+               wait();
+            }
+         }
+         catch(InterruptedException x) {
+            throw new InterruptedIOException(x.getMessage());
+         }
+         rethrow();
+         full.add(cur);
+         notifyAll();
+         cur = free.isEmpty()? new Batch() : free.poll();
+      }
+   }
+
+   private void rethrow() throws IOException
+   {
+      if(exn != null) {
+         IOException x = new IOException(exn.getMessage());
+         x.initCause(exn);
+         throw x;
+      }
+   }
+
+   private void work()
+   {
+      try {
+         for(;;) {
+            Batch b;
+            synchronized(this) {
+               while(full.isEmpty()) {
+                  wait();
+               }
+               b = full.peek();
+            }
+            int from = 0;
+            for(int i = 0;  i < b.nnotes;  i++) {
+               pass(b.bytes, from, b.noteAt[i]);
+               from = b.noteAt[i];
+               noted(b.notes[i]);
+            }
+            pass(b.bytes, from, b.length);
+            boolean last = b.last;
+            if(last) out.close();
+            else if(b.flush) out.flush();
+            synchronized(this) {
+               full.remove();
+               b.clear();
+               free.add(b);
+               notifyAll();
+            }
+            if(last) return;
+         }
+      }
+      catch(InterruptedException x) {
+         fail(new InterruptedIOException(x.getMessage()));
+      }
+      catch(IOException x) {
+         fail(x);
+      }
+      catch(RuntimeException x) {
+         IOException y = new IOException(x.toString());
+         y.initCause(x);
+         fail(y);
+      }
+   }
+
+   /* Not every compressor takes kindly to writing nothing. */
+   private void pass(byte[] b, int from, int to) throws IOException
+   {
+      if(to > from) out.write(b, from, to - from);
+   }
+
+   private synchronized void fail(IOException x)
+   {
+      exn = x;
+      notifyAll();
+   }
+}
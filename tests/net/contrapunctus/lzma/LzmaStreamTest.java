@@ -0,0 +1,143 @@
+package net.contrapunctus.lzma;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through the LZMA streams, reading back with and
+ * without the decoder thread.  There is more data than the 1MB
+ * window, so that the window wraps, with matches across the wrap.
+ */
+public class LzmaStreamTest
+{
+  private static byte[] plain, packed;
+
+  @BeforeClass
+  public static void compress() throws IOException
+  {
+    Random r = new Random(19);
+    plain = new byte[(5 << 20) / 2];
+    for(int i = 0;  i < plain.length;  ) {
+      if(i > 1000 && r.nextBoolean()) {
+        int from = i - 1 - r.nextInt(Math.min(i, 1 << 19));
+        int n = Math.min(plain.length - i, 3 + r.nextInt(300));
+        for(int j = 0;  j < n;  j++) plain[i+j] = plain[from+j];
+        i += n;
+      }
+      else {
+        plain[i++] = (byte) ('a' + r.nextInt(8));
+      }
+    }
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    LzmaOutputStream lo = new LzmaOutputStream(bo);
+    lo.write(plain, 0, 1000);
+    for(int i = 1000;  i < 2000;  i++) lo.write(plain[i]);
+    lo.write(plain, 2000, plain.length - 2000);
+    lo.close();
+    packed = bo.toByteArray();
+  }
+
+  private void readBack(byte[] packed, LzmaPreset preset,
+                        boolean threaded) throws IOException
+  {
+    Random r = new Random(7);
+    InputStream in = new LzmaInputStream
+      (new ByteArrayInputStream(packed), preset, threaded);
+    byte[] got = new byte[plain.length];
+    int n = 0;
+    while(n < got.length) {
+      if(r.nextInt(10) == 0) {
+        got[n++] = (byte) in.read();
+      }
+      else {
+        int k = in.read(got, n, Math.min(got.length - n, r.nextInt(70000)));
+        assertTrue(k >= 0);
+        n += k;
+      }
+    }
+    assertEquals(-1, in.read());
+    assertEquals(-1, in.read(got, 0, 10));
+    in.close();
+    assertTrue(Arrays.equals(plain, got));
+  }
+
+  @Test
+  public void pull() throws IOException
+  {
+    readBack(packed, LzmaPreset.DEFAULT, false);
+  }
+
+  @Test
+  public void threaded() throws IOException
+  {
+    readBack(packed, LzmaPreset.DEFAULT, true);
+  }
+
+  /**
+   * With the small preset, the blocks are 1MB, so there are three,
+   * the last one short.
+   */
+  @Test
+  public void parallel() throws IOException
+  {
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    OutputStream out = new ParallelLzmaOutputStream(bo, LzmaPreset.SMALL);
+    out.write(plain, 0, 1000);
+    for(int i = 1000;  i < 2000;  i++) out.write(plain[i]);
+    out.write(plain, 2000, plain.length - 2000);
+    out.close();
+    InputStream in = new ParallelLzmaInputStream
+      (new ByteArrayInputStream(bo.toByteArray()), LzmaPreset.SMALL);
+    byte[] got = new byte[plain.length];
+    int n = 0, k;
+    while((k = in.read(got, n, Math.min(got.length - n, 70000))) > 0) {
+      n += k;
+    }
+    assertEquals(plain.length, n);
+    assertEquals(-1, in.read());
+    in.close();
+    assertTrue(Arrays.equals(plain, got));
+  }
+
+  /**
+   * The hash chains and the fast mode, alone and together; the
+   * preset must also survive the trip through the config stream.
+   */
+  @Test
+  public void fastModes() throws IOException
+  {
+    for(String spec : new String[] { "mf=hc4", "mode=fast", "fast" }) {
+      LzmaPreset p = LzmaPreset.valueOf(spec);
+      ByteArrayOutputStream bo = new ByteArrayOutputStream();
+      p.writeTo(new DataOutputStream(bo));
+      assertEquals(p, LzmaPreset.readFrom
+                   (new DataInputStream
+                    (new ByteArrayInputStream(bo.toByteArray()))));
+      bo.reset();
+      OutputStream out = new LzmaOutputStream(bo, p);
+      out.write(plain);
+      out.close();
+      readBack(bo.toByteArray(), p, false);
+    }
+  }
+
+  @Test(expected=IOException.class)
+  public void corrupt() throws IOException
+  {
+    byte[] bad = packed.clone();
+    for(int i = 100;  i < bad.length;  i += 97) bad[i] ^= 0x55;
+    InputStream in = new LzmaInputStream(new ByteArrayInputStream(bad));
+    byte[] buf = new byte[4096];
+    while(in.read(buf, 0, buf.length) >= 0) { }
+  }
+}
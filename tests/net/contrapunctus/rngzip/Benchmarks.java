@@ -27,6 +27,8 @@ public class Benchmarks
         doBitCoding( RNGZSettings.BitCoding.FIXED );
         doBitCoding( RNGZSettings.BitCoding.HUFFMAN );
         doBitCoding( RNGZSettings.BitCoding.BYTE );
+        doBitCoding( RNGZSettings.BitCoding.ARITH );
+        doBitCoding( RNGZSettings.BitCoding.CONTEXT );
     }
 
     public static void doBitCoding( RNGZSettings.BitCoding bc )
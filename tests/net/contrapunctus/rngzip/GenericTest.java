@@ -1,15 +1,25 @@
 package net.contrapunctus.rngzip;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import net.contrapunctus.rngzip.io.RNGZInputStream;
 import net.contrapunctus.rngzip.io.RNGZOutputStream;
+import net.contrapunctus.rngzip.io.RNGZRandomAccess;
 import net.contrapunctus.rngzip.io.RNGZSettings;
 import net.contrapunctus.rngzip.util.BaliAutomaton;
 import net.contrapunctus.rngzip.util.ErrorReporter;
 import org.junit.Before;
+import static org.junit.Assert.*;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -18,9 +28,12 @@ import org.kohsuke.bali.writer.*;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.DefaultHandler;
 import org.xml.sax.helpers.XMLReaderFactory;
 import runtime.ValidateletImpl;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
 
 /**
  * Test suite for a generic compress-decompress round-trip, using
@@ -44,6 +57,8 @@ public class GenericTest
   private String schemaFileName;  // ---.rng
   private byte[] compressedBytes;
   private EventRecorder origSax, newSax;
+  private Projection projection;
+  private String[] select;        // the paths ‘projection’ selects
 
   @Before
   public void setup() throws Exception 
@@ -54,6 +69,8 @@ public class GenericTest
     xmlReader = XMLReaderFactory.createXMLReader();
     xmlReader.setErrorHandler(errorReporter);
     settings = new RNGZSettings();
+    /* Only compiledRoundTrip uses the code it compiles. */
+    CompiledSchema.enabled = false;
   }
 
   @Parameterized.Parameters 
@@ -108,6 +125,393 @@ public class GenericTest
       }
   }
 
+  /**
+   * The same round trip, but split into chunks at every occurrence
+   * of the first child of the root element.  (If the root has no
+   * children, this is just the plain round trip again.)
+   */
+  @Test
+  public void chunkedRoundTrip() throws Exception
+  {
+    settings.setChunking(firstChildName(), 1);
+    roundTrip();
+  }
+
+  /**
+   * A container for each path, each compressed with PPM.  (The PPM
+   * model also depends on the path, so this checks that both sides
+   * see the same paths, including for attribute values.)
+   */
+  @Test
+  public void containersRoundTrip() throws Exception
+  {
+    settings.setContainers(true);
+    settings.setDataCompressor(RNGZSettings.DataCompression.PPM);
+    roundTrip();
+  }
+
+  /**
+   * Compressors in threads of their own, whether or not there is
+   * more than one processor.  With PPM, the paths go to the thread
+   * along with the data.
+   */
+  @Test
+  public void threadedRoundTrip() throws Exception
+  {
+    settings.setThreaded(true);
+    settings.setTreeCompressor(RNGZSettings.DataCompression.LZMA);
+    settings.setDataCompressor(RNGZSettings.DataCompression.PPM);
+    roundTrip();
+  }
+
+  /**
+   * LZMA with parameters other than the default, in chunks.  The
+   * decompressor must take them from the stream, since a different
+   * window or literal coding would not decode.
+   */
+  @Test
+  public void lzmaPresetRoundTrip() throws Exception
+  {
+    settings.setTreeCompressor(RNGZSettings.DataCompression.LZMA);
+    settings.setDataCompressor(RNGZSettings.DataCompression.LZMA);
+    settings.setTreeLzma("small,lc=0,mf=bt2");
+    settings.setDataLzma("d=12,lc=4,pb=0,fb=64");
+    settings.setChunking(firstChildName(), 2);
+    roundTrip();
+  }
+
+  /**
+   * LZMA in independent blocks, decoded in parallel.
+   */
+  @Test
+  public void parallelLzmaRoundTrip() throws Exception
+  {
+    settings.setTreeCompressor(RNGZSettings.DataCompression.PLZMA);
+    settings.setDataCompressor(RNGZSettings.DataCompression.PLZMA);
+    roundTrip();
+  }
+
+  /**
+   * BZip2 in independent blocks, coded and decoded in parallel.
+   */
+  @Test
+  public void parallelBZip2RoundTrip() throws Exception
+  {
+    settings.setTreeCompressor(RNGZSettings.DataCompression.PBZ2);
+    settings.setDataCompressor(RNGZSettings.DataCompression.PBZ2);
+    roundTrip();
+  }
+
+  /**
+   * A PPM model for each path, coded in a thread of its own, so the
+   * path keys go along with the data.
+   */
+  @Test
+  public void pathPPMRoundTrip() throws Exception
+  {
+    settings.setThreaded(true);
+    settings.setDataCompressor(RNGZSettings.DataCompression.PPMP);
+    roundTrip();
+  }
+
+  /**
+   * The same round trip, through the code that SchemaWriter writes
+   * for the schema, compiled and loaded here.  It must write exactly
+   * the same bytes as the tables do.  This is skipped if there is no
+   * compiler.
+   */
+  @Test
+  public void compiledRoundTrip() throws Exception
+  {
+    compress();
+    byte[] tables = compressedBytes;
+    if( !loadCompiled() ) return;
+    CompiledSchema.enabled = true;
+    try {
+      BaliAutomaton au = BaliAutomaton.fromRNG(new File(schemaFileName));
+      assertNotNull(CompiledSchema.forAutomaton(au));
+      roundTrip();
+      assertTrue(Arrays.equals(tables, compressedBytes));
+    }
+    finally {
+      CompiledSchema.enabled = false;
+    }
+  }
+
+  /* The classes compiled so far; each can be defined just once. */
+  private static final HashSet<String> compiled = new HashSet<String>();
+
+  /* Writes the code for the schema, compiles it, and defines it in
+     this package.  Returns false if there is no compiler. */
+  private boolean loadCompiled() throws Exception
+  {
+    BaliAutomaton au = BaliAutomaton.fromRNG(new File(schemaFileName));
+    SchemaWriter sw = new SchemaWriter(au);
+    if( compiled.contains(sw.getClassName()) ) return true;
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    if( javac == null ) return false;
+    File dir = Files.createTempDirectory("rngzip").toFile();
+    try {
+      File src = sw.write(dir);
+      assertEquals(0, javac.run(null, null, null, "-nowarn",
+                                "-encoding", "UTF-8",
+                                "-cp", System.getProperty("java.class.path"),
+                                "-d", dir.getPath(), src.getPath()));
+      File cls = new File(src.getParentFile(), sw.getClassName()+".class");
+      MethodHandles.lookup().defineClass(Files.readAllBytes(cls.toPath()));
+      compiled.add(sw.getClassName());
+    }
+    finally {
+      deleteAll(dir);
+    }
+    return true;
+  }
+
+  private static void deleteAll(File f)
+  {
+    File[] fs = f.listFiles();
+    if( fs != null ) {
+      for( File g : fs ) deleteAll(g);
+    }
+    f.delete();
+  }
+
+  /**
+   * Values of XML Schema types in binary, with the data in
+   * containers, so that the types are threaded through them too.
+   */
+  @Test
+  public void typedRoundTrip() throws Exception
+  {
+    settings.setTypedValues(true);
+    settings.setContainers(true);
+    roundTrip();
+  }
+
+  /**
+   * Selecting the root element, whatever it is, must give back the
+   * whole document.
+   */
+  @Test
+  public void selectAll() throws Exception
+  {
+    projection = new Projection("*");
+    roundTrip();
+  }
+
+  /**
+   * Select the children of the root with the name of the first one,
+   * by a path like root/child.  The output must be exactly those
+   * subtrees, inside a bare root.
+   */
+  @Test
+  public void selectChild() throws Exception
+  {
+    String[] p = firstPath(1, false);
+    if( p == null ) return;
+    select(join(p));
+  }
+
+  /**
+   * Select by a path like root/&#42;/name, with the name of the first
+   * grandchild of the root, so that the wildcard in the middle
+   * matches whatever is between them.
+   */
+  @Test
+  public void selectWildcard() throws Exception
+  {
+    String[] p = firstPath(2, false);
+    if( p == null ) return;
+    p[1] = "*";
+    select(join(p));
+  }
+
+  /**
+   * Select the parent of the first element that has attributes (or
+   * that element itself, if it is the root).  The attributes under
+   * the selected element must come through, and those of the
+   * elements around it must not.
+   */
+  @Test
+  public void selectAttributes() throws Exception
+  {
+    String[] p = firstPath(-1, true);
+    if( p == null ) return;
+    if( p.length > 1 ) p = Arrays.copyOf(p, p.length-1);
+    select(join(p));
+    assertTrue(((Selection) origSax).attributes > 0);
+  }
+
+  private void select(String... paths) throws Exception
+  {
+    select = paths;
+    projection = new Projection(paths);
+    roundTrip();
+  }
+
+  private static String join(String[] path)
+  {
+    StringBuilder buf = new StringBuilder(path[0]);
+    for( int i = 1;  i < path.length;  i++ ) buf.append('/').append(path[i]);
+    return buf.toString();
+  }
+
+  /**
+   * Returns the names of the elements from the root down to the first
+   * one at ‘depth’ (or at any depth, if it is negative) that also
+   * has attributes, if ‘attributes’ is true; or null if there is no
+   * such element.
+   */
+  private String[] firstPath(final int depth, final boolean attributes)
+    throws Exception
+  {
+    final LinkedList<String> open = new LinkedList<String>();
+    final String[][] found = new String[1][];
+    xmlReader.setContentHandler(new DefaultHandler() {
+        public void startElement(String ns, String lname, String qname,
+                                 Attributes atts) {
+          open.add(qname);
+          if( found[0] == null
+              && (depth < 0 || open.size() == depth+1)
+              && (!attributes || atts.getLength() > 0) )
+            found[0] = open.toArray(new String[open.size()]);
+        }
+        public void endElement(String ns, String lname, String qname) {
+          open.removeLast();
+        }
+      });
+    xmlReader.parse(origFileName);
+    return found[0];
+  }
+
+  /**
+   * Chunk at every occurrence of the first child of the root, and
+   * then extract each one of those through the index.  Each must be
+   * the same as that subtree of the original.
+   */
+  @Test
+  public void extractRecords() throws Exception
+  {
+    String child = firstChildName();
+    if( child == null ) return;
+    RecordSplitter orig = split(child, null, null);
+    settings.setChunking(child, 2);
+    compress();
+    File f = saveCompressed();
+    try {
+      RNGZRandomAccess ra = new RNGZRandomAccess(f, new RNGZSettings());
+      assertEquals((long) orig.records.size(), ra.getRecordCount());
+      RecordExtractor rx = new RecordExtractor
+        (BaliAutomaton.fromRNG(new File(schemaFileName)), ra);
+      for( long r = ra.getRecordCount()-1;  r >= 0;  r-- ) {
+        assertRecord(orig, rx, r);
+      }
+      try {
+        rx.extract(ra.getRecordCount(), new EventRecorder());
+        fail("extracted a record past the end");
+      }
+      catch( IndexOutOfBoundsException x ) { }
+      ra.close();
+    }
+    finally {
+      f.delete();
+    }
+  }
+
+  /**
+   * Index the records, as with --index, by the first attribute and
+   * the first element found inside one, and then look up every value
+   * of each key, as with --extract KEY=VALUE.  The lookup must find
+   * just the records with that value, and they must extract as they
+   * were.
+   */
+  @Test
+  public void extractByKey() throws Exception
+  {
+    String child = firstChildName();
+    if( child == null ) return;
+    RecordSplitter names = split(child, null, null);
+    LinkedList<String> keys = new LinkedList<String>();
+    if( names.firstAttribute != null ) keys.add("@"+names.firstAttribute);
+    if( names.firstElement != null ) keys.add(names.firstElement);
+    if( keys.isEmpty() ) return;
+    RecordSplitter orig =
+      split(child, names.firstAttribute, names.firstElement);
+    settings.setChunking(child, 2);
+    settings.setIndexKeys(keys.toArray(new String[keys.size()]));
+    compress();
+    File f = saveCompressed();
+    try {
+      RNGZRandomAccess ra = new RNGZRandomAccess(f, new RNGZSettings());
+      assertEquals(new TreeSet<String>(keys),
+                   new TreeSet<String>(Arrays.asList(ra.getIndexKeys())));
+      RecordExtractor rx = new RecordExtractor
+        (BaliAutomaton.fromRNG(new File(schemaFileName)), ra);
+      for( String k : keys ) {
+        Map<String, List<Long>> values = orig.values.get(k);
+        assertFalse(k, values.isEmpty());
+        for( Map.Entry<String, List<Long>> e : values.entrySet() ) {
+          long[] found = rx.find(k, e.getKey());
+          assertEquals(k+"="+e.getKey(), e.getValue().toString(),
+                       Arrays.toString(found));
+          for( long r : found ) {
+            assertRecord(orig, rx, r);
+          }
+        }
+        assertEquals(0, rx.find(k, "\u0000").length);
+      }
+      assertEquals(0, rx.find("no-such-key", "").length);
+      ra.close();
+    }
+    finally {
+      f.delete();
+    }
+  }
+
+  private RecordSplitter split(String child, String att, String elt)
+    throws Exception
+  {
+    RecordSplitter rs = new RecordSplitter(child, att, elt);
+    xmlReader.setContentHandler(rs);
+    xmlReader.parse(origFileName);
+    return rs;
+  }
+
+  private static void assertRecord(RecordSplitter orig, RecordExtractor rx,
+                                   long r)
+    throws Exception
+  {
+    EventRecorder er = new EventRecorder();
+    rx.extract(r, er);
+    orig.records.get((int) r).assertEqual(er);
+  }
+
+  private File saveCompressed() throws IOException
+  {
+    File f = File.createTempFile("rngzip", ".rnz");
+    FileOutputStream fo = new FileOutputStream(f);
+    fo.write(compressedBytes);
+    fo.close();
+    return f;
+  }
+
+  private String firstChildName() throws Exception
+  {
+    final String[] child = new String[1];
+    xmlReader.setContentHandler(new DefaultHandler() {
+        int depth = 0;
+        public void startElement(String ns, String lname, String qname,
+                                 Attributes atts) {
+          if( depth++ == 1 && child[0] == null ) child[0] = qname;
+        }
+        public void endElement(String ns, String lname, String qname) {
+          depth--;
+        }
+      });
+    xmlReader.parse(origFileName);
+    return child[0];
+  }
+
   private void validateOnly() throws Exception
   {
     AutomatonWriter writer = new NullWriter();    
@@ -127,7 +531,7 @@ public class GenericTest
 
   private void recordOriginal() throws Exception
   {
-    origSax = new EventRecorder();
+    origSax = select == null? new EventRecorder() : new Selection(select);
     xmlReader.setContentHandler(origSax);
     xmlReader.parse(origFileName);
   }
@@ -149,7 +553,13 @@ public class GenericTest
     ByteArrayInputStream bi = new ByteArrayInputStream(compressedBytes);
     RNGZInputStream ri = new RNGZInputStream(bi, settings);
     newSax = new EventRecorder();
-    new GenericDecompressor(schemaFileName, ri, newSax);
+    if( projection == null ) {
+      new GenericDecompressor(schemaFileName, ri, newSax);
+    }
+    else {
+      new GenericDecompressor(BaliAutomaton.fromRNG(new File(schemaFileName)),
+                              ri, newSax, projection);
+    }
     ri.close();
   }
 
@@ -195,6 +605,161 @@ public class GenericTest
     return buf.toString();
   }
 
+  /**
+   * Records each occurrence of a chunk element just inside the root
+   * as an event history of its own, as RecordExtractor should give
+   * it back.  Along the way, it notes the first attribute and the
+   * first element nested in a record, and, if those are the index
+   * keys, the values they take in each record, just as Compressor
+   * indexes them: every attribute of that name anywhere in the
+   * record, and the text of each outermost element of that name.
+   */
+  static class RecordSplitter extends DefaultHandler
+  {
+    final String child, att, elt;
+    final ArrayList<EventRecorder> records = new ArrayList<EventRecorder>();
+    final TreeMap<String, Map<String, List<Long>>> values =
+      new TreeMap<String, Map<String, List<Long>>>();
+    String firstAttribute, firstElement;
+    private EventRecorder cur;
+    private int depth, keyDepth = -1;
+    private StringBuilder keyText = new StringBuilder();
+
+    RecordSplitter(String child, String att, String elt)
+    {
+      this.child = child;
+      this.att = att;
+      this.elt = elt;
+      if( att != null ) values.put("@"+att, new TreeMap<String, List<Long>>());
+      if( elt != null ) values.put(elt, new TreeMap<String, List<Long>>());
+    }
+
+    public void startElement( String ns, String ln, String qn,
+                              Attributes at )
+    {
+      if( depth == 1 && (child.equals(ln) || child.equals(qn)) ) {
+        cur = new EventRecorder();
+        records.add(cur);
+      }
+      if( cur != null ) {
+        if( depth > 1 && firstElement == null ) firstElement = qn;
+        for( int i = 0;  i < at.getLength();  i++ ) {
+          if( firstAttribute == null ) firstAttribute = at.getQName(i);
+          if( at.getQName(i).equals(att) || at.getLocalName(i).equals(att) )
+            note("@"+att, at.getValue(i));
+        }
+        if( keyDepth < 0 && (qn.equals(elt) || ln.equals(elt)) ) {
+          keyDepth = depth;
+          keyText.setLength(0);
+        }
+        cur.startElement(ns, ln, qn, at);
+      }
+      depth++;
+    }
+
+    public void endElement( String ns, String ln, String qn )
+    {
+      depth--;
+      if( cur == null ) return;
+      cur.endElement(ns, ln, qn);
+      if( depth == keyDepth ) {
+        note(elt, keyText.toString());
+        keyDepth = -1;
+      }
+      if( depth == 1 ) cur = null;
+    }
+
+    public void characters( char[] ch, int start, int len )
+    {
+      if( cur == null ) return;
+      if( keyDepth >= 0 ) keyText.append(ch, start, len);
+      cur.characters(ch, start, len);
+    }
+
+    private void note( String key, String value )
+    {
+      Map<String, List<Long>> m = values.get(key);
+      List<Long> rs = m.get(value);
+      if( rs == null ) {
+        rs = new LinkedList<Long>();
+        m.put(value, rs);
+      }
+      rs.add((long) records.size()-1);
+    }
+  }
+
+  /**
+   * Records only what a Projection onto the same paths should pass
+   * on: each selected element with everything in it, and the
+   * elements on the way to one without their attributes or text.
+   * This works from the paths of the open elements, with none of the
+   * bookkeeping of Projection itself.
+   */
+  static class Selection extends EventRecorder
+  {
+    private static final int SKIPPED = 0, PASSED = 1, SELECTED = 2;
+    private static final Attributes NONE = new AttributesImpl();
+    private final String[][] paths;
+    private final LinkedList<String> open = new LinkedList<String>();
+    private final LinkedList<Integer> states = new LinkedList<Integer>();
+    int attributes;             // how many were selected
+
+    Selection(String... paths)
+    {
+      this.paths = new String[paths.length][];
+      for( int i = 0;  i < paths.length;  i++ )
+        this.paths[i] = paths[i].split("/");
+    }
+
+    public void startElement( String ns, String ln, String qn,
+                              Attributes at )
+    {
+      open.add(qn);
+      int parent = states.isEmpty()? PASSED : states.getLast();
+      int state = parent == PASSED? classify() : parent;
+      states.add(state);
+      if( state == SELECTED ) {
+        super.startElement(ns, ln, qn, at);
+        attributes += at.getLength();
+      }
+      if( state == PASSED ) super.startElement(ns, ln, qn, NONE);
+    }
+
+    /* Is the path of open elements one of the paths, or on the way
+       to one? */
+    private int classify()
+    {
+      int state = SKIPPED;
+      for( String[] p : paths )
+        {
+          if( p.length < open.size() ) continue;
+          int i = 0;
+          for( String e : open )
+            {
+              if( !p[i].equals("*") && !e.equals(p[i])
+                  && !e.endsWith(":"+p[i]) ) break;
+              i++;
+            }
+          if( i < open.size() ) continue;
+          if( p.length == open.size() ) return SELECTED;
+          state = PASSED;
+        }
+      return state;
+    }
+
+    public void endElement( String ns, String ln, String qn )
+    {
+      open.removeLast();
+      if( states.removeLast() != SKIPPED ) super.endElement(ns, ln, qn);
+    }
+
+    public void characters( char[] ch, int start, int len )
+    {
+      if( !states.isEmpty() && states.getLast() == SELECTED )
+        super.characters(ch, start, len);
+    }
+  }
+
   /**
    * To compare the input against the output, we don't do it at the
    * character level; there are too many variations possible: spacing
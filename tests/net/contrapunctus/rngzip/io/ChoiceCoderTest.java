@@ -48,6 +48,20 @@ public class ChoiceCoderTest
       setupDecoders(hcf);
    }
    
+   private void setupArith()
+   {
+      ArithChoiceFactory acf = new ArithChoiceFactory();
+      setupEncoders(acf);
+      setupDecoders(acf);
+   }
+   
+   private void setupContext()
+   {
+      ContextChoiceFactory ccf = new ContextChoiceFactory();
+      setupEncoders(ccf);
+      setupDecoders(ccf);
+   }
+   
    /* test wether decode(encode()) is identity */
    private void runIdentity() throws IOException
    {
@@ -98,4 +112,92 @@ public class ChoiceCoderTest
       runIdentity();
    }
    
+  @Test
+   public void testIdentityArith() throws IOException
+   {
+      setupArith();
+      runIdentity();
+   }
+
+  @Test
+   public void testIdentityContext() throws IOException
+   {
+      setupContext();
+      runIdentity();
+   }
+
+   /* Long enough for the Huffman tree to settle, so that the
+      table-driven decoder gets used. */
+  @Test
+   public void testLongHuffman() throws IOException
+   {
+      final int N = 20000, LIMIT = 40;
+      java.util.Random r = new java.util.Random(7);
+      int[] cs = new int[N];
+      for(int i = 0;  i < N;  i++) {
+         cs[i] = Math.min(LIMIT-1, Math.abs((int)(r.nextGaussian() * 6)));
+      }
+      ChoiceEncoder e = new HuffmanChoiceCoder(LIMIT, null);
+      ByteArrayOutputStream ao = new ByteArrayOutputStream();
+      BitOutputStream bo = new BitOutputStream(ao);
+      for(int c : cs) {
+         e.encode(c, bo);
+      }
+      bo.close();
+      ChoiceDecoder d = new HuffmanChoiceCoder(LIMIT, null);
+      BitInputStream bi = new BitInputStream
+         (new ByteArrayInputStream(ao.toByteArray()));
+      for(int c : cs) {
+         assertEquals(c, d.decode(bi));
+      }
+   }
+
+   /* A choice that is almost always the same should cost much less
+      than a bit each time. */
+  @Test
+   public void testSkewedArith() throws IOException
+   {
+      final int N = 10000;
+      ChoiceEncoder e = new ArithChoiceCoder(2, null);
+      ByteArrayOutputStream ao = new ByteArrayOutputStream();
+      BitOutputStream bo = new BitOutputStream(ao);
+      for(int i = 0;  i < N;  i++) {
+         e.encode(i % 100 == 99? 1 : 0, bo);
+      }
+      bo.close();
+      assertTrue(ao.size() < N / 8 / 5);
+      ChoiceDecoder d = new ArithChoiceCoder(2, null);
+      BitInputStream bi = new BitInputStream
+         (new ByteArrayInputStream(ao.toByteArray()));
+      for(int i = 0;  i < N;  i++) {
+         assertEquals(i % 100 == 99? 1 : 0, d.decode(bi));
+      }
+   }
+
+   /* Two choice points whose choices follow each other: the second
+      always repeats the first, and the first alternates.  An order-0
+      model needs a bit for each; with context, they are nearly free. */
+  @Test
+   public void testCorrelatedContext() throws IOException
+   {
+      final int N = 10000;
+      ByteArrayOutputStream ao = new ByteArrayOutputStream();
+      BitOutputStream bo = new BitOutputStream(ao);
+      ChoiceEncoder e1 = new ContextChoiceCoder(2, 1);
+      ChoiceEncoder e2 = new ContextChoiceCoder(2, 2);
+      for(int i = 0;  i < N;  i++) {
+         e1.encode(i % 2, bo);
+         e2.encode(i % 2, bo);
+      }
+      bo.close();
+      assertTrue(ao.size() < 2 * N / 8 / 10);
+      BitInputStream bi = new BitInputStream
+         (new ByteArrayInputStream(ao.toByteArray()));
+      ChoiceDecoder d1 = new ContextChoiceCoder(2, 1);
+      ChoiceDecoder d2 = new ContextChoiceCoder(2, 2);
+      for(int i = 0;  i < N;  i++) {
+         assertEquals(i % 2, d1.decode(bi));
+         assertEquals(i % 2, d2.decode(bi));
+      }
+   }
 }
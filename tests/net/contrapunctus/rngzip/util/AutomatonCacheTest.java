@@ -0,0 +1,114 @@
+package net.contrapunctus.rngzip.util;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The cache must notice when a file that the schema pulls in, by
+ * <code>include</code> or <code>externalRef</code>, is edited, and
+ * build the automaton again; the entry must then agree with the
+ * schema as it is now.
+ */
+public class AutomatonCacheTest
+{
+  private static final String NS =
+    " xmlns='http://relaxng.org/ns/structure/1.0'";
+
+  private File dir, cacheDir;
+  private URL main;
+
+  @Before
+  public void setup() throws IOException
+  {
+    dir = Files.createTempDirectory("rngzip").toFile();
+    cacheDir = new File(dir, "cache");
+    write("main.rng",
+          "<grammar"+NS+"><include href='mod.rng'/>"
+          + "<start><element name='doc'><ref name='item'/>"
+          + "<externalRef href='ext.rng'/></element></start></grammar>");
+    write("mod.rng",
+          "<grammar"+NS+"><define name='item'>"
+          + "<element name='a'><empty/></element></define></grammar>");
+    write("ext.rng", "<element name='x'"+NS+"><empty/></element>");
+    main = new File(dir, "main.rng").toURI().toURL();
+  }
+
+  @After
+  public void cleanup()
+  {
+    deleteAll(dir);
+  }
+
+  private void write(String name, String text) throws IOException
+  {
+    Writer w = new OutputStreamWriter
+      (new FileOutputStream(new File(dir, name)), "UTF-8");
+    w.write(text);
+    w.close();
+  }
+
+  private static void deleteAll(File f)
+  {
+    File[] fs = f.listFiles();
+    if( fs != null ) {
+      for( File g : fs ) deleteAll(g);
+    }
+    f.delete();
+  }
+
+  /* Loads through the cache, and checks against the schema. */
+  private long load() throws Exception
+  {
+    long sum = new AutomatonCache(cacheDir).load(main).checksum();
+    assertEquals(BaliAutomaton.fromRNG(main).checksum(), sum);
+    assertEquals(1, cacheDir.list().length);
+    return sum;
+  }
+
+  @Test
+  public void reuse() throws Exception
+  {
+    long sum = load();
+    File entry = cacheDir.listFiles()[0];
+    entry.setLastModified(0);
+    assertEquals(sum, load());
+    assertEquals(0L, entry.lastModified());
+  }
+
+  @Test
+  public void editInclude() throws Exception
+  {
+    long sum = load();
+    write("mod.rng",
+          "<grammar"+NS+"><define name='item'><choice>"
+          + "<element name='a'><empty/></element>"
+          + "<element name='b'><empty/></element>"
+          + "</choice></define></grammar>");
+    assertTrue(sum != load());
+  }
+
+  @Test
+  public void editExternalRef() throws Exception
+  {
+    long sum = load();
+    write("ext.rng", "<element name='y'"+NS+"><empty/></element>");
+    assertTrue(sum != load());
+  }
+
+  @Test
+  public void missingInclude() throws Exception
+  {
+    load();
+    new File(dir, "ext.rng").delete();
+    try {
+      new AutomatonCache(cacheDir).load(main);
+      fail("loaded a schema that refers to a missing file");
+    }
+    catch( SchemaFormatException x ) { }
+  }
+}
@@ -1,7 +1,10 @@
 package net.contrapunctus.rngzip.util;
 
 import java.util.LinkedList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.PrintStream;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -50,4 +53,26 @@ public class AutomatonChecksumTest
       + Long.toString(s, 16) + " != " + Long.toString(sum, 16);
   }
 
+  /* A compiled automaton must print exactly like the one built
+     from the schema, or else its checksum would differ. */
+  @Test
+  public void compiled() throws Exception
+  {
+    File file = new File(filename);
+    BaliAutomaton ba = BaliAutomaton.fromRNG(file);
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    ba.writeCompiled(bs);
+    BaliAutomaton bb = BaliAutomaton.readCompiled
+      (new ByteArrayInputStream(bs.toByteArray()), file.toURI().toURL());
+    assert ba.checksum() == bb.checksum() : filename;
+    assert printed(ba).equals(printed(bb)) : filename;
+    assert ba.countStates() == bb.countStates() : filename;
+  }
+
+  static String printed(BaliAutomaton ba)
+  {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    ba.print(new PrintStream(bs));
+    return bs.toString();
+  }
 }
@@ -165,6 +165,7 @@ public class BitStreamTest
    {
       b.writeBits(0xABC, 9);    // 101{0 1011 1100}
       b.writeBits(0xDEF, 7);    // 1101 1{110 1111}
+      b.close();                // bytes are buffered until now
       byte[] bs = a.toByteArray();
       // 0101 1110 0110 1111 = 5E 6F
       assert(2 == bs.length);
@@ -172,6 +173,50 @@ public class BitStreamTest
       assert(0x6F == bs[1]);
    }  
       
+   /** Peeking does not use up bits, and pads with zeros at the end. */
+  @Test
+   public void testPeekBits() throws IOException
+   {
+      byte[] bs = new byte[] {(byte)0xCA, (byte)0xFE};
+      BitInputStream c = new BitInputStream(new ByteArrayInputStream(bs));
+      assertEquals(0x32BL, c.peekBits(10)); // 1100 1010 11
+      assertEquals(0xCL, c.peekBits(4));
+      c.skipBits(3);
+      assertEquals(0x15FL, c.peekBits(10)); // 0 1010 1111 1
+      assertFalse(c.readBit());
+      c.skipBits(10);
+      assertEquals(0x10L, c.peekBits(5));   // 10{000}
+      assertEquals(2L, c.readBits(2));
+      assertEquals(0L, c.peekBits(3));
+      try {
+         c.skipBits(1);
+         fail("should have reached the end");
+      }
+      catch(java.io.EOFException x) { }
+   }
+
+   /** Writes and reads of up to 64 bits, at every alignment. */
+  @Test
+   public void testLongBits() throws IOException
+   {
+      final long X = 0xFEDCBA9876543210L;
+      for(int i = 0;  i < 8;  i++) {
+         b.writeBits(1, i);
+         b.writeBits(X, 64);
+         b.writeBits(X, 57);
+         b.writeBit(false);
+      }
+      b.close();
+      BitInputStream c = new BitInputStream
+         (new ByteArrayInputStream(a.toByteArray()));
+      for(int i = 0;  i < 8;  i++) {
+         assertEquals(i > 0? 1L : 0L, c.readBits(i));
+         assertEquals(X, c.readBits(64));
+         assertEquals(X & (1L << 57) - 1, c.readBits(57));
+         assertFalse(c.readBit());
+      }
+   }
+
    /** Test the mask-making helper function. */
   @Test
    public void testMask()
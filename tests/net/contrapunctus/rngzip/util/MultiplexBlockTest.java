@@ -8,9 +8,11 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Formatter;
 import java.util.Random;
 import org.junit.Test;
@@ -74,6 +76,13 @@ public class MultiplexBlockTest
       for(int i = 0;  i < bs.length;  i++) {
          assert(bs[i] == rs[i]);
       }
+      java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocate
+         (MultiplexBlockRep.MAX_HEADER_SIZE);
+      new MultiplexBlockRep(sid).encode(size, bb);
+      assertEquals(bs.length, bb.position());
+      for(int i = 0;  i < bs.length;  i++) {
+         assertEquals(bs[i], bb.get(i));
+      }
    }
 
    private void testDec(int sid, int size, byte[] bs) throws IOException
@@ -141,6 +150,87 @@ public class MultiplexBlockTest
       mo.close();
    }
 
+   /* Writes the same interleaved streams to ‘out’ each time. */
+   private void writeStreams(OutputStream out) throws IOException
+   {
+      Random r = new Random(5);
+      MultiplexOutputStream mo = new MultiplexOutputStream(out, 0);
+      mo.capacity(20000);
+      OutputStream[] os = new OutputStream[6];
+      for(int i = 0;  i < os.length;  i++) {
+         os[i] = mo.open(i * 11, new OutputStreamFilter<OutputStream>() {
+            public OutputStream wrap(OutputStream out) { return out; }
+         });
+      }
+      for(int i = 0;  i < 2000;  i++) {
+         byte[] b = new byte[r.nextInt(100) == 0? 30000 : r.nextInt(300)];
+         r.nextBytes(b);
+         OutputStream o = os[r.nextInt(os.length)];
+         if(b.length == 1) o.write(b[0]);
+         else o.write(b);
+      }
+      mo.close();
+   }
+
+   /* A file gets its blocks through a gathering write to its channel,
+      which must give the same bytes as the stream path. */
+  @Test
+   public void testFileChannel() throws IOException
+   {
+      ByteArrayOutputStream bo = new ByteArrayOutputStream();
+      writeStreams(bo);
+      java.io.File f = java.io.File.createTempFile("mux", ".tmp");
+      try {
+         writeStreams(new java.io.FileOutputStream(f));
+         DataInputStream in = new DataInputStream
+            (new java.io.FileInputStream(f));
+         byte[] fs = new byte[(int) f.length()];
+         in.readFully(fs);
+         in.close();
+         assertTrue(Arrays.equals(bo.toByteArray(), fs));
+      }
+      finally {
+         f.delete();
+      }
+   }
+
+  @Test
+   public void testMappedFile() throws IOException
+   {
+      java.io.File f = java.io.File.createTempFile("mux", ".tmp");
+      try {
+         writeStreams(new java.io.FileOutputStream(f));
+         byte[][] fs = readStreams(new java.io.FileInputStream(f));
+         java.io.FileInputStream in = new java.io.FileInputStream(f);
+         byte[][] bs = readStreams(new java.io.BufferedInputStream(in));
+         for(int i = 0;  i < fs.length;  i++) {
+            assertTrue(bs[i].length > 0);
+            assertTrue(Arrays.equals(bs[i], fs[i]));
+         }
+      }
+      finally {
+         f.delete();
+      }
+   }
+
+   /* Reads back the streams from writeStreams, last one first. */
+   private byte[][] readStreams(InputStream in) throws IOException
+   {
+      MultiplexInputStream mi = new MultiplexInputStream(in);
+      byte[][] bs = new byte[6][];
+      for(int i = bs.length-1;  i >= 0;  i--) {
+         InputStream is = mi.open(i * 11);
+         ByteArrayOutputStream bo = new ByteArrayOutputStream();
+         byte[] buf = new byte[1000];
+         for(int n;  (n = is.read(buf)) > 0; ) {
+            bo.write(buf, 0, n);
+         }
+         bs[i] = bo.toByteArray();
+      }
+      mi.close();
+      return bs;
+   }
+
   @Test
    public void testStreams() throws IOException
    {
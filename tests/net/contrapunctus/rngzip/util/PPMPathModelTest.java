@@ -0,0 +1,56 @@
+package net.contrapunctus.rngzip.util;
+
+import com.colloquial.arithcode.*;
+import java.io.*;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Codes values on many paths with a budget so small that models are
+ * dropped all the time, and checks that the decoder drops the same
+ * ones.
+ */
+public class PPMPathModelTest
+{
+  static final int PATHS = 40, VALUES = 3000, BUDGET = 5000;
+
+  private String value(Random r, int path)
+  {
+    StringBuilder sb = new StringBuilder();
+    int n = 5 + r.nextInt(30);
+    for(int i = 0;  i < n;  i++) {
+      sb.append((char) ('a' + (path + r.nextInt(5)) % 26));
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void eviction() throws IOException
+  {
+    PPMPathModel mo = new PPMPathModel(5, BUDGET);
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    ArithCodeOutputStream ao = new ArithCodeOutputStream(bo, mo);
+    DataOutputStream out = new DataOutputStream(ao);
+    Random r = new Random(11);
+    for(int i = 0;  i < VALUES;  i++) {
+      int p = r.nextInt(PATHS);
+      mo.select("rec/f" + p);
+      out.writeUTF(value(r, p));
+    }
+    out.close();
+    assertTrue(mo.size() < PATHS);
+
+    PPMPathModel mi = new PPMPathModel(5, BUDGET);
+    DataInputStream in = new DataInputStream
+      (new ArithCodeInputStream
+       (new ByteArrayInputStream(bo.toByteArray()), mi));
+    r = new Random(11);
+    for(int i = 0;  i < VALUES;  i++) {
+      int p = r.nextInt(PATHS);
+      mi.select("rec/f" + p);
+      assertEquals(value(r, p), in.readUTF());
+    }
+    assertEquals(mo.size(), mi.size());
+  }
+}
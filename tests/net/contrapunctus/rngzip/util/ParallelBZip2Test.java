@@ -0,0 +1,89 @@
+package net.contrapunctus.rngzip.util;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through the parallel BZip2 streams, with enough data
+ * for three blocks, the last one short.  Repetitive blocks are
+ * sorted differently, so they get a test of their own.
+ */
+public class ParallelBZip2Test
+{
+  private byte[] sample(int n)
+  {
+    Random r = new Random(23);
+    byte[] b = new byte[n];
+    for(int i = 0;  i < n;  i++) {
+      b[i] = (byte) (i % 80 == 79? '\n' : 'a' + r.nextInt(6));
+    }
+    return b;
+  }
+
+  private byte[] compress(byte[] plain) throws IOException
+  {
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    OutputStream out = new ParallelBZip2OutputStream(bo);
+    out.write(plain, 0, 1000);
+    for(int i = 1000;  i < 2000 && i < plain.length;  i++) {
+      out.write(plain[i]);
+    }
+    if(plain.length > 2000) {
+      out.write(plain, 2000, plain.length - 2000);
+    }
+    out.close();
+    return bo.toByteArray();
+  }
+
+  private void roundTrip(byte[] plain) throws IOException
+  {
+    InputStream in = new ParallelBZip2InputStream
+      (new ByteArrayInputStream(compress(plain)));
+    byte[] got = new byte[plain.length];
+    int n = 0, k;
+    while((k = in.read(got, n, Math.min(got.length - n, 70000))) > 0) {
+      n += k;
+    }
+    assertEquals(plain.length, n);
+    assertEquals(-1, in.read());
+    in.close();
+    assertTrue(Arrays.equals(plain, got));
+  }
+
+  @Test
+  public void roundTrip() throws IOException
+  {
+    roundTrip(sample(2 * ParallelBZip2OutputStream.BLOCK_SIZE + 12345));
+  }
+
+  /**
+   * The first block has few distinct pairs of bytes; the second
+   * has many, but repeats the same 1000 over and over.
+   */
+  @Test
+  public void repetitive() throws IOException
+  {
+    int n = ParallelBZip2OutputStream.BLOCK_SIZE;
+    byte[] plain = new byte[2 * n];
+    byte[] unit = new byte[1000];
+    new Random(5).nextBytes(unit);
+    for(int i = 0;  i < n;  i++) {
+      plain[i] = (byte) "abcabd".charAt(i % 6);
+      plain[n + i] = unit[i % unit.length];
+    }
+    roundTrip(plain);
+  }
+
+  @Test
+  public void empty() throws IOException
+  {
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    new ParallelBZip2OutputStream(bo).close();
+    InputStream in = new ParallelBZip2InputStream
+      (new ByteArrayInputStream(bo.toByteArray()));
+    assertEquals(-1, in.read());
+  }
+}
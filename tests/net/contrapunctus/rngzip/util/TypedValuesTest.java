@@ -0,0 +1,82 @@
+package net.contrapunctus.rngzip.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link TypedValues}: every string must come back
+ * exactly, whether or not it has a binary form.
+ */
+public class TypedValuesTest
+{
+  /* Writes each string as ‘type’, checks that they read back, and
+     returns the number of bytes used. */
+  private int roundTrip(int type, String... ss) throws IOException
+  {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bs);
+    for(String s : ss) {
+      TypedValues.write(out, type, s);
+    }
+    DataInputStream in = new DataInputStream
+      (new ByteArrayInputStream(bs.toByteArray()));
+    for(String s : ss) {
+      assertEquals(s, TypedValues.read(in, type));
+    }
+    assertEquals(-1, in.read());
+    return bs.size();
+  }
+
+  @Test
+  public void integers() throws IOException
+  {
+    assertEquals(1, roundTrip(TypedValues.INTEGER, "0"));
+    assertEquals(4, roundTrip(TypedValues.INTEGER, "10000035"));
+    roundTrip(TypedValues.INTEGER, "-1", "9223372036854775807",
+              "-9223372036854775808", "007", "+5", " 5", "-0", "",
+              "12345678901234567890", "x");
+  }
+
+  @Test
+  public void decimals() throws IOException
+  {
+    assertEquals(3, roundTrip(TypedValues.DECIMAL, "12.50"));
+    roundTrip(TypedValues.DECIMAL, "0", "-0.5", "0.05", "3", ".5",
+              "5.", "-0", "-0.0", "1E3", "+1.0", "NaN");
+    roundTrip(TypedValues.DOUBLE, "0", "2.75", "1.0E10", "INF", "-INF",
+              "NaN", "1e10", "1.5E3", "0.1", "-0.0", "3d", "inf");
+  }
+
+  @Test
+  public void datesAndTimes() throws IOException
+  {
+    assertEquals(3, roundTrip(TypedValues.DATE, "2012-08-11"));
+    roundTrip(TypedValues.DATE, "1999-12-31Z", "0001-01-01+05:30",
+              "-0044-03-15", "2012-13-01", "2012-8-11", "12012-08-11",
+              "2012-08-11-00:00", "2012-08-11 ", "2012-08-11T00:00:00");
+    roundTrip(TypedValues.TIME, "13:20:00", "24:00:00", "09:30:10.5",
+              "09:30:10.050Z", "23:59:59.123456789-08:00", "9:30:10",
+              "09:30:60", "09:30:10.");
+    roundTrip(TypedValues.DATE_TIME, "2002-10-10T12:00:00-05:00",
+              "2002-10-10T17:00:00Z", "2002-10-10T12:00:00.25",
+              "2002-10-10 12:00:00", "2002-10-10T12:00", "2002-10-10");
+  }
+
+  @Test
+  public void others() throws IOException
+  {
+    assertEquals(4, roundTrip(TypedValues.BOOLEAN,
+                              "true", "false", "1", "0"));
+    roundTrip(TypedValues.BOOLEAN, "TRUE", " true", "");
+    assertEquals(3, roundTrip(TypedValues.HEX, "0FB7"));
+    roundTrip(TypedValues.HEX, "", "0fb7", "0Fb7", "0FB", "XY");
+    assertEquals(4, roundTrip(TypedValues.BASE64, "AQID"));
+    roundTrip(TypedValues.BASE64, "", "AQI=", "AQI", "AQ ID", "*");
+    roundTrip(TypedValues.STRING, "anything", "");
+  }
+}